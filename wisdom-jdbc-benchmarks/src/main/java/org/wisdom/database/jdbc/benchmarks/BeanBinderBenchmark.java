@@ -0,0 +1,124 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.wisdom.jdbc.driver.helpers.BeanBinder;
+import org.wisdom.jdbc.driver.helpers.BeanUtils;
+
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.reflect.Method;
+import java.sql.SQLException;
+import java.util.Enumeration;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the configuration of a data source created by a {@code DataSourceFactory}: setting five properties on a
+ * new H2 data source. The {@code introspection} benchmark reproduces the previous implementation of
+ * {@code BeanUtils.setProperty} (introspection and linear search of the property on each call, reflective
+ * invocation), {@code setProperty} calls {@code BeanUtils.setProperty} for each property, and {@code bind} binds the
+ * whole properties in one pass, as {@code AbstractDataSourceFactory} does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeanBinderBenchmark {
+
+    private final Properties properties = new Properties();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        properties.setProperty("URL", "jdbc:h2:mem:benchmark");
+        properties.setProperty("user", "sa");
+        properties.setProperty("password", "secret");
+        properties.setProperty("description", "benchmark");
+        properties.setProperty("loginTimeout", "30");
+    }
+
+    @Benchmark
+    public JdbcDataSource introspection() throws SQLException {
+        JdbcDataSource source = new JdbcDataSource();
+        Enumeration<?> enumeration = properties.keys();
+        while (enumeration.hasMoreElements()) {
+            String name = (String) enumeration.nextElement();
+            introspect(source, name, properties.getProperty(name));
+        }
+        return source;
+    }
+
+    @Benchmark
+    public JdbcDataSource setProperty() throws SQLException {
+        JdbcDataSource source = new JdbcDataSource();
+        Enumeration<?> enumeration = properties.keys();
+        while (enumeration.hasMoreElements()) {
+            String name = (String) enumeration.nextElement();
+            BeanUtils.setProperty(source, name, properties.getProperty(name));
+        }
+        return source;
+    }
+
+    @Benchmark
+    public JdbcDataSource bind() throws SQLException {
+        JdbcDataSource source = new JdbcDataSource();
+        BeanBinder.of(JdbcDataSource.class).bind(source, properties);
+        return source;
+    }
+
+    /**
+     * The previous implementation of {@code BeanUtils.setProperty}.
+     */
+    private static void introspect(Object object, String name, String value) throws SQLException {
+        PropertyDescriptor[] descriptors;
+        try {
+            descriptors = Introspector.getBeanInfo(object.getClass()).getPropertyDescriptors();
+        } catch (Exception ex) {
+            throw new SQLException(ex);
+        }
+        for (PropertyDescriptor descriptor : descriptors) {
+            if (descriptor.getWriteMethod() != null && descriptor.getName().equals(name)) {
+                Method method = descriptor.getWriteMethod();
+                Object param = BeanUtils.toBasicType(value, method.getParameterTypes()[0].getName());
+                try {
+                    method.invoke(object, param);
+                } catch (Exception ex) {
+                    throw new SQLException(ex);
+                }
+                return;
+            }
+        }
+        throw new SQLException("No such property: " + name);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(BeanBinderBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+
+/**
+ * The entry point of the benchmarks jar. It accepts the JMH command line options, and writes the results as JSON
+ * (in {@code target/benchmarks/jmh-result.json} by default) so runs of different builds can be compared, for instance
+ * with a JMH result visualizer. The {@code -rf} and {@code -rff} options override the format and the file.
+ * <pre>
+ * java -jar wisdom-jdbc-benchmarks/target/benchmarks.jar ConnectionBenchmark -rff before.json
+ * </pre>
+ */
+public final class Benchmarks {
+
+    /**
+     * The default result file.
+     */
+    public static final String DEFAULT_RESULT = "target/benchmarks/jmh-result.json";
+
+    private Benchmarks() {
+        // Avoid direct instantiation
+    }
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions command = new CommandLineOptions(args);
+        if (command.shouldHelp() || command.shouldList() || command.shouldListProfilers()
+                || command.shouldListResultFormats()) {
+            // Informational commands are handled by JMH itself
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(command);
+        if (!command.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!command.getResult().hasValue()) {
+            File result = new File(DEFAULT_RESULT);
+            result.getAbsoluteFile().getParentFile().mkdirs();
+            options.result(result.getPath());
+        }
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.wisdom.database.jdbc.impl.HikariCPDataSources;
+import org.wisdom.database.jdbc.utils.BulkLoader;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Measures the throughput (rows per second) of the bulk loader on H2 and HSQLDB, compared to the hand-rolled loop
+ * inserting the rows one by one on a single connection.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BulkLoadBenchmark {
+
+    private static final int ROWS = 10000;
+
+    @Param({"h2", "hsqldb"})
+    public String database;
+
+    /**
+     * The number of writers, 0 for the hand-rolled loop.
+     */
+    @Param({"0", "1", "4"})
+    public int writers;
+
+    @Param({"1000"})
+    public int batchSize;
+
+    private HikariCPDataSources sources;
+
+    private DataSource source;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String id = "bulk" + System.nanoTime();
+        Map<String, Object> db = new HashMap<>();
+        String driver;
+        switch (database) {
+            case "h2":
+                driver = Fixtures.H2_DRIVER;
+                db.put("default.url", "jdbc:h2:mem:" + id + ";DB_CLOSE_DELAY=-1");
+                break;
+            case "hsqldb":
+                driver = Fixtures.HSQL_DRIVER;
+                db.put("default.url", "jdbc:hsqldb:mem:" + id);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown database " + database);
+        }
+        db.put("default.driver", driver);
+        db.put("default.maximumPoolSize", 4);
+        sources = Fixtures.start(db, driver);
+        source = sources.getDataSource("default");
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE items (id INT PRIMARY KEY, name VARCHAR(32), price DOUBLE)");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sources.onStop();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long load() throws SQLException {
+        int from = next;
+        next += ROWS;
+        if (writers == 0) {
+            return loop(from);
+        }
+        return BulkLoader.into(source, "items")
+                .columns("id", "name", "price")
+                .writers(writers)
+                .batchSize(batchSize)
+                .commitSize(5 * batchSize)
+                .load(IntStream.range(from, from + ROWS).mapToObj(i -> new Object[]{i, "item-" + i, i * 0.5}))
+                .getRows();
+    }
+
+    private long loop(int from) throws SQLException {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement(
+                     "INSERT INTO items (id, name, price) VALUES (?, ?, ?)")) {
+            for (int i = from; i < from + ROWS; i++) {
+                statement.setInt(1, i);
+                statement.setString(2, "item-" + i);
+                statement.setDouble(3, i * 0.5);
+                statement.executeUpdate();
+            }
+        }
+        return ROWS;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(BulkLoadBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import com.google.common.collect.ImmutableMap;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.*;
+import org.wisdom.database.jdbc.impl.HikariCPDataSources;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of borrowing and returning a connection through the data source manager, compared to a raw
+ * HikariCP pool with the same settings:
+ * <ul>
+ * <li>{@code hikari}: {@link HikariDataSource#getConnection()}, the baseline,</li>
+ * <li>{@code wrapped}: the {@code DataSource} published as service (the {@code WrappedDataSource} indirection),</li>
+ * <li>{@code manager}: {@link HikariCPDataSources#getConnection(String)}, including the lookup of the data source.</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConnectionBenchmark {
+
+    private static final int POOL_SIZE = 8;
+
+    private HikariCPDataSources sources;
+
+    private DataSource wrapped;
+
+    private HikariDataSource hikari;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        sources = Fixtures.start(ImmutableMap.<String, Object>of(
+                "default.driver", Fixtures.H2_DRIVER,
+                "default.url", "jdbc:h2:mem:connection-manager;DB_CLOSE_DELAY=-1",
+                "default.minimumIdle", POOL_SIZE,
+                "default.maximumPoolSize", POOL_SIZE), Fixtures.H2_DRIVER);
+        wrapped = sources.getDataSource("default");
+
+        HikariConfig config = new HikariConfig();
+        config.setDriverClassName(Fixtures.H2_DRIVER);
+        config.setJdbcUrl("jdbc:h2:mem:connection-hikari;DB_CLOSE_DELAY=-1");
+        config.setMinimumIdle(POOL_SIZE);
+        config.setMaximumPoolSize(POOL_SIZE);
+        hikari = new HikariDataSource(config);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sources.onStop();
+        hikari.close();
+    }
+
+    @Benchmark
+    public Connection hikari() throws SQLException {
+        Connection connection = hikari.getConnection();
+        connection.close();
+        return connection;
+    }
+
+    @Benchmark
+    public Connection wrapped() throws SQLException {
+        Connection connection = wrapped.getConnection();
+        connection.close();
+        return connection;
+    }
+
+    @Benchmark
+    public Connection manager() throws SQLException {
+        Connection connection = sources.getConnection("default");
+        connection.close();
+        return connection;
+    }
+}
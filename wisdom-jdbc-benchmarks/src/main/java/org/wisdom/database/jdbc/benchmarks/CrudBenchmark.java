@@ -0,0 +1,192 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import org.apache.geronimo.transaction.manager.TransactionManagerImpl;
+import org.openjdk.jmh.annotations.*;
+import org.wisdom.api.model.Crud;
+import org.wisdom.framework.jpa.crud.JTAEntityCrud;
+import org.wisdom.framework.jpa.crud.LocalEntityCrud;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.EntityTransaction;
+import javax.persistence.PersistenceUnitUtil;
+import java.io.Serializable;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the CRUD operations of {@link JTAEntityCrud} (with the Geronimo transaction manager) and
+ * {@link LocalEntityCrud} (with resource-local transactions). The entity manager is an in-memory stub, so the
+ * benchmark measures the transaction demarcation and the bookkeeping of the Crud implementations, not the JPA
+ * provider.
+ * <p>
+ * The Crud implementations log each transaction at the INFO level. The benchmark runs with the WARN level, so it
+ * measures the demarcation rather than the console output.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.log.org.wisdom.framework.jpa.crud=warn")
+public class CrudBenchmark {
+
+    private static final long ROWS = 1000;
+
+    @Param({"jta", "local"})
+    public String transactions;
+
+    private Crud<Item, Long> crud;
+
+    private long next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        EntityManager em = new InMemoryEntityManager().proxy();
+        if ("jta".equals(transactions)) {
+            crud = new JTAEntityCrud<>("benchmark", em, new TransactionManagerImpl(), Item.class, Long.class, null);
+        } else {
+            crud = new LocalEntityCrud<>("benchmark", em, Item.class, Long.class, null);
+        }
+        for (long i = 0; i < ROWS; i++) {
+            crud.save(new Item(i, "item-" + i));
+        }
+    }
+
+    @Benchmark
+    public Item findOne() {
+        next = (next + 1) % ROWS;
+        return crud.findOne(next);
+    }
+
+    @Benchmark
+    public Item update() {
+        next = (next + 1) % ROWS;
+        return crud.save(new Item(next, "updated-" + next));
+    }
+
+    @Benchmark
+    public Item insertAndDelete() {
+        Item item = crud.save(new Item(ROWS + 1, "transient"));
+        crud.delete(item);
+        return item;
+    }
+
+    /**
+     * The benchmarked entity.
+     */
+    public static class Item implements Serializable {
+
+        private final Long id;
+
+        private final String name;
+
+        public Item(Long id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public Long getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * The methods of the entity manager used by the Crud implementations, backed by a map.
+     */
+    private static final class InMemoryEntityManager {
+
+        private final Map<Long, Item> entities = new HashMap<>();
+
+        private boolean active;
+
+        private EntityManager proxy() {
+            final EntityTransaction transaction = (EntityTransaction) Proxy.newProxyInstance(
+                    CrudBenchmark.class.getClassLoader(), new Class[]{EntityTransaction.class},
+                    (p, method, args) -> {
+                        switch (method.getName()) {
+                            case "begin":
+                                active = true;
+                                return null;
+                            case "commit":
+                            case "rollback":
+                                active = false;
+                                return null;
+                            case "isActive":
+                                return active;
+                            case "setRollbackOnly":
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+            final PersistenceUnitUtil util = (PersistenceUnitUtil) Proxy.newProxyInstance(
+                    CrudBenchmark.class.getClassLoader(), new Class[]{PersistenceUnitUtil.class},
+                    (p, method, args) -> {
+                        if ("getIdentifier".equals(method.getName())) {
+                            return ((Item) args[0]).getId();
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    });
+            final EntityManagerFactory factory = (EntityManagerFactory) Proxy.newProxyInstance(
+                    CrudBenchmark.class.getClassLoader(), new Class[]{EntityManagerFactory.class},
+                    (p, method, args) -> {
+                        if ("getPersistenceUnitUtil".equals(method.getName())) {
+                            return util;
+                        }
+                        throw new UnsupportedOperationException(method.getName());
+                    });
+            return (EntityManager) Proxy.newProxyInstance(CrudBenchmark.class.getClassLoader(),
+                    new Class[]{EntityManager.class}, (p, method, args) -> {
+                        switch (method.getName()) {
+                            case "find":
+                                return entities.get((Long) args[1]);
+                            case "contains":
+                                Item item = (Item) args[0];
+                                return entities.get(item.getId()) == item;
+                            case "persist":
+                            case "merge":
+                                Item saved = (Item) args[0];
+                                entities.put(saved.getId(), saved);
+                                return "merge".equals(method.getName()) ? saved : null;
+                            case "remove":
+                                entities.remove(((Item) args[0]).getId());
+                                return null;
+                            case "getTransaction":
+                                return transaction;
+                            case "getEntityManagerFactory":
+                                return factory;
+                            case "joinTransaction":
+                                return null;
+                            default:
+                                throw new UnsupportedOperationException(method.getName());
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import com.google.common.collect.ImmutableMap;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.wisdom.database.jdbc.impl.HikariCPDataSources;
+
+import javax.sql.DataSource;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of the data source lookups ({@link HikariCPDataSources#getDataSource(String)} and
+ * {@link HikariCPDataSources#getDataSources()}) while a driver is bound and unbound in a loop. The churn makes the
+ * manager publish new registry snapshots continuously.
+ * <p>
+ * Run {@link #main(String[])} to execute the benchmark with 1, 2, 4, 8, 16, 32 and 64 threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DataSourceLookupBenchmark {
+
+    private HikariCPDataSources sources;
+
+    private Thread churn;
+
+    private volatile boolean running;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Map<String, Object> db = ImmutableMap.<String, Object>builder()
+                .put("default.driver", Fixtures.H2_DRIVER)
+                .put("default.url", "jdbc:h2:mem:lookup")
+                .put("churn.driver", Fixtures.HSQL_DRIVER)
+                .put("churn.url", "jdbc:hsqldb:mem:churn")
+                .put("churn.minimumIdle", 1)
+                .put("churn.maximumPoolSize", 1)
+                .build();
+        sources = Fixtures.start(db, Fixtures.H2_DRIVER);
+
+        final DataSourceFactory factory = Fixtures.factory(org.hsqldb.jdbc.JDBCDriver.class);
+        final Map<String, String> properties = Fixtures.driverProperties(Fixtures.HSQL_DRIVER);
+        running = true;
+        churn = new Thread(() -> {
+            while (running) {
+                sources.bindFactory(factory, properties);
+                sources.unbindFactory(factory, properties);
+            }
+        }, "driver-churn");
+        churn.setDaemon(true);
+        churn.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        running = false;
+        churn.join();
+        sources.onStop();
+    }
+
+    @Benchmark
+    public DataSource getDataSource() {
+        return sources.getDataSource("default");
+    }
+
+    @Benchmark
+    public Map<String, DataSource> getDataSources() {
+        return sources.getDataSources();
+    }
+
+    public static void main(String[] args) throws Exception {
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            Options options = new OptionsBuilder()
+                    .include(DataSourceLookupBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import com.zaxxer.hikari.util.DriverDataSource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the creation of the connection source of a pool and of its first physical connection, as done on each pool
+ * creation (start, rebuild, tenant or failover pool, idle shutdown).
+ * <p>
+ * {@code driverManager} is the previous path: a new driver instance is registered in the {@code DriverManager}, and
+ * HikariCP's {@code DriverDataSource} looks it up among the registered drivers. The {@code churn} parameter is the
+ * number of drivers left registered by the previous pool creations, and each operation registers one more, as
+ * reconfigurations did. {@code driver} opens the connection with the driver instance shared by the pools of a
+ * factory, and {@code factoryDataSource} with a data source created by the factory, as the pools now do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DriverChurnBenchmark {
+
+    private static final String URL = "jdbc:h2:mem:churn;DB_CLOSE_DELAY=-1";
+
+    @Param({"0", "200"})
+    public int churn;
+
+    private final Properties properties = new Properties();
+
+    private final List<Driver> registered = new ArrayList<>();
+
+    private Driver driver;
+
+    private Connection keepAlive;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+        driver = new org.h2.Driver();
+        keepAlive = driver.connect(URL, properties);
+    }
+
+    @Setup(Level.Iteration)
+    public void register() throws SQLException {
+        for (int i = 0; i < churn; i++) {
+            registerDriver();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void deregister() throws SQLException {
+        for (Driver instance : registered) {
+            DriverManager.deregisterDriver(instance);
+        }
+        registered.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        keepAlive.close();
+    }
+
+    private void registerDriver() throws SQLException {
+        Driver instance = new org.h2.Driver();
+        DriverManager.registerDriver(instance);
+        registered.add(instance);
+    }
+
+    @Benchmark
+    public void driverManager() throws SQLException {
+        registerDriver();
+        new DriverDataSource(URL, org.h2.Driver.class.getName(), properties, null, null).getConnection().close();
+    }
+
+    @Benchmark
+    public void driver() throws SQLException {
+        driver.connect(URL, properties).close();
+    }
+
+    @Benchmark
+    public void factoryDataSource() throws SQLException {
+        JdbcDataSource source = new JdbcDataSource();
+        source.setURL(URL);
+        source.getConnection().close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(DriverChurnBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
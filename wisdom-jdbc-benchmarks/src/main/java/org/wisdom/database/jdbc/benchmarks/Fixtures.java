@@ -0,0 +1,120 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import com.typesafe.config.ConfigFactory;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.wisdom.api.configuration.ApplicationConfiguration;
+import org.wisdom.api.configuration.Configuration;
+import org.wisdom.configuration.ConfigurationImpl;
+import org.wisdom.database.jdbc.impl.HikariCPDataSources;
+
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Builds the objects used by the benchmarks, the same way the data sources tests do (mocked OSGi context and
+ * configuration).
+ */
+public final class Fixtures {
+
+    public static final String H2_DRIVER = "org.h2.Driver";
+    public static final String HSQL_DRIVER = "org.hsqldb.jdbc.JDBCDriver";
+    public static final String DERBY_DRIVER = "org.apache.derby.jdbc.EmbeddedDriver";
+    public static final String SQLITE_DRIVER = "org.sqlite.JDBC";
+
+    private Fixtures() {
+        // Avoid direct instantiation
+    }
+
+    /**
+     * Creates a mocked bundle context.
+     *
+     * @return the bundle context
+     */
+    public static BundleContext context() {
+        BundleContext context = mock(BundleContext.class);
+        when(context.getBundle()).thenReturn(mock(Bundle.class));
+        return context;
+    }
+
+    /**
+     * Creates an application configuration exposing the given `db` configuration.
+     *
+     * @param db the data source configuration, keys are relative to the `db` prefix (`name.url`...)
+     * @return the application configuration
+     */
+    public static ApplicationConfiguration configuration(Map<String, Object> db) {
+        Configuration conf = new ConfigurationImpl(null, ConfigFactory.parseMap(db));
+        ApplicationConfiguration configuration = mock(ApplicationConfiguration.class);
+        when(configuration.getConfiguration(HikariCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(conf);
+        return configuration;
+    }
+
+    /**
+     * Creates a data source factory creating the given driver.
+     *
+     * @param driver the driver class
+     * @return the factory
+     * @throws SQLException cannot happen, required by the mocked API
+     */
+    public static DataSourceFactory factory(final Class<? extends Driver> driver) throws SQLException {
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenAnswer(invocation -> driver.getConstructor().newInstance());
+        return factory;
+    }
+
+    /**
+     * Creates the service properties published by a data source factory.
+     *
+     * @param driverClassName the driver class name
+     * @return the properties
+     */
+    public static Map<String, String> driverProperties(String driverClassName) {
+        return Collections.singletonMap(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, driverClassName);
+    }
+
+    /**
+     * Creates and starts a data source manager.
+     *
+     * @param db      the data source configuration
+     * @param drivers the driver class names to bind before starting
+     * @return the started manager
+     * @throws Exception if the manager cannot be started
+     */
+    @SuppressWarnings("unchecked")
+    public static HikariCPDataSources start(Map<String, Object> db, String... drivers) throws Exception {
+        HikariCPDataSources sources = new HikariCPDataSources(context()).setApplicationConfiguration(configuration(db));
+        for (String driver : drivers) {
+            sources.bindFactory(factory((Class<? extends Driver>) Class.forName(driver)), driverProperties(driver));
+        }
+        sources.onStart();
+        return sources;
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import org.apache.geronimo.transaction.manager.TransactionBranchInfo;
+import org.apache.geronimo.transaction.manager.TransactionBranchInfoImpl;
+import org.apache.geronimo.transaction.manager.XidFactory;
+import org.openjdk.jmh.annotations.*;
+import org.wisdom.framework.transaction.impl.HowlLog;
+import org.wisdom.framework.transaction.impl.XidFactoryImpl;
+
+import javax.transaction.xa.Xid;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the two-phase commit log: each operation logs the prepare record of a transaction with {@code branches}
+ * branches, then its commit record. The prepare record is forced to disk, so the result depends on the storage.
+ * The log settings are the ones used by the transaction service, and the log files are written in a temporary
+ * directory.
+ * <p>
+ * Run with several threads ({@code -t}) to measure the grouping of the forces.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HowlLogBenchmark {
+
+    @Param({"1", "2"})
+    public int branches;
+
+    private File directory;
+
+    private HowlLog log;
+
+    private XidFactory xidFactory;
+
+    private List<TransactionBranchInfo> infos;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("howl").toFile();
+        xidFactory = new XidFactoryImpl("benchmark".getBytes("UTF-8"));
+        log = new HowlLog("org.objectweb.howl.log.BlockLogBuffer", 4, true, true, 50, "txlog", "log", "transaction",
+                -1, 0, 2, 4, -1, true, xidFactory, directory);
+        log.start();
+        Xid global = xidFactory.createXid();
+        infos = new ArrayList<>();
+        for (int i = 0; i < branches; i++) {
+            infos.add(new TransactionBranchInfoImpl(xidFactory.createBranch(global, i + 1), "resource-" + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        log.stop();
+        File[] files = new File(directory, "txlog").listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        new File(directory, "txlog").delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public Object prepareAndCommit() throws Exception {
+        Xid xid = xidFactory.createXid();
+        Object mark = log.prepare(xid, infos);
+        log.commit(xid, mark);
+        return mark;
+    }
+}
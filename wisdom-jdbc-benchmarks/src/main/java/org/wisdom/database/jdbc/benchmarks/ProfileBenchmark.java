@@ -0,0 +1,203 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.wisdom.database.jdbc.impl.HikariCPDataSources;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the effect of the performance profiles ({@code db.name.profile}) on the embedded drivers having profile
+ * properties (H2 and HSQLDB), using file databases so the cache settings matter. Each profile targets a workload:
+ * {@code lookup} (oltp), {@code insertBatch} (bulk) and {@code scan} (analytics).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProfileBenchmark {
+
+    private static final int ROWS = 20000;
+
+    private static final int BATCH = 1000;
+
+    @Param({"h2", "hsqldb"})
+    public String database;
+
+    @Param({"none", "oltp", "bulk", "analytics"})
+    public String profile;
+
+    private HikariCPDataSources sources;
+
+    private DataSource source;
+
+    private File directory;
+
+    private int next = ROWS;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        directory = Files.createTempDirectory("profile").toFile();
+        String path = new File(directory, "db").getAbsolutePath();
+        Map<String, Object> db = new HashMap<>();
+        String driver;
+        String create;
+        switch (database) {
+            case "h2":
+                driver = Fixtures.H2_DRIVER;
+                db.put("default.url", "jdbc:h2:" + path);
+                create = "CREATE TABLE items (id INT PRIMARY KEY, name VARCHAR(32), price DOUBLE)";
+                break;
+            case "hsqldb":
+                driver = Fixtures.HSQL_DRIVER;
+                db.put("default.url", "jdbc:hsqldb:file:" + path);
+                // Only cached tables use the cache settings
+                create = "CREATE CACHED TABLE items (id INT PRIMARY KEY, name VARCHAR(32), price DOUBLE)";
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown database " + database);
+        }
+        db.put("default.driver", driver);
+        db.put("default.maximumPoolSize", 4);
+        if (!"none".equals(profile)) {
+            db.put("default.profile", profile);
+        }
+        sources = Fixtures.start(db, driver);
+        source = sources.getDataSource("default");
+
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute(create);
+            connection.setAutoCommit(false);
+            insert(connection, 0, ROWS);
+            connection.commit();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN");
+        } catch (SQLException e) {
+            // The database may already be closed
+        }
+        sources.onStop();
+        delete(directory);
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (!file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    private static void insert(Connection connection, int from, int count) throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO items (id, name, price) VALUES (?, ?, ?)")) {
+            for (int i = from; i < from + count; i++) {
+                insert.setInt(1, i);
+                insert.setString(2, "item-" + i);
+                insert.setDouble(3, i * 0.5);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        }
+    }
+
+    /**
+     * A primary key lookup in its own transaction (oltp).
+     */
+    @Benchmark
+    public String lookup() throws SQLException {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement("SELECT name FROM items WHERE id = ?")) {
+            statement.setInt(1, ThreadLocalRandom.current().nextInt(ROWS));
+            try (ResultSet results = statement.executeQuery()) {
+                return results.next() ? results.getString(1) : null;
+            }
+        }
+    }
+
+    /**
+     * A batch of insertions committed at once (bulk).
+     */
+    @Benchmark
+    public int insertBatch() throws SQLException {
+        int from;
+        synchronized (this) {
+            from = next;
+            next += BATCH;
+        }
+        try (Connection connection = source.getConnection()) {
+            connection.setAutoCommit(false);
+            insert(connection, from, BATCH);
+            connection.commit();
+            connection.setAutoCommit(true);
+        }
+        return from;
+    }
+
+    /**
+     * A query reading the first rows of the table (analytics).
+     */
+    @Benchmark
+    public double scan() throws SQLException {
+        double sum = 0;
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("SELECT price FROM items WHERE id < " + ROWS)) {
+            while (results.next()) {
+                sum += results.getDouble(1);
+            }
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(ProfileBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import org.apache.geronimo.transaction.manager.TransactionManagerImpl;
+import org.openjdk.jmh.annotations.*;
+import org.wisdom.framework.transaction.Propagation;
+import org.wisdom.framework.transaction.impl.PropagationManager;
+import org.wisdom.framework.transaction.impl.TransactionCallback;
+
+import javax.transaction.Status;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the entry and exit of a transactional block ({@link PropagationManager#onEntry} then
+ * {@link PropagationManager#onExit}) for each {@link Propagation}, with the Geronimo transaction manager used by the
+ * transaction service. The scenarios suffixed with {@code /tx} run inside an enclosing transaction. MANDATORY is only
+ * measured inside a transaction, and NEVER outside, as the other combinations fail.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PropagationBenchmark {
+
+    private static final TransactionCallback CALLBACK = new TransactionCallback() {
+        @Override
+        public void transactionCommitted(Transaction transaction) {
+            // Do nothing
+        }
+
+        @Override
+        public void transactionRolledBack(Transaction transaction) {
+            // Do nothing
+        }
+    };
+
+    @Param({"REQUIRES", "REQUIRES/tx", "REQUIRES_NEW", "REQUIRES_NEW/tx", "MANDATORY/tx", "SUPPORTED",
+            "SUPPORTED/tx", "NOT_SUPPORTED", "NOT_SUPPORTED/tx", "NEVER"})
+    public String scenario;
+
+    private TransactionManager manager;
+
+    private PropagationManager propagation;
+
+    private Propagation policy;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        // Long enough for the enclosing transaction to outlive the trial
+        manager = new TransactionManagerImpl((int) TimeUnit.HOURS.toSeconds(1));
+        propagation = new PropagationManager(manager);
+        String[] segments = scenario.split("/");
+        policy = Propagation.valueOf(segments[0]);
+        if (segments.length > 1) {
+            manager.begin();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (manager.getTransaction() != null && manager.getStatus() != Status.STATUS_NO_TRANSACTION) {
+            manager.rollback();
+        }
+    }
+
+    @Benchmark
+    public void enterAndExit() throws Exception {
+        propagation.onEntry(policy, 0, "benchmark");
+        propagation.onExit(policy, "benchmark", CALLBACK);
+    }
+}
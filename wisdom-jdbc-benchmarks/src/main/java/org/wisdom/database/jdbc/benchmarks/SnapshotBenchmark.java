@@ -0,0 +1,120 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.wisdom.database.jdbc.utils.DatabaseSnapshot;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the reset of a seeded embedded database between two tests: {@code reseed} drops the tables, creates them
+ * again and inserts the seed rows, as the test suites do, while {@code restore} restores a {@link DatabaseSnapshot}
+ * captured after the seeding.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @Param({"jdbc:h2:mem:snapshot;DB_CLOSE_DELAY=-1", "jdbc:hsqldb:mem:snapshot"})
+    public String url;
+
+    @Param({"1000"})
+    public int rows;
+
+    private HikariDataSource source;
+
+    private DatabaseSnapshot snapshot;
+
+    @Setup(Level.Trial)
+    public void setup() throws SQLException {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(url);
+        config.setMaximumPoolSize(1);
+        source = new HikariDataSource(config);
+        seed();
+        snapshot = DatabaseSnapshot.capture(source);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        snapshot.close();
+        source.close();
+    }
+
+    @Benchmark
+    public void reseed() throws SQLException {
+        try (Connection connection = source.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE line IF EXISTS");
+            statement.execute("DROP TABLE orders IF EXISTS");
+        }
+        seed();
+    }
+
+    @Benchmark
+    public void restore() throws SQLException {
+        snapshot.restore(source);
+    }
+
+    private void seed() throws SQLException {
+        try (Connection connection = source.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE orders (id INT PRIMARY KEY, customer VARCHAR(64))");
+            statement.execute("CREATE TABLE line (id INT PRIMARY KEY, orders INT, product VARCHAR(64), "
+                    + "quantity INT, FOREIGN KEY (orders) REFERENCES orders(id))");
+            statement.execute("CREATE INDEX line_product ON line(product)");
+            connection.setAutoCommit(false);
+            try (PreparedStatement orders = connection.prepareStatement("INSERT INTO orders VALUES (?, ?)");
+                 PreparedStatement lines = connection.prepareStatement("INSERT INTO line VALUES (?, ?, ?, ?)")) {
+                for (int i = 0; i < rows; i++) {
+                    orders.setInt(1, i);
+                    orders.setString(2, "customer-" + i);
+                    orders.executeUpdate();
+                    lines.setInt(1, i);
+                    lines.setInt(2, i);
+                    lines.setString(3, "product-" + (i % 50));
+                    lines.setInt(4, i % 7);
+                    lines.executeUpdate();
+                }
+            }
+            connection.commit();
+            connection.setAutoCommit(true);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(SnapshotBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
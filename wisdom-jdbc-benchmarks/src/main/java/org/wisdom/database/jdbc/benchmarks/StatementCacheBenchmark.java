@@ -0,0 +1,143 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.wisdom.database.jdbc.impl.HikariCPDataSources;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the prepared statement cache ({@code statementCacheSize}) on each embedded database. Each operation
+ * borrows a connection, prepares a primary key lookup, executes it and returns the connection, the typical pattern
+ * of a request handler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatementCacheBenchmark {
+
+    private static final int ROWS = 1000;
+
+    @Param({"h2", "hsqldb", "derby", "sqlite"})
+    public String database;
+
+    @Param({"0", "32"})
+    public int statementCacheSize;
+
+    private HikariCPDataSources sources;
+
+    private DataSource source;
+
+    private File file;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        String id = "cache" + System.nanoTime();
+        Map<String, Object> db = new HashMap<>();
+        String driver;
+        switch (database) {
+            case "h2":
+                driver = Fixtures.H2_DRIVER;
+                db.put("default.url", "jdbc:h2:mem:" + id + ";DB_CLOSE_DELAY=-1");
+                break;
+            case "hsqldb":
+                driver = Fixtures.HSQL_DRIVER;
+                db.put("default.url", "jdbc:hsqldb:mem:" + id);
+                break;
+            case "derby":
+                driver = Fixtures.DERBY_DRIVER;
+                db.put("default.url", "jdbc:derby:memory:" + id + ";create=true");
+                break;
+            case "sqlite":
+                // In-memory SQLite databases are not shared between connections
+                driver = Fixtures.SQLITE_DRIVER;
+                file = File.createTempFile(id, ".db");
+                db.put("default.url", "jdbc:sqlite:" + file.getAbsolutePath());
+                // SQLite supports only SERIALIZABLE and READ_UNCOMMITTED
+                db.put("default.isolation", "SERIALIZABLE");
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown database " + database);
+        }
+        db.put("default.driver", driver);
+        db.put("default.maximumPoolSize", 4);
+        db.put("default.statementCacheSize", statementCacheSize);
+        sources = Fixtures.start(db, driver);
+        source = sources.getDataSource("default");
+
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE items (id INT PRIMARY KEY, name VARCHAR(32))");
+            connection.setAutoCommit(false);
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO items VALUES (?, ?)")) {
+                for (int i = 0; i < ROWS; i++) {
+                    insert.setInt(1, i);
+                    insert.setString(2, "item-" + i);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+            connection.commit();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sources.onStop();
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public String select() throws SQLException {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement("SELECT name FROM items WHERE id = ?")) {
+            statement.setInt(1, ThreadLocalRandom.current().nextInt(ROWS));
+            try (ResultSet results = statement.executeQuery()) {
+                return results.next() ? results.getString(1) : null;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(StatementCacheBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
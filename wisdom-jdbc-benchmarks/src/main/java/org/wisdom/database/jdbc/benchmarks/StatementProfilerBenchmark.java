@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.wisdom.database.jdbc.impl.HikariCPDataSources;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the overhead of the statement profiler on a simple primary key lookup executed on a H2 in-memory
+ * database. The {@code profiling} parameter selects the configuration:
+ * <ul>
+ * <li>{@code off}: {@code logStatements} is disabled</li>
+ * <li>{@code sampled}: {@code logStatements} is enabled with a sample rate of 1%</li>
+ * <li>{@code full}: {@code logStatements} is enabled and every execution is recorded</li>
+ * </ul>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatementProfilerBenchmark {
+
+    private static final int ROWS = 1000;
+
+    @Param({"off", "sampled", "full"})
+    public String profiling;
+
+    private HikariCPDataSources sources;
+
+    private DataSource source;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Map<String, Object> db = new HashMap<>();
+        db.put("default.driver", Fixtures.H2_DRIVER);
+        db.put("default.url", "jdbc:h2:mem:profiler;DB_CLOSE_DELAY=-1");
+        db.put("default.maximumPoolSize", 64);
+        if (!"off".equals(profiling)) {
+            db.put("default.logStatements", true);
+            db.put("default.statementSampleRate", "sampled".equals(profiling) ? 0.01 : 1.0);
+        }
+        sources = Fixtures.start(db, Fixtures.H2_DRIVER);
+        source = sources.getDataSource("default");
+
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS items (id INT PRIMARY KEY, name VARCHAR(32))");
+            statement.execute("DELETE FROM items");
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO items VALUES (?, ?)")) {
+                for (int i = 0; i < ROWS; i++) {
+                    insert.setInt(1, i);
+                    insert.setString(2, "item-" + i);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sources.onStop();
+    }
+
+    @Benchmark
+    public String select() throws SQLException {
+        try (Connection connection = source.getConnection();
+             PreparedStatement statement = connection.prepareStatement("SELECT name FROM items WHERE id = ?")) {
+            statement.setInt(1, ThreadLocalRandom.current().nextInt(ROWS));
+            try (ResultSet results = statement.executeQuery()) {
+                return results.next() ? results.getString(1) : null;
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(StatementProfilerBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
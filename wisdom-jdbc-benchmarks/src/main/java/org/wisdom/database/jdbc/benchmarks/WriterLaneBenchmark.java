@@ -0,0 +1,115 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.wisdom.database.jdbc.impl.HikariCPDataSources;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures concurrent single-row writes on a SQLite file database, submitted with
+ * {@link HikariCPDataSources#write(String, org.wisdom.database.jdbc.service.ConnectionFunction)}. With {@code pool},
+ * each write runs in its own transaction on a connection of a pool of 10, and the writers compete for the database
+ * lock (waiting with the busy timeout). With {@code writer}, the writes are queued to the single writer and committed
+ * in groups. Both use the WAL journal and the {@code NORMAL} synchronous mode.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(8)
+@Fork(1)
+public class WriterLaneBenchmark {
+
+    private static final File DB = new File("target/benchmarks/writer-lane.db");
+
+    @Param({"pool", "writer"})
+    public String mode;
+
+    private final AtomicInteger ids = new AtomicInteger();
+
+    private HikariCPDataSources sources;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        delete();
+        DB.getAbsoluteFile().getParentFile().mkdirs();
+        Map<String, Object> db = new HashMap<>();
+        db.put("sqlite.driver", Fixtures.SQLITE_DRIVER);
+        db.put("sqlite.url", "jdbc:sqlite:" + DB.getPath());
+        db.put("sqlite.isolation", "SERIALIZABLE");
+        db.put("sqlite.maximumPoolSize", 10);
+        if ("writer".equals(mode)) {
+            db.put("sqlite.writer.batchSize", 64);
+        } else {
+            db.put("sqlite.dataSource.journal_mode", "WAL");
+            db.put("sqlite.dataSource.synchronous", "NORMAL");
+            db.put("sqlite.dataSource.busy_timeout", "30000");
+        }
+        sources = Fixtures.start(db, Fixtures.SQLITE_DRIVER);
+        try (Connection connection = sources.getConnection("sqlite");
+             Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE event (id INTEGER PRIMARY KEY, payload TEXT)");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        sources.onStop();
+        delete();
+    }
+
+    private static void delete() {
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            new File(DB.getPath() + suffix).delete();
+        }
+    }
+
+    @Benchmark
+    public int write() throws Exception {
+        final int id = ids.incrementAndGet();
+        return sources.write("sqlite", connection -> {
+            try (PreparedStatement statement = connection.prepareStatement("INSERT INTO event VALUES (?, ?)")) {
+                statement.setInt(1, id);
+                statement.setString(2, "event-" + id);
+                return statement.executeUpdate();
+            }
+        }).get();
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(WriterLaneBenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
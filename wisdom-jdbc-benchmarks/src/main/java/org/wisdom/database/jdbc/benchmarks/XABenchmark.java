@@ -0,0 +1,139 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.benchmarks;
+
+import com.google.common.collect.ImmutableMap;
+import org.apache.geronimo.transaction.manager.TransactionManagerImpl;
+import org.h2.jdbcx.JdbcDataSource;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.wisdom.database.jdbc.impl.HikariCPDataSources;
+
+import javax.sql.DataSource;
+import javax.sql.XAConnection;
+import javax.transaction.TransactionManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Measures a JTA transaction updating an H2 database through an XA data source, with the Geronimo transaction
+ * manager. {@code pooled} uses an XA data source of the manager ({@code xa = true}): the connection is borrowed from
+ * the pool and enlisted on the first request of the transaction, reused by the second one, and returned to the pool on
+ * commit. {@code perTransaction} opens a new {@code XAConnection} for each transaction, enlists its resource, and
+ * closes it after the commit, as done without XA pooling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class XABenchmark {
+
+    private static final String URL = "jdbc:h2:mem:xa;DB_CLOSE_DELAY=-1";
+
+    private static final String UPDATE = "UPDATE account SET balance = balance + ? WHERE id = ?";
+
+    private TransactionManager manager;
+
+    private HikariCPDataSources sources;
+
+    private DataSource pooled;
+
+    private JdbcDataSource xa;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        manager = new TransactionManagerImpl();
+        xa = new JdbcDataSource();
+        xa.setURL(URL);
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createXADataSource(any(Properties.class))).thenReturn(xa);
+        sources = new HikariCPDataSources(Fixtures.context()).setApplicationConfiguration(Fixtures.configuration(
+                ImmutableMap.<String, Object>of(
+                        "xa.driver", Fixtures.H2_DRIVER,
+                        "xa.url", URL,
+                        "xa.xa", true)));
+        sources.bindFactory(factory, Fixtures.driverProperties(Fixtures.H2_DRIVER));
+        sources.bindTransactionManager(manager);
+        sources.onStart();
+        pooled = sources.getDataSource("xa");
+        try (Connection connection = pooled.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE account (id INT PRIMARY KEY, balance INT)");
+            statement.execute("INSERT INTO account VALUES (1, 0), (2, 0)");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        try (Connection connection = pooled.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE account");
+        }
+        sources.onStop();
+    }
+
+    @Benchmark
+    public void pooled() throws Exception {
+        manager.begin();
+        transfer(pooled.getConnection(), 1);
+        transfer(pooled.getConnection(), 2);
+        manager.commit();
+    }
+
+    @Benchmark
+    public void perTransaction() throws Exception {
+        manager.begin();
+        XAConnection connection = xa.getXAConnection();
+        try {
+            manager.getTransaction().enlistResource(connection.getXAResource());
+            transfer(connection.getConnection(), 1);
+            transfer(connection.getConnection(), 2);
+            manager.commit();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static void transfer(Connection connection, int id) throws SQLException {
+        try (Connection closed = connection; PreparedStatement statement = closed.prepareStatement(UPDATE)) {
+            statement.setInt(1, id == 1 ? -1 : 1);
+            statement.setInt(2, id);
+            statement.executeUpdate();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+                .include(XABenchmark.class.getSimpleName())
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.configuration.Configuration;
+import org.wisdom.database.jdbc.utils.ReadOnly;
+import org.wisdom.database.jdbc.utils.Tenant;
+
+import java.sql.SQLTransientConnectionException;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * The executor running the asynchronous connection requests of a data source (see
+ * {@link HikariCPDataSources#getConnectionAsync(String)}). It is configured by the {@code async} section of the data
+ * source configuration:
+ * <ul>
+ * <li>{@code threads}: the number of threads (default: the maximum pool size)</li>
+ * <li>{@code queueSize}: the number of requests waiting for a thread (default: twice the number of threads)</li>
+ * <li>{@code virtualThreads}: whether virtual threads are used when the JVM supports them (default: true). In this
+ * case, each request gets its own virtual thread, the number of requests being still bounded.</li>
+ * </ul>
+ * A request is admitted only if less than {@code threads + queueSize} requests are pending, otherwise it fails
+ * immediately with a {@link SQLTransientConnectionException}. So, when the pool is exhausted, the callers are not
+ * blocked and the requests do not pile up.
+ */
+class AsyncExecutor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncExecutor.class);
+
+    static final String CONFIGURATION = "async";
+
+    private final String name;
+
+    private final ExecutorService executor;
+
+    private final Semaphore admission;
+
+    private final int limit;
+
+    private final boolean virtual;
+
+    /**
+     * The settings the executor has been created with: threads, queue size and virtual threads (1 or 0).
+     */
+    private final int[] settings;
+
+    /**
+     * Creates an executor.
+     *
+     * @param name           the data source name
+     * @param threads        the number of threads
+     * @param queueSize      the number of requests waiting for a thread
+     * @param virtualThreads whether virtual threads must be used if available
+     */
+    AsyncExecutor(String name, int threads, int queueSize, boolean virtualThreads) {
+        this.name = name;
+        int count = Math.max(1, threads);
+        this.settings = new int[]{threads, queueSize, virtualThreads ? 1 : 0};
+        this.limit = count + Math.max(0, queueSize);
+        this.admission = new Semaphore(limit);
+        ExecutorService service = virtualThreads ? newVirtualThreadExecutor() : null;
+        this.virtual = service != null;
+        if (service == null) {
+            final AtomicInteger counter = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(count, count, 60L, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), runnable -> {
+                Thread thread = new Thread(runnable, "wisdom-jdbc-" + name + "-async-" + counter.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            pool.allowCoreThreadTimeOut(true);
+            service = pool;
+        }
+        this.executor = service;
+    }
+
+    /**
+     * Creates the executor of a data source.
+     *
+     * @param name          the data source name
+     * @param configuration the data source configuration
+     * @return the executor
+     */
+    static AsyncExecutor create(String name, Configuration configuration) {
+        int[] settings = settings(configuration);
+        return new AsyncExecutor(name, settings[0], settings[1], settings[2] == 1);
+    }
+
+    /**
+     * Checks whether the executor has been created with the settings of the given configuration, so a
+     * reconfiguration only replaces the executor if its settings changed.
+     *
+     * @param configuration the data source configuration
+     * @return {@literal true} if the executor has the settings of the configuration
+     */
+    boolean matches(Configuration configuration) {
+        return Arrays.equals(settings, settings(configuration));
+    }
+
+    private static int[] settings(Configuration configuration) {
+        int poolSize = configuration.getIntegerWithDefault("maximumPoolSize", 10);
+        Configuration section = configuration.getConfiguration(CONFIGURATION);
+        if (section == null) {
+            return new int[]{poolSize, 2 * poolSize, 1};
+        }
+        int threads = section.getIntegerWithDefault("threads", poolSize);
+        return new int[]{threads, section.getIntegerWithDefault("queueSize", 2 * threads),
+                section.getBooleanWithDefault("virtualThreads", true) ? 1 : 0};
+    }
+
+    /**
+     * Creates an executor running each task in a virtual thread, using reflection as virtual threads are only
+     * available from Java 21.
+     *
+     * @return the executor, {@literal null} if virtual threads are not supported
+     */
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return {@literal true} if the tasks run in virtual threads
+     */
+    boolean isVirtual() {
+        return virtual;
+    }
+
+    /**
+     * @return the number of requests admitted and not completed yet
+     */
+    int getPending() {
+        return limit - admission.availablePermits();
+    }
+
+    /**
+     * Runs a task. The task runs for the {@link Tenant} of the caller, and in a {@link ReadOnly} block if the caller
+     * is in one, both captured when the task is submitted.
+     *
+     * @param task    the task
+     * @param discard called with the result of the task if the future has been completed (cancelled) before the
+     *                task, to release it
+     * @param <T>     the type of result
+     * @return the future result, failed immediately if there are too many pending tasks
+     */
+    <T> CompletableFuture<T> submit(Callable<T> task, Consumer<T> discard) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        if (!admission.tryAcquire()) {
+            future.completeExceptionally(new SQLTransientConnectionException("Data source '" + name
+                    + "' has too many pending asynchronous requests (" + limit + ")"));
+            return future;
+        }
+        String tenant = Tenant.current();
+        Callable<T> scoped = ReadOnly.isActive() ? () -> ReadOnly.execute(task) : task;
+        try {
+            executor.execute(() -> {
+                try {
+                    if (future.isDone()) {
+                        // Cancelled while queued
+                        return;
+                    }
+                    T result = Tenant.execute(tenant, scoped);
+                    if (!future.complete(result) && discard != null) {
+                        discard.accept(result);
+                    }
+                } catch (Throwable e) {
+                    future.completeExceptionally(e);
+                } finally {
+                    admission.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admission.release();
+            future.completeExceptionally(new SQLTransientConnectionException("Data source '" + name
+                    + "' is closed", e));
+        }
+        return future;
+    }
+
+    /**
+     * Stops the executor. The running tasks complete, the queued ones are still executed.
+     */
+    void shutdown() {
+        executor.shutdown();
+        LOGGER.debug("Asynchronous executor of data source '{}' stopped", name);
+    }
+}
@@ -0,0 +1,489 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The materialized result of a query, stored by the {@link ResultCache}. All the values are stored in a single array
+ * (row after row), along with the column metadata. The weight of the result (an estimation of its memory footprint in
+ * bytes) is computed when it is read.
+ * <p>
+ * Each execution served from a result gets its own forward-only, read-only cursor (see {@link #open(Statement)}).
+ * Mutable values (dates, byte arrays) are copied when they are read from a cursor. The {@code Calendar} variants of
+ * the getters are not supported.
+ */
+final class CachedResult {
+
+    /**
+     * The column types that can be cached: their values are immutable or can be copied.
+     */
+    private static final int[] CACHEABLE_TYPES = {Types.BIT, Types.BOOLEAN, Types.TINYINT, Types.SMALLINT,
+            Types.INTEGER, Types.BIGINT, Types.FLOAT, Types.REAL, Types.DOUBLE, Types.NUMERIC, Types.DECIMAL,
+            Types.CHAR, Types.VARCHAR, Types.LONGVARCHAR, Types.NCHAR, Types.NVARCHAR, Types.LONGNVARCHAR, Types.DATE,
+            Types.TIME, Types.TIMESTAMP, Types.BINARY, Types.VARBINARY, Types.NULL};
+
+    private final String[] labels;
+
+    private final String[] names;
+
+    private final int[] types;
+
+    private final String[] typeNames;
+
+    private final String[] classNames;
+
+    private final Map<String, Integer> columns;
+
+    private Object[] values;
+
+    private int rows;
+
+    private long weight;
+
+    /**
+     * The result set positioned on the first row that did not fit in the result, {@literal null} if the result is
+     * complete.
+     */
+    private ResultSet remainder;
+
+    private CachedResult(ResultSetMetaData metadata) throws SQLException {
+        int count = metadata.getColumnCount();
+        this.labels = new String[count];
+        this.names = new String[count];
+        this.types = new int[count];
+        this.typeNames = new String[count];
+        this.classNames = new String[count];
+        this.columns = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            labels[i] = metadata.getColumnLabel(i + 1);
+            names[i] = metadata.getColumnName(i + 1);
+            types[i] = metadata.getColumnType(i + 1);
+            typeNames[i] = metadata.getColumnTypeName(i + 1);
+            classNames[i] = metadata.getColumnClassName(i + 1);
+            // The first column with a given label wins
+            columns.putIfAbsent(labels[i].toUpperCase(Locale.ENGLISH), i + 1);
+        }
+    }
+
+    /**
+     * Reads the given result set.
+     *
+     * @param results the result set, closed if the result is complete
+     * @param maxRows the maximum number of rows to read
+     * @return the result, {@literal null} if a column type cannot be cached (in this case, nothing has been read).
+     * If the result set has more than {@code maxRows} rows, the returned result is incomplete (see
+     * {@link #isComplete()}), and its cursor reads the remaining rows from the result set.
+     * @throws SQLException if the result set cannot be read
+     */
+    static CachedResult read(ResultSet results, int maxRows) throws SQLException {
+        ResultSetMetaData metadata = results.getMetaData();
+        int count = metadata.getColumnCount();
+        for (int i = 1; i <= count; i++) {
+            if (!isCacheable(metadata.getColumnType(i))) {
+                return null;
+            }
+        }
+        CachedResult result = new CachedResult(metadata);
+        Object[] values = new Object[count * 16];
+        long weight = 128 + count * 128L;
+        int rows = 0;
+        while (results.next()) {
+            if (rows == maxRows) {
+                result.remainder = results;
+                break;
+            }
+            if ((rows + 1) * count > values.length) {
+                Object[] larger = new Object[values.length * 2];
+                System.arraycopy(values, 0, larger, 0, values.length);
+                values = larger;
+            }
+            for (int i = 0; i < count; i++) {
+                Object value = results.getObject(i + 1);
+                values[rows * count + i] = value;
+                weight += weigh(value);
+            }
+            rows++;
+        }
+        if (result.remainder == null) {
+            results.close();
+            Object[] compact = new Object[rows * count];
+            System.arraycopy(values, 0, compact, 0, compact.length);
+            values = compact;
+        }
+        result.values = values;
+        result.rows = rows;
+        result.weight = weight + 16 + 8L * values.length;
+        return result;
+    }
+
+    private static boolean isCacheable(int type) {
+        for (int cacheable : CACHEABLE_TYPES) {
+            if (cacheable == type) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long weigh(Object value) {
+        if (value == null || value instanceof Boolean) {
+            return 0;
+        }
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        }
+        if (value instanceof byte[]) {
+            return 16 + ((byte[]) value).length;
+        }
+        if (value instanceof BigDecimal || value instanceof BigInteger) {
+            return 64;
+        }
+        return 24;
+    }
+
+    /**
+     * @return {@literal true} if all the rows have been read, so the result can be cached
+     */
+    boolean isComplete() {
+        return remainder == null;
+    }
+
+    /**
+     * @return the estimated memory footprint of the result, in bytes
+     */
+    long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the number of rows
+     */
+    int getRows() {
+        return rows;
+    }
+
+    /**
+     * Opens a cursor on the result.
+     *
+     * @param statement the statement returned by {@link ResultSet#getStatement()}
+     * @return the cursor
+     */
+    ResultSet open(Statement statement) {
+        return (ResultSet) Proxy.newProxyInstance(CachedResult.class.getClassLoader(), new Class[]{ResultSet.class},
+                new Cursor(statement));
+    }
+
+    private int column(Object column) throws SQLException {
+        if (column instanceof Integer) {
+            int index = (Integer) column;
+            if (index < 1 || index > labels.length) {
+                throw new SQLException("Invalid column index " + index);
+            }
+            return index;
+        }
+        Integer index = columns.get(((String) column).toUpperCase(Locale.ENGLISH));
+        if (index == null) {
+            throw new SQLException("Column '" + column + "' not found");
+        }
+        return index;
+    }
+
+    /**
+     * Converts a value to the type expected by a getter.
+     */
+    private static Object convert(Object value, Class<?> type) throws SQLException {
+        if (value == null) {
+            if (type == boolean.class) {
+                return false;
+            }
+            return type.isPrimitive() ? convert(0, type) : null;
+        }
+        if (value instanceof Date) {
+            // Mutable
+            value = copy((Date) value);
+        } else if (value instanceof byte[]) {
+            value = ((byte[]) value).clone();
+        }
+        if (type == Object.class || type.isInstance(value)) {
+            return value;
+        }
+        if (type == String.class) {
+            return value.toString();
+        }
+        if (value instanceof Boolean) {
+            value = (Boolean) value ? 1 : 0;
+        }
+        if (type == boolean.class || type == Boolean.class) {
+            if (value instanceof Number) {
+                return ((Number) value).intValue() != 0;
+            }
+            String string = value.toString().trim();
+            return "1".equals(string) || "true".equalsIgnoreCase(string);
+        }
+        try {
+            if (value instanceof String && isNumeric(type)) {
+                value = new BigDecimal(((String) value).trim());
+            }
+            if (value instanceof Number) {
+                Number number = (Number) value;
+                if (type == int.class || type == Integer.class) {
+                    return number.intValue();
+                } else if (type == long.class || type == Long.class) {
+                    return number.longValue();
+                } else if (type == short.class || type == Short.class) {
+                    return number.shortValue();
+                } else if (type == byte.class || type == Byte.class) {
+                    return number.byteValue();
+                } else if (type == double.class || type == Double.class) {
+                    return number.doubleValue();
+                } else if (type == float.class || type == Float.class) {
+                    return number.floatValue();
+                } else if (type == BigDecimal.class) {
+                    return new BigDecimal(number.toString());
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new SQLException("Cannot convert '" + value + "' to " + type.getSimpleName(), e);
+        }
+        if (value instanceof Date) {
+            long time = ((Date) value).getTime();
+            if (type == java.sql.Date.class) {
+                return new java.sql.Date(time);
+            } else if (type == Time.class) {
+                return new Time(time);
+            } else if (type == Timestamp.class) {
+                return new Timestamp(time);
+            }
+        }
+        throw new SQLException("Cannot convert a " + value.getClass().getName() + " to " + type.getSimpleName());
+    }
+
+    private static boolean isNumeric(Class<?> type) {
+        return type.isPrimitive() || Number.class.isAssignableFrom(type);
+    }
+
+    private static Date copy(Date date) {
+        if (date instanceof Timestamp) {
+            Timestamp copy = new Timestamp(date.getTime());
+            copy.setNanos(((Timestamp) date).getNanos());
+            return copy;
+        }
+        return (Date) date.clone();
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * A cursor on the result. Once the rows of an incomplete result have been read, it delegates to the remainder.
+     */
+    private final class Cursor implements InvocationHandler {
+
+        private final Statement statement;
+
+        private int row = -1;
+
+        private boolean live;
+
+        private boolean wasNull;
+
+        private boolean closed;
+
+        private Cursor(Statement statement) {
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    closed = true;
+                    if (remainder != null) {
+                        remainder.close();
+                    }
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "getStatement":
+                    return statement;
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Cached result (" + rows + " rows)";
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Result set closed");
+            }
+            if (live) {
+                return call(remainder, method, args);
+            }
+            switch (name) {
+                case "next":
+                    return next();
+                case "wasNull":
+                    return wasNull;
+                case "findColumn":
+                    return column(args[0]);
+                case "getMetaData":
+                    return metadata();
+                case "getRow":
+                    return row >= 0 && row < rows ? row + 1 : 0;
+                case "isBeforeFirst":
+                    return row == -1 && rows > 0;
+                case "isAfterLast":
+                    return row >= rows && rows > 0;
+                case "isFirst":
+                    return row == 0;
+                case "isLast":
+                    return row == rows - 1 && remainder == null;
+                case "getType":
+                    return ResultSet.TYPE_FORWARD_ONLY;
+                case "getConcurrency":
+                    return ResultSet.CONCUR_READ_ONLY;
+                case "getHoldability":
+                    return ResultSet.HOLD_CURSORS_OVER_COMMIT;
+                case "getFetchDirection":
+                    return ResultSet.FETCH_FORWARD;
+                case "getFetchSize":
+                    return 0;
+                case "setFetchSize":
+                case "setFetchDirection":
+                case "clearWarnings":
+                    return null;
+                case "getWarnings":
+                    return null;
+                case "unwrap":
+                    if (((Class<?>) args[0]).isInstance(proxy)) {
+                        return proxy;
+                    }
+                    throw new SQLException("Not a wrapper of " + args[0]);
+                case "isWrapperFor":
+                    return ((Class<?>) args[0]).isInstance(proxy);
+                default:
+                    break;
+            }
+            if (name.startsWith("get") && args != null && (args.length == 1
+                    || args.length == 2 && (args[1] instanceof Class || args[1] instanceof Map
+                    || "getBigDecimal".equals(name)))) {
+                return get(name, method.getReturnType(), args);
+            }
+            throw new SQLFeatureNotSupportedException(name + " is not supported on cached results");
+        }
+
+        private boolean next() throws SQLException {
+            if (row < rows) {
+                row++;
+            }
+            if (row < rows) {
+                return true;
+            }
+            if (remainder != null) {
+                // The remainder is already positioned on its first row
+                live = true;
+                return true;
+            }
+            return false;
+        }
+
+        private Object get(String name, Class<?> type, Object[] args) throws SQLException {
+            if (row < 0 || row >= rows) {
+                throw new SQLException("No current row");
+            }
+            int column = column(args[0]);
+            Object value = values[row * labels.length + column - 1];
+            wasNull = value == null;
+            if (args.length == 2 && args[1] instanceof Class) {
+                // getObject(column, type)
+                type = (Class<?>) args[1];
+            }
+            Object converted = convert(value, type);
+            if ("getBigDecimal".equals(name) && args.length == 2 && converted != null) {
+                converted = ((BigDecimal) converted).setScale((Integer) args[1], RoundingMode.HALF_UP);
+            }
+            return converted;
+        }
+
+        private ResultSetMetaData metadata() {
+            return (ResultSetMetaData) Proxy.newProxyInstance(CachedResult.class.getClassLoader(),
+                    new Class[]{ResultSetMetaData.class}, new InvocationHandler() {
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            String name = method.getName();
+                            if ("getColumnCount".equals(name)) {
+                                return labels.length;
+                            }
+                            if (args == null || !(args[0] instanceof Integer)) {
+                                throw new SQLFeatureNotSupportedException(name
+                                        + " is not supported on cached results");
+                            }
+                            int index = column(args[0]) - 1;
+                            switch (name) {
+                                case "getColumnLabel":
+                                    return labels[index];
+                                case "getColumnName":
+                                    return names[index];
+                                case "getColumnType":
+                                    return types[index];
+                                case "getColumnTypeName":
+                                    return typeNames[index];
+                                case "getColumnClassName":
+                                    return classNames[index];
+                                case "isNullable":
+                                    return ResultSetMetaData.columnNullableUnknown;
+                                case "isReadOnly":
+                                    return true;
+                                default:
+                                    throw new SQLFeatureNotSupportedException(name
+                                            + " is not supported on cached results");
+                            }
+                        }
+                    });
+        }
+    }
+}
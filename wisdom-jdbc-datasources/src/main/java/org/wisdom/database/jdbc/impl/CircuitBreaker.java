@@ -0,0 +1,398 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.configuration.Configuration;
+
+import javax.management.JMException;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops waiting on a data source that is down (enabled by the {@code circuitBreaker} section of the data source
+ * configuration).
+ * <p>
+ * While the circuit is <em>closed</em>, connections are acquired normally. The circuit <em>opens</em> after
+ * {@code failureThreshold} consecutive acquisition failures, or when the 99th percentile of the acquisition time over
+ * a {@code window} exceeds {@code slowThreshold} (if set, and if at least {@code minimumSamples} connections were
+ * acquired in the window). While open, connection requests fail immediately with an {@link OpenCircuitException}
+ * instead of waiting for the pool connection timeout. After {@code openDuration}, the circuit is <em>half-open</em>:
+ * the next request acquires a connection and validates it, while the other ones are still rejected. If the
+ * validation succeeds, the circuit closes and the connection is returned to the caller, otherwise it opens again.
+ * <p>
+ * State changes are logged, emitted as JMX notifications, and reflected in the
+ * {@link org.wisdom.database.jdbc.service.DataSources#DATASOURCE_DEGRADED_PROPERTY} service property.
+ */
+class CircuitBreaker extends NotificationBroadcasterSupport implements CircuitBreakerMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    static final String CONFIGURATION = "circuitBreaker";
+
+    /**
+     * The prefix of the type of the notifications, followed by the state in lower case.
+     */
+    static final String NOTIFICATION_PREFIX = "org.wisdom.database.jdbc.circuit.";
+
+    /**
+     * The states of the circuit.
+     */
+    enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Acquires a connection from the protected data source.
+     */
+    @FunctionalInterface
+    interface ConnectionSupplier {
+        Connection get() throws SQLException;
+    }
+
+    /**
+     * The exception thrown when a request is rejected because the circuit is open.
+     */
+    static class OpenCircuitException extends SQLTransientConnectionException {
+        OpenCircuitException(String message) {
+            super(message);
+        }
+    }
+
+    private final WrappedDataSource source;
+
+    private volatile int failureThreshold = 5;
+
+    private volatile long slowThreshold;
+
+    private volatile long window = 10000L;
+
+    private volatile int minimumSamples = 20;
+
+    private volatile long openDuration = 5000L;
+
+    private volatile int validationTimeout = 5;
+
+    private volatile State state = State.CLOSED;
+
+    private volatile long openedAt;
+
+    private volatile String reason;
+
+    private volatile long lastTransition;
+
+    private final AtomicBoolean probing = new AtomicBoolean();
+
+    private final AtomicInteger failures = new AtomicInteger();
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final LongAdder rejected = new LongAdder();
+
+    private final LongAdder trips = new LongAdder();
+
+    private volatile Histogram waits = new Histogram();
+
+    private volatile long windowStart = System.nanoTime();
+
+    /**
+     * Creates a circuit breaker.
+     *
+     * @param source the data source
+     */
+    CircuitBreaker(WrappedDataSource source) {
+        super(new MBeanNotificationInfo(new String[]{
+                NOTIFICATION_PREFIX + "closed", NOTIFICATION_PREFIX + "open", NOTIFICATION_PREFIX + "half_open"},
+                Notification.class.getName(), "Circuit breaker state change"));
+        this.source = source;
+    }
+
+    /**
+     * Applies the settings of the {@code circuitBreaker} section of a data source configuration.
+     *
+     * @param section the {@code circuitBreaker} section
+     */
+    void configure(Configuration section) {
+        this.failureThreshold = Math.max(1, section.getIntegerWithDefault("failureThreshold", 5));
+        this.slowThreshold = Math.max(0L, section.getLongWithDefault("slowThreshold", 0L));
+        this.window = Math.max(100L, section.getLongWithDefault("window", 10000L));
+        this.minimumSamples = Math.max(1, section.getIntegerWithDefault("minimumSamples", 20));
+        this.openDuration = Math.max(0L, section.getLongWithDefault("openDuration", 5000L));
+        this.validationTimeout = Math.max(1, section.getIntegerWithDefault("validationTimeout", 5));
+    }
+
+    /**
+     * Acquires a connection, unless the circuit is open.
+     *
+     * @param supplier acquires the connection from the pool
+     * @return the connection
+     * @throws SQLException if the connection cannot be acquired, {@link OpenCircuitException} if the request is
+     *                      rejected
+     */
+    Connection getConnection(ConnectionSupplier supplier) throws SQLException {
+        State current = state;
+        if (current != State.CLOSED) {
+            if (isProbeDue(current) && probing.compareAndSet(false, true)) {
+                return probe(supplier);
+            }
+            throw reject(current);
+        }
+        long start = System.nanoTime();
+        Connection connection;
+        try {
+            connection = supplier.get();
+        } catch (SQLException | RuntimeException e) {
+            int count = failures.incrementAndGet();
+            if (count >= failureThreshold) {
+                open(count + " consecutive acquisition failures, last: " + e.getMessage());
+            }
+            throw e;
+        }
+        failures.set(0);
+        record(System.nanoTime() - start);
+        return connection;
+    }
+
+    /**
+     * Checks that a connection acquired later on, when it is first used, may be requested. The request is rejected
+     * while the circuit is open, unless it is time to probe the database: the deferred acquisition then goes
+     * through {@link #getConnection(ConnectionSupplier)}, and probes it.
+     *
+     * @throws OpenCircuitException if the request is rejected
+     */
+    void admit() throws OpenCircuitException {
+        State current = state;
+        if (current != State.CLOSED && !isProbeDue(current)) {
+            throw reject(current);
+        }
+    }
+
+    private boolean isProbeDue(State current) {
+        return current == State.OPEN && System.nanoTime() - openedAt >= TimeUnit.MILLISECONDS.toNanos(openDuration);
+    }
+
+    private OpenCircuitException reject(State current) {
+        rejected.increment();
+        return new OpenCircuitException("The circuit breaker of data source '" + source.getName() + "' is "
+                + current + ": " + reason);
+    }
+
+    /**
+     * Acquires and validates a connection while the circuit is half-open.
+     */
+    private Connection probe(ConnectionSupplier supplier) throws SQLException {
+        transition(State.HALF_OPEN, "probing the database");
+        Connection connection = null;
+        try {
+            connection = supplier.get();
+            if (!connection.isValid(validationTimeout)) {
+                throw new SQLException("The validation connection is not valid");
+            }
+            failures.set(0);
+            resetWindow();
+            transition(State.CLOSED, "validation connection succeeded");
+            return connection;
+        } catch (SQLException | RuntimeException e) {
+            if (connection != null) {
+                try {
+                    connection.close();
+                } catch (SQLException ignored) {
+                    // Already failed
+                }
+            }
+            open("validation connection failed: " + e.getMessage());
+            throw e;
+        } finally {
+            probing.set(false);
+        }
+    }
+
+    /**
+     * Records the acquisition time of a connection, and checks the 99th percentile at the end of each window.
+     */
+    private void record(long nanos) {
+        if (slowThreshold <= 0) {
+            return;
+        }
+        waits.record(nanos);
+        long now = System.nanoTime();
+        if (now - windowStart < TimeUnit.MILLISECONDS.toNanos(window)) {
+            return;
+        }
+        Histogram.Snapshot snapshot;
+        synchronized (this) {
+            if (now - windowStart < TimeUnit.MILLISECONDS.toNanos(window)) {
+                // Another thread closed the window
+                return;
+            }
+            snapshot = waits.snapshot();
+            resetWindow();
+        }
+        if (snapshot.getCount() >= minimumSamples) {
+            long p99 = TimeUnit.NANOSECONDS.toMillis(snapshot.getValue(0.99));
+            if (p99 > slowThreshold) {
+                open("99th percentile of the acquisition time (" + p99 + " ms) above " + slowThreshold + " ms");
+            }
+        }
+    }
+
+    private synchronized void resetWindow() {
+        waits = new Histogram();
+        windowStart = System.nanoTime();
+    }
+
+    private void open(String why) {
+        openedAt = System.nanoTime();
+        if (state == State.CLOSED) {
+            trips.increment();
+        }
+        transition(State.OPEN, why);
+    }
+
+    private void transition(State next, String why) {
+        State previous;
+        synchronized (this) {
+            previous = state;
+            state = next;
+            reason = why;
+            lastTransition = System.currentTimeMillis();
+        }
+        if (previous == next) {
+            return;
+        }
+        if (next == State.OPEN) {
+            LOGGER.error("Circuit breaker of data source '{}' opened: {}", source.getName(), why);
+        } else {
+            LOGGER.info("Circuit breaker of data source '{}' is {}: {}", source.getName(), next, why);
+        }
+        if (next != State.HALF_OPEN) {
+            source.setCircuitOpen(next == State.OPEN);
+        }
+        Notification notification = new Notification(NOTIFICATION_PREFIX + next.name().toLowerCase(Locale.ENGLISH),
+                this, sequence.incrementAndGet(), lastTransition, why);
+        notification.setUserData(previous.name());
+        sendNotification(notification);
+    }
+
+    /**
+     * @return the current state
+     */
+    State state() {
+        return state;
+    }
+
+    /**
+     * Registers the circuit breaker in JMX.
+     */
+    void start() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register the circuit breaker of data source '{}' in JMX", source.getName(), e);
+        }
+    }
+
+    /**
+     * Unregisters the circuit breaker from JMX.
+     */
+    void stop() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (JMException e) {
+            LOGGER.debug("Cannot unregister the circuit breaker of data source '{}' from JMX", source.getName(), e);
+        }
+    }
+
+    ObjectName getObjectName() throws JMException {
+        return new ObjectName(PoolMetrics.JMX_DOMAIN + ":type=CircuitBreaker,name="
+                + PoolMetrics.quote(source.getName()));
+    }
+
+    @Override
+    public String getDataSourceName() {
+        return source.getName();
+    }
+
+    @Override
+    public String getState() {
+        return state.name();
+    }
+
+    @Override
+    public String getLastTransitionReason() {
+        return reason;
+    }
+
+    @Override
+    public Date getLastTransition() {
+        long time = lastTransition;
+        return time == 0 ? null : new Date(time);
+    }
+
+    @Override
+    public int getConsecutiveFailures() {
+        return failures.get();
+    }
+
+    @Override
+    public int getFailureThreshold() {
+        return failureThreshold;
+    }
+
+    @Override
+    public long getSlowThreshold() {
+        return slowThreshold;
+    }
+
+    @Override
+    public long getOpenDuration() {
+        return openDuration;
+    }
+
+    @Override
+    public long getTrips() {
+        return trips.sum();
+    }
+
+    @Override
+    public long getRejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.util.Date;
+
+/**
+ * The JMX view of the circuit breaker of a data source, registered as
+ * {@code org.wisdom.database.jdbc:type=CircuitBreaker,name=<datasource.name>}. Each state change is also emitted as
+ * a JMX notification whose type is {@code org.wisdom.database.jdbc.circuit.<state>} (closed, open or half_open) and
+ * whose message gives the reason. Durations are given in milliseconds.
+ */
+public interface CircuitBreakerMXBean {
+
+    /**
+     * @return the data source name
+     */
+    String getDataSourceName();
+
+    /**
+     * @return the current state: CLOSED, OPEN or HALF_OPEN
+     */
+    String getState();
+
+    /**
+     * @return the reason of the last state change, {@literal null} if the state never changed
+     */
+    String getLastTransitionReason();
+
+    /**
+     * @return the date of the last state change, {@literal null} if the state never changed
+     */
+    Date getLastTransition();
+
+    /**
+     * @return the number of consecutive acquisition failures
+     */
+    int getConsecutiveFailures();
+
+    /**
+     * @return the number of consecutive failures opening the circuit
+     */
+    int getFailureThreshold();
+
+    /**
+     * @return the 99th percentile of the acquisition time opening the circuit, 0 if disabled
+     */
+    long getSlowThreshold();
+
+    /**
+     * @return the time spent in the open state before probing the database
+     */
+    long getOpenDuration();
+
+    /**
+     * @return the number of times the circuit has been opened
+     */
+    long getTrips();
+
+    /**
+     * @return the number of connection requests rejected while the circuit was not closed
+     */
+    long getRejected();
+}
@@ -0,0 +1,91 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.wisdom.api.DefaultController;
+import org.wisdom.api.annotations.Controller;
+import org.wisdom.api.annotations.Route;
+import org.wisdom.api.annotations.View;
+import org.wisdom.api.http.HttpMethod;
+import org.wisdom.api.http.Result;
+import org.wisdom.api.security.Authenticated;
+import org.wisdom.api.templates.Template;
+import org.wisdom.monitor.service.MonitorExtension;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Wisdom monitor extension displaying the metrics of the data source pools.
+ */
+@Controller
+@Authenticated("Monitor-Authenticator")
+public class DataSourceMonitorExtension extends DefaultController implements MonitorExtension {
+
+    @View("monitor/datasources")
+    Template template;
+
+    /**
+     * @return the monitor page
+     */
+    @Route(method = HttpMethod.GET, uri = "/monitor/datasources")
+    public Result index() {
+        return ok(render(template));
+    }
+
+    /**
+     * @return the metrics of the running pools, as JSON
+     */
+    @Route(method = HttpMethod.GET, uri = "/monitor/datasources.json")
+    public Result data() {
+        List<Map<String, Object>> pools = new ArrayList<>();
+        for (PoolMetrics metrics : PoolMetrics.published()) {
+            Map<String, Object> pool = new LinkedHashMap<>();
+            pool.put("name", metrics.getKey());
+            pool.put("active", metrics.getActiveConnections());
+            pool.put("idle", metrics.getIdleConnections());
+            pool.put("total", metrics.getTotalConnections());
+            pool.put("pending", metrics.getPendingThreads());
+            pool.put("timeouts", metrics.getConnectionTimeouts());
+            pool.put("acquire", metrics.getAcquireTime());
+            pool.put("usage", metrics.getUsageTime());
+            pool.put("creation", metrics.getCreationTime());
+            pools.add(pool);
+        }
+        return ok(pools).json();
+    }
+
+    @Override
+    public String label() {
+        return "Data Sources";
+    }
+
+    @Override
+    public String url() {
+        return "/monitor/datasources";
+    }
+
+    @Override
+    public String category() {
+        return "wisdom";
+    }
+}
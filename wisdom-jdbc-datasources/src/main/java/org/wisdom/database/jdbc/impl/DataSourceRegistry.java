@@ -0,0 +1,138 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import javax.sql.DataSource;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the data sources managed by {@link HikariCPDataSources}.
+ * <p>
+ * Lookups are made on the current snapshot without any lock. Modifications never change a snapshot, they build a new
+ * one that the owner publishes atomically (using a volatile field). Each entry is the {@link WrappedDataSource}
+ * published for a configured data source. An entry whose wrapped pool is not set denotes a pending data source, i.e.
+ * a data source configured but whose driver is not available yet. As the availability is computed when the snapshot is
+ * created, a new snapshot must be published every time a wrapped pool is set or unset.
+ */
+final class DataSourceRegistry {
+
+    /**
+     * The empty registry.
+     */
+    static final DataSourceRegistry EMPTY = new DataSourceRegistry(new LinkedHashMap<String, WrappedDataSource>());
+
+    /**
+     * All entries, including the pending ones.
+     */
+    private final Map<String, WrappedDataSource> entries;
+
+    /**
+     * The available data sources (name -> data source), computed once per snapshot.
+     */
+    private final Map<String, DataSource> available;
+
+    private DataSourceRegistry(Map<String, WrappedDataSource> entries) {
+        this.entries = Collections.unmodifiableMap(entries);
+        Map<String, DataSource> map = new HashMap<>();
+        for (Map.Entry<String, WrappedDataSource> entry : entries.entrySet()) {
+            if (entry.getValue().isAvailable()) {
+                map.put(entry.getKey(), entry.getValue());
+            }
+        }
+        this.available = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @param name the data source name
+     * @return the data source, {@literal null} if the data source does not exist or is pending
+     */
+    DataSource get(String name) {
+        return available.get(name);
+    }
+
+    /**
+     * @param name the data source name
+     * @return the entry for the given name (pending or not), {@literal null} if there is no such entry
+     */
+    WrappedDataSource entry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * @param name the data source name
+     * @return {@literal true} if the registry contains an entry (pending or not) for the given name
+     */
+    boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    /**
+     * @return the names of all the entries, including the pending ones
+     */
+    Set<String> names() {
+        return entries.keySet();
+    }
+
+    /**
+     * @return all the entries, including pending ones
+     */
+    Map<String, WrappedDataSource> entries() {
+        return entries;
+    }
+
+    /**
+     * @return the unmodifiable map of available data sources
+     */
+    Map<String, DataSource> available() {
+        return available;
+    }
+
+    /**
+     * Creates a new snapshot containing the current entries and the given one.
+     *
+     * @param name       the data source name
+     * @param dataSource the data source
+     * @return the new snapshot
+     */
+    DataSourceRegistry with(String name, WrappedDataSource dataSource) {
+        Map<String, WrappedDataSource> copy = new LinkedHashMap<>(entries);
+        copy.put(name, dataSource);
+        return new DataSourceRegistry(copy);
+    }
+
+    /**
+     * Creates a new snapshot without the given entry.
+     *
+     * @param name the data source name
+     * @return the new snapshot, the current one if there is no entry with the given name
+     */
+    DataSourceRegistry without(String name) {
+        if (!entries.containsKey(name)) {
+            return this;
+        }
+        Map<String, WrappedDataSource> copy = new LinkedHashMap<>(entries);
+        copy.remove(name);
+        return new DataSourceRegistry(copy);
+    }
+}
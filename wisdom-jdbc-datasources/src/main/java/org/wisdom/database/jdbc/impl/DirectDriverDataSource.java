@@ -0,0 +1,134 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+/**
+ * A data source opening connections with a given driver instance (obtained from the {@code DataSourceFactory} of the
+ * driver). Unlike HikariCP's {@code DriverDataSource}, the driver is neither looked up nor registered in the
+ * {@link java.sql.DriverManager}: the connections are opened with {@link Driver#connect(String, Properties)}.
+ */
+final class DirectDriverDataSource implements DataSource {
+
+    private final Driver driver;
+
+    private final String url;
+
+    private final Properties properties;
+
+    private volatile int loginTimeout;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param driver     the driver
+     * @param url        the JDBC url
+     * @param properties the driver properties, copied
+     * @param user       the user, may be {@literal null}
+     * @param password   the password, may be {@literal null}
+     */
+    DirectDriverDataSource(Driver driver, String url, Properties properties, String user, String password) {
+        this.driver = driver;
+        this.url = url;
+        this.properties = new Properties();
+        // The configuration may give values that are not strings
+        for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+            this.properties.setProperty((String) entry.getKey(), String.valueOf(entry.getValue()));
+        }
+        credentials(this.properties, user, password);
+    }
+
+    private static void credentials(Properties properties, String user, String password) {
+        if (user != null) {
+            properties.setProperty("user", user);
+        }
+        if (password != null) {
+            properties.setProperty("password", password);
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return connect(properties);
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        Properties copy = new Properties();
+        copy.putAll(properties);
+        credentials(copy, username, password);
+        return connect(copy);
+    }
+
+    private Connection connect(Properties info) throws SQLException {
+        Connection connection = driver.connect(url, info);
+        if (connection == null) {
+            throw new SQLException("The driver " + driver.getClass().getName() + " does not accept the url " + url);
+        }
+        return connection;
+    }
+
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return null;
+    }
+
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        // Not supported
+    }
+
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        this.loginTimeout = seconds;
+    }
+
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return loginTimeout;
+    }
+
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return driver.getParentLogger();
+    }
+
+    @Override
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper of " + iface.getName());
+    }
+
+    @Override
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+}
@@ -0,0 +1,521 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.configuration.Configuration;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The failover endpoints of a data source (configured in its {@code failover} section). The {@code url} of the data
+ * source is the first endpoint, followed by the {@code failover.urls}, in order. New connections are served by the
+ * first healthy endpoint.
+ * <p>
+ * The endpoints are probed in background every {@code probeInterval} milliseconds, by opening a connection outside
+ * of the pools and validating it. The endpoints are probed in parallel, and a probe not completed within
+ * {@code probeTimeout} milliseconds fails, so an endpoint that does not answer (a black-holed host) cannot delay the
+ * detection of the other failures. The probe of such an endpoint is not started again until the previous one
+ * completes. An endpoint is unhealthy after {@code failureThreshold} consecutive failed probes,
+ * and healthy again after a successful one. When the active endpoint becomes unhealthy, the new connections are served
+ * by the next healthy endpoint, and the pool of the failed endpoint is renewed: its idle connections are closed, and
+ * the connections in use are aborted after {@code evictionTimeout} milliseconds. Once the endpoint is healthy again,
+ * its new pool is started on the first connection request. With {@code failback} (enabled by default), the
+ * connections go back to the first endpoints as soon as they are healthy again.
+ * <p>
+ * The pools of the secondary endpoints inherit the configuration of the data source, and are only started when
+ * used.
+ */
+final class FailoverSet implements FailoverSetMXBean, Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FailoverSet.class);
+
+    static final String CONFIGURATION = "failover";
+
+    /**
+     * Creates and renews the pools of the endpoints.
+     */
+    interface Pools {
+        /**
+         * Creates the pool of a secondary endpoint, not started.
+         *
+         * @param name   the endpoint name, used for the metrics
+         * @param config the pool configuration
+         * @return the pool, {@literal null} if the driver is not available
+         * @throws SQLException if the pool cannot be created
+         */
+        HikariDataSource create(String name, HikariConfig config) throws SQLException;
+
+        /**
+         * Creates the data source opening the connections of an endpoint outside of the pools, used by the probes.
+         *
+         * @param config the pool configuration of the endpoint
+         * @return the data source, {@literal null} if the driver is not available
+         * @throws SQLException if the data source cannot be created
+         */
+        DataSource connect(HikariConfig config) throws SQLException;
+
+        /**
+         * Replaces a pool by a new one (not started), and closes the given pool.
+         *
+         * @param pool            the pool
+         * @param evictionTimeout the time (in milliseconds) given to the connections in use to be returned
+         * @return the new pool, {@literal null} if it cannot be created
+         */
+        HikariDataSource renew(HikariDataSource pool, long evictionTimeout);
+
+        /**
+         * Closes the pool of a secondary endpoint.
+         *
+         * @param pool the pool
+         */
+        void close(HikariDataSource pool);
+    }
+
+    private final String name;
+
+    private final WrappedDataSource source;
+
+    private final Pools pools;
+
+    private final List<Endpoint> endpoints;
+
+    private final long probeInterval;
+
+    private final long probeTimeout;
+
+    private final int failureThreshold;
+
+    private final long evictionTimeout;
+
+    private final boolean failback;
+
+    /**
+     * The {@code failover} section the set has been created with.
+     */
+    private final Properties settings;
+
+    /**
+     * The configuration of the data source pool the set has been created with.
+     */
+    private volatile HikariConfig primary;
+
+    private final AtomicLong switches = new AtomicLong();
+
+    private volatile int active;
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Runs the probes, so they are bounded by the probe timeout.
+     */
+    private ExecutorService probes;
+
+    /**
+     * Creates the failover endpoints of a data source.
+     *
+     * @param source  the data source
+     * @param primary the configuration of the data source pool
+     * @param section the {@code failover} section
+     * @param pools   creates and renews the pools
+     * @throws SQLException if a pool cannot be created
+     */
+    FailoverSet(WrappedDataSource source, HikariConfig primary, Configuration section, Pools pools)
+            throws SQLException {
+        this.name = source.getName();
+        this.source = source;
+        this.pools = pools;
+        this.probeInterval = Math.max(100L, section.getLongWithDefault("probeInterval", 5000L));
+        this.probeTimeout = Math.max(100L, section.getLongWithDefault("probeTimeout", 2000L));
+        this.failureThreshold = Math.max(1, section.getIntegerWithDefault("failureThreshold", 2));
+        this.evictionTimeout = Math.max(0L, section.getLongWithDefault("evictionTimeout", 1000L));
+        this.failback = section.getBooleanWithDefault("failback", true);
+        this.settings = section.asProperties();
+        this.primary = primary;
+
+        List<Endpoint> list = new ArrayList<>();
+        list.add(new Endpoint(primary.getJdbcUrl(), connect(primary), null));
+        List<String> urls = section.getList("urls");
+        for (int i = 0; i < urls.size(); i++) {
+            HikariConfig config = new HikariConfig();
+            primary.copyState(config);
+            // The data source creating the connections of the primary is set when its pool is created.
+            config.setDataSource(null);
+            config.setJdbcUrl(urls.get(i));
+            config.setPoolName(primary.getPoolName() + "-failover-" + (i + 1));
+            config.validate();
+            HikariDataSource pool = pools.create("failover-" + (i + 1), config);
+            if (pool == null) {
+                throw new SQLException("Cannot create the pool of the failover endpoint " + urls.get(i)
+                        + " of data source '" + name + "'");
+            }
+            list.add(new Endpoint(urls.get(i), connect(config), pool));
+        }
+        this.endpoints = Collections.unmodifiableList(list);
+    }
+
+    private DataSource connect(HikariConfig config) throws SQLException {
+        DataSource probe = pools.connect(config);
+        if (probe == null) {
+            throw new SQLException("The driver of data source '" + name + "' is not available");
+        }
+        try {
+            // Not honored by all the drivers, the probes are bounded anyway.
+            probe.setLoginTimeout(getProbeTimeoutInSeconds());
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.debug("Cannot set the login timeout of the probes of data source '{}'", name, e);
+        }
+        return probe;
+    }
+
+    /**
+     * @return the probe timeout, rounded up to the second, for the JDBC timeouts
+     */
+    private int getProbeTimeoutInSeconds() {
+        return (int) Math.max(1L, TimeUnit.MILLISECONDS.toSeconds(probeTimeout + 999L));
+    }
+
+    /**
+     * Checks whether the set can be kept on a reconfiguration: its {@code failover} section is unchanged, and the
+     * pool configuration of the data source, inherited by the endpoints, only changed its runtime settings (see
+     * {@link #update(HikariConfig)}). Keeping the set keeps the active endpoint and the health of the endpoints.
+     *
+     * @param primary the configuration of the data source pool
+     * @param section the {@code failover} section
+     * @return {@literal true} if the set can be kept
+     */
+    boolean matches(HikariConfig primary, Configuration section) {
+        return settings.equals(section.asProperties())
+                && PoolReconfiguration.diff(this.primary, primary) != PoolReconfiguration.Change.REBUILD;
+    }
+
+    /**
+     * Applies a new configuration of the data source pool, checked by {@link #matches(HikariConfig, Configuration)},
+     * to the pools of the secondary endpoints.
+     *
+     * @param primary the configuration of the data source pool
+     */
+    synchronized void update(HikariConfig primary) {
+        this.primary = primary;
+        for (int i = 1; i < endpoints.size(); i++) {
+            PoolReconfiguration.apply(endpoints.get(i).pool, primary);
+        }
+    }
+
+    /**
+     * Selects the data source serving a new connection.
+     *
+     * @param primary the pool of the data source, serving the first endpoint
+     * @return the pool of the active endpoint
+     */
+    DataSource select(DataSource primary) {
+        int index = active;
+        return index == 0 ? primary : endpoints.get(index).pool;
+    }
+
+    /**
+     * Probes the endpoints in parallel, and switches the active endpoint if needed. Waits at most
+     * {@code probeTimeout} milliseconds for the probes.
+     */
+    @Override
+    public synchronized void run() {
+        if (probes == null) {
+            // Stopped
+            return;
+        }
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(probeTimeout);
+            for (Endpoint endpoint : endpoints) {
+                endpoint.probe(probes);
+            }
+            for (Endpoint endpoint : endpoints) {
+                endpoint.await(deadline);
+            }
+            update();
+        } catch (RuntimeException e) {
+            LOGGER.error("Cannot probe the endpoints of data source '{}'", name, e);
+        }
+    }
+
+    private synchronized void update() {
+        int current = active;
+        int next = current;
+        if (!endpoints.get(current).healthy || failback) {
+            for (int i = 0; i < endpoints.size(); i++) {
+                if (endpoints.get(i).healthy) {
+                    next = i;
+                    break;
+                }
+            }
+        }
+        if (next != current) {
+            LOGGER.warn("Data source '{}' switches from {} ({}) to {}", name, endpoints.get(current).url,
+                    endpoints.get(current).healthy ? "healthy" : "unhealthy", endpoints.get(next).url);
+            active = next;
+            switches.incrementAndGet();
+        }
+        // Renew the pools of the failed endpoints, so their connections are not used anymore
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get(i);
+            if (!endpoint.healthy && !endpoint.evicted) {
+                evict(i, endpoint);
+            }
+        }
+    }
+
+    private void evict(int index, Endpoint endpoint) {
+        HikariDataSource pool;
+        if (index == 0) {
+            DataSource wrapped = source.getWrapped();
+            pool = wrapped instanceof HikariDataSource ? (HikariDataSource) wrapped : null;
+        } else {
+            pool = endpoint.pool;
+        }
+        if (pool == null) {
+            return;
+        }
+        PoolMetrics metrics = PoolMetrics.of(pool);
+        if (metrics != null && !metrics.isStarted()) {
+            // Nothing to evict
+            endpoint.evicted = true;
+            return;
+        }
+        LOGGER.info("Evicting the connections of data source '{}' to {}", name, endpoint.url);
+        HikariDataSource renewed = pools.renew(pool, evictionTimeout);
+        if (renewed != null) {
+            endpoint.evicted = true;
+            if (index > 0) {
+                endpoint.pool = renewed;
+            }
+        }
+    }
+
+    /**
+     * Starts probing the endpoints, and registers the failover set in JMX.
+     */
+    synchronized void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wisdom-jdbc-failover-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        probes = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "wisdom-jdbc-failover-probe-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this, 0, probeInterval, TimeUnit.MILLISECONDS);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register the failover endpoints of data source '{}' in JMX", name, e);
+        }
+    }
+
+    /**
+     * Stops the probes, and closes the pools of the secondary endpoints.
+     */
+    synchronized void stop() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        if (probes != null) {
+            probes.shutdownNow();
+            probes = null;
+        }
+        for (int i = 1; i < endpoints.size(); i++) {
+            pools.close(endpoints.get(i).pool);
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (JMException e) {
+            LOGGER.debug("Cannot unregister the failover endpoints of data source '{}' from JMX", name, e);
+        }
+    }
+
+    ObjectName getObjectName() throws JMException {
+        return new ObjectName(PoolMetrics.JMX_DOMAIN + ":type=Failover,name=" + PoolMetrics.quote(name));
+    }
+
+    @Override
+    public String getDataSourceName() {
+        return name;
+    }
+
+    @Override
+    public String getActiveEndpoint() {
+        return endpoints.get(active).url;
+    }
+
+    @Override
+    public long getSwitches() {
+        return switches.get();
+    }
+
+    @Override
+    public List<FailoverSetMXBean.Endpoint> getEndpoints() {
+        List<FailoverSetMXBean.Endpoint> list = new ArrayList<>();
+        int current = active;
+        for (int i = 0; i < endpoints.size(); i++) {
+            Endpoint endpoint = endpoints.get(i);
+            list.add(new FailoverSetMXBean.Endpoint(endpoint.url, i == current, endpoint.healthy, endpoint.failures,
+                    endpoint.lastProbe, endpoint.lastError));
+        }
+        return list;
+    }
+
+    @Override
+    public void probe() {
+        run();
+    }
+
+    /**
+     * An endpoint, and its health.
+     */
+    private final class Endpoint {
+
+        private final String url;
+
+        /**
+         * Opens the probe connections, outside of the pools.
+         */
+        private final DataSource probe;
+
+        /**
+         * The pool of a secondary endpoint, {@literal null} for the first endpoint (served by the data source pool).
+         */
+        private volatile HikariDataSource pool;
+
+        private volatile boolean healthy = true;
+
+        /**
+         * Whether the pool has been renewed since the endpoint became unhealthy.
+         */
+        private volatile boolean evicted;
+
+        private volatile int failures;
+
+        private volatile long lastProbe;
+
+        private volatile String lastError;
+
+        /**
+         * The running probe, guarded by the failover set.
+         */
+        private Future<String> pending;
+
+        private Endpoint(String url, DataSource probe, HikariDataSource pool) {
+            this.url = url;
+            this.probe = probe;
+            this.pool = pool;
+        }
+
+        /**
+         * Starts probing the endpoint, unless the previous probe is still running.
+         *
+         * @param executor the executor running the probes
+         */
+        private void probe(ExecutorService executor) {
+            if (pending == null || pending.isDone()) {
+                pending = executor.submit(this::check);
+            }
+        }
+
+        /**
+         * Opens and validates a connection.
+         *
+         * @return the error, {@literal null} if the endpoint is healthy
+         */
+        private String check() {
+            try (Connection connection = probe.getConnection()) {
+                return connection.isValid(getProbeTimeoutInSeconds()) ? null : "The connection is not valid";
+            } catch (SQLException | RuntimeException e) {
+                return message(e);
+            }
+        }
+
+        /**
+         * Waits for the running probe, and updates the health of the endpoint.
+         *
+         * @param deadline the deadline of the probe, in {@link System#nanoTime()} units
+         */
+        private void await(long deadline) {
+            String error;
+            try {
+                error = pending.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) { //NOSONAR
+                error = "No response within " + probeTimeout + " ms";
+            } catch (ExecutionException e) {
+                error = message(e.getCause());
+            } catch (InterruptedException e) { //NOSONAR
+                Thread.currentThread().interrupt();
+                return;
+            }
+            lastProbe = System.currentTimeMillis();
+            if (error == null) {
+                if (!healthy) {
+                    LOGGER.info("Endpoint {} of data source '{}' is healthy again", url, name);
+                }
+                failures = 0;
+                lastError = null;
+                healthy = true;
+                evicted = false;
+            } else {
+                failures++;
+                lastError = error;
+                if (healthy && failures >= failureThreshold) {
+                    LOGGER.warn("Endpoint {} of data source '{}' is unhealthy: {}", url, name, error);
+                    healthy = false;
+                }
+            }
+        }
+
+        private String message(Throwable e) {
+            return e.getMessage() == null ? e.getClass().getName() : e.getMessage();
+        }
+    }
+}
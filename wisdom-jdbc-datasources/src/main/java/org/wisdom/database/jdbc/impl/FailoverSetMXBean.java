@@ -0,0 +1,107 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.util.List;
+
+/**
+ * The JMX view of the failover endpoints of a data source, registered as
+ * {@code org.wisdom.database.jdbc:type=Failover,name=<datasource.name>}.
+ */
+public interface FailoverSetMXBean {
+
+    /**
+     * @return the data source name
+     */
+    String getDataSourceName();
+
+    /**
+     * @return the url of the endpoint serving the new connections
+     */
+    String getActiveEndpoint();
+
+    /**
+     * @return the number of times the active endpoint changed
+     */
+    long getSwitches();
+
+    /**
+     * @return the health of the endpoints, in the configured order
+     */
+    List<Endpoint> getEndpoints();
+
+    /**
+     * Probes the endpoints now, instead of waiting for the next probe.
+     */
+    void probe();
+
+    /**
+     * The health of an endpoint.
+     */
+    final class Endpoint {
+
+        private final String url;
+        private final boolean active;
+        private final boolean healthy;
+        private final int consecutiveFailures;
+        private final long lastProbe;
+        private final String lastError;
+
+        Endpoint(String url, boolean active, boolean healthy, int consecutiveFailures, long lastProbe,
+                 String lastError) {
+            this.url = url;
+            this.active = active;
+            this.healthy = healthy;
+            this.consecutiveFailures = consecutiveFailures;
+            this.lastProbe = lastProbe;
+            this.lastError = lastError;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public int getConsecutiveFailures() {
+            return consecutiveFailures;
+        }
+
+        /**
+         * @return the time of the last probe (in milliseconds since the epoch), 0 if not probed yet
+         */
+        public long getLastProbe() {
+            return lastProbe;
+        }
+
+        /**
+         * @return the error of the last failed probe, {@literal null} if the endpoint is healthy
+         */
+        public String getLastError() {
+            return lastError;
+        }
+    }
+}
@@ -23,20 +23,24 @@ import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 import org.apache.felix.ipojo.annotations.*;
 import org.osgi.framework.BundleContext;
-import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.jdbc.DataSourceFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.wisdom.api.configuration.ApplicationConfiguration;
 import org.wisdom.api.configuration.Configuration;
+import org.wisdom.database.jdbc.service.ConnectionFunction;
 import org.wisdom.database.jdbc.service.DataSources;
 
 import javax.sql.DataSource;
+import javax.sql.XADataSource;
+import javax.transaction.TransactionManager;
 import java.sql.Connection;
 import java.sql.Driver;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 
 /**
@@ -50,18 +54,82 @@ public class HikariCPDataSources implements DataSources {
     private static final Logger LOGGER = LoggerFactory.getLogger(HikariCPDataSources.class);
     public static final String DB_CONFIGURATION_PREFIX = "db";
 
+    /**
+     * The prefix of the warm-up settings. They cannot be placed under {@link #DB_CONFIGURATION_PREFIX}, as every entry
+     * there is a data source.
+     */
+    public static final String WARMUP_CONFIGURATION_PREFIX = "datasources.warmup";
+
+    /**
+     * The section of a data source configuration declaring its read replicas.
+     */
+    public static final String REPLICAS_CONFIGURATION = "replicas";
+
+    /**
+     * The data source property setting the number of prepared statements cached per connection (0 to disable the
+     * cache, the default).
+     */
+    public static final String STATEMENT_CACHE_SIZE = "statementCacheSize";
+
+    /**
+     * The data source property enabling the tracking of the session state of the connections, skipping the calls that
+     * would not change it (enabled by default).
+     */
+    public static final String TRACK_SESSION_STATE = "trackSessionState";
+
+    /**
+     * The data source property selecting a performance profile ({@code oltp}, {@code bulk} or {@code analytics}),
+     * see {@link Patterns.Profile}.
+     */
+    public static final String PROFILE = "profile";
+
+    /**
+     * The data source configuration section containing properties passed as is to the driver.
+     */
+    public static final String DRIVER_PROPERTIES = "dataSource";
+
     private final BundleContext context;
-    private ServiceRegistration<DataSource> registration;
 
     /**
      * A boolean indicating if the wisdom server is running in 'dev' mode.
      */
     private boolean isDev;
 
-    private Map<String, HikariDataSource> sources = new HashMap<>();
+    /**
+     * The current snapshot of the managed data sources. It is replaced (never modified) by the methods changing the
+     * set of data sources, all of them being synchronized. Lookups just read the volatile field.
+     */
+    private volatile DataSourceRegistry registry = DataSourceRegistry.EMPTY;
 
     private Map<String, DataSourceFactory> drivers = new HashMap<>();
 
+    /**
+     * The driver instances created by the factories, by driver class name.
+     */
+    private final Map<String, Driver> driverInstances = new HashMap<>();
+
+    /**
+     * Closes the pools replaced or removed by a reconfiguration.
+     */
+    private final PoolDrainer drainer = new PoolDrainer();
+
+    /**
+     * The executor sampling the pools with an adaptive size, created on first use.
+     */
+    private ScheduledExecutorService sizing;
+
+    /**
+     * The executor closing the unused tenant pools and the idle lazy pools, created on first use. It is not shared
+     * with the sizing, as closing a pool may wait for its connections.
+     */
+    private ScheduledExecutorService maintenance;
+
+    /**
+     * The JTA transaction manager, in which the connections of the XA data sources are enlisted. It is typed as an
+     * object, so this class does not depend on the JTA API.
+     */
+    private volatile Object transactionManager;
+
     @Requires
     private ApplicationConfiguration configuration;
 
@@ -78,12 +146,12 @@ public class HikariCPDataSources implements DataSources {
      */
     @Override
     public DataSource getDataSource(String database) {
-        return sources.get(database);
+        return registry.get(database);
     }
 
     @Override
     public DataSource getDataSource() {
-        return sources.get(DEFAULT_DATASOURCE);
+        return registry.get(DEFAULT_DATASOURCE);
     }
 
 
@@ -91,18 +159,13 @@ public class HikariCPDataSources implements DataSources {
      * Gets the set of data sources (name -> data source).
      * It contains the available data sources only.
      *
-     * @return the map of name -> data source, empty if none.
+     * @return the unmodifiable map of name -> data source, empty if none.
      */
     @Override
     public Map<String, DataSource> getDataSources() {
-        HashMap<String, DataSource> map = new HashMap<>();
-        for (Map.Entry<String, HikariDataSource> entry : sources.entrySet()) {
-            if (entry.getValue() != null) {
-                map.put(entry.getKey(), entry.getValue());
-            }
-        }
-        return map;
+        return registry.available();
     }
+
     @Override
     public Connection getConnection() {
         return getConnection(DEFAULT_DATASOURCE, true);
@@ -135,21 +198,89 @@ public class HikariCPDataSources implements DataSources {
             Connection connection = ds.getConnection();
             connection.setAutoCommit(autocommit);
             return connection;
+        } catch (CircuitBreaker.OpenCircuitException e) {
+            LOGGER.debug("Connection request on data source '{}' rejected: {}", database, e.getMessage());
+            return null;
         } catch (SQLException e) {
             LOGGER.error("Cannot open connection on data source '{}", database, e);
             return null;
         }
     }
 
+    @Override
+    public CompletableFuture<Connection> getConnectionAsync(String database) {
+        WrappedDataSource source = (WrappedDataSource) registry.get(database);
+        if (source == null) {
+            return unavailable(database);
+        }
+        return source.getAsyncExecutor().submit(source::getConnection, HikariCPDataSources::closeQuietly);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> withConnection(String database, ConnectionFunction<T> function) {
+        WrappedDataSource source = (WrappedDataSource) registry.get(database);
+        if (source == null) {
+            return unavailable(database);
+        }
+        return source.getAsyncExecutor().submit(() -> {
+            try (Connection connection = source.getConnection()) {
+                return function.apply(connection);
+            }
+        }, null);
+    }
+
+    @Override
+    public <T> CompletableFuture<T> write(String database, ConnectionFunction<T> function) {
+        WrappedDataSource source = (WrappedDataSource) registry.get(database);
+        if (source == null) {
+            return unavailable(database);
+        }
+        WriterLane lane = source.getWriterLane();
+        if (lane != null) {
+            return lane.submit(function);
+        }
+        return source.getAsyncExecutor().submit(() -> {
+            try (Connection connection = source.getConnection()) {
+                connection.setAutoCommit(false);
+                try {
+                    T result = function.apply(connection);
+                    connection.commit();
+                    return result;
+                } catch (SQLException | RuntimeException e) {
+                    connection.rollback();
+                    throw e;
+                }
+            }
+        }, null);
+    }
+
+    private static <T> CompletableFuture<T> unavailable(String database) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(new SQLException("Data source '" + database + "' not available"));
+        return future;
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            LOGGER.debug("Cannot close a connection obtained after the cancellation of its request", e);
+        }
+    }
+
     @Validate
-    public void onStart() throws SQLException{
+    public synchronized void onStart() throws SQLException{
         Configuration dbConfiguration = configuration.getConfiguration(DB_CONFIGURATION_PREFIX);
         this.isDev = configuration.isDev();
         // Detect all db configurations and create the data sources.
         if (dbConfiguration == null) {
             LOGGER.info("No data sources configured from the configuration, exiting the data source manager");
             // Remove existing ones
-            sources.clear();
+            DataSourceRegistry snapshot = registry;
+            registry = DataSourceRegistry.EMPTY;
+            for (WrappedDataSource source : snapshot.entries().values()) {
+                retire(source);
+            }
             return;
         }
         Set<String> names = dbConfiguration.asMap().keySet();
@@ -158,68 +289,1059 @@ public class HikariCPDataSources implements DataSources {
         // Check whether we already have sources
         // Lost ones need to be removed
         // New ones need to be added
-        // Remaining one need to be 'reinjected'
-        if (!sources.isEmpty()) {
-            // Remove lost ones
-            for (String k : new HashSet<>(sources.keySet())) {
-                if (!names.contains(k)) {
-                    // Lost one.
-                    LOGGER.info("The data source {} has been removed from configuration");
-                    sources.remove(k);
-                } else if (names.contains(k)) {
-                    // Remaining data source, reconfiguration
-                    LOGGER.info("Reconfiguring data source {}", k);
-                    HikariDataSource ds = createDataSource(dbConfiguration.getConfiguration(k), k);
-                    sources.put(k, ds);
-                }
+        // Remaining one need to be reconfigured (in place when possible)
+        // The new snapshot is built locally and published once complete.
+        DataSourceRegistry snapshot = registry;
+        List<WrappedDataSource> lost = new ArrayList<>();
+        for (String k : snapshot.names()) {
+            if (!names.contains(k)) {
+                // Lost one.
+                LOGGER.info("The data source {} has been removed from configuration", k);
+                lost.add(snapshot.entry(k));
+                snapshot = snapshot.without(k);
             }
         }
 
         for (String name : names) {
-            if (sources.containsKey(name)) {
-                // The data source is already existing.
-                continue;
+            Configuration conf = dbConfiguration.getConfiguration(name);
+            WrappedDataSource source = snapshot.entry(name);
+            if (source == null) {
+                source = new WrappedDataSource(name, conf);
+                start(source, conf);
+            } else {
+                // Remaining data source, reconfiguration
+                reconfigure(source, conf);
             }
+            // Always republish, the availability may have changed.
+            snapshot = snapshot.with(name, source);
+        }
+        registry = snapshot;
 
-            Configuration conf = dbConfiguration.getConfiguration(name);
-            HikariDataSource datasource = createDataSource(conf, name);
-            sources.put(name, datasource);
-        }
-
-        // Try to open a connection to each data source.
-        // Register the data sources as services.
-        for (Map.Entry<String, HikariDataSource> entry : sources.entrySet()) {
-            try {
-                if (entry.getValue() != null) {
-                    register(context, entry.getValue(), entry.getKey());
-                    entry.getValue().getConnection().close();
-                    LOGGER.info("Connection successful to data source '{}'", entry.getKey());
-                } else {
-                    LOGGER.info("The data source '{}' is pending - no driver available", entry.getKey());
+        for (WrappedDataSource source : lost) {
+            retire(source);
+        }
+
+        // Register the available data sources as services, and warm them up in parallel.
+        List<WrappedDataSource> available = new ArrayList<>();
+        for (WrappedDataSource source : snapshot.entries().values()) {
+            if (source.isAvailable()) {
+                register(source);
+                if (!isLazy(source.getConfiguration())) {
+                    available.add(source);
                 }
-            } catch (SQLException e) {
-                LOGGER.error("The data source '{}' is configured but the connection failed", entry.getKey(), e);
+            } else {
+                LOGGER.info("The data source '{}' is pending - no driver available", source.getName());
             }
         }
+        createWarmUp().warmUp(available);
     }
+
     @Invalidate
-    public void onStop() {
+    public synchronized void onStop() {
+        DataSourceRegistry snapshot = registry;
+        registry = DataSourceRegistry.EMPTY;
         // Close all data sources
-        for (Map.Entry<String, HikariDataSource> entry : sources.entrySet()) {
-            shutdownPool(entry.getValue());
-            LOGGER.info("Data source '{}' closed", entry.getKey());
+        for (WrappedDataSource source : snapshot.entries().values()) {
+            source.unregister();
+            shutdownPool((HikariDataSource) source.getWrapped());
+            source.unset();
+            closeFeatures(source, false);
+            LOGGER.info("Data source '{}' closed", source.getName());
+        }
+        drainer.shutdown();
+        if (sizing != null) {
+            sizing.shutdownNow();
+            sizing = null;
+        }
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+            maintenance = null;
+        }
+    }
+
+    /**
+     * Applies a new configuration to an existing data source. The new configuration is compared to the configuration
+     * of the running pool. Runtime settings are applied in place, while changes of the url, credentials, driver or
+     * connection defaults make the pool being rebuilt. In this case, the new pool replaces the previous one in the
+     * published data source, and the previous pool is drained before being closed.
+     *
+     * @param source the data source
+     * @param conf   the new configuration
+     * @throws SQLException if the new pool cannot be created
+     */
+    private void reconfigure(WrappedDataSource source, Configuration conf) throws SQLException {
+        String name = source.getName();
+        source.updateConfiguration(conf);
+        HikariDataSource current = (HikariDataSource) source.getWrapped();
+        if (current == null) {
+            // Pending, try again with the new configuration
+            start(source, conf);
+            return;
+        }
+
+        HikariConfig target = toHikariConfig(conf, name);
+        if (conf.get("poolName") == null) {
+            // The validation has generated a new name, keep the current one.
+            target.setPoolName(current.getPoolName());
+        }
+        if (source.getSizer() != null && isAdaptive(conf)) {
+            // The size is managed by the sizer, which applies the new bounds.
+            target.setMaximumPoolSize(current.getMaximumPoolSize());
+            target.setMinimumIdle(current.getMinimumIdle());
+        }
+        switch (PoolReconfiguration.diff(current, target)) {
+            case NONE:
+                LOGGER.debug("Data source '{}' unchanged", name);
+                updateConnectionWrappers(current, conf);
+                break;
+            case RUNTIME:
+                LOGGER.info("Reconfiguring data source '{}' in place", name);
+                PoolReconfiguration.apply(current, target);
+                updateConnectionWrappers(current, conf);
+                break;
+            case REBUILD:
+                LOGGER.info("Rebuilding the pool of data source '{}'", name);
+                HikariDataSource datasource = createPool(target, conf, new PoolMetrics(name));
+                if (datasource != null) {
+                    source.set(datasource);
+                } else {
+                    source.unregister();
+                    source.unset();
+                }
+                drainer.drain(name, current, getDrainTimeout(conf));
+                break;
+            default:
+                throw new IllegalStateException("Unknown change");
+        }
+
+        if (source.isAvailable()) {
+            updateFeatures(source, target, conf);
+            source.updateAsyncExecutor();
+        } else {
+            closeFeatures(source, true);
+        }
+    }
+
+    /**
+     * Applies the configuration of the features layered over the pool of an available data source (replicas,
+     * profiler, result cache, sizing, circuit breaker, tenants, idle shutdown, hold time profiler, failover, XA and
+     * single writer).
+     *
+     * @param source the data source
+     * @param config the configuration of the data source pool
+     * @param conf   the data source configuration
+     * @throws SQLException if a pool cannot be created
+     */
+    private void updateFeatures(WrappedDataSource source, HikariConfig config, Configuration conf)
+            throws SQLException {
+        updateReplicas(source, config, conf);
+        updateProfiler(source, conf);
+        updateResultCache(source, conf);
+        updateSizer(source, conf);
+        updateCircuitBreaker(source, conf);
+        updateTenants(source, config, conf);
+        updateIdleShutdown(source, conf);
+        updateHoldTimeProfiler(source, conf);
+        updateFailover(source, config, conf);
+        updateXA(source, config, conf);
+        updateWriterLane(source, config, conf);
+        warnIgnoredRoutes(source);
+    }
+
+    /**
+     * Logs the routing features enabled on a data source but never applied, because a feature taking precedence is
+     * also enabled. A connection is routed to the XA pool first, then to the single writer, to the pool of the current
+     * tenant, and to the replicas.
+     *
+     * @param source the data source
+     */
+    private void warnIgnoredRoutes(WrappedDataSource source) {
+        List<String> ignored = new ArrayList<>();
+        String by;
+        if (source.getXAPool() != null) {
+            by = XAPool.XA;
+            if (source.getWriterLane() != null) {
+                ignored.add(WriterLane.CONFIGURATION);
+            }
+            if (source.getTenantRouter() != null) {
+                ignored.add(TenantRouter.CONFIGURATION);
+            }
+            if (source.getReplicas() != null) {
+                ignored.add(REPLICAS_CONFIGURATION);
+            }
+        } else if (source.getWriterLane() != null) {
+            by = WriterLane.CONFIGURATION;
+            if (source.getTenantRouter() != null) {
+                ignored.add(TenantRouter.CONFIGURATION);
+            }
+            if (source.getReplicas() != null) {
+                ignored.add(REPLICAS_CONFIGURATION);
+            }
+        } else {
+            return;
+        }
+        if (!ignored.isEmpty()) {
+            LOGGER.warn("The {} configuration of data source '{}' is ignored, its connections are routed by its {} "
+                    + "configuration", ignored, source.getName(), by);
         }
     }
-    private HikariDataSource createDataSource(Configuration configuration, String dsName) throws SQLException{
 
-        HikariConfig hikariConfig = toHikariConfig(configuration, dsName);
-        boolean registred = registerDriver(configuration);
-        if(registred){
-            final HikariDataSource datasource = new HikariDataSource(hikariConfig);
-            return datasource;
+    /**
+     * Closes the features layered over the pool of a data source, and its asynchronous executor.
+     *
+     * @param source the data source
+     * @param drain  whether the replica pools are drained (given time to complete the connections in use), or
+     *               closed at once
+     */
+    private void closeFeatures(WrappedDataSource source, boolean drain) {
+        closeReplicas(source, drain);
+        closeProfiler(source);
+        closeResultCache(source);
+        closeSizer(source);
+        closeCircuitBreaker(source);
+        closeTenants(source);
+        closeIdleShutdown(source);
+        closeHoldTimeProfiler(source);
+        closeFailover(source);
+        closeXA(source);
+        closeWriterLane(source);
+        source.closeAsyncExecutor();
+    }
+
+    /**
+     * Retires a data source removed from the configuration. The service is unregistered and the pool drained.
+     *
+     * @param source the data source
+     */
+    private void retire(WrappedDataSource source) {
+        source.unregister();
+        HikariDataSource pool = (HikariDataSource) source.getWrapped();
+        source.unset();
+        if (pool != null) {
+            drainer.drain(source.getName(), pool, getDrainTimeout(source.getConfiguration()));
+        }
+        closeFeatures(source, true);
+    }
+
+    /**
+     * Creates the pool of the given data source, and the pools of its replicas.
+     *
+     * @param source the data source
+     * @param conf   the data source configuration
+     * @return {@literal true} if the pool has been created, {@literal false} if the driver is not available yet
+     * @throws SQLException if the pool cannot be created
+     */
+    private boolean start(WrappedDataSource source, Configuration conf) throws SQLException {
+        HikariConfig config = toHikariConfig(conf, source.getName());
+        HikariDataSource datasource = createPool(config, conf, new PoolMetrics(source.getName()));
+        if (datasource == null) {
+            return false;
         }
-        //we don't create datasource without driver
-        return null;
+        source.set(datasource);
+        updateFeatures(source, config, conf);
+        return true;
+    }
+
+    /**
+     * Enables, reconfigures or disables the statement profiler of a data source, according to its
+     * {@code logStatements} property.
+     *
+     * @param source the data source
+     * @param conf   the data source configuration
+     */
+    private void updateProfiler(WrappedDataSource source, Configuration conf) {
+        StatementProfiler profiler = source.getProfiler();
+        if (!conf.getBooleanWithDefault("logStatements", false)) {
+            closeProfiler(source);
+        } else if (profiler == null) {
+            profiler = new StatementProfiler(source.getName(), StatementProfiler.DEFAULT_SAMPLE_RATE,
+                    StatementProfiler.DEFAULT_SLOW_THRESHOLD);
+            profiler.configure(conf);
+            profiler.open();
+            source.setProfiler(profiler);
+        } else {
+            profiler.configure(conf);
+        }
+    }
+
+    private void closeProfiler(WrappedDataSource source) {
+        StatementProfiler profiler = source.getProfiler();
+        source.setProfiler(null);
+        if (profiler != null) {
+            profiler.close();
+        }
+    }
+
+    /**
+     * Enables, reconfigures or disables the query result cache of a data source, according to the
+     * {@code resultCache} section of its configuration. The cache is enabled if the section is present, unless its
+     * {@code enabled} property is {@literal false}.
+     *
+     * @param source the data source
+     * @param conf   the data source configuration
+     */
+    private void updateResultCache(WrappedDataSource source, Configuration conf) {
+        Configuration section = conf.getConfiguration(ResultCache.CONFIGURATION);
+        ResultCache cache = source.getResultCache();
+        if (section == null || !section.getBooleanWithDefault("enabled", true)) {
+            closeResultCache(source);
+        } else if (cache == null) {
+            cache = new ResultCache(source.getName(), ResultCache.DEFAULT_MAX_ENTRIES, ResultCache.DEFAULT_MAX_WEIGHT,
+                    ResultCache.DEFAULT_MAX_ROWS, ResultCache.DEFAULT_TTL);
+            cache.configure(section);
+            cache.open();
+            source.setResultCache(cache);
+        } else {
+            cache.configure(section);
+        }
+    }
+
+    private static boolean isAdaptive(Configuration conf) {
+        Configuration section = conf.getConfiguration(PoolSizer.CONFIGURATION);
+        return section != null && section.getBooleanWithDefault("enabled", true);
+    }
+
+    /**
+     * Starts, reconfigures or stops the adaptive sizing of the pool of a data source, according to the
+     * {@code adaptiveSizing} section of its configuration. The sizing is enabled if the section is present, unless its
+     * {@code enabled} property is {@literal false}. When disabled, the pool keeps its current size until the next
+     * reconfiguration.
+     *
+     * @param source the data source
+     * @param conf   the data source configuration
+     */
+    private void updateSizer(WrappedDataSource source, Configuration conf) {
+        PoolSizer sizer = source.getSizer();
+        if (!isAdaptive(conf)) {
+            closeSizer(source);
+            return;
+        }
+        int minimumIdle = conf.getIntegerWithDefault("minimumIdle", 10);
+        if (sizer == null) {
+            sizer = new PoolSizer(source);
+            sizer.configure(conf.getConfiguration(PoolSizer.CONFIGURATION), minimumIdle);
+            sizer.start(getSizingExecutor());
+            source.setSizer(sizer);
+        } else {
+            sizer.configure(conf.getConfiguration(PoolSizer.CONFIGURATION), minimumIdle);
+        }
+    }
+
+    private void updateCircuitBreaker(WrappedDataSource source, Configuration conf) {
+        Configuration section = conf.getConfiguration(CircuitBreaker.CONFIGURATION);
+        if (section == null || !section.getBooleanWithDefault("enabled", true)) {
+            closeCircuitBreaker(source);
+            return;
+        }
+        CircuitBreaker breaker = source.getCircuitBreaker();
+        if (breaker == null) {
+            breaker = new CircuitBreaker(source);
+            breaker.configure(section);
+            breaker.start();
+            source.setCircuitBreaker(breaker);
+        } else {
+            breaker.configure(section);
+        }
+    }
+
+    /**
+     * Enables, reconfigures or disables the connection hold time profiler of a data source, according to the
+     * {@code holdTime} section of its configuration. The profiler is enabled if the section is present, unless its
+     * {@code enabled} property is {@literal false}.
+     *
+     * @param source the data source
+     * @param conf   the data source configuration
+     */
+    private void updateHoldTimeProfiler(WrappedDataSource source, Configuration conf) {
+        Configuration section = conf.getConfiguration(HoldTimeProfiler.CONFIGURATION);
+        if (section == null || !section.getBooleanWithDefault("enabled", true)) {
+            closeHoldTimeProfiler(source);
+            return;
+        }
+        HoldTimeProfiler profiler = source.getHoldTimeProfiler();
+        if (profiler == null) {
+            profiler = new HoldTimeProfiler(source.getName());
+            profiler.configure(section);
+            profiler.open();
+            source.setHoldTimeProfiler(profiler);
+        } else {
+            profiler.configure(section);
+        }
+    }
+
+    private void closeHoldTimeProfiler(WrappedDataSource source) {
+        HoldTimeProfiler profiler = source.getHoldTimeProfiler();
+        source.setHoldTimeProfiler(null);
+        if (profiler != null) {
+            profiler.close();
+        }
+    }
+
+    /**
+     * Enables or disables the failover endpoints of a data source, according to the {@code failover} section of its
+     * configuration. The failover set, with its active endpoint and the health of its endpoints, is kept unless the
+     * section changes, or the primary configuration inherited by the endpoints requires a rebuild. In this case, the
+     * set is replaced, closing the pools of the previous one.
+     *
+     * @param source  the data source
+     * @param primary the configuration of the data source pool, inherited by the endpoint pools
+     * @param conf    the data source configuration
+     * @throws SQLException if a pool cannot be created
+     */
+    private void updateFailover(final WrappedDataSource source, HikariConfig primary, Configuration conf)
+            throws SQLException {
+        Configuration section = conf.getConfiguration(FailoverSet.CONFIGURATION);
+        if (section == null || !section.getBooleanWithDefault("enabled", true)) {
+            closeFailover(source);
+            return;
+        }
+        FailoverSet current = source.getFailover();
+        if (current != null && current.matches(primary, section)) {
+            current.update(primary);
+            return;
+        }
+        closeFailover(source);
+        final String name = source.getName();
+        FailoverSet failover = new FailoverSet(source, primary, section, new FailoverSet.Pools() {
+            @Override
+            public HikariDataSource create(String endpoint, HikariConfig config) throws SQLException {
+                // The set may outlive the configuration it has been created with
+                return createPool(config, source.getConfiguration(), new PoolMetrics(name, endpoint), true);
+            }
+
+            @Override
+            public DataSource connect(HikariConfig config) throws SQLException {
+                return createConnectionSource(config);
+            }
+
+            @Override
+            public HikariDataSource renew(HikariDataSource pool, long evictionTimeout) {
+                return renewPool(source, pool, evictionTimeout);
+            }
+
+            @Override
+            public void close(HikariDataSource pool) {
+                drainer.drain(name, pool, getDrainTimeout(source.getConfiguration()));
+            }
+        });
+        failover.start();
+        source.setFailover(failover);
+    }
+
+    /**
+     * Enables or disables the enlistment of the connections in the JTA transactions, according to the {@code xa}
+     * property of the data source configuration. The XA data source opening the recovery connections, and the
+     * connections enlisted in the transactions in progress, are kept unless the driver, the url, the credentials or
+     * the driver properties change.
+     *
+     * @param source the data source
+     * @param config the configuration of the data source pool
+     * @param conf   the data source configuration
+     * @throws SQLException if the XA data source cannot be created
+     */
+    private void updateXA(WrappedDataSource source, HikariConfig config, Configuration conf) throws SQLException {
+        if (!conf.getBooleanWithDefault(XAPool.XA, false)) {
+            closeXA(source);
+            return;
+        }
+        XAPool current = source.getXAPool();
+        if (current != null && current.matches(config)) {
+            return;
+        }
+        closeXA(source);
+        XADataSource recovery = createXADataSource(config);
+        if (recovery == null) {
+            return;
+        }
+        XAPool xa = new XAPool(source.getName(), recovery, config);
+        xa.setTransactionManager(transactionManager);
+        source.setXAPool(xa);
+    }
+
+    /**
+     * Enables or disables the single writer of a data source, according to the {@code writer} section of its
+     * configuration. The writer, with its queued writes, is kept unless the section changes, or the primary
+     * configuration used to open the writer connection requires a rebuild. In this case, the writer is replaced,
+     * failing the queued writes.
+     *
+     * @param source the data source
+     * @param config the configuration of the data source pool
+     * @param conf   the data source configuration
+     * @throws SQLException if the data source opening the writer connection cannot be created
+     */
+    private void updateWriterLane(WrappedDataSource source, HikariConfig config, Configuration conf)
+            throws SQLException {
+        Configuration section = getWriterSection(conf);
+        if (section == null) {
+            closeWriterLane(source);
+            if (conf.getConfiguration(WriterLane.CONFIGURATION) != null && isMemory(conf)) {
+                LOGGER.warn("The single writer of data source '{}' is disabled, as each connection to an in-memory "
+                        + "database opens a different database", source.getName());
+            }
+            return;
+        }
+        WriterLane current = source.getWriterLane();
+        if (current != null && current.matches(config, section)) {
+            current.update(config);
+            return;
+        }
+        closeWriterLane(source);
+        DataSource connections = createConnectionSource(config);
+        if (connections == null) {
+            return;
+        }
+        WriterLane lane = new WriterLane(source.getName(),
+                WriterLane.initialize(connections, WriterLane.getPragmas(section)), section, config);
+        lane.start();
+        source.setWriterLane(lane);
+    }
+
+    private void closeWriterLane(WrappedDataSource source) {
+        WriterLane lane = source.getWriterLane();
+        source.setWriterLane(null);
+        if (lane != null) {
+            lane.stop();
+        }
+    }
+
+    /**
+     * @return the enabled {@code writer} section of a data source configuration, {@literal null} if the data source
+     * does not have a single writer
+     */
+    private static Configuration getWriterSection(Configuration conf) {
+        Configuration section = conf.getConfiguration(WriterLane.CONFIGURATION);
+        if (section == null || !section.getBooleanWithDefault("enabled", true) || isMemory(conf)) {
+            return null;
+        }
+        return section;
+    }
+
+    private static boolean isMemory(Configuration conf) {
+        String url = conf.get("url");
+        return url != null && url.contains(":memory:");
+    }
+
+    private void closeXA(WrappedDataSource source) {
+        XAPool xa = source.getXAPool();
+        source.setXAPool(null);
+        if (xa != null) {
+            xa.close();
+        }
+    }
+
+    private void closeFailover(WrappedDataSource source) {
+        FailoverSet failover = source.getFailover();
+        source.setFailover(null);
+        if (failover != null) {
+            failover.stop();
+        }
+    }
+
+    private void closeCircuitBreaker(WrappedDataSource source) {
+        CircuitBreaker breaker = source.getCircuitBreaker();
+        source.setCircuitBreaker(null);
+        if (breaker != null) {
+            breaker.stop();
+            source.setCircuitOpen(false);
+        }
+    }
+
+    /**
+     * Enables or disables the routing of the connections to the current tenant, according to the {@code tenants}
+     * section of the data source configuration. The router is kept with its tenant pools unless the section changes,
+     * or the primary configuration inherited by the tenant pools requires a rebuild. In this case, the router is
+     * replaced, closing the pools of the previous one.
+     *
+     * @param source  the data source
+     * @param primary the configuration of the primary pool, inherited by the tenant pools
+     * @param conf    the data source configuration
+     */
+    private void updateTenants(final WrappedDataSource source, HikariConfig primary, Configuration conf) {
+        Configuration section = conf.getConfiguration(TenantRouter.CONFIGURATION);
+        if (section == null || !section.getBooleanWithDefault("enabled", true)) {
+            closeTenants(source);
+            return;
+        }
+        TenantRouter current = source.getTenantRouter();
+        if (current != null && current.matches(primary, section)) {
+            current.update(primary);
+            return;
+        }
+        closeTenants(source);
+        final String name = source.getName();
+        TenantRouter router = new TenantRouter(name, primary, section, new TenantRouter.Pools() {
+            @Override
+            public HikariDataSource create(String tenant, HikariConfig config) throws SQLException {
+                // The router may outlive the configuration it has been created with
+                return createPool(config, source.getConfiguration(), new PoolMetrics(name, "tenant-" + tenant));
+            }
+
+            @Override
+            public void retire(String tenant, HikariDataSource pool) {
+                drainer.drain(name, pool, getDrainTimeout(source.getConfiguration()));
+            }
+        });
+        router.start(getMaintenanceExecutor());
+        source.setTenantRouter(router);
+    }
+
+    private static boolean isLazy(Configuration conf) {
+        return conf != null && conf.getBooleanWithDefault(IdleShutdown.LAZY, false);
+    }
+
+    /**
+     * Enables, reconfigures or disables the shutdown of the pool of a lazy data source after a period of inactivity,
+     * according to its {@code lazy} and {@code idleShutdown} properties.
+     *
+     * @param source the data source
+     * @param conf   the data source configuration
+     */
+    private void updateIdleShutdown(final WrappedDataSource source, Configuration conf) {
+        long timeout = conf.getLongWithDefault(IdleShutdown.TIMEOUT, IdleShutdown.DEFAULT_TIMEOUT);
+        if (!isLazy(conf) || timeout <= 0) {
+            closeIdleShutdown(source);
+            return;
+        }
+        IdleShutdown shutdown = source.getIdleShutdown();
+        if (shutdown != null && shutdown.getTimeout() == timeout) {
+            return;
+        }
+        closeIdleShutdown(source);
+        shutdown = new IdleShutdown(source, timeout, pool -> shutdownIdlePool(source, pool));
+        shutdown.start(getMaintenanceExecutor());
+        source.setIdleShutdown(shutdown);
+    }
+
+    private void closeIdleShutdown(WrappedDataSource source) {
+        IdleShutdown shutdown = source.getIdleShutdown();
+        source.setIdleShutdown(null);
+        if (shutdown != null) {
+            shutdown.stop();
+        }
+    }
+
+    /**
+     * Replaces a pool of a lazy data source (its pool or a replica pool) by a pool that is not started yet, and closes
+     * the current one. The replacement is created outside of the monitor, which only guards the swap, so the idle
+     * shutdown does not hold back the reconfigurations.
+     *
+     * @param source the data source
+     * @param pool   the current pool
+     */
+    private void shutdownIdlePool(WrappedDataSource source, HikariDataSource pool) {
+        if (source.getWrapped() != pool && !isReplica(source, pool)) {
+            // Rebuilt or closed meanwhile.
+            return;
+        }
+        HikariDataSource replacement = copyPool(source, pool);
+        if (replacement == null) {
+            return;
+        }
+        boolean swapped;
+        synchronized (this) {
+            swapped = swap(source, pool, replacement);
+        }
+        if (swapped) {
+            drainer.drain(source.getName(), pool, getDrainTimeout(source.getConfiguration()));
+        } else {
+            // Rebuilt or closed while the replacement was created, it is not started.
+            shutdownPool(replacement);
+        }
+    }
+
+    private static boolean isReplica(WrappedDataSource source, HikariDataSource pool) {
+        ReplicaSet replicas = source.getReplicas();
+        return replicas != null && replicas.contains(pool);
+    }
+
+    /**
+     * Replaces a pool of a data source, if it is still in use.
+     *
+     * @param source      the data source
+     * @param pool        the current pool, the data source pool or a replica pool
+     * @param replacement the new pool
+     * @return whether the pool was replaced
+     */
+    private static boolean swap(WrappedDataSource source, HikariDataSource pool, HikariDataSource replacement) {
+        if (source.getWrapped() == pool) {
+            source.set(replacement);
+            return true;
+        }
+        ReplicaSet replicas = source.getReplicas();
+        ReplicaSet renewed = replicas == null ? null : replicas.replace(pool, replacement);
+        if (renewed != null) {
+            source.setReplicas(renewed);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Replaces a pool of a data source (its pool, or a pool of a failover endpoint) by a pool with the same
+     * configuration, not started yet. The current pool is drained and closed, so its connections are not reused.
+     *
+     * @param source       the data source
+     * @param pool         the current pool
+     * @param drainTimeout the time (in milliseconds) given to the connections in use to be returned
+     * @return the new pool, {@literal null} if it cannot be created (the current pool is kept)
+     */
+    private HikariDataSource renewPool(WrappedDataSource source, HikariDataSource pool, long drainTimeout) {
+        HikariDataSource replacement = copyPool(source, pool);
+        if (replacement == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (source.getWrapped() == pool) {
+                source.set(replacement);
+            }
+        }
+        drainer.drain(source.getName(), pool, drainTimeout);
+        return replacement;
+    }
+
+    /**
+     * Creates a pool with the configuration of the given pool, not started yet.
+     *
+     * @param source the data source
+     * @param pool   the pool to copy
+     * @return the new pool, {@literal null} if it cannot be created
+     */
+    private HikariDataSource copyPool(WrappedDataSource source, HikariDataSource pool) {
+        HikariConfig config = new HikariConfig();
+        pool.copyState(config);
+        // A new data source and new metrics are created with the pool.
+        config.setDataSource(null);
+        PoolMetrics previous = PoolMetrics.of(pool);
+        PoolMetrics metrics = new PoolMetrics(source.getName(), previous == null ? null : previous.getReplicaName());
+        try {
+            return createPool(config, source.getConfiguration(), metrics, true);
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.error("Cannot renew the pool '{}' of data source '{}'", pool.getPoolName(), source.getName(), e);
+            return null;
+        }
+    }
+
+    private void closeTenants(WrappedDataSource source) {
+        TenantRouter router = source.getTenantRouter();
+        source.setTenantRouter(null);
+        if (router != null) {
+            router.stop();
+        }
+    }
+
+    private void closeSizer(WrappedDataSource source) {
+        PoolSizer sizer = source.getSizer();
+        source.setSizer(null);
+        if (sizer != null) {
+            sizer.stop();
+        }
+    }
+
+    private synchronized ScheduledExecutorService getSizingExecutor() {
+        if (sizing == null) {
+            sizing = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wisdom-jdbc-pool-sizer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sizing;
+    }
+
+    private synchronized ScheduledExecutorService getMaintenanceExecutor() {
+        if (maintenance == null) {
+            maintenance = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wisdom-jdbc-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return maintenance;
+    }
+
+    private void closeResultCache(WrappedDataSource source) {
+        ResultCache cache = source.getResultCache();
+        source.setResultCache(null);
+        if (cache != null) {
+            cache.close();
+        }
+    }
+
+    /**
+     * Creates, reconfigures or removes the replicas of a data source according to the {@code replicas} section of its
+     * configuration. Each replica inherits the primary configuration, and may override the url, credentials, pool
+     * sizes, connection timeout and pool name. Replicas are compared to the running ones like primary pools: runtime
+     * settings are applied in place, other changes rebuild the replica pool.
+     *
+     * @param source  the data source
+     * @param primary the configuration of the primary pool
+     * @param conf    the data source configuration
+     * @throws SQLException if a replica pool cannot be created
+     */
+    private void updateReplicas(WrappedDataSource source, HikariConfig primary, Configuration conf)
+            throws SQLException {
+        String name = source.getName();
+        ReplicaSet current = source.getReplicas();
+        Map<String, ReplicaSet.Replica> previous = current == null
+                ? new HashMap<String, ReplicaSet.Replica>() : current.byName();
+        List<HikariDataSource> retired = new ArrayList<>();
+        List<ReplicaSet.Replica> replicas = new ArrayList<>();
+
+        Configuration section = conf.getConfiguration(REPLICAS_CONFIGURATION);
+        if (section != null) {
+            for (String replica : section.asMap().keySet()) {
+                HikariConfig target = toReplicaConfig(primary, section.getConfiguration(replica), name, replica);
+                ReplicaSet.Replica existing = previous.remove(replica);
+                PoolReconfiguration.Change change = existing == null
+                        ? PoolReconfiguration.Change.REBUILD : PoolReconfiguration.diff(existing.getPool(), target);
+                if (change == PoolReconfiguration.Change.REBUILD) {
+                    HikariDataSource pool = createPool(target, conf, new PoolMetrics(name, replica));
+                    if (pool == null) {
+                        continue;
+                    }
+                    LOGGER.info("Replica '{}' of data source '{}' created", replica, name);
+                    replicas.add(new ReplicaSet.Replica(replica, pool));
+                    if (existing != null) {
+                        retired.add(existing.getPool());
+                    }
+                } else {
+                    PoolReconfiguration.apply(existing.getPool(), target);
+                    updateConnectionWrappers(existing.getPool(), conf);
+                    replicas.add(existing);
+                }
+            }
+        }
+        source.setReplicas(replicas.isEmpty() ? null : new ReplicaSet(name, replicas));
+
+        for (ReplicaSet.Replica replica : previous.values()) {
+            LOGGER.info("Replica '{}' of data source '{}' removed", replica.getName(), name);
+            retired.add(replica.getPool());
+        }
+        for (HikariDataSource pool : retired) {
+            drainer.drain(name, pool, getDrainTimeout(conf));
+        }
+    }
+
+    private HikariConfig toReplicaConfig(HikariConfig primary, Configuration replica, String dataSourceName,
+                                         String replicaName) {
+        HikariConfig config = new HikariConfig();
+        primary.copyState(config);
+        // The data source creating the connections of the primary is set when its pool is created.
+        config.setDataSource(null);
+        config.setJdbcUrl(replica.getOrDie("url"));
+        config.setUsername(replica.getWithDefault("user", primary.getUsername()));
+        config.setPassword(replica.getWithDefault("password", primary.getPassword()));
+        config.setMaximumPoolSize(replica.getIntegerWithDefault("maximumPoolSize", primary.getMaximumPoolSize()));
+        config.setMinimumIdle(replica.getIntegerWithDefault("minimumIdle", primary.getMinimumIdle()));
+        config.setConnectionTimeout(replica.getLongWithDefault("connectionTimeout", primary.getConnectionTimeout()));
+        config.setPoolName(replica.getWithDefault("poolName", dataSourceName + "-" + replicaName));
+        // Replicas only serve read-only connections.
+        config.setReadOnly(true);
+        config.validate();
+        return config;
+    }
+
+    /**
+     * Removes the replicas of the given data source and closes their pools.
+     *
+     * @param source the data source
+     * @param drain  whether the pools are drained or closed immediately
+     */
+    private void closeReplicas(WrappedDataSource source, boolean drain) {
+        ReplicaSet replicas = source.getReplicas();
+        source.setReplicas(null);
+        if (replicas == null) {
+            return;
+        }
+        for (ReplicaSet.Replica replica : replicas.getReplicas()) {
+            if (drain) {
+                drainer.drain(source.getName(), replica.getPool(), getDrainTimeout(source.getConfiguration()));
+            } else {
+                shutdownPool(replica.getPool());
+            }
+        }
+    }
+
+    private PoolWarmUp createWarmUp() {
+        return new PoolWarmUp(
+                configuration.getIntegerWithDefault(WARMUP_CONFIGURATION_PREFIX + ".concurrency",
+                        PoolWarmUp.DEFAULT_CONCURRENCY),
+                configuration.getLongWithDefault(WARMUP_CONFIGURATION_PREFIX + ".timeout", PoolWarmUp.DEFAULT_TIMEOUT),
+                configuration.getBooleanWithDefault(WARMUP_CONFIGURATION_PREFIX + ".prefill", true));
+    }
+
+    private long getDrainTimeout(Configuration configuration) {
+        return configuration.getLongWithDefault("drainTimeout", PoolDrainer.DEFAULT_DRAIN_TIMEOUT);
+    }
+
+    /**
+     * Applies the {@code statementCacheSize} and {@code trackSessionState} of the configuration to a running pool.
+     * The statement cache and the session state tracking are not HikariCP settings, so changing them never rebuilds
+     * the pool.
+     *
+     * @param pool the pool
+     * @param conf the data source configuration
+     */
+    private static void updateConnectionWrappers(HikariDataSource pool, Configuration conf) {
+        PoolMetrics metrics = PoolMetrics.of(pool);
+        if (metrics != null) {
+            metrics.getStatementCache().setSize(conf.getIntegerWithDefault(STATEMENT_CACHE_SIZE, 0));
+            metrics.getSessionState().setEnabled(isSessionStateTracked(conf));
+        }
+    }
+
+    /**
+     * The session state is not tracked on the XA connections, as the transaction manager changes it through the
+     * {@code XAResource}.
+     */
+    private static boolean isSessionStateTracked(Configuration conf) {
+        return conf.getBooleanWithDefault(TRACK_SESSION_STATE, true) && !conf.getBooleanWithDefault(XAPool.XA, false);
+    }
+
+    private HikariDataSource createPool(HikariConfig hikariConfig, Configuration configuration, PoolMetrics metrics)
+            throws SQLException {
+        return createPool(hikariConfig, configuration, metrics, isLazy(configuration));
+    }
+
+    /**
+     * Creates a pool.
+     *
+     * @param hikariConfig  the pool configuration
+     * @param configuration the data source configuration
+     * @param metrics       the metrics of the pool
+     * @param lazy          whether the pool is started on the first connection request
+     * @return the pool, {@literal null} if the driver is not available
+     * @throws SQLException if the pool cannot be created
+     */
+    private HikariDataSource createPool(HikariConfig hikariConfig, Configuration configuration, PoolMetrics metrics,
+                                        boolean lazy) throws SQLException {
+        DataSource connections;
+        if (configuration.getBooleanWithDefault(XAPool.XA, false)) {
+            XADataSource source = createXADataSource(hikariConfig);
+            connections = source == null ? null : XAPool.connectionSource(source);
+        } else {
+            connections = createConnectionSource(hikariConfig);
+        }
+        if (connections == null) {
+            // we don't create datasource without driver
+            return null;
+        }
+        Configuration writer = getWriterSection(configuration);
+        if (writer != null) {
+            // With a single writer, the pool only serves the reads
+            List<String> pragmas = new ArrayList<>(WriterLane.getPragmas(writer));
+            pragmas.addAll(WriterLane.getReaderPragmas(writer));
+            connections = WriterLane.initialize(connections, pragmas);
+        }
+        hikariConfig.setMetricsTrackerFactory(metrics);
+        StatementCache statementCache = metrics.getStatementCache();
+        statementCache.setSize(configuration.getIntegerWithDefault(STATEMENT_CACHE_SIZE, 0));
+        SessionState sessionState = metrics.getSessionState();
+        sessionState.setEnabled(isSessionStateTracked(configuration));
+        // The connections are created from the data source factory, through a data source recording the creation
+        // time, tracking the session state and caching the prepared statements.
+        hikariConfig.setDataSource(metrics.track(sessionState.wrap(statementCache.wrap(connections))));
+        if (lazy) {
+            // Without configuration, the pool is started on the first connection request.
+            HikariDataSource pool = new HikariDataSource();
+            // Report the database failures to the first connection request, as timeouts.
+            hikariConfig.setInitializationFailFast(false);
+            hikariConfig.validate();
+            hikariConfig.copyState(pool);
+            return pool;
+        }
+        return new HikariDataSource(hikariConfig);
+    }
+
+    /**
+     * Creates the data source opening the physical connections of a pool, from the {@code DataSourceFactory} of its
+     * driver and without the {@link java.sql.DriverManager}. The factory creates this data source if it supports the
+     * url, the credentials and the driver properties of the configuration. Otherwise, the connections are opened
+     * with the driver instance of the factory.
+     *
+     * @param config the pool configuration
+     * @return the data source, {@literal null} if the driver is not available
+     * @throws SQLException if the driver cannot be created
+     */
+    private DataSource createConnectionSource(HikariConfig config) throws SQLException {
+        String driver = config.getDriverClassName();
+        DataSourceFactory factory = getFactory(driver);
+        if (factory == null) {
+            return null;
+        }
+        DataSource source = createFactoryDataSource(factory, config);
+        if (source != null) {
+            return source;
+        }
+        Driver instance = getDriver(driver);
+        if (instance == null) {
+            return null;
+        }
+        return new DirectDriverDataSource(instance, config.getJdbcUrl(), config.getDataSourceProperties(),
+                config.getUsername(), config.getPassword());
+    }
+
+    /**
+     * Creates the XA data source of an XA pool ({@code xa = true}), from the {@code DataSourceFactory} of its driver.
+     *
+     * @param config the pool configuration
+     * @return the XA data source, {@literal null} if the driver is not available
+     * @throws SQLException if the factory does not support XA, or rejects the configuration
+     */
+    private XADataSource createXADataSource(HikariConfig config) throws SQLException {
+        DataSourceFactory factory = getFactory(config.getDriverClassName());
+        if (factory == null) {
+            return null;
+        }
+        XADataSource source = factory.createXADataSource(toFactoryProperties(config));
+        if (source == null) {
+            throw new SQLException("The DataSourceFactory of " + config.getDriverClassName()
+                    + " does not provide XA data sources");
+        }
+        return source;
+    }
+
+    private synchronized DataSourceFactory getFactory(String driver) {
+        if (driver == null) {
+            LOGGER.error("The data source has not driver classname - 'driverClassName' property not set");
+            return null;
+        }
+        // null if the driver is not available
+        return drivers.get(driver);
+    }
+
+    private static DataSource createFactoryDataSource(DataSourceFactory factory, HikariConfig config) {
+        if (config.getJdbcUrl() == null) {
+            return null;
+        }
+        try {
+            return factory.createDataSource(toFactoryProperties(config));
+        } catch (SQLException | RuntimeException e) {
+            LOGGER.debug("The DataSourceFactory of {} cannot create a data source for {}, the connections are opened "
+                    + "by its driver", config.getDriverClassName(), config.getJdbcUrl(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Builds the properties given to the {@code DataSourceFactory}: the driver properties, the url and the
+     * credentials of the pool configuration.
+     */
+    private static Properties toFactoryProperties(HikariConfig config) {
+        Properties properties = new Properties();
+        for (Map.Entry<Object, Object> property : config.getDataSourceProperties().entrySet()) {
+            properties.setProperty((String) property.getKey(), String.valueOf(property.getValue()));
+        }
+        if (config.getJdbcUrl() != null) {
+            properties.setProperty(DataSourceFactory.JDBC_URL, config.getJdbcUrl());
+        }
+        if (config.getUsername() != null) {
+            properties.setProperty(DataSourceFactory.JDBC_USER, config.getUsername());
+        }
+        if (config.getPassword() != null) {
+            properties.setProperty(DataSourceFactory.JDBC_PASSWORD, config.getPassword());
+        }
+        return properties;
     }
 
     private HikariConfig toHikariConfig(Configuration configuration, String dataSourceName){
@@ -241,6 +1363,25 @@ public class HikariCPDataSources implements DataSources {
         hikariConfig.setUsername(configuration.get("user"));
         hikariConfig.setPassword(configuration.get("password"));
 
+        // Driver properties, the explicit ones first so the profile does not override them
+        Configuration driverProperties = configuration.getConfiguration(DRIVER_PROPERTIES);
+        if (driverProperties != null) {
+            for (Map.Entry<Object, Object> property : driverProperties.asProperties().entrySet()) {
+                hikariConfig.addDataSourceProperty((String) property.getKey(), property.getValue());
+            }
+        }
+        String profileName = configuration.get(PROFILE);
+        if (profileName != null) {
+            Patterns.Profile profile = Patterns.Profile.of(profileName);
+            if (profile == null) {
+                LOGGER.error("Unknown profile '{}' for data source '{}', expected one of {}", profileName,
+                        dataSourceName, Arrays.toString(Patterns.Profile.values()));
+            } else {
+                LOGGER.info("Profile {} applied to data source '{}': {}", profile, dataSourceName,
+                        Patterns.applyProfile(hikariConfig, profile));
+            }
+        }
+
         // Frequently used
         hikariConfig.setAutoCommit(configuration.getBooleanWithDefault("autoCommit", true));
         hikariConfig.setConnectionTimeout(configuration.getIntegerWithDefault("connectionTimeout", 30000));
@@ -314,85 +1455,115 @@ public class HikariCPDataSources implements DataSources {
         return isolationLevel;
     }
 
-    private boolean registerDriver(Configuration config) throws SQLException {
-        String driver = config.getWithDefault("driver", null);
-        if (driver == null) {
-            LOGGER.error("The data source has not driver classname - 'driverClassName' property not set");
-            return false;
-        } else {
-            Driver instance = getDriver(driver);
-            if (instance == null) {
-                // The driver is not available
-                return false;
-            }
-            DriverManager.registerDriver(instance);
-            return true;
-        }
-    }
-
+    /**
+     * Gets the driver instance of the given driver class. The instance is created once per {@code DataSourceFactory},
+     * and shared by the pools.
+     *
+     * @param classname the driver class name
+     * @return the driver, {@literal null} if no {@code DataSourceFactory} provides it
+     * @throws SQLException if the driver cannot be created
+     */
     public synchronized Driver getDriver(String classname) throws SQLException {
+        Driver driver = driverInstances.get(classname);
+        if (driver != null) {
+            return driver;
+        }
         DataSourceFactory factory = drivers.get(classname);
-        if (factory != null) {
-            return factory.createDriver(null);
-        } else {
+        if (factory == null) {
             return null;
         }
+        driver = factory.createDriver(null);
+        if (driver != null) {
+            driverInstances.put(classname, driver);
+        }
+        return driver;
     }
 
     @Bind(optional = true, aggregate = true)
     public synchronized void bindFactory(DataSourceFactory factory, Map<String, String> properties) {
         String driverClassName = properties.get(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS);
         drivers.put(driverClassName, factory);
+        driverInstances.remove(driverClassName);
         checkPendingDatasource(driverClassName);
     }
 
     private void checkPendingDatasource(String driverClassName) {
-        for (Map.Entry<String, HikariDataSource> entry : sources.entrySet()) {
-            if(entry.getValue() == null && driverClassName.equals(getRequiredDriver(entry.getKey()))){
-                Configuration dbConfiguration = configuration.getConfiguration(DB_CONFIGURATION_PREFIX).getConfiguration(entry.getKey());
+        for (WrappedDataSource source : registry.entries().values()) {
+            if(!source.isAvailable() && driverClassName.equals(source.getRequiredDriver())){
                 try {
-
-                    HikariDataSource ds = createDataSource(dbConfiguration, entry.getKey());
-                    sources.put(entry.getKey(), ds);
-                    if (entry.getValue() != null) {
-                        register(context, entry.getValue(), entry.getKey());
-                        entry.getValue().getConnection().close();
-                        LOGGER.info("Connection successful to data source '{}'", entry.getKey());
+                    if (start(source, source.getConfiguration())) {
+                        // Publish the driver arrival
+                        registry = registry.with(source.getName(), source);
+                        register(source);
+                        if (!isLazy(source.getConfiguration())) {
+                            // The pools are probed directly, the connections of the data source may be opened lazily
+                            for (DataSource pool : PoolWarmUp.getPools(source)) {
+                                pool.getConnection().close();
+                            }
+                            LOGGER.info("Connection successful to data source '{}'", source.getName());
+                        }
                     } else {
                         LOGGER.error("The data source '{}' cannot be created, despite the driver just arrives",
-                                entry.getKey());
+                                source.getName());
                     }
                 } catch (SQLException e) {
-                    LOGGER.error("The data source '{}' is configured but the connection failed", entry.getKey(), e);
+                    LOGGER.error("The data source '{}' is configured but the connection failed", source.getName(), e);
                 }
             }
 
         }
     }
 
-    private String getRequiredDriver(String datasourceName) {
-        Configuration dbConfiguration = configuration.getConfiguration(DB_CONFIGURATION_PREFIX);
-        String driver = dbConfiguration.getConfiguration(datasourceName).get("driver");
-        return driver;
-    }
-
     @Unbind
     public synchronized void unbindFactory(DataSourceFactory factory, Map<String, String> properties) {
         String driverClassName = properties.get(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS);
         drivers.remove(driverClassName);
+        driverInstances.remove(driverClassName);
         invalidateDataSources(driverClassName);
 
     }
 
+    /**
+     * Binds the JTA transaction manager. The connections of the XA data sources obtained within a transaction are
+     * enlisted in it. The service is received as an object, so this class can be loaded without the JTA API (the
+     * annotations are not retained at runtime).
+     *
+     * @param manager the transaction manager
+     */
+    @Bind(optional = true, specification = TransactionManager.class)
+    public synchronized void bindTransactionManager(Object manager) {
+        transactionManager = manager;
+        updateTransactionManager(manager);
+    }
+
+    @Unbind
+    public synchronized void unbindTransactionManager(Object manager) {
+        if (transactionManager == manager) {
+            transactionManager = null;
+            updateTransactionManager(null);
+        }
+    }
+
+    private void updateTransactionManager(Object manager) {
+        for (WrappedDataSource source : registry.entries().values()) {
+            XAPool xa = source.getXAPool();
+            if (xa != null) {
+                xa.setTransactionManager(manager);
+            }
+        }
+    }
+
     private void invalidateDataSources(String driverClassName) {
-        for (Map.Entry<String, HikariDataSource> entry : sources.entrySet()) {
-            HikariDataSource ds = entry.getValue();
-            if (ds != null && driverClassName.equals(getRequiredDriver(entry.getKey()))) {
+        for (WrappedDataSource source : registry.entries().values()) {
+            HikariDataSource ds = (HikariDataSource) source.getWrapped();
+            if (ds != null && driverClassName.equals(source.getRequiredDriver())) {
                 // A used driver just left....
-                //TODO Unregister only the leaving Datasource service ?
-                unregister();
-                //TODO remove the entry completely ?
-                sources.put(entry.getKey(), null);
+                source.unregister();
+                // The data source becomes pending again, the pool cannot be used without its driver.
+                source.unset();
+                registry = registry.with(source.getName(), source);
+                shutdownPool(ds);
+                closeFeatures(source, false);
                 LOGGER.info("Driver {} left the DataSourceFactory", driverClassName);
             }
         }
@@ -408,28 +1579,11 @@ public class HikariCPDataSources implements DataSources {
         }
     }
 
-    private void register(BundleContext context, DataSource ds, String dbName) {
-        Dictionary<String, String> props = new Hashtable<>();
-        Configuration serviceProperties = configuration.getConfiguration("properties");
-        if(serviceProperties!=null){
-            Properties properties = serviceProperties.asProperties();
-            for(Enumeration<Object> keys = properties.keys(); keys.hasMoreElements(); /* NO-OP */){
-                String serviceProp = (String) keys.nextElement();
-                props.put(serviceProp, serviceProperties.getOrDie(serviceProp));
-            }
-        }
+    private void register(WrappedDataSource source) {
         //
         //  "name" property value from application.conf will silently override the value from service properties.
         //
-        props.put(DataSources.DATASOURCE_NAME_PROPERTY, dbName);
-        registration = context.registerService(DataSource.class, ds, props);
-    }
-
-    private void unregister() {
-        if (registration != null) {
-            registration.unregister();
-            registration = null;
-        }
+        source.register(context, configuration.getConfiguration("properties"));
     }
 
     /**
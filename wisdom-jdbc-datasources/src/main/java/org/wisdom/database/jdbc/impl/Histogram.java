@@ -0,0 +1,201 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations, using a log-linear bucketing similar to HdrHistogram: each power of two is split
+ * into {@link #SUB_BUCKETS} linear buckets, so recorded values are kept with a relative precision of about 3%
+ * whatever their magnitude. Recording a value is a few atomic increments, without allocation, so it can be called on
+ * the connection acquisition path.
+ * <p>
+ * Values are recorded in nanoseconds. Quantiles are computed on a {@link Snapshot}.
+ */
+final class Histogram {
+
+    /**
+     * The number of linear buckets per power of two (2^5).
+     */
+    private static final int SUB_BUCKET_BITS = 5;
+
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * The number of buckets. The values lower than 2 * SUB_BUCKETS have their own bucket, then each power of two up to
+     * 2^63 has SUB_BUCKETS buckets.
+     */
+    private static final int BUCKETS = 2 * SUB_BUCKETS + (63 - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    private final LongAdder count = new LongAdder();
+
+    private final LongAdder sum = new LongAdder();
+
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration.
+     *
+     * @param value the duration
+     * @param unit  the unit of the duration
+     */
+    void record(long value, TimeUnit unit) {
+        record(unit.toNanos(value));
+    }
+
+    /**
+     * Records a duration in nanoseconds. Negative values are ignored.
+     *
+     * @param nanos the duration
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            return;
+        }
+        counts.incrementAndGet(index(nanos));
+        count.increment();
+        sum.add(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return the number of recorded values
+     */
+    long getCount() {
+        return count.sum();
+    }
+
+    /**
+     * @return the sum of the recorded values, in nanoseconds
+     */
+    long getSum() {
+        return sum.sum();
+    }
+
+    static int index(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        // The exponent is greater than SUB_BUCKET_BITS, the value is in [2^exponent, 2^(exponent + 1)).
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exponent - SUB_BUCKET_BITS;
+        return 2 * SUB_BUCKETS + (shift - 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * @return the highest value stored in the bucket with the given index
+     */
+    static long highestValue(int index) {
+        if (index < 2 * SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index - 2 * SUB_BUCKETS) / SUB_BUCKETS + 1;
+        long sub = (index - 2 * SUB_BUCKETS) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * Takes a snapshot of the histogram. As the recording is not blocked during the snapshot, the snapshot may miss
+     * some of the values recorded concurrently.
+     *
+     * @return the snapshot
+     */
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.sum(), max.get());
+    }
+
+    /**
+     * An immutable view of a histogram.
+     */
+    static final class Snapshot {
+
+        private final long[] counts;
+
+        private final long count;
+
+        private final long sum;
+
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of recorded values
+         */
+        long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the mean in nanoseconds, 0 if no values were recorded
+         */
+        double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @return the maximum in nanoseconds
+         */
+        long getMax() {
+            return max;
+        }
+
+        /**
+         * Computes a quantile.
+         *
+         * @param quantile the quantile, between 0 and 1
+         * @return the value (in nanoseconds) under which the given proportion of values are, 0 if no values were
+         * recorded
+         */
+        long getValue(double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValue(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
@@ -0,0 +1,300 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.configuration.Configuration;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Profiles how long the connections of a data source are held, and attributes the hold times to the code having
+ * obtained the connections (enabled by the {@code holdTime} section of the data source configuration).
+ * <p>
+ * Only a proportion of the connections ({@code sampleRate}) is profiled: the caller stack is captured when the
+ * connection is obtained, and truncated to its {@code depth} innermost frames, ignoring the frames of the data
+ * sources, of HikariCP and of the JDK. The truncated stack identifies the call site, its hold times are recorded in a
+ * histogram when the connection is closed. The other connections are returned untouched.
+ */
+class HoldTimeProfiler implements HoldTimeProfilerMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HoldTimeProfiler.class);
+
+    static final String CONFIGURATION = "holdTime";
+
+    static final double DEFAULT_SAMPLE_RATE = 0.01;
+
+    static final int DEFAULT_DEPTH = 3;
+
+    static final int DEFAULT_TOP = 10;
+
+    /**
+     * The maximum number of call sites tracked per data source (each of them holds a histogram of about 15 KB). Once
+     * reached, new call sites are aggregated under {@link #OTHER}.
+     */
+    static final int MAX_CALL_SITES = 250;
+
+    static final String OTHER = "<other>";
+
+    /**
+     * The call site of the connections obtained by the data sources themselves (asynchronous requests...).
+     */
+    static final String INTERNAL = "<internal>";
+
+    /**
+     * The packages of the frames not identifying a call site.
+     */
+    static final List<String> IGNORED = Arrays.asList("java.", "javax.", "sun.", "jdk.", "com.sun.",
+            "com.zaxxer.hikari.", "org.wisdom.database.jdbc.impl.");
+
+    private final String name;
+
+    private final ConcurrentMap<String, Stats> sites = new ConcurrentHashMap<>();
+
+    private volatile double sampleRate = DEFAULT_SAMPLE_RATE;
+
+    private volatile int depth = DEFAULT_DEPTH;
+
+    private volatile int top = DEFAULT_TOP;
+
+    /**
+     * Creates a profiler.
+     *
+     * @param name the data source name
+     */
+    HoldTimeProfiler(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Applies the profiling settings.
+     *
+     * @param section the {@code holdTime} section of the data source configuration
+     */
+    void configure(Configuration section) {
+        this.sampleRate = Math.max(0.0, Math.min(1.0,
+                section.getDoubleWithDefault("sampleRate", DEFAULT_SAMPLE_RATE)));
+        int newDepth = Math.max(1, section.getIntegerWithDefault("depth", DEFAULT_DEPTH));
+        if (newDepth != depth) {
+            // The call sites are not comparable anymore
+            sites.clear();
+            depth = newDepth;
+        }
+        this.top = Math.max(1, section.getIntegerWithDefault("top", DEFAULT_TOP));
+    }
+
+    /**
+     * Wraps the given connection to record its hold time, if it is sampled.
+     *
+     * @param connection the connection
+     * @return the wrapped connection, or the given connection if it is not sampled
+     */
+    Connection wrap(final Connection connection) {
+        double rate = sampleRate;
+        if (rate <= 0.0 || (rate < 1.0 && ThreadLocalRandom.current().nextDouble() >= rate)) {
+            return connection;
+        }
+        final Stats stats = stats(callSite(new Throwable().getStackTrace(), depth));
+        stats.open.increment();
+        final long start = System.nanoTime();
+        return (Connection) Proxy.newProxyInstance(HoldTimeProfiler.class.getClassLoader(),
+                new Class[]{Connection.class}, new InvocationHandler() {
+                    private boolean closed;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("close".equals(method.getName()) && !closed) {
+                            closed = true;
+                            stats.open.decrement();
+                            stats.time.record(System.nanoTime() - start);
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Computes the call site from a stack trace: the {@code depth} innermost frames outside of the ignored packages.
+     *
+     * @param stack the stack trace, the innermost frame first
+     * @param depth the number of frames to keep
+     * @return the call site
+     */
+    static String callSite(StackTraceElement[] stack, int depth) {
+        StringBuilder site = new StringBuilder();
+        int kept = 0;
+        for (StackTraceElement frame : stack) {
+            if (kept == depth) {
+                break;
+            }
+            if (isIgnored(frame.getClassName())) {
+                continue;
+            }
+            if (kept > 0) {
+                site.append(" < ");
+            }
+            site.append(frame.getClassName()).append('.').append(frame.getMethodName());
+            if (frame.getLineNumber() > 0) {
+                site.append(':').append(frame.getLineNumber());
+            }
+            kept++;
+        }
+        return kept == 0 ? INTERNAL : site.toString();
+    }
+
+    private static boolean isIgnored(String className) {
+        for (String prefix : IGNORED) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        // Dynamic proxies
+        return className.contains("$Proxy");
+    }
+
+    /**
+     * Gets the statistics of a call site, the call site strings being interned by the map.
+     */
+    private Stats stats(String site) {
+        Stats stats = sites.get(site);
+        if (stats != null) {
+            return stats;
+        }
+        String key = sites.size() < MAX_CALL_SITES ? site : OTHER;
+        return sites.computeIfAbsent(key, k -> new Stats());
+    }
+
+    /**
+     * Records a hold time, used by the tests.
+     *
+     * @param site  the call site
+     * @param nanos the hold time in nanoseconds
+     */
+    void record(String site, long nanos) {
+        stats(site).time.record(nanos);
+    }
+
+    /**
+     * Registers the profiler in JMX.
+     */
+    void open() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register the hold time profiler of data source '{}' in JMX", name, e);
+        }
+    }
+
+    /**
+     * Unregisters the profiler from JMX.
+     */
+    void close() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (JMException e) {
+            LOGGER.debug("Cannot unregister the hold time profiler of data source '{}' from JMX", name, e);
+        }
+    }
+
+    ObjectName getObjectName() throws JMException {
+        return new ObjectName(PoolMetrics.JMX_DOMAIN + ":type=HoldTime,name=" + PoolMetrics.quote(name));
+    }
+
+    @Override
+    public String getDataSourceName() {
+        return name;
+    }
+
+    @Override
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public int getDepth() {
+        return depth;
+    }
+
+    @Override
+    public int getTop() {
+        return top;
+    }
+
+    @Override
+    public List<CallSite> getTopByTotal() {
+        return top((a, b) -> Double.compare(b.getTotal(), a.getTotal()));
+    }
+
+    @Override
+    public List<CallSite> getTopByP99() {
+        return top((a, b) -> Double.compare(b.getP99(), a.getP99()));
+    }
+
+    private List<CallSite> top(Comparator<CallSite> order) {
+        List<CallSite> list = new ArrayList<>();
+        for (Map.Entry<String, Stats> entry : sites.entrySet()) {
+            Stats stats = entry.getValue();
+            list.add(new CallSite(entry.getKey(), stats.open.sum(), stats.time.snapshot()));
+        }
+        Collections.sort(list, order);
+        return list.size() > top ? new ArrayList<>(list.subList(0, top)) : list;
+    }
+
+    @Override
+    public void reset() {
+        sites.clear();
+    }
+
+    /**
+     * The statistics of a call site.
+     */
+    private static final class Stats {
+        private final Histogram time = new Histogram();
+        private final LongAdder open = new LongAdder();
+    }
+}
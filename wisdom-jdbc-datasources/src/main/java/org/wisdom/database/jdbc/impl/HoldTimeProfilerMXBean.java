@@ -0,0 +1,131 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.util.List;
+
+/**
+ * The JMX view of the connection hold time profiler of a data source, registered as
+ * {@code org.wisdom.database.jdbc:type=HoldTime,name=<datasource.name>}. Durations are given in milliseconds.
+ */
+public interface HoldTimeProfilerMXBean {
+
+    /**
+     * @return the data source name
+     */
+    String getDataSourceName();
+
+    /**
+     * @return the proportion of profiled connections, between 0 and 1
+     */
+    double getSampleRate();
+
+    /**
+     * @return the number of stack frames identifying a call site
+     */
+    int getDepth();
+
+    /**
+     * @return the maximum number of call sites returned by {@link #getTopByTotal()} and {@link #getTopByP99()}
+     */
+    int getTop();
+
+    /**
+     * @return the call sites holding the connections for the longest time in total, the longest first
+     */
+    List<CallSite> getTopByTotal();
+
+    /**
+     * @return the call sites with the highest 99th percentile of the hold time, the highest first
+     */
+    List<CallSite> getTopByP99();
+
+    /**
+     * Clears the statistics.
+     */
+    void reset();
+
+    /**
+     * The hold time statistics of a call site. Only the profiled connections are counted.
+     */
+    final class CallSite {
+
+        private final String stack;
+        private final long connections;
+        private final long open;
+        private final double total;
+        private final double mean;
+        private final double p50;
+        private final double p99;
+        private final double max;
+
+        CallSite(String stack, long open, Histogram.Snapshot snapshot) {
+            this.stack = stack;
+            this.connections = snapshot.getCount();
+            this.open = open;
+            this.total = snapshot.getMean() * snapshot.getCount() / 1000000.0;
+            this.mean = snapshot.getMean() / 1000000.0;
+            this.p50 = snapshot.getValue(0.50) / 1000000.0;
+            this.p99 = snapshot.getValue(0.99) / 1000000.0;
+            this.max = snapshot.getMax() / 1000000.0;
+        }
+
+        /**
+         * @return the truncated caller stack, the innermost frame first
+         */
+        public String getStack() {
+            return stack;
+        }
+
+        /**
+         * @return the number of profiled connections returned to the pool
+         */
+        public long getConnections() {
+            return connections;
+        }
+
+        /**
+         * @return the number of profiled connections currently held
+         */
+        public long getOpen() {
+            return open;
+        }
+
+        public double getTotal() {
+            return total;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+}
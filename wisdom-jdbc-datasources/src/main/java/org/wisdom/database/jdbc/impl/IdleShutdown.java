@@ -0,0 +1,169 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Closes the pools of a lazy data source (configured with {@code lazy=true}) after a period of inactivity: its pool
+ * and the pools of its replicas. The pools are not closed when connections are in use in any of them, or when threads
+ * are waiting for a connection. Closing a pool is delegated to a callback, which replaces it with a pool that is not
+ * started yet, so the next connection request starts it again.
+ */
+final class IdleShutdown implements Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(IdleShutdown.class);
+
+    /**
+     * The data source property enabling the lazy start of the pool.
+     */
+    static final String LAZY = "lazy";
+
+    /**
+     * The data source property setting the inactivity period (in milliseconds) after which the pool of a lazy data
+     * source is closed, 0 to keep it running.
+     */
+    static final String TIMEOUT = "idleShutdown";
+
+    static final long DEFAULT_TIMEOUT = TimeUnit.MINUTES.toMillis(30);
+
+    private final WrappedDataSource source;
+
+    private final Consumer<HikariDataSource> shutdown;
+
+    private volatile long timeout;
+
+    private volatile long lastAccess = System.nanoTime();
+
+    private ScheduledFuture<?> task;
+
+    /**
+     * Creates the idle shutdown of a data source.
+     *
+     * @param source   the data source
+     * @param timeout  the inactivity period in milliseconds
+     * @param shutdown closes the given pool (the data source pool or a replica pool) and replaces it
+     */
+    IdleShutdown(WrappedDataSource source, long timeout, Consumer<HikariDataSource> shutdown) {
+        this.source = source;
+        this.timeout = timeout;
+        this.shutdown = shutdown;
+    }
+
+    /**
+     * Records an access to the data source.
+     */
+    void touch() {
+        lastAccess = System.nanoTime();
+    }
+
+    /**
+     * @param timeout the new inactivity period in milliseconds
+     */
+    void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * @return the inactivity period in milliseconds
+     */
+    long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * Checks the inactivity of the data source, and closes its started pools if it is inactive for too long.
+     */
+    @Override
+    public void run() {
+        try {
+            List<HikariDataSource> started = new ArrayList<>();
+            for (HikariDataSource pool : getPools()) {
+                PoolMetrics metrics = PoolMetrics.of(pool);
+                if (metrics == null || !metrics.isStarted()) {
+                    continue;
+                }
+                if (metrics.getActiveConnections() > 0 || metrics.getPendingThreads() > 0) {
+                    return;
+                }
+                started.add(pool);
+            }
+            long idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastAccess);
+            if (started.isEmpty() || idle < timeout) {
+                return;
+            }
+            LOGGER.info("Closing the pools of data source '{}', unused for {} ms", source.getName(), idle);
+            for (HikariDataSource pool : started) {
+                shutdown.accept(pool);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("Cannot check the inactivity of data source '{}'", source.getName(), e);
+        }
+    }
+
+    /**
+     * @return the pool of the data source, followed by the pools of its replicas
+     */
+    private List<HikariDataSource> getPools() {
+        List<HikariDataSource> pools = new ArrayList<>();
+        DataSource wrapped = source.getWrapped();
+        if (wrapped instanceof HikariDataSource) {
+            pools.add((HikariDataSource) wrapped);
+        }
+        ReplicaSet replicas = source.getReplicas();
+        if (replicas != null) {
+            for (ReplicaSet.Replica replica : replicas.getReplicas()) {
+                pools.add(replica.getPool());
+            }
+        }
+        return pools;
+    }
+
+    /**
+     * Starts checking the inactivity of the data source.
+     *
+     * @param executor the executor running the checks
+     */
+    synchronized void start(ScheduledExecutorService executor) {
+        // Check often enough to close the pool shortly after the timeout.
+        long period = Math.max(100L, Math.min(timeout / 4, TimeUnit.MINUTES.toMillis(1)));
+        task = executor.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops checking the inactivity of the data source.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+}
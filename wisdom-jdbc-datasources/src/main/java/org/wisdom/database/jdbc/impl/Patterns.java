@@ -22,12 +22,18 @@ package org.wisdom.database.jdbc.impl;
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 /**
  * A class responsible for parsing the given jdbc url and populating the data source with data found in the url. If
  * also automatically extend the url with 'good practices'.
+ * <p>
+ * It also applies the performance {@link Profile}s, setting driver properties tuned for a type of workload.
  */
 public class Patterns {
 
@@ -36,6 +42,107 @@ public class Patterns {
     public static final Pattern H2_URL = Pattern.compile("^jdbc:h2:mem:.+");
     public static final String DEFAULT_MYSQL_PROPERTIES = "?useUnicode=yes&characterEncoding=UTF-8&connectionCollation=utf8_general_ci";
 
+    /**
+     * The performance profiles, selected with {@code db.name.profile}.
+     */
+    public enum Profile {
+        /**
+         * Many short transactions, running the same statements: statement caches, server-side prepared statements.
+         */
+        OLTP,
+        /**
+         * Large insertions and updates: batch rewriting and larger caches.
+         */
+        BULK,
+        /**
+         * Long queries reading many rows: cursors, fetch size and room for large results.
+         */
+        ANALYTICS;
+
+        /**
+         * @param name the profile name, case insensitive
+         * @return the profile, {@literal null} if there is no profile with this name
+         */
+        public static Profile of(String name) {
+            for (Profile profile : values()) {
+                if (profile.name().equalsIgnoreCase(name.trim())) {
+                    return profile;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * The driver properties set by the profiles, per url prefix.
+     */
+    private static final Map<String, Map<Profile, Map<String, String>>> PROFILES = new HashMap<>();
+
+    static {
+        // MySQL Connector/J
+        profile("jdbc:mysql:", Profile.OLTP,
+                "cachePrepStmts", "true",
+                "prepStmtCacheSize", "250",
+                "prepStmtCacheSqlLimit", "2048",
+                "useServerPrepStmts", "true",
+                "useLocalSessionState", "true",
+                "cacheServerConfiguration", "true",
+                "elideSetAutoCommits", "true",
+                "maintainTimeStats", "false");
+        // Batches are rewritten as multi-row statements, which requires client-side prepared statements
+        profile("jdbc:mysql:", Profile.BULK,
+                "rewriteBatchedStatements", "true",
+                "useServerPrepStmts", "false",
+                "cachePrepStmts", "true",
+                "maintainTimeStats", "false");
+        profile("jdbc:mysql:", Profile.ANALYTICS,
+                "useCursorFetch", "true",
+                "defaultFetchSize", "1000",
+                "useServerPrepStmts", "true",
+                "cachePrepStmts", "true");
+
+        // PostgreSQL
+        profile("jdbc:postgresql:", Profile.OLTP,
+                "prepareThreshold", "1",
+                "preparedStatementCacheQueries", "512",
+                "preparedStatementCacheSizeMiB", "10");
+        profile("jdbc:postgresql:", Profile.BULK,
+                "reWriteBatchedInserts", "true",
+                "prepareThreshold", "5");
+        profile("jdbc:postgresql:", Profile.ANALYTICS,
+                "defaultRowFetchSize", "1000",
+                "prepareThreshold", "5");
+
+        // H2, sizes are in KB (cache) and number of rows
+        profile("jdbc:h2:", Profile.OLTP,
+                "QUERY_CACHE_SIZE", "64");
+        profile("jdbc:h2:", Profile.BULK,
+                "CACHE_SIZE", "65536");
+        profile("jdbc:h2:", Profile.ANALYTICS,
+                "CACHE_SIZE", "65536",
+                "MAX_MEMORY_ROWS", "100000");
+
+        // HSQLDB, the cache settings apply to the CACHED tables of file databases
+        profile("jdbc:hsqldb:", Profile.OLTP,
+                "hsqldb.cache_rows", "50000");
+        profile("jdbc:hsqldb:", Profile.BULK,
+                "hsqldb.cache_rows", "100000",
+                "hsqldb.cache_size", "100000",
+                "hsqldb.log_size", "200");
+        profile("jdbc:hsqldb:", Profile.ANALYTICS,
+                "hsqldb.cache_rows", "100000",
+                "hsqldb.cache_size", "100000",
+                "hsqldb.result_max_memory_rows", "100000");
+    }
+
+    private static void profile(String prefix, Profile profile, String... properties) {
+        Map<String, String> map = new HashMap<>();
+        for (int i = 0; i < properties.length; i += 2) {
+            map.put(properties[i], properties[i + 1]);
+        }
+        PROFILES.computeIfAbsent(prefix, key -> new HashMap<>()).put(profile, Collections.unmodifiableMap(map));
+    }
+
     /**
      * Checks if the given url is matching one of the known pattern (MySQL and H2),
      * if so try to extract information from the url and populate the data source.
@@ -89,4 +196,58 @@ public class Patterns {
             datasource.setJdbcUrl(url);
         }
     }
+
+    /**
+     * Gets the driver properties set by a profile for the given url.
+     *
+     * @param url     the jdbc url
+     * @param profile the profile
+     * @return the properties, empty if the profile has no effect on the driver
+     */
+    public static Map<String, String> getProfileProperties(String url, Profile profile) {
+        for (Map.Entry<String, Map<Profile, Map<String, String>>> entry : PROFILES.entrySet()) {
+            if (url != null && url.startsWith(entry.getKey())) {
+                Map<String, String> properties = entry.getValue().get(profile);
+                return properties == null ? Collections.<String, String>emptyMap() : properties;
+            }
+        }
+        return Collections.emptyMap();
+    }
+
+    /**
+     * Applies a profile to the data source, according to its (already populated) jdbc url. A property is not set if
+     * it is already set on the data source, or if it appears in the url, so explicit settings always win.
+     *
+     * @param datasource the data source
+     * @param profile    the profile
+     * @return the properties set by the profile
+     */
+    public static Map<String, String> applyProfile(HikariConfig datasource, Profile profile) {
+        String url = datasource.getJdbcUrl();
+        String lower = url == null ? "" : url.toLowerCase(Locale.ENGLISH);
+        Map<String, String> applied = new HashMap<>();
+        for (Map.Entry<String, String> property : getProfileProperties(url, profile).entrySet()) {
+            String key = property.getKey();
+            if (datasource.getDataSourceProperties().containsKey(key) || inUrl(lower, key)) {
+                continue;
+            }
+            datasource.addDataSourceProperty(key, property.getValue());
+            applied.put(key, property.getValue());
+        }
+        return applied;
+    }
+
+    /**
+     * Checks whether an url sets a property, either as query parameter ({@code ?key=value&...}, MySQL and
+     * PostgreSQL) or as setting ({@code ;key=value}, H2 and HSQLDB).
+     */
+    private static boolean inUrl(String url, String key) {
+        String name = key.toLowerCase(Locale.ENGLISH);
+        for (String separator : new String[]{"?", "&", ";"}) {
+            if (url.contains(separator + name + "=")) {
+                return true;
+            }
+        }
+        return false;
+    }
 }
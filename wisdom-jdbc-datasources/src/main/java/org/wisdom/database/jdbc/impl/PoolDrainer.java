@@ -0,0 +1,116 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Closes retired pools gracefully. A retired pool does not hand out connections anymore (it is not published), but
+ * some connections may still be in use. Closing the pool immediately would abort them, so the drainer waits until
+ * all the connections are returned, or until the drain timeout is reached, before closing the pool.
+ */
+class PoolDrainer {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PoolDrainer.class);
+
+    /**
+     * The default drain timeout in milliseconds.
+     */
+    static final long DEFAULT_DRAIN_TIMEOUT = 30000L;
+
+    /**
+     * The period between two checks of a draining pool.
+     */
+    private static final long CHECK_PERIOD = 250L;
+
+    private final Set<HikariDataSource> draining = new HashSet<>();
+
+    private ScheduledExecutorService executor;
+
+    /**
+     * Drains and closes the given pool.
+     *
+     * @param name    the data source name, used for logging
+     * @param pool    the pool
+     * @param timeout the maximum time (in milliseconds) to wait for the connections in use
+     */
+    synchronized void drain(final String name, final HikariDataSource pool, long timeout) {
+        final PoolMetrics metrics = PoolMetrics.of(pool);
+        if (metrics == null || metrics.getActiveConnections() == 0) {
+            close(name, pool);
+            return;
+        }
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wisdom-jdbc-pool-drainer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        LOGGER.info("Draining the previous pool of data source '{}' ({} connection(s) in use)", name,
+                metrics.getActiveConnections());
+        draining.add(pool);
+        final long deadline = System.currentTimeMillis() + timeout;
+        final ScheduledFuture<?>[] task = new ScheduledFuture<?>[1];
+        task[0] = executor.scheduleWithFixedDelay(() -> {
+            boolean expired = System.currentTimeMillis() >= deadline;
+            if (metrics.getActiveConnections() == 0 || expired) {
+                if (expired) {
+                    LOGGER.warn("The drain timeout of the previous pool of data source '{}' expired, {} " +
+                            "connection(s) are still in use and will be aborted", name, metrics.getActiveConnections());
+                }
+                synchronized (PoolDrainer.this) {
+                    if (draining.remove(pool)) {
+                        close(name, pool);
+                    }
+                    task[0].cancel(false);
+                }
+            }
+        }, CHECK_PERIOD, CHECK_PERIOD, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the drainer. The pools being drained are closed immediately.
+     */
+    synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        for (HikariDataSource pool : draining) {
+            close(pool.getPoolName(), pool);
+        }
+        draining.clear();
+    }
+
+    private void close(String name, HikariDataSource pool) {
+        pool.close();
+        LOGGER.info("Previous pool of data source '{}' closed", name);
+    }
+}
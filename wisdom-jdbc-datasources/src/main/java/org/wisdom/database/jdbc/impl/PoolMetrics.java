@@ -0,0 +1,384 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.metrics.MetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the state and the latencies of a HikariCP pool. An instance is installed as the {@link MetricsTrackerFactory}
+ * of each pool created by {@link HikariCPDataSources}, giving access to the pool statistics (active, idle and pending
+ * connections) and recording the acquisition and usage times. The creation time of the physical connections is
+ * recorded by the data source returned by {@link #track(DataSource)}, used by the pool to create its connections.
+ * Each pool also has a {@link StatementCache}, disabled by default, and a {@link SessionState} tracking, enabled by
+ * default, whose counters are exposed with the metrics.
+ * <p>
+ * While the pool is running, its metrics are published (see {@link #published()}) and registered in JMX under
+ * {@link #getObjectName()}. If two pools have the same name (a pool being drained while its replacement starts), the
+ * newest one is published.
+ */
+class PoolMetrics implements MetricsTrackerFactory, PoolMetricsMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PoolMetrics.class);
+
+    /**
+     * The JMX domain of the pool metrics.
+     */
+    static final String JMX_DOMAIN = "org.wisdom.database.jdbc";
+
+    /**
+     * The published metrics, by key (data source name, followed by "/replica" for replicas).
+     */
+    private static final ConcurrentMap<String, PoolMetrics> PUBLISHED = new ConcurrentHashMap<>();
+
+    private final String name;
+
+    private final String replica;
+
+    private final Histogram acquire = new Histogram();
+
+    private final Histogram usage = new Histogram();
+
+    private final Histogram creation = new Histogram();
+
+    private final LongAdder timeouts = new LongAdder();
+
+    private final StatementCache statementCache = new StatementCache();
+
+    private final SessionState sessionState = new SessionState();
+
+    private volatile PoolStats stats;
+
+    /**
+     * Creates a new instance for the primary pool of a data source.
+     *
+     * @param name the data source name
+     */
+    PoolMetrics(String name) {
+        this(name, null);
+    }
+
+    /**
+     * Creates a new instance.
+     *
+     * @param name    the data source name
+     * @param replica the replica name, {@literal null} for the primary pool
+     */
+    PoolMetrics(String name, String replica) {
+        this.name = name;
+        this.replica = replica;
+    }
+
+    /**
+     * Retrieves the metrics of the given pool.
+     *
+     * @param pool the pool
+     * @return the metrics, {@literal null} if the pool was not created by {@link HikariCPDataSources}
+     */
+    static PoolMetrics of(HikariConfig pool) {
+        MetricsTrackerFactory factory = pool.getMetricsTrackerFactory();
+        if (factory instanceof PoolMetrics) {
+            return (PoolMetrics) factory;
+        }
+        return null;
+    }
+
+    /**
+     * @return the metrics of the running pools, sorted by key
+     */
+    static Collection<PoolMetrics> published() {
+        List<PoolMetrics> list = new ArrayList<>(PUBLISHED.values());
+        Collections.sort(list, (a, b) -> a.getKey().compareTo(b.getKey()));
+        return list;
+    }
+
+    /**
+     * Called by the pool on creation.
+     *
+     * @param poolName  the pool name
+     * @param poolStats the pool statistics
+     * @return the tracker
+     */
+    @Override
+    public MetricsTracker create(String poolName, PoolStats poolStats) {
+        this.stats = poolStats;
+        publish();
+        return new MetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                acquire.record(elapsedAcquiredNanos);
+            }
+
+            @Override
+            public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+                usage.record(elapsedBorrowedMillis, TimeUnit.MILLISECONDS);
+            }
+
+            @Override
+            public void recordConnectionTimeout() {
+                timeouts.increment();
+            }
+
+            @Override
+            public void close() {
+                unpublish();
+            }
+        };
+    }
+
+    /**
+     * Wraps the data source used by the pool to create its physical connections, in order to record their creation
+     * time.
+     *
+     * @param source the data source
+     * @return the wrapped data source
+     */
+    DataSource track(final DataSource source) {
+        return (DataSource) Proxy.newProxyInstance(PoolMetrics.class.getClassLoader(), new Class[]{DataSource.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        long begin = "getConnection".equals(method.getName()) ? System.nanoTime() : 0;
+                        try {
+                            return method.invoke(source, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        } finally {
+                            if (begin != 0) {
+                                creation.record(System.nanoTime() - begin);
+                            }
+                        }
+                    }
+                });
+    }
+
+    private void publish() {
+        PoolMetrics previous = PUBLISHED.put(getKey(), this);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (previous != null && server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register the metrics of data source '{}' in JMX", getKey(), e);
+        }
+    }
+
+    private void unpublish() {
+        if (!PUBLISHED.remove(getKey(), this)) {
+            // Replaced by a newer pool
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (JMException e) {
+            LOGGER.debug("Cannot unregister the metrics of data source '{}' from JMX", getKey(), e);
+        }
+    }
+
+    /**
+     * @return the JMX name of the metrics
+     */
+    ObjectName getObjectName() throws JMException {
+        StringBuilder builder = new StringBuilder(JMX_DOMAIN).append(":type=DataSource,name=").append(quote(name));
+        if (replica != null) {
+            builder.append(",replica=").append(quote(replica));
+        }
+        return new ObjectName(builder.toString());
+    }
+
+    static String quote(String value) {
+        for (char c : value.toCharArray()) {
+            if (",=:*?\"\n\\".indexOf(c) != -1) {
+                return ObjectName.quote(value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @return the key identifying the pool: the data source name, followed by "/replica" for the replicas
+     */
+    String getKey() {
+        return replica == null ? name : name + "/" + replica;
+    }
+
+    /**
+     * @return the number of connections acquired from the pool
+     */
+    long getAcquireCount() {
+        return acquire.getCount();
+    }
+
+    /**
+     * @return the total time spent to acquire connections from the pool, in nanoseconds
+     */
+    long getAcquireNanos() {
+        return acquire.getSum();
+    }
+
+    /**
+     * @return the prepared statement cache of the pool
+     */
+    StatementCache getStatementCache() {
+        return statementCache;
+    }
+
+    /**
+     * @return the session state tracking of the pool connections
+     */
+    SessionState getSessionState() {
+        return sessionState;
+    }
+
+    /**
+     * @return the data source name
+     */
+    String getName() {
+        return name;
+    }
+
+    @Override
+    public String getDataSourceName() {
+        return name;
+    }
+
+    @Override
+    public String getReplicaName() {
+        return replica;
+    }
+
+    /**
+     * @return {@literal true} if the pool has been started, {@literal false} if it has not been used yet
+     */
+    boolean isStarted() {
+        return stats != null;
+    }
+
+    /**
+     * @return the number of connections currently used, 0 if the pool is not started
+     */
+    @Override
+    public int getActiveConnections() {
+        PoolStats current = stats;
+        return current == null ? 0 : current.getActiveConnections();
+    }
+
+    /**
+     * @return the number of idle connections, 0 if the pool is not started
+     */
+    @Override
+    public int getIdleConnections() {
+        PoolStats current = stats;
+        return current == null ? 0 : current.getIdleConnections();
+    }
+
+    /**
+     * @return the number of connections (idle and active), 0 if the pool is not started
+     */
+    @Override
+    public int getTotalConnections() {
+        PoolStats current = stats;
+        return current == null ? 0 : current.getTotalConnections();
+    }
+
+    /**
+     * @return the number of threads waiting for a connection, 0 if the pool is not started
+     */
+    @Override
+    public int getPendingThreads() {
+        PoolStats current = stats;
+        return current == null ? 0 : current.getPendingThreads();
+    }
+
+    @Override
+    public long getConnectionTimeouts() {
+        return timeouts.sum();
+    }
+
+    @Override
+    public Statistics getAcquireTime() {
+        return new Statistics(acquire.snapshot());
+    }
+
+    @Override
+    public Statistics getUsageTime() {
+        return new Statistics(usage.snapshot());
+    }
+
+    @Override
+    public Statistics getCreationTime() {
+        return new Statistics(creation.snapshot());
+    }
+
+    @Override
+    public int getStatementCacheSize() {
+        return statementCache.getSize();
+    }
+
+    @Override
+    public long getStatementCacheHits() {
+        return statementCache.getHits();
+    }
+
+    @Override
+    public long getStatementCacheMisses() {
+        return statementCache.getMisses();
+    }
+
+    @Override
+    public long getStatementCacheEvictions() {
+        return statementCache.getEvictions();
+    }
+
+    @Override
+    public long getSessionStateCalls() {
+        return sessionState.getCalls();
+    }
+
+    @Override
+    public long getSessionStateCallsSkipped() {
+        return sessionState.getSkipped();
+    }
+}
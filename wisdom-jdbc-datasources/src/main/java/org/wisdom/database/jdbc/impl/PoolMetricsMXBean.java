@@ -0,0 +1,160 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+/**
+ * The JMX view of the metrics of a pool. Each pool is registered as
+ * {@code org.wisdom.database.jdbc:type=DataSource,name=<datasource.name>} (with an additional
+ * {@code replica=<replica name>} key for the pools of the read replicas). Durations are given in milliseconds.
+ */
+public interface PoolMetricsMXBean {
+
+    /**
+     * @return the data source name
+     */
+    String getDataSourceName();
+
+    /**
+     * @return the replica name, {@literal null} for the primary pool
+     */
+    String getReplicaName();
+
+    /**
+     * @return the number of connections currently used
+     */
+    int getActiveConnections();
+
+    /**
+     * @return the number of idle connections
+     */
+    int getIdleConnections();
+
+    /**
+     * @return the number of connections (idle and active)
+     */
+    int getTotalConnections();
+
+    /**
+     * @return the number of threads waiting for a connection
+     */
+    int getPendingThreads();
+
+    /**
+     * @return the number of connection requests that timed out
+     */
+    long getConnectionTimeouts();
+
+    /**
+     * @return the statistics of the time spent to acquire a connection from the pool
+     */
+    Statistics getAcquireTime();
+
+    /**
+     * @return the statistics of the time the connections are used (between their acquisition and their release)
+     */
+    Statistics getUsageTime();
+
+    /**
+     * @return the statistics of the time spent to create physical connections
+     */
+    Statistics getCreationTime();
+
+    /**
+     * @return the maximum number of prepared statements cached per connection, 0 if the cache is disabled
+     */
+    int getStatementCacheSize();
+
+    /**
+     * @return the number of prepared statements served from the statement cache
+     */
+    long getStatementCacheHits();
+
+    /**
+     * @return the number of prepared statements not found in the statement cache
+     */
+    long getStatementCacheMisses();
+
+    /**
+     * @return the number of prepared statements closed because the statement cache was full
+     */
+    long getStatementCacheEvictions();
+
+    /**
+     * @return the number of calls changing the session state of the connections (auto-commit, read-only, isolation,
+     * catalog, schema, holdability)
+     */
+    long getSessionStateCalls();
+
+    /**
+     * @return the number of calls changing the session state skipped (saving a round trip to the database with most
+     * drivers), as the connection was already in the requested state
+     */
+    long getSessionStateCallsSkipped();
+
+    /**
+     * The statistics of a duration, in milliseconds.
+     */
+    final class Statistics {
+
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p95;
+        private final double p99;
+        private final double max;
+
+        Statistics(Histogram.Snapshot snapshot) {
+            this.count = snapshot.getCount();
+            this.mean = toMillis(snapshot.getMean());
+            this.p50 = toMillis(snapshot.getValue(0.50));
+            this.p95 = toMillis(snapshot.getValue(0.95));
+            this.p99 = toMillis(snapshot.getValue(0.99));
+            this.max = toMillis(snapshot.getMax());
+        }
+
+        private static double toMillis(double nanos) {
+            return nanos / 1000000.0;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP95() {
+            return p95;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+}
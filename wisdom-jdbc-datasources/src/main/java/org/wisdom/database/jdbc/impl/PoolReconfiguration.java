@@ -0,0 +1,119 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariConfigMXBean;
+
+import java.util.Objects;
+
+/**
+ * Computes the difference between the configuration of a running pool and a new configuration, and applies it.
+ * <p>
+ * The settings exposed by {@link HikariConfigMXBean} (pool sizes, timeouts and leak detection threshold) are
+ * applied in place on the running pool. The settings identifying the database (url, credentials, driver) and
+ * the settings applied by the pool on each physical connection (auto-commit, isolation, catalog...) cannot be changed
+ * on a running pool, so the pool needs to be rebuilt.
+ */
+final class PoolReconfiguration {
+
+    /**
+     * The kind of change between two configurations.
+     */
+    enum Change {
+        /**
+         * Nothing changed.
+         */
+        NONE,
+        /**
+         * Only runtime settings changed, the pool can be updated in place.
+         */
+        RUNTIME,
+        /**
+         * The pool must be rebuilt.
+         */
+        REBUILD
+    }
+
+    private PoolReconfiguration() {
+        // Avoid direct instantiation
+    }
+
+    /**
+     * Computes the change between the configuration of the running pool and the new configuration.
+     *
+     * @param current the running pool configuration
+     * @param target  the new configuration
+     * @return the kind of change
+     */
+    static Change diff(HikariConfig current, HikariConfig target) {
+        if (requiresRebuild(current, target)) {
+            return Change.REBUILD;
+        }
+        if (current.getMinimumIdle() != target.getMinimumIdle()
+                || current.getMaximumPoolSize() != target.getMaximumPoolSize()
+                || current.getConnectionTimeout() != target.getConnectionTimeout()
+                || current.getValidationTimeout() != target.getValidationTimeout()
+                || current.getIdleTimeout() != target.getIdleTimeout()
+                || current.getMaxLifetime() != target.getMaxLifetime()
+                || current.getLeakDetectionThreshold() != target.getLeakDetectionThreshold()) {
+            return Change.RUNTIME;
+        }
+        return Change.NONE;
+    }
+
+    private static boolean requiresRebuild(HikariConfig current, HikariConfig target) {
+        return !Objects.equals(current.getJdbcUrl(), target.getJdbcUrl())
+                || !Objects.equals(current.getUsername(), target.getUsername())
+                || !Objects.equals(current.getPassword(), target.getPassword())
+                || !Objects.equals(current.getDriverClassName(), target.getDriverClassName())
+                || !Objects.equals(current.getDataSourceClassName(), target.getDataSourceClassName())
+                || !Objects.equals(current.getDataSourceProperties(), target.getDataSourceProperties())
+                // Settings applied on each physical connection
+                || current.isAutoCommit() != target.isAutoCommit()
+                || current.isReadOnly() != target.isReadOnly()
+                || !Objects.equals(current.getCatalog(), target.getCatalog())
+                || !Objects.equals(current.getTransactionIsolation(), target.getTransactionIsolation())
+                || !Objects.equals(current.getConnectionInitSql(), target.getConnectionInitSql())
+                || !Objects.equals(current.getConnectionTestQuery(), target.getConnectionTestQuery())
+                || current.isIsolateInternalQueries() != target.isIsolateInternalQueries()
+                || current.isAllowPoolSuspension() != target.isAllowPoolSuspension()
+                || current.isRegisterMbeans() != target.isRegisterMbeans()
+                || !Objects.equals(current.getPoolName(), target.getPoolName());
+    }
+
+    /**
+     * Applies the runtime settings of the new configuration on the running pool. The maximum pool size is applied
+     * first, so the minimum idle is never greater than the maximum pool size. Timeouts are picked up by the pool
+     * house keeping task.
+     *
+     * @param pool   the running pool
+     * @param target the new configuration
+     */
+    static void apply(HikariConfigMXBean pool, HikariConfig target) {
+        pool.setMaximumPoolSize(target.getMaximumPoolSize());
+        pool.setMinimumIdle(target.getMinimumIdle());
+        pool.setConnectionTimeout(target.getConnectionTimeout());
+        pool.setValidationTimeout(target.getValidationTimeout());
+        pool.setIdleTimeout(target.getIdleTimeout());
+        pool.setMaxLifetime(target.getMaxLifetime());
+        pool.setLeakDetectionThreshold(target.getLeakDetectionThreshold());
+    }
+}
@@ -0,0 +1,410 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.configuration.Configuration;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Adapts the size of the pool of a data source to its load (enabled by the {@code adaptiveSizing} section of the
+ * data source configuration).
+ * <p>
+ * Every {@code interval}, the sizer samples the mean time spent to acquire a connection, the number of threads
+ * waiting for a connection, and the utilization of the pool (active connections / pool size, smoothed over the
+ * samples). The pool is under pressure when the mean wait exceeds {@code targetWait} (or threads are waiting) while
+ * the utilization is above {@code growUtilization}. It is over-provisioned when the utilization is below
+ * {@code shrinkUtilization} without wait. To avoid oscillations, the pool is only resized after {@code samples}
+ * consecutive samples in the same state, and the counters restart after each resize. The pool grows by 25% and shrinks
+ * by 12.5% (at least one connection), within {@code minimumSize} and {@code maximumSize}. The maximum is also bounded
+ * by a share ({@code databaseShare}) of the connection limit reported by the database, if any. The limit is read once,
+ * on a connection of its own opened by a dedicated thread, so the sampling never waits for a connection of the pool.
+ * <p>
+ * Resizing changes the maximum size of the HikariCP pool at runtime (and lowers the minimum idle if needed). The
+ * connections above a reduced size are closed by HikariCP once idle for {@code idleTimeout}. Decisions are logged and
+ * kept (the last {@link #MAX_DECISIONS}) in the JMX view.
+ */
+class PoolSizer implements PoolSizerMXBean, Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PoolSizer.class);
+
+    static final String CONFIGURATION = "adaptiveSizing";
+
+    static final int MAX_DECISIONS = 32;
+
+    /**
+     * The weight of the last sample in the smoothed utilization.
+     */
+    private static final double SMOOTHING = 0.5;
+
+    private final WrappedDataSource source;
+
+    private volatile int minimumSize = 2;
+
+    private volatile int maximumSize = 32;
+
+    private volatile long interval = 5000L;
+
+    private volatile long targetWait = TimeUnit.MILLISECONDS.toNanos(5);
+
+    private volatile double growUtilization = 0.8;
+
+    private volatile double shrinkUtilization = 0.3;
+
+    private volatile int samples = 3;
+
+    private volatile double databaseShare = 0.8;
+
+    /**
+     * The configured minimum number of idle connections.
+     */
+    private volatile int minimumIdle;
+
+    /**
+     * The connection limit of the database, -1 until read, 0 if unknown.
+     */
+    private volatile int databaseLimit = -1;
+
+    /**
+     * Whether the connection limit of the database is being read.
+     */
+    private final AtomicBoolean reading = new AtomicBoolean();
+
+    private final LinkedList<Decision> decisions = new LinkedList<>();
+
+    private PoolMetrics metrics;
+
+    private long acquired;
+
+    private long acquireNanos;
+
+    private volatile double wait;
+
+    private volatile double utilization;
+
+    private int pressure;
+
+    private int idle;
+
+    private volatile long growths;
+
+    private volatile long shrinks;
+
+    private ScheduledFuture<?> task;
+
+    /**
+     * Creates a sizer.
+     *
+     * @param source the data source
+     */
+    PoolSizer(WrappedDataSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Applies the settings of the {@code adaptiveSizing} section of a data source configuration.
+     *
+     * @param section     the {@code adaptiveSizing} section
+     * @param minimumIdle the configured minimum number of idle connections
+     */
+    void configure(Configuration section, int minimumIdle) {
+        this.minimumSize = Math.max(1, section.getIntegerWithDefault("minimumSize", 2));
+        this.maximumSize = Math.max(minimumSize, section.getIntegerWithDefault("maximumSize", 32));
+        this.interval = Math.max(100L, section.getLongWithDefault("interval", 5000L));
+        this.targetWait = TimeUnit.MILLISECONDS.toNanos(section.getLongWithDefault("targetWait", 5L));
+        this.growUtilization = section.getDoubleWithDefault("growUtilization", 0.8);
+        this.shrinkUtilization = section.getDoubleWithDefault("shrinkUtilization", 0.3);
+        this.samples = Math.max(1, section.getIntegerWithDefault("samples", 3));
+        this.databaseShare = section.getDoubleWithDefault("databaseShare", 0.8);
+        this.minimumIdle = minimumIdle;
+    }
+
+    /**
+     * Starts sampling the pool and registers the sizer in JMX.
+     *
+     * @param executor the executor running the samples
+     */
+    synchronized void start(ScheduledExecutorService executor) {
+        task = executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.MILLISECONDS);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register the pool sizer of data source '{}' in JMX", source.getName(), e);
+        }
+    }
+
+    /**
+     * Stops the sizer. The pool keeps its current size.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (JMException e) {
+            LOGGER.debug("Cannot unregister the pool sizer of data source '{}' from JMX", source.getName(), e);
+        }
+    }
+
+    /**
+     * Takes a sample and resizes the pool if needed.
+     */
+    @Override
+    public void run() {
+        try {
+            DataSource wrapped = source.getWrapped();
+            if (!(wrapped instanceof HikariDataSource)) {
+                return;
+            }
+            HikariDataSource pool = (HikariDataSource) wrapped;
+            PoolMetrics current = PoolMetrics.of(pool);
+            if (current == null || !current.isStarted()) {
+                // Lazy pools are sized once started.
+                return;
+            }
+            if (databaseLimit == -1) {
+                readDatabaseLimit(pool);
+            }
+            sample(pool, current);
+        } catch (RuntimeException e) {
+            LOGGER.error("Cannot sample the pool of data source '{}'", source.getName(), e);
+        }
+    }
+
+    /**
+     * Reads the connection limit of the database in the background. The connection is not borrowed from the pool,
+     * which may be exhausted, but opened by the data source creating the connections of the pool. Until the limit is
+     * read, the pool is bounded by {@code maximumSize} only.
+     */
+    private void readDatabaseLimit(HikariDataSource pool) {
+        final DataSource connections = pool.getDataSource();
+        if (connections == null) {
+            databaseLimit = 0;
+            return;
+        }
+        if (!reading.compareAndSet(false, true)) {
+            return;
+        }
+        Thread thread = new Thread(() -> {
+            try (Connection connection = connections.getConnection()) {
+                setNetworkTimeout(connection);
+                databaseLimit = Math.max(0, connection.getMetaData().getMaxConnections());
+            } catch (SQLException | RuntimeException e) {
+                LOGGER.debug("Cannot read the connection limit of the database of data source '{}'",
+                        source.getName(), e);
+                databaseLimit = 0;
+            }
+        }, "wisdom-jdbc-pool-sizer-" + source.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Bounds the time spent reading the metadata to the sampling interval, if supported by the driver.
+     */
+    private void setNetworkTimeout(Connection connection) {
+        try {
+            connection.setNetworkTimeout(Runnable::run, (int) Math.min(Integer.MAX_VALUE, interval));
+        } catch (SQLException | AbstractMethodError e) {
+            LOGGER.debug("Cannot set the network timeout of the connection of data source '{}'", source.getName(),
+                    e);
+        }
+    }
+
+    private void sample(HikariDataSource pool, PoolMetrics current) {
+        if (current != metrics) {
+            // New pool (rebuilt), restart the sampling
+            metrics = current;
+            acquired = current.getAcquireCount();
+            acquireNanos = current.getAcquireNanos();
+            pressure = 0;
+            idle = 0;
+            return;
+        }
+        long count = current.getAcquireCount();
+        long nanos = current.getAcquireNanos();
+        wait = count == acquired ? 0.0 : (double) (nanos - acquireNanos) / (count - acquired);
+        acquired = count;
+        acquireNanos = nanos;
+
+        int size = pool.getMaximumPoolSize();
+        double load = (double) current.getActiveConnections() / size;
+        utilization = SMOOTHING * Math.min(1.0, load) + (1 - SMOOTHING) * utilization;
+
+        int target = decide(size, wait, current.getPendingThreads(), utilization);
+        if (target != size) {
+            resize(pool, size, target);
+        }
+    }
+
+    /**
+     * Computes the new size of the pool from a sample.
+     *
+     * @param size        the current size
+     * @param wait        the mean acquisition time in nanoseconds
+     * @param pending     the number of threads waiting for a connection
+     * @param utilization the smoothed utilization
+     * @return the new size, {@code size} to keep the pool unchanged
+     */
+    int decide(int size, double wait, int pending, double utilization) {
+        boolean waiting = wait > targetWait || pending > 0;
+        int upper = getMaximumSize();
+        if (size < minimumSize) {
+            return minimumSize;
+        }
+        if (size > upper) {
+            return upper;
+        }
+        if (waiting && utilization >= growUtilization) {
+            pressure++;
+            idle = 0;
+        } else if (!waiting && utilization < shrinkUtilization) {
+            idle++;
+            pressure = 0;
+        } else {
+            pressure = 0;
+            idle = 0;
+        }
+        if (pressure >= samples) {
+            pressure = 0;
+            return Math.min(upper, size + Math.max(1, size / 4));
+        }
+        if (idle >= samples) {
+            idle = 0;
+            return Math.max(minimumSize, size - Math.max(1, size / 8));
+        }
+        return size;
+    }
+
+    private void resize(HikariDataSource pool, int from, int to) {
+        String reason;
+        if (to > from) {
+            reason = String.format("mean wait %.2f ms, utilization %.0f%%", wait / 1000000.0, utilization * 100);
+        } else {
+            reason = String.format("utilization %.0f%%", utilization * 100);
+        }
+        if (to > from) {
+            pool.setMaximumPoolSize(to);
+            pool.setMinimumIdle(Math.min(minimumIdle, to));
+        } else {
+            pool.setMinimumIdle(Math.min(minimumIdle, to));
+            pool.setMaximumPoolSize(to);
+        }
+        LOGGER.info("Pool of data source '{}' resized from {} to {} connections ({})", source.getName(), from, to,
+                reason);
+        synchronized (decisions) {
+            decisions.addFirst(new Decision(new Date(), from, to, reason));
+            if (decisions.size() > MAX_DECISIONS) {
+                decisions.removeLast();
+            }
+        }
+        // Counted once the decision is visible
+        if (to > from) {
+            growths++;
+        } else {
+            shrinks++;
+        }
+    }
+
+    ObjectName getObjectName() throws JMException {
+        return new ObjectName(PoolMetrics.JMX_DOMAIN + ":type=PoolSizer,name=" + PoolMetrics.quote(source.getName()));
+    }
+
+    @Override
+    public String getDataSourceName() {
+        return source.getName();
+    }
+
+    @Override
+    public int getCurrentSize() {
+        DataSource wrapped = source.getWrapped();
+        return wrapped instanceof HikariDataSource ? ((HikariDataSource) wrapped).getMaximumPoolSize() : 0;
+    }
+
+    @Override
+    public int getMinimumSize() {
+        return minimumSize;
+    }
+
+    @Override
+    public int getMaximumSize() {
+        int limit = databaseLimit;
+        if (limit > 0) {
+            return Math.max(minimumSize, Math.min(maximumSize, (int) (limit * databaseShare)));
+        }
+        return maximumSize;
+    }
+
+    @Override
+    public int getDatabaseLimit() {
+        return Math.max(0, databaseLimit);
+    }
+
+    @Override
+    public double getAcquireWait() {
+        return wait / 1000000.0;
+    }
+
+    @Override
+    public double getUtilization() {
+        return utilization;
+    }
+
+    @Override
+    public long getGrowths() {
+        return growths;
+    }
+
+    @Override
+    public long getShrinks() {
+        return shrinks;
+    }
+
+    @Override
+    public List<Decision> getDecisions() {
+        synchronized (decisions) {
+            return new ArrayList<>(decisions);
+        }
+    }
+}
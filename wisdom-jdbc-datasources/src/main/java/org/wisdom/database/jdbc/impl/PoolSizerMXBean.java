@@ -0,0 +1,114 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.util.Date;
+import java.util.List;
+
+/**
+ * The JMX view of the adaptive sizing of a pool, registered as
+ * {@code org.wisdom.database.jdbc:type=PoolSizer,name=<datasource.name>}. Durations are given in milliseconds.
+ */
+public interface PoolSizerMXBean {
+
+    /**
+     * @return the data source name
+     */
+    String getDataSourceName();
+
+    /**
+     * @return the current maximum size of the pool
+     */
+    int getCurrentSize();
+
+    /**
+     * @return the lower bound of the pool size
+     */
+    int getMinimumSize();
+
+    /**
+     * @return the upper bound of the pool size, including the database limit
+     */
+    int getMaximumSize();
+
+    /**
+     * @return the maximum number of connections accepted by the database, 0 if unknown
+     */
+    int getDatabaseLimit();
+
+    /**
+     * @return the mean time spent to acquire a connection during the last sampling interval
+     */
+    double getAcquireWait();
+
+    /**
+     * @return the smoothed utilization of the pool (active connections / pool size), between 0 and 1
+     */
+    double getUtilization();
+
+    /**
+     * @return the number of times the pool has grown
+     */
+    long getGrowths();
+
+    /**
+     * @return the number of times the pool has shrunk
+     */
+    long getShrinks();
+
+    /**
+     * @return the last sizing decisions, the most recent first
+     */
+    List<Decision> getDecisions();
+
+    /**
+     * A sizing decision.
+     */
+    final class Decision {
+
+        private final Date date;
+        private final int from;
+        private final int to;
+        private final String reason;
+
+        Decision(Date date, int from, int to, String reason) {
+            this.date = date;
+            this.from = from;
+            this.to = to;
+            this.reason = reason;
+        }
+
+        public Date getDate() {
+            return date;
+        }
+
+        public int getFrom() {
+            return from;
+        }
+
+        public int getTo() {
+            return to;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+    }
+}
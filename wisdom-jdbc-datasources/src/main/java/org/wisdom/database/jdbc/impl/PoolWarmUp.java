@@ -0,0 +1,298 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Warms up a set of data sources in parallel. Each data source is validated by opening a connection on its pool and
+ * on the pools of its replicas, and the pools are pre-filled up to their minimum number of idle connections. The number of data sources warmed up concurrently is
+ * bounded, and the whole warm-up is bounded by a deadline: a data source that fails or does not complete before the
+ * deadline is marked as degraded, but does not block the other ones.
+ */
+class PoolWarmUp {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PoolWarmUp.class);
+
+    /**
+     * The default maximum number of data sources warmed up concurrently.
+     */
+    static final int DEFAULT_CONCURRENCY = 4;
+
+    /**
+     * The default warm-up deadline in milliseconds.
+     */
+    static final long DEFAULT_TIMEOUT = 30000L;
+
+    private final int concurrency;
+
+    private final long timeout;
+
+    private final boolean prefill;
+
+    /**
+     * Creates a warm-up.
+     *
+     * @param concurrency the maximum number of data sources warmed up concurrently, the default is used if not
+     *                    strictly positive
+     * @param timeout     the deadline (in milliseconds) of the whole warm-up, the default is used if not strictly
+     *                    positive
+     * @param prefill     whether or not the pools are pre-filled up to their minimum number of idle connections
+     */
+    PoolWarmUp(int concurrency, long timeout, boolean prefill) {
+        this.concurrency = concurrency > 0 ? concurrency : DEFAULT_CONCURRENCY;
+        this.timeout = timeout > 0 ? timeout : DEFAULT_TIMEOUT;
+        this.prefill = prefill;
+    }
+
+    /**
+     * Warms up the given data sources, and waits until all of them are completed or the deadline is reached. The
+     * degraded flag of each data source is updated, and the report is logged.
+     *
+     * @param sources the data sources, must be available
+     * @return the report, one entry per data source
+     */
+    List<Result> warmUp(Collection<WrappedDataSource> sources) {
+        List<Result> results = new ArrayList<>();
+        if (sources.isEmpty()) {
+            return results;
+        }
+        long begin = System.nanoTime();
+        List<Task> tasks = new ArrayList<>();
+        for (WrappedDataSource source : sources) {
+            tasks.add(new Task(source));
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, tasks.size()), runnable -> {
+            Thread thread = new Thread(runnable, "wisdom-jdbc-warmup-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            // Tasks not completed before the deadline are cancelled (and interrupted).
+            List<Future<Result>> futures = executor.invokeAll(tasks, timeout, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < tasks.size(); i++) {
+                results.add(collect(tasks.get(i), futures.get(i)));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            for (Task task : tasks) {
+                results.add(task.failed("warm-up interrupted"));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        for (Result result : results) {
+            result.source.setDegraded(!result.isSuccessful());
+        }
+        report(results, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin));
+        return results;
+    }
+
+    private Result collect(Task task, Future<Result> future) {
+        try {
+            return future.get();
+        } catch (CancellationException e) {  //NOSONAR
+            return task.failed("not completed within " + timeout + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return task.failed("warm-up interrupted");
+        } catch (ExecutionException e) {
+            return task.failed(String.valueOf(e.getCause()));
+        }
+    }
+
+    private void report(List<Result> results, long duration) {
+        int degraded = 0;
+        for (Result result : results) {
+            if (result.isSuccessful()) {
+                LOGGER.info("Data source '{}' warmed up in {} ms ({} connection(s) opened)",
+                        result.source.getName(), result.duration, result.connections);
+            } else {
+                degraded++;
+                LOGGER.error("Data source '{}' is degraded, warm-up failed after {} ms: {}",
+                        result.source.getName(), result.duration, result.error);
+            }
+        }
+        LOGGER.info("Warm-up of {} data source(s) completed in {} ms, {} degraded", results.size(), duration,
+                degraded);
+    }
+
+    /**
+     * Gets the pools opening the connections of a data source, to validate them. The connections are requested from
+     * the pools directly: the connections of the data source are routed by its features, and may not be opened before
+     * their first use (with replicas, the pool serving a connection is only chosen then).
+     *
+     * @param source the data source
+     * @return the pool of the data source, followed by the pools of its replicas
+     */
+    static List<DataSource> getPools(WrappedDataSource source) {
+        List<DataSource> pools = new ArrayList<>();
+        DataSource wrapped = source.getWrapped();
+        if (wrapped != null) {
+            pools.add(wrapped);
+        }
+        ReplicaSet replicas = source.getReplicas();
+        if (replicas != null) {
+            for (ReplicaSet.Replica replica : replicas.getReplicas()) {
+                pools.add(replica.getPool());
+            }
+        }
+        return pools;
+    }
+
+    /**
+     * Computes the number of connections to open on the given pool.
+     *
+     * @param pool the pool
+     * @return the number of connections, at least 1 to validate the pool
+     */
+    private int getConnectionCount(DataSource pool) {
+        if (prefill && pool instanceof HikariDataSource) {
+            return Math.max(1, ((HikariDataSource) pool).getMinimumIdle());
+        }
+        return 1;
+    }
+
+    /**
+     * Warms up a single data source.
+     */
+    private class Task implements Callable<Result> {
+
+        private final WrappedDataSource source;
+
+        /**
+         * When the warm-up of the data source started, 0 if it has not started yet.
+         */
+        private volatile long begin;
+
+        /**
+         * When the warm-up of the data source ended, 0 if it is still running.
+         */
+        private volatile long end;
+
+        Task(WrappedDataSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public Result call() throws SQLException {
+            begin = System.nanoTime();
+            List<Connection> connections = new ArrayList<>();
+            try {
+                // Holding the connections forces the pools to open them, they are idle once closed.
+                for (DataSource pool : getPools(source)) {
+                    int count = getConnectionCount(pool);
+                    for (int i = 0; i < count; i++) {
+                        connections.add(pool.getConnection());
+                    }
+                }
+            } finally {
+                end = System.nanoTime();
+                for (Connection connection : connections) {
+                    connection.close();
+                }
+            }
+            return new Result(source, elapsed(), connections.size(), null);
+        }
+
+        Result failed(String error) {
+            return new Result(source, elapsed(), 0, error);
+        }
+
+        private long elapsed() {
+            long start = begin;
+            long stop = end;
+            if (start == 0) {
+                return 0;
+            }
+            return TimeUnit.NANOSECONDS.toMillis((stop == 0 ? System.nanoTime() : stop) - start);
+        }
+    }
+
+    /**
+     * The warm-up outcome of a data source.
+     */
+    static final class Result {
+
+        private final WrappedDataSource source;
+
+        private final long duration;
+
+        private final int connections;
+
+        private final String error;
+
+        private Result(WrappedDataSource source, long duration, int connections, String error) {
+            this.source = source;
+            this.duration = duration;
+            this.connections = connections;
+            this.error = error;
+        }
+
+        String getName() {
+            return source.getName();
+        }
+
+        /**
+         * @return the time (in milliseconds) spent to warm up the data source
+         */
+        long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return the number of connections opened during the warm-up
+         */
+        int getConnections() {
+            return connections;
+        }
+
+        /**
+         * @return the reason of the failure, {@literal null} if the warm-up succeeded
+         */
+        String getError() {
+            return error;
+        }
+
+        boolean isSuccessful() {
+            return error == null;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+
+/**
+ * The proxies profiling the statements created from a connection. The connection proxy wraps the created statements
+ * (plain, prepared and callable), the statement proxies time the {@code execute*} methods and report them to the
+ * {@link StatementProfiler}. For the sampled executions, the number of rows is recorded (update counts, or rows
+ * read from the returned result set).
+ */
+final class ProfiledConnection implements InvocationHandler {
+
+    private final Connection connection;
+
+    private final StatementProfiler profiler;
+
+    private ProfiledConnection(Connection connection, StatementProfiler profiler) {
+        this.connection = connection;
+        this.profiler = profiler;
+    }
+
+    /**
+     * Wraps a connection.
+     *
+     * @param connection the connection
+     * @param profiler   the profiler
+     * @return the wrapped connection
+     */
+    static Connection wrap(Connection connection, StatementProfiler profiler) {
+        return (Connection) Proxy.newProxyInstance(ProfiledConnection.class.getClassLoader(),
+                new Class[]{Connection.class}, new ProfiledConnection(connection, profiler));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        Object result = call(connection, method, args);
+        if (result instanceof Statement && Statement.class.isAssignableFrom(method.getReturnType())) {
+            String sql = method.getName().startsWith("prepare") ? (String) args[0] : null;
+            return ProfiledStatement.wrap((Statement) result, method.getReturnType(), sql, (Connection) proxy,
+                    profiler);
+        }
+        return result;
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Profiles the executions of a statement.
+     */
+    private static final class ProfiledStatement implements InvocationHandler {
+
+        private final Statement statement;
+
+        private final String sql;
+
+        private final Connection connection;
+
+        private final StatementProfiler profiler;
+
+        /**
+         * The fingerprint of {@link #sql}, computed on first use.
+         */
+        private String fingerprint;
+
+        /**
+         * The first statement added to the batch of a plain statement.
+         */
+        private String batch;
+
+        private ProfiledStatement(Statement statement, String sql, Connection connection,
+                                  StatementProfiler profiler) {
+            this.statement = statement;
+            this.sql = sql;
+            this.connection = connection;
+            this.profiler = profiler;
+        }
+
+        static Statement wrap(Statement statement, Class<?> type, String sql, Connection connection,
+                              StatementProfiler profiler) {
+            return (Statement) Proxy.newProxyInstance(ProfiledConnection.class.getClassLoader(), new Class[]{type},
+                    new ProfiledStatement(statement, sql, connection, profiler));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("getConnection".equals(name)) {
+                return connection;
+            }
+            if (!name.startsWith("execute")) {
+                if ("addBatch".equals(name) && batch == null && args != null && args[0] instanceof String) {
+                    batch = (String) args[0];
+                }
+                return call(statement, method, args);
+            }
+
+            String text = args != null && args.length > 0 && args[0] instanceof String ? (String) args[0] : null;
+            if (text == null && sql == null) {
+                // Batch of a plain statement
+                text = batch;
+                batch = null;
+            }
+            boolean sampled = profiler.sample();
+            long begin = System.nanoTime();
+            Object result;
+            try {
+                result = method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                profiler.failed(fingerprint(text), System.nanoTime() - begin);
+                throw e.getCause();
+            }
+            long elapsed = System.nanoTime() - begin;
+            if (!sampled && !profiler.isSlow(elapsed)) {
+                return result;
+            }
+            StatementProfiler.Stats stats = profiler.executed(fingerprint(text), elapsed, sampled);
+            if (stats == null) {
+                return result;
+            }
+            return count(result, stats, (Statement) proxy);
+        }
+
+        private String fingerprint(String text) {
+            if (text != null || sql == null) {
+                return SqlFingerprint.of(text);
+            }
+            if (fingerprint == null) {
+                fingerprint = SqlFingerprint.of(sql);
+            }
+            return fingerprint;
+        }
+
+        /**
+         * Records the number of rows, wrapping the result set if any.
+         */
+        private static Object count(Object result, StatementProfiler.Stats stats, Statement proxy) {
+            if (result instanceof Integer || result instanceof Long) {
+                stats.rows.add(Math.max(0, ((Number) result).longValue()));
+            } else if (result instanceof int[]) {
+                for (int count : (int[]) result) {
+                    stats.rows.add(Math.max(0, count));
+                }
+            } else if (result instanceof long[]) {
+                for (long count : (long[]) result) {
+                    stats.rows.add(Math.max(0, count));
+                }
+            } else if (result instanceof ResultSet) {
+                return CountingResultSet.wrap((ResultSet) result, stats, proxy);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Counts the rows read from a result set.
+     */
+    private static final class CountingResultSet implements InvocationHandler {
+
+        private final ResultSet results;
+
+        private final StatementProfiler.Stats stats;
+
+        private final Statement statement;
+
+        private CountingResultSet(ResultSet results, StatementProfiler.Stats stats, Statement statement) {
+            this.results = results;
+            this.stats = stats;
+            this.statement = statement;
+        }
+
+        static ResultSet wrap(ResultSet results, StatementProfiler.Stats stats, Statement statement) {
+            return (ResultSet) Proxy.newProxyInstance(ProfiledConnection.class.getClassLoader(),
+                    new Class[]{ResultSet.class}, new CountingResultSet(results, stats, statement));
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if ("getStatement".equals(method.getName())) {
+                return statement;
+            }
+            Object result = call(results, method, args);
+            if ("next".equals(method.getName()) && Boolean.TRUE.equals(result)) {
+                stats.rows.increment();
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The read replicas of a data source. Read connections are balanced on the replicas using the
+ * least-outstanding-connections strategy: the replica with the smallest number of connections in use is picked, ties
+ * being broken in a round-robin fashion. If no replica can serve the connection, the primary is used.
+ * <p>
+ * A replica set is immutable, a reconfiguration builds a new one (reusing the unchanged replicas).
+ */
+final class ReplicaSet {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ReplicaSet.class);
+
+    private final String name;
+
+    private final List<Replica> replicas;
+
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates a replica set.
+     *
+     * @param name     the data source name
+     * @param replicas the replicas, must not be empty
+     */
+    ReplicaSet(String name, List<Replica> replicas) {
+        this.name = name;
+        this.replicas = Collections.unmodifiableList(new ArrayList<>(replicas));
+    }
+
+    List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return the replicas by name
+     */
+    Map<String, Replica> byName() {
+        Map<String, Replica> map = new LinkedHashMap<>();
+        for (Replica replica : replicas) {
+            map.put(replica.getName(), replica);
+        }
+        return map;
+    }
+
+    /**
+     * @param pool a pool
+     * @return whether a replica of this set uses the given pool
+     */
+    boolean contains(HikariDataSource pool) {
+        for (Replica replica : replicas) {
+            if (replica.getPool() == pool) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Builds a replica set where the replica using the given pool uses another pool.
+     *
+     * @param pool        the current pool of the replica
+     * @param replacement the new pool of the replica
+     * @return the new replica set, {@literal null} if no replica uses the given pool
+     */
+    ReplicaSet replace(HikariDataSource pool, HikariDataSource replacement) {
+        List<Replica> list = new ArrayList<>(replicas);
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).getPool() == pool) {
+                list.set(i, new Replica(list.get(i).getName(), replacement));
+                return new ReplicaSet(name, list);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets a read-only connection from the least loaded replica. Replicas failing to provide a connection are skipped.
+     * If none of them can provide a connection, the connection is taken from the primary.
+     *
+     * @param primary the primary data source
+     * @return the read-only connection
+     * @throws SQLException if the connection cannot be obtained from the primary either
+     */
+    Connection getReadConnection(DataSource primary) throws SQLException {
+        int size = replicas.size();
+        int start = (next.getAndIncrement() & Integer.MAX_VALUE) % size;
+        boolean[] failed = new boolean[size];
+        for (int attempt = 0; attempt < size; attempt++) {
+            int selected = select(start, failed);
+            Replica replica = replicas.get(selected);
+            replica.outstanding.incrementAndGet();
+            try {
+                return replica.track(replica.pool.getConnection());
+            } catch (SQLException e) {
+                replica.outstanding.decrementAndGet();
+                failed[selected] = true;
+                LOGGER.warn("Cannot get a connection from the replica '{}' of data source '{}'", replica.getName(),
+                        name, e);
+            }
+        }
+        LOGGER.warn("No replica of data source '{}' is available, using the primary", name);
+        Connection connection = primary.getConnection();
+        connection.setReadOnly(true);
+        return connection;
+    }
+
+    private int select(int start, boolean[] failed) {
+        int selected = -1;
+        int min = Integer.MAX_VALUE;
+        for (int i = 0; i < replicas.size(); i++) {
+            int index = (start + i) % replicas.size();
+            int outstanding = replicas.get(index).getOutstanding();
+            if (!failed[index] && outstanding < min) {
+                selected = index;
+                min = outstanding;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * A replica, i.e. a pool and the number of connections in use.
+     */
+    static final class Replica {
+
+        private final String name;
+
+        private final HikariDataSource pool;
+
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        Replica(String name, HikariDataSource pool) {
+            this.name = name;
+            this.pool = pool;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        HikariDataSource getPool() {
+            return pool;
+        }
+
+        /**
+         * @return the number of connections obtained from this replica and not closed yet
+         */
+        int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * Wraps the connection to decrement the number of outstanding connections when it is closed.
+         */
+        private Connection track(final Connection connection) {
+            return (Connection) Proxy.newProxyInstance(ReplicaSet.class.getClassLoader(),
+                    new Class[]{Connection.class}, new InvocationHandler() {
+                        private boolean closed;
+
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if ("close".equals(method.getName()) && !closed) {
+                                closed = true;
+                                outstanding.decrementAndGet();
+                            }
+                            try {
+                                return method.invoke(connection, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.configuration.Configuration;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A read-through cache of query results, enabled by the {@code resultCache} section of a data source configuration.
+ * <p>
+ * The results of the {@code SELECT} statements executed with {@code executeQuery} are cached, keyed by tenant, SQL and
+ * bound parameters, and bounded in number of entries and in weight (estimated memory). The least recently used results
+ * are evicted first. Results with more than {@code maxRows} rows are not cached.
+ * <p>
+ * The invalidation relies on the writes made through the same data source: each table has a version, incremented
+ * when an {@code INSERT}, {@code UPDATE}, {@code DELETE} (etc.) statement writing it is executed, and when the
+ * transaction of such a statement completes. A cached result records the versions of the tables it reads (see
+ * {@link SqlTables}), and is discarded when one of them has changed. Statements whose written tables are unknown (DDL,
+ * procedures) invalidate all the results. As writes made by other applications are not seen, the results also expire
+ * after {@code ttl} milliseconds.
+ */
+class ResultCache implements ResultCacheMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResultCache.class);
+
+    static final String CONFIGURATION = "resultCache";
+
+    static final int DEFAULT_MAX_ENTRIES = 1000;
+
+    static final long DEFAULT_MAX_WEIGHT = 16L * 1024 * 1024;
+
+    static final int DEFAULT_MAX_ROWS = 1000;
+
+    static final long DEFAULT_TTL = 60000L;
+
+    private final String name;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private long weight;
+
+    /**
+     * The version of each table written through the data source.
+     */
+    private final ConcurrentMap<String, AtomicLong> versions = new ConcurrentHashMap<>();
+
+    /**
+     * The global version, incremented when all the results are invalidated.
+     */
+    private final AtomicLong global = new AtomicLong();
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    private final LongAdder invalidations = new LongAdder();
+
+    private volatile int maxEntries;
+
+    private volatile long maxWeight;
+
+    private volatile int maxRows;
+
+    private volatile long ttl;
+
+    /**
+     * Creates a cache.
+     *
+     * @param name       the data source name
+     * @param maxEntries the maximum number of results
+     * @param maxWeight  the maximum estimated memory, in bytes
+     * @param maxRows    the maximum number of rows of a cached result
+     * @param ttl        the time to live of the results in milliseconds, 0 to keep them until they are invalidated
+     */
+    ResultCache(String name, int maxEntries, long maxWeight, int maxRows, long ttl) {
+        this.name = name;
+        configure(maxEntries, maxWeight, maxRows, ttl);
+    }
+
+    /**
+     * Applies the settings of the {@code resultCache} section of a data source configuration.
+     *
+     * @param configuration the {@code resultCache} section
+     */
+    void configure(Configuration configuration) {
+        configure(configuration.getIntegerWithDefault("maxEntries", DEFAULT_MAX_ENTRIES),
+                configuration.getLongWithDefault("maxWeight", DEFAULT_MAX_WEIGHT),
+                configuration.getIntegerWithDefault("maxRows", DEFAULT_MAX_ROWS),
+                configuration.getLongWithDefault("ttl", DEFAULT_TTL));
+    }
+
+    private void configure(int maxEntries, long maxWeight, int maxRows, long ttl) {
+        this.maxEntries = Math.max(maxEntries, 0);
+        this.maxWeight = Math.max(maxWeight, 0);
+        this.maxRows = Math.max(maxRows, 0);
+        this.ttl = TimeUnit.MILLISECONDS.toNanos(Math.max(ttl, 0));
+        synchronized (this) {
+            evict();
+        }
+    }
+
+    /**
+     * Wraps the given connection, so its queries are served from the cache.
+     *
+     * @param connection the connection
+     * @return the wrapped connection
+     */
+    Connection wrap(Connection connection) {
+        return wrap(connection, null);
+    }
+
+    /**
+     * Wraps the given connection, so its queries are served from the cache. The results are only shared between the
+     * connections of the same scope, such as the connections of a tenant, as the same query may read different
+     * databases or schemas.
+     *
+     * @param connection the connection
+     * @param scope      the scope, {@literal null} for the connections of the data source itself
+     * @return the wrapped connection
+     */
+    Connection wrap(Connection connection, String scope) {
+        return ResultCacheConnection.wrap(connection, this, scope);
+    }
+
+    /**
+     * @return the maximum number of rows of a cached result
+     */
+    int getMaxRows() {
+        return maxRows;
+    }
+
+    /**
+     * Captures the versions of the given tables, before executing a query reading them.
+     *
+     * @param tables the tables
+     * @return the versions, the global version being the last one
+     */
+    long[] versions(String[] tables) {
+        long[] current = new long[tables.length + 1];
+        for (int i = 0; i < tables.length; i++) {
+            current[i] = version(tables[i]).get();
+        }
+        current[tables.length] = global.get();
+        return current;
+    }
+
+    private AtomicLong version(String table) {
+        AtomicLong version = versions.get(table);
+        return version != null ? version : versions.computeIfAbsent(table, t -> new AtomicLong());
+    }
+
+    /**
+     * Looks up a result.
+     *
+     * @param key the key
+     * @return the result, {@literal null} if the result is not cached, has expired or has been invalidated
+     */
+    CachedResult get(Key key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && !isValid(entry)) {
+                remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.result;
+    }
+
+    private boolean isValid(Entry entry) {
+        if (entry.expiration != 0 && System.nanoTime() - entry.expiration > 0) {
+            return false;
+        }
+        return Arrays.equals(entry.versions, versions(entry.tables));
+    }
+
+    /**
+     * Caches a result.
+     *
+     * @param key      the key
+     * @param result   the result, complete
+     * @param tables   the tables read by the query
+     * @param versions the versions of the tables captured before executing the query
+     */
+    void put(Key key, CachedResult result, String[] tables, long[] versions) {
+        long limit = maxWeight;
+        if (result.getWeight() > limit / 4 || maxEntries == 0) {
+            // Too large, it would evict many other results
+            return;
+        }
+        long time = ttl;
+        Entry entry = new Entry(result, tables, versions, time == 0 ? 0 : System.nanoTime() + time);
+        synchronized (this) {
+            if (!isValid(entry)) {
+                // Written while executing the query
+                return;
+            }
+            Entry previous = entries.put(key, entry);
+            if (previous != null) {
+                weight -= previous.result.getWeight();
+            }
+            weight += result.getWeight();
+            evict();
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while ((entries.size() > maxEntries || weight > maxWeight) && iterator.hasNext()) {
+            weight -= iterator.next().result.getWeight();
+            iterator.remove();
+            evictions.increment();
+        }
+    }
+
+    private void remove(Key key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            weight -= entry.result.getWeight();
+        }
+    }
+
+    /**
+     * Invalidates the results reading the given tables.
+     *
+     * @param tables the written tables, {@literal null} if unknown, to invalidate all the results
+     */
+    void invalidate(Collection<String> tables) {
+        if (tables == null) {
+            global.incrementAndGet();
+            invalidations.increment();
+            LOGGER.debug("All the results cached for data source '{}' invalidated", name);
+            return;
+        }
+        for (String table : tables) {
+            version(table).incrementAndGet();
+            invalidations.increment();
+        }
+    }
+
+    /**
+     * Publishes the cache in JMX.
+     */
+    void open() {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register the result cache of data source '{}' in JMX", name, e);
+        }
+    }
+
+    /**
+     * Clears the cache and removes it from JMX.
+     */
+    void close() {
+        clear();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (JMException e) {
+            LOGGER.debug("Cannot unregister the result cache of data source '{}' from JMX", name, e);
+        }
+    }
+
+    ObjectName getObjectName() throws JMException {
+        return new ObjectName(PoolMetrics.JMX_DOMAIN + ":type=ResultCache,name=" + PoolMetrics.quote(name));
+    }
+
+    @Override
+    public String getDataSourceName() {
+        return name;
+    }
+
+    @Override
+    public synchronized int getEntries() {
+        return entries.size();
+    }
+
+    @Override
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+
+    @Override
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    @Override
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long h = hits.sum();
+        long total = h + misses.sum();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    @Override
+    public synchronized void clear() {
+        entries.clear();
+        weight = 0;
+    }
+
+    /**
+     * The key of a result: the SQL and the parameters.
+     */
+    static final class Key {
+
+        private final String scope;
+
+        private final String sql;
+
+        private final Object[] parameters;
+
+        private final int hash;
+
+        Key(String scope, String sql, Object[] parameters) {
+            this.scope = scope;
+            this.sql = sql;
+            this.parameters = parameters;
+            this.hash = 31 * (31 * Objects.hashCode(scope) + sql.hashCode()) + Arrays.deepHashCode(parameters);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && Objects.equals(scope, other.scope) && sql.equals(other.sql)
+                    && Arrays.deepEquals(parameters, other.parameters);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private static final class Entry {
+
+        private final CachedResult result;
+
+        private final String[] tables;
+
+        private final long[] versions;
+
+        private final long expiration;
+
+        private Entry(CachedResult result, String[] tables, long[] versions, long expiration) {
+            this.result = result;
+            this.tables = tables;
+            this.versions = versions;
+            this.expiration = expiration;
+        }
+    }
+}
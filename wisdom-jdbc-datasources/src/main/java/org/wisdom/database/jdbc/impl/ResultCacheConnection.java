@@ -0,0 +1,365 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.CallableStatement;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The proxies serving the queries of a connection from the {@link ResultCache}. The connection proxy wraps the
+ * created statements, and tracks the tables written in the current transaction, to invalidate them again when the
+ * transaction completes. While the current transaction has written, its queries bypass the cache, so uncommitted data
+ * is neither read from nor stored in the cache.
+ * <p>
+ * The statement proxies record the bound parameters, serve {@code executeQuery} from the cache when possible, and
+ * invalidate the tables written by the other executions. Statements with scrollable or updatable result sets, or
+ * whose maximum number of rows has been changed, are not cached.
+ */
+final class ResultCacheConnection implements InvocationHandler {
+
+    private static final Object[] NO_PARAMETERS = new Object[0];
+
+    private final Connection connection;
+
+    private final ResultCache cache;
+
+    /**
+     * The scope of the results cached by the connection, {@literal null} if shared.
+     */
+    private final String scope;
+
+    /**
+     * The auto-commit mode, read on first use.
+     */
+    private Boolean autoCommit;
+
+    /**
+     * The tables written in the current transaction.
+     */
+    private final Set<String> pending = new HashSet<>();
+
+    /**
+     * Whether the current transaction has executed a statement writing unknown tables.
+     */
+    private boolean pendingAll;
+
+    private ResultCacheConnection(Connection connection, ResultCache cache, String scope) {
+        this.connection = connection;
+        this.cache = cache;
+        this.scope = scope;
+    }
+
+    /**
+     * Wraps a connection.
+     *
+     * @param connection the connection
+     * @param cache      the cache
+     * @param scope      the scope of the cached results (see {@link ResultCache#wrap(Connection, String)})
+     * @return the wrapped connection
+     */
+    static Connection wrap(Connection connection, ResultCache cache, String scope) {
+        return (Connection) Proxy.newProxyInstance(ResultCacheConnection.class.getClassLoader(),
+                new Class[]{Connection.class}, new ResultCacheConnection(connection, cache, scope));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        switch (name) {
+            case "setAutoCommit":
+                call(connection, method, args);
+                if ((Boolean) args[0]) {
+                    // Commits the current transaction
+                    complete();
+                }
+                autoCommit = (Boolean) args[0];
+                return null;
+            case "commit":
+            case "rollback":
+            case "close":
+                try {
+                    return call(connection, method, args);
+                } finally {
+                    complete();
+                }
+            default:
+                break;
+        }
+        Object result = call(connection, method, args);
+        if (result instanceof Statement && Statement.class.isAssignableFrom(method.getReturnType())) {
+            boolean prepared = name.startsWith("prepare");
+            // createStatement(type, concurrency...), prepareStatement(sql, type, concurrency...)
+            int options = prepared ? 1 : 0;
+            boolean forwardOnly = args == null || args.length < options + 2
+                    || ((Integer) args[options] == ResultSet.TYPE_FORWARD_ONLY
+                    && (Integer) args[options + 1] == ResultSet.CONCUR_READ_ONLY);
+            return CachingStatement.wrap((Statement) result, method.getReturnType(), prepared ? (String) args[0] : null,
+                    (Connection) proxy, this, forwardOnly && !"prepareCall".equals(name));
+        }
+        return result;
+    }
+
+    private static Object call(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Records a write, invalidating the written tables.
+     *
+     * @param tables the written tables, {@literal null} if unknown
+     * @throws SQLException if the auto-commit mode cannot be read
+     */
+    private void written(Set<String> tables) throws SQLException {
+        cache.invalidate(tables);
+        if (autoCommit == null) {
+            autoCommit = connection.getAutoCommit();
+        }
+        if (!autoCommit) {
+            if (tables == null) {
+                pendingAll = true;
+            } else {
+                pending.addAll(tables);
+            }
+        }
+    }
+
+    /**
+     * @return {@literal true} if the current transaction has written
+     */
+    private boolean hasPendingWrites() {
+        return pendingAll || !pending.isEmpty();
+    }
+
+    /**
+     * Invalidates the tables written by the completed transaction, in case their results have been cached by other
+     * connections between the writes and the completion.
+     */
+    private void complete() {
+        if (pendingAll) {
+            cache.invalidate(null);
+        } else if (!pending.isEmpty()) {
+            cache.invalidate(pending);
+        }
+        pending.clear();
+        pendingAll = false;
+    }
+
+    /**
+     * Serves the queries of a statement from the cache.
+     */
+    private static final class CachingStatement implements InvocationHandler {
+
+        private final Statement statement;
+
+        private final String sql;
+
+        private final Connection proxy;
+
+        private final ResultCacheConnection owner;
+
+        /**
+         * Whether the results of the statement can be cached (forward-only, read-only, not callable).
+         */
+        private final boolean candidate;
+
+        private boolean limited;
+
+        private Object[] parameters = NO_PARAMETERS;
+
+        private boolean parametersCacheable = true;
+
+        /**
+         * The tables read by {@link #sql}, computed on first use, empty if the query is not cacheable.
+         */
+        private String[] tables;
+
+        /**
+         * The tables written by the batch of a plain statement, {@literal null} if unknown.
+         */
+        private Set<String> batch = new HashSet<>();
+
+        private CachingStatement(Statement statement, String sql, Connection proxy, ResultCacheConnection owner,
+                                 boolean candidate) {
+            this.statement = statement;
+            this.sql = sql;
+            this.proxy = proxy;
+            this.owner = owner;
+            this.candidate = candidate;
+        }
+
+        static Statement wrap(Statement statement, Class<?> type, String sql, Connection connection,
+                              ResultCacheConnection owner, boolean candidate) {
+            return (Statement) Proxy.newProxyInstance(ResultCacheConnection.class.getClassLoader(),
+                    new Class[]{type}, new CachingStatement(statement, sql, connection, owner, candidate));
+        }
+
+        @Override
+        public Object invoke(Object self, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (sql != null && args != null && args.length >= 2 && args[0] instanceof Integer
+                    && name.startsWith("set")) {
+                bind(name, args);
+                return call(statement, method, args);
+            }
+            switch (name) {
+                case "getConnection":
+                    return proxy;
+                case "clearParameters":
+                    parameters = NO_PARAMETERS;
+                    parametersCacheable = true;
+                    break;
+                case "setMaxRows":
+                case "setLargeMaxRows":
+                case "setMaxFieldSize":
+                    limited = true;
+                    break;
+                case "addBatch":
+                    if (args != null && batch != null) {
+                        Set<String> written = SqlTables.written(SqlFingerprint.of((String) args[0]));
+                        if (written == null) {
+                            batch = null;
+                        } else {
+                            batch.addAll(written);
+                        }
+                    }
+                    break;
+                case "clearBatch":
+                    batch = new HashSet<>();
+                    break;
+                case "executeQuery":
+                    return query((Statement) self, method, args);
+                case "execute":
+                case "executeUpdate":
+                case "executeLargeUpdate":
+                case "executeBatch":
+                case "executeLargeBatch":
+                    return write(method, args);
+                default:
+                    break;
+            }
+            return call(statement, method, args);
+        }
+
+        private void bind(String name, Object[] args) {
+            int index = (Integer) args[0];
+            Object[] parameter = args.clone();
+            // The setter is part of the key, as setString(1, "1") and setInt(1, 1) may lead to different results
+            parameter[0] = name;
+            for (int i = 1; i < parameter.length; i++) {
+                Object value = parameter[i];
+                if (value instanceof Date) {
+                    parameter[i] = ((Date) value).clone();
+                } else if (value instanceof byte[]) {
+                    parameter[i] = ((byte[]) value).clone();
+                } else if (!(value == null || value instanceof String || value instanceof Number
+                        || value instanceof Boolean || value instanceof Character || value instanceof Enum)) {
+                    // Streams, readers, LOBs...
+                    parametersCacheable = false;
+                }
+            }
+            if (index > parameters.length) {
+                Object[] larger = new Object[Math.max(index, parameters.length * 2)];
+                System.arraycopy(parameters, 0, larger, 0, parameters.length);
+                parameters = larger;
+            }
+            if (index >= 1) {
+                parameters[index - 1] = parameter;
+            }
+        }
+
+        private Object query(Statement self, Method method, Object[] args) throws Throwable {
+            String text = args != null && args.length > 0 ? (String) args[0] : sql;
+            String[] read = null;
+            if (candidate && !limited && parametersCacheable && !owner.hasPendingWrites()) {
+                read = args == null ? tables() : read(text);
+            }
+            if (read == null || read.length == 0) {
+                return call(statement, method, args);
+            }
+            ResultCache cache = owner.cache;
+            ResultCache.Key key = new ResultCache.Key(owner.scope, text, args == null ? parameters.clone() : NO_PARAMETERS);
+            CachedResult cached = cache.get(key);
+            if (cached != null) {
+                return cached.open(self);
+            }
+            long[] versions = cache.versions(read);
+            ResultSet results = (ResultSet) call(statement, method, args);
+            CachedResult result = CachedResult.read(results, cache.getMaxRows());
+            if (result == null) {
+                return results;
+            }
+            if (result.isComplete()) {
+                cache.put(key, result, read, versions);
+            }
+            return result.open(self);
+        }
+
+        private String[] tables() {
+            if (tables == null) {
+                tables = read(sql);
+            }
+            return tables;
+        }
+
+        private static String[] read(String text) {
+            String fingerprint = SqlFingerprint.of(text);
+            if (!SqlTables.isCacheable(fingerprint)) {
+                return new String[0];
+            }
+            Set<String> read = SqlTables.read(fingerprint);
+            return read.toArray(new String[read.size()]);
+        }
+
+        private Object write(Method method, Object[] args) throws Throwable {
+            Set<String> written;
+            if (statement instanceof CallableStatement) {
+                // Procedures may write anything
+                written = null;
+            } else if (sql == null && method.getName().endsWith("Batch")) {
+                written = batch;
+                batch = new HashSet<>();
+            } else {
+                String text = args != null && args.length > 0 ? (String) args[0] : sql;
+                written = SqlTables.written(SqlFingerprint.of(text));
+            }
+            try {
+                return call(statement, method, args);
+            } finally {
+                if (written == null || !written.isEmpty()) {
+                    owner.written(written);
+                }
+            }
+        }
+    }
+}
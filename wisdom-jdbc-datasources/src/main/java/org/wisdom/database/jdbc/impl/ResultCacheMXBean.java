@@ -0,0 +1,82 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+/**
+ * The JMX view of the query result cache of a data source, registered as
+ * {@code org.wisdom.database.jdbc:type=ResultCache,name=<datasource.name>}.
+ */
+public interface ResultCacheMXBean {
+
+    /**
+     * @return the data source name
+     */
+    String getDataSourceName();
+
+    /**
+     * @return the number of cached results (including the invalidated ones not evicted yet)
+     */
+    int getEntries();
+
+    /**
+     * @return the maximum number of cached results
+     */
+    int getMaxEntries();
+
+    /**
+     * @return the estimated memory used by the cached results, in bytes
+     */
+    long getWeight();
+
+    /**
+     * @return the maximum memory used by the cached results, in bytes
+     */
+    long getMaxWeight();
+
+    /**
+     * @return the number of queries served from the cache
+     */
+    long getHits();
+
+    /**
+     * @return the number of cacheable queries executed on the database
+     */
+    long getMisses();
+
+    /**
+     * @return the proportion of cacheable queries served from the cache, between 0 and 1
+     */
+    double getHitRatio();
+
+    /**
+     * @return the number of results evicted to respect the size and weight limits
+     */
+    long getEvictions();
+
+    /**
+     * @return the number of table invalidations (writes)
+     */
+    long getInvalidations();
+
+    /**
+     * Removes all the cached results.
+     */
+    void clear();
+}
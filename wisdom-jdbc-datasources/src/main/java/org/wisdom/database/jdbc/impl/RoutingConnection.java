@@ -0,0 +1,156 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A connection deferring the choice of the physical connection (from the primary or from a replica) until it is
+ * actually used. Until then, {@link Connection#setReadOnly(boolean)}, {@link Connection#setAutoCommit(boolean)} and
+ * {@link Connection#setTransactionIsolation(int)} are recorded. A connection marked as read-only is then obtained from
+ * the replicas, any other from the primary, and the recorded settings are applied on it. Once bound, the physical
+ * connection does not change anymore. If the data source has a circuit breaker, the physical connection is acquired
+ * through it.
+ */
+final class RoutingConnection implements InvocationHandler {
+
+    private final DataSource primary;
+
+    private final ReplicaSet replicas;
+
+    private final CircuitBreaker breaker;
+
+    private Connection target;
+
+    private boolean closed;
+
+    private Boolean readOnly;
+
+    private Boolean autoCommit;
+
+    private Integer isolation;
+
+    private RoutingConnection(DataSource primary, ReplicaSet replicas, CircuitBreaker breaker) {
+        this.primary = primary;
+        this.replicas = replicas;
+        this.breaker = breaker;
+    }
+
+    /**
+     * Creates a routing connection.
+     *
+     * @param primary  the primary data source
+     * @param replicas the replicas
+     * @param breaker  the circuit breaker of the data source, {@literal null} if none
+     * @return the connection
+     */
+    static Connection create(DataSource primary, ReplicaSet replicas, CircuitBreaker breaker) {
+        return (Connection) Proxy.newProxyInstance(RoutingConnection.class.getClassLoader(),
+                new Class[]{Connection.class}, new RoutingConnection(primary, replicas, breaker));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        switch (name) {
+            case "equals":
+                return proxy == args[0];
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "toString":
+                return "RoutingConnection(" + (target == null ? "not bound" : target) + ")";
+            case "isClosed":
+                return closed || (target != null && target.isClosed());
+            case "close":
+                closed = true;
+                if (target != null) {
+                    target.close();
+                }
+                return null;
+            default:
+                break;
+        }
+        if (closed) {
+            throw new SQLException("Connection is closed");
+        }
+        if (target == null && record(name, args)) {
+            return null;
+        }
+        if (target == null && "isReadOnly".equals(name) && readOnly != null) {
+            return readOnly;
+        }
+        try {
+            return method.invoke(bind(), args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Records the settings applied before the connection is bound.
+     *
+     * @return {@literal true} if the invocation was recorded
+     */
+    private boolean record(String name, Object[] args) {
+        switch (name) {
+            case "setReadOnly":
+                readOnly = (Boolean) args[0];
+                return true;
+            case "setAutoCommit":
+                autoCommit = (Boolean) args[0];
+                return true;
+            case "setTransactionIsolation":
+                isolation = (Integer) args[0];
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private Connection bind() throws SQLException {
+        if (target == null) {
+            CircuitBreaker.ConnectionSupplier supplier = Boolean.TRUE.equals(readOnly)
+                    ? () -> replicas.getReadConnection(primary) : primary::getConnection;
+            Connection connection = breaker == null ? supplier.get() : breaker.getConnection(supplier);
+            try {
+                if (readOnly != null) {
+                    connection.setReadOnly(readOnly);
+                }
+                if (autoCommit != null) {
+                    connection.setAutoCommit(autoCommit);
+                }
+                if (isolation != null) {
+                    connection.setTransactionIsolation(isolation);
+                }
+            } catch (SQLException e) {
+                connection.close();
+                throw e;
+            }
+            target = connection;
+        }
+        return target;
+    }
+}
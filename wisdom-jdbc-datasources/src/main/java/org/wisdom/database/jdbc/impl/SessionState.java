@@ -0,0 +1,211 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tracks the session state of the physical connections (auto-commit, read-only, transaction isolation, catalog, schema
+ * and holdability), and skips the setter calls that would not change it. Many drivers send each of these calls to the
+ * database, while the pool and the persistence layer set them on each checkout.
+ * <p>
+ * Like the {@link StatementCache}, the tracking sits below the pool: the physical connections created by the pool are
+ * wrapped (see {@link #wrap(DataSource)}). A value is known once it has been set or read successfully. A call failing
+ * (including the getters) forgets the value, so the next call goes to the driver. When a connection is returned, the
+ * pool restores the default state through the same wrapper, so the tracked state stays accurate across checkouts.
+ * <p>
+ * The state changed with SQL statements ({@code SET SCHEMA}, {@code USE}, {@code SET autocommit}...) is not seen by the
+ * tracking, which must be disabled if the application does so.
+ */
+class SessionState {
+
+    /**
+     * The value of a property not known yet.
+     */
+    private static final Object UNKNOWN = new Object();
+
+    /**
+     * The index of the tracked properties, by setter.
+     */
+    private static final Map<String, Integer> SETTERS = new HashMap<>();
+
+    /**
+     * The index of the tracked properties, by getter.
+     */
+    private static final Map<String, Integer> GETTERS = new HashMap<>();
+
+    static {
+        String[][] properties = {
+                {"setAutoCommit", "getAutoCommit"},
+                {"setReadOnly", "isReadOnly"},
+                {"setTransactionIsolation", "getTransactionIsolation"},
+                {"setCatalog", "getCatalog"},
+                {"setSchema", "getSchema"},
+                {"setHoldability", "getHoldability"}
+        };
+        for (int i = 0; i < properties.length; i++) {
+            SETTERS.put(properties[i][0], i);
+            GETTERS.put(properties[i][1], i);
+        }
+    }
+
+    private volatile boolean enabled = true;
+
+    private final LongAdder calls = new LongAdder();
+
+    private final LongAdder skipped = new LongAdder();
+
+    /**
+     * @return whether the session state of the new connections is tracked
+     */
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enables or disables the tracking. When disabled, the connections already wrapped forget their state and forward
+     * all the calls.
+     *
+     * @param enabled whether the session state is tracked
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return the number of calls to the setters of the session state
+     */
+    long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * @return the number of calls to the setters of the session state skipped as they would not change it
+     */
+    long getSkipped() {
+        return skipped.sum();
+    }
+
+    /**
+     * Wraps the data source creating the physical connections, in order to wrap these connections.
+     *
+     * @param source the data source
+     * @return the wrapped data source
+     */
+    DataSource wrap(final DataSource source) {
+        return (DataSource) Proxy.newProxyInstance(SessionState.class.getClassLoader(), new Class[]{DataSource.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Object result = invokeUnwrapped(source, method, args);
+                        if (result instanceof Connection) {
+                            return wrap((Connection) result);
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    /**
+     * Wraps a physical connection.
+     *
+     * @param connection the connection
+     * @return the connection tracking its session state, the given connection if the tracking is disabled
+     */
+    Connection wrap(Connection connection) {
+        if (!enabled) {
+            return connection;
+        }
+        return (Connection) Proxy.newProxyInstance(SessionState.class.getClassLoader(),
+                new Class[]{Connection.class}, new TrackingConnection(connection));
+    }
+
+    private static Object invokeUnwrapped(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * A physical connection and its session state. As the pool hands a connection to a single thread at a time, the
+     * state is not synchronized.
+     */
+    private final class TrackingConnection implements InvocationHandler {
+
+        private final Connection delegate;
+
+        private final Object[] values = new Object[SETTERS.size()];
+
+        private TrackingConnection(Connection delegate) {
+            this.delegate = delegate;
+            Arrays.fill(values, UNKNOWN);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            Integer setter = SETTERS.get(name);
+            if (setter != null && args != null && args.length == 1) {
+                calls.increment();
+                if (enabled && Objects.equals(values[setter], args[0])) {
+                    skipped.increment();
+                    return null;
+                }
+                return track(setter, method, args, args[0]);
+            }
+            Integer getter = GETTERS.get(name);
+            if (getter != null && (args == null || args.length == 0)) {
+                return track(getter, method, null, UNKNOWN);
+            }
+            return invokeUnwrapped(delegate, method, args);
+        }
+
+        /**
+         * Invokes a setter or a getter, and records the resulting value.
+         *
+         * @param property the property index
+         * @param method   the method
+         * @param args     the arguments
+         * @param value    the value set, {@link #UNKNOWN} for a getter (the result is recorded)
+         * @return the result of the call
+         * @throws Throwable if the call fails, the value is forgotten
+         */
+        private Object track(int property, Method method, Object[] args, Object value) throws Throwable {
+            values[property] = UNKNOWN;
+            Object result = invokeUnwrapped(delegate, method, args);
+            if (enabled) {
+                values[property] = value == UNKNOWN ? result : value;
+            }
+            return result;
+        }
+    }
+}
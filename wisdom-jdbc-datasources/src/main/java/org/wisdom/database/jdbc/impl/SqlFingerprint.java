@@ -0,0 +1,176 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+/**
+ * Normalizes SQL statements into fingerprints, so executions of the same statement with different values are
+ * aggregated together. The normalization:
+ * <ul>
+ * <li>replaces string and numeric literals by {@code ?},</li>
+ * <li>collapses lists of parameters, such as {@code IN (?, ?, ?)}, into {@code (?+)},</li>
+ * <li>removes comments and collapses whitespaces,</li>
+ * <li>lower-cases everything but quoted identifiers.</li>
+ * </ul>
+ * The normalization is a single pass over the statement, without regular expression.
+ */
+final class SqlFingerprint {
+
+    private SqlFingerprint() {
+        // Avoid direct instantiation
+    }
+
+    /**
+     * Computes the fingerprint of the given statement.
+     *
+     * @param sql the statement
+     * @return the fingerprint
+     */
+    static String of(String sql) {
+        if (sql == null) {
+            return "";
+        }
+        StringBuilder out = new StringBuilder(sql.length());
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'') {
+                // String literal, '' is an escaped quote
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    i++;
+                }
+                i++;
+                placeholder(out);
+            } else if (c == '"' || c == '`') {
+                // Quoted identifier, kept as it is
+                int end = sql.indexOf(c, i + 1);
+                end = end == -1 ? length : end + 1;
+                out.append(sql, i, end);
+                i = end;
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                int end = sql.indexOf('\n', i);
+                i = end == -1 ? length : end;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end == -1 ? length : end + 2;
+            } else if (Character.isWhitespace(c)) {
+                space(out);
+                i++;
+            } else if (Character.isDigit(c) && !isIdentifierPart(out)) {
+                // Numeric literal, including decimals, exponents and hexadecimal values
+                i++;
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.'
+                        || ((sql.charAt(i) == '-' || sql.charAt(i) == '+')
+                        && (sql.charAt(i - 1) == 'e' || sql.charAt(i - 1) == 'E')))) {
+                    i++;
+                }
+                if (endsWith(out, '-') && !isIdentifierPart(out, 2)) {
+                    // Negative number
+                    out.setLength(out.length() - 1);
+                }
+                placeholder(out);
+            } else if (c == '?') {
+                placeholder(out);
+                i++;
+            } else if (c == ')') {
+                trimSpace(out);
+                collapseList(out);
+                out.append(')');
+                i++;
+            } else {
+                out.append(Character.toLowerCase(c));
+                i++;
+            }
+        }
+        trimSpace(out);
+        return out.toString();
+    }
+
+    private static void placeholder(StringBuilder out) {
+        out.append('?');
+    }
+
+    private static void space(StringBuilder out) {
+        if (out.length() > 0 && out.charAt(out.length() - 1) != ' ') {
+            out.append(' ');
+        }
+    }
+
+    private static void trimSpace(StringBuilder out) {
+        if (endsWith(out, ' ')) {
+            out.setLength(out.length() - 1);
+        }
+    }
+
+    private static boolean endsWith(StringBuilder out, char c) {
+        return out.length() > 0 && out.charAt(out.length() - 1) == c;
+    }
+
+    private static boolean isIdentifierPart(StringBuilder out) {
+        return isIdentifierPart(out, 1);
+    }
+
+    private static boolean isIdentifierPart(StringBuilder out, int offset) {
+        if (out.length() < offset) {
+            return false;
+        }
+        char c = out.charAt(out.length() - offset);
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.';
+    }
+
+    /**
+     * Replaces a list of two or more placeholders just before a closing parenthesis by {@code ?+}.
+     */
+    private static void collapseList(StringBuilder out) {
+        int i = out.length() - 1;
+        int count = 0;
+        while (i >= 0) {
+            char c = out.charAt(i);
+            if (c == '?') {
+                count++;
+                i--;
+                while (i >= 0 && out.charAt(i) == ' ') {
+                    i--;
+                }
+                if (i >= 0 && out.charAt(i) == ',') {
+                    i--;
+                    while (i >= 0 && out.charAt(i) == ' ') {
+                        i--;
+                    }
+                    continue;
+                }
+                break;
+            }
+            return;
+        }
+        if (count > 1 && i >= 0 && out.charAt(i) == '(') {
+            out.setLength(i + 1);
+            out.append("?+");
+        }
+    }
+}
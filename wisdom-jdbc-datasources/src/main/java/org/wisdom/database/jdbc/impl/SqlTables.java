@@ -0,0 +1,212 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Extracts the tables read and written by a statement, from its fingerprint (see {@link SqlFingerprint}). This is not
+ * a SQL parser: the tables read are the identifiers following {@code FROM} and {@code JOIN} (and the comma-separated
+ * lists following {@code FROM}), the table written is the target of {@code INSERT}, {@code UPDATE}, {@code DELETE},
+ * {@code MERGE}, {@code REPLACE} or {@code TRUNCATE}. Table names are lower-cased, without quotes nor schema, so
+ * distinct tables may share a name, which only leads to extra invalidations.
+ */
+final class SqlTables {
+
+    /**
+     * The keywords ending a table reference (so they are not taken for an alias).
+     */
+    private static final Set<String> KEYWORDS = new HashSet<>(Arrays.asList("where", "join", "inner", "left", "right",
+            "full", "outer", "cross", "natural", "on", "using", "group", "order", "having", "limit", "offset", "union",
+            "intersect", "except", "minus", "fetch", "for", "window", "set", "values", "select", "as", "with", "lateral",
+            "straight_join", "into", "returning"));
+
+    /**
+     * The statements that never write.
+     */
+    private static final Set<String> READS = new HashSet<>(Arrays.asList("select", "values", "show", "explain",
+            "describe", "commit", "rollback", "begin", "start", "savepoint", "release", "set"));
+
+    private SqlTables() {
+        // Avoid direct instantiation
+    }
+
+    /**
+     * Checks whether the result of the given statement can be cached: it must be a {@code SELECT} reading at least
+     * one table, and not locking rows.
+     *
+     * @param fingerprint the statement fingerprint
+     * @return {@literal true} if the result of the statement can be cached
+     */
+    static boolean isCacheable(String fingerprint) {
+        return fingerprint.startsWith("select ") && !fingerprint.contains(" for update")
+                && !fingerprint.contains(" for share") && !fingerprint.contains(" into ")
+                && !read(fingerprint).isEmpty();
+    }
+
+    /**
+     * @param fingerprint the statement fingerprint
+     * @return the tables read by the statement
+     */
+    static Set<String> read(String fingerprint) {
+        List<String> tokens = tokenize(fingerprint);
+        Set<String> tables = new LinkedHashSet<>();
+        for (int i = 0; i < tokens.size(); i++) {
+            String token = tokens.get(i);
+            if ("join".equals(token)) {
+                i = table(tokens, i + 1, tables);
+            } else if ("from".equals(token)) {
+                i = table(tokens, i + 1, tables);
+                // Comma-separated list of tables, with optional aliases
+                while (i + 1 < tokens.size() && ",".equals(tokens.get(i + 1))) {
+                    i = table(tokens, i + 2, tables);
+                }
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * @param fingerprint the statement fingerprint
+     * @return the tables written by the statement, empty if the statement does not write, {@literal null} if the
+     * written tables are unknown (DDL, procedure calls...)
+     */
+    static Set<String> written(String fingerprint) {
+        List<String> tokens = tokenize(fingerprint);
+        if (tokens.isEmpty()) {
+            return Collections.emptySet();
+        }
+        String first = tokens.get(0);
+        if (READS.contains(first)) {
+            return Collections.emptySet();
+        }
+        int index;
+        switch (first) {
+            case "insert":
+            case "merge":
+            case "replace":
+            case "upsert":
+                index = tokens.indexOf("into");
+                break;
+            case "delete":
+                index = tokens.indexOf("from");
+                break;
+            case "update":
+                index = 0;
+                break;
+            case "truncate":
+                index = tokens.size() > 1 && "table".equals(tokens.get(1)) ? 1 : 0;
+                break;
+            default:
+                return null;
+        }
+        if (index == -1 || index + 1 >= tokens.size() || !isIdentifier(tokens.get(index + 1))) {
+            return null;
+        }
+        return Collections.singleton(normalize(tokens.get(index + 1)));
+    }
+
+    /**
+     * Reads a table reference and skips its alias.
+     *
+     * @return the index of the last token of the reference
+     */
+    private static int table(List<String> tokens, int index, Set<String> tables) {
+        if (index >= tokens.size() || !isIdentifier(tokens.get(index))) {
+            // Sub-query or function, its own tables are read later
+            return index - 1;
+        }
+        tables.add(normalize(tokens.get(index)));
+        int i = index + 1;
+        if (i < tokens.size() && "as".equals(tokens.get(i))) {
+            i++;
+        }
+        if (i < tokens.size() && isIdentifier(tokens.get(i)) && !KEYWORDS.contains(tokens.get(i))) {
+            return i;
+        }
+        return i - 1;
+    }
+
+    private static boolean isIdentifier(String token) {
+        char c = token.charAt(0);
+        return Character.isLetter(c) || c == '_' || c == '"' || c == '`' || c == '[';
+    }
+
+    /**
+     * Removes the quotes and the schema, and lower-cases the name.
+     */
+    private static String normalize(String identifier) {
+        int dot = identifier.lastIndexOf('.');
+        String name = dot == -1 ? identifier : identifier.substring(dot + 1);
+        StringBuilder builder = new StringBuilder(name.length());
+        for (char c : name.toCharArray()) {
+            if (c != '"' && c != '`' && c != '[' && c != ']') {
+                builder.append(c);
+            }
+        }
+        return builder.toString().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Splits a fingerprint in tokens: identifiers (possibly qualified and quoted), and single punctuation characters.
+     */
+    private static List<String> tokenize(String fingerprint) {
+        List<String> tokens = new ArrayList<>();
+        int length = fingerprint.length();
+        int i = 0;
+        while (i < length) {
+            char c = fingerprint.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+                continue;
+            }
+            int start = i;
+            if (isIdentifierPart(c)) {
+                while (i < length) {
+                    c = fingerprint.charAt(i);
+                    if (c == '"' || c == '`' || c == '[') {
+                        char end = c == '[' ? ']' : c;
+                        int close = fingerprint.indexOf(end, i + 1);
+                        i = close == -1 ? length : close + 1;
+                    } else if (isIdentifierPart(c)) {
+                        i++;
+                    } else {
+                        break;
+                    }
+                }
+            } else {
+                i++;
+            }
+            tokens.add(fingerprint.substring(start, i));
+        }
+        return tokens;
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.' || c == '"' || c == '`' || c == '[';
+    }
+}
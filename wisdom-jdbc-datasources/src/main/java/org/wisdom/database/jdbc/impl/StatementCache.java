@@ -0,0 +1,402 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A client-side prepared statement cache, for drivers that do not provide one (such as the embedded databases).
+ * <p>
+ * The cache sits below the pool: the physical connections created by the pool are wrapped (see
+ * {@link #wrap(DataSource)}), and each of them keeps its idle prepared statements in a LRU map, keyed by the SQL and
+ * the options given to {@code prepareStatement} / {@code prepareCall}. Preparing a statement takes the idle statement
+ * out of the map (hit) or prepares a new one (miss). Closing a statement only closes it logically: its result sets
+ * are closed, its parameters and batch cleared, and it goes back to the map. As the pool closes the statements left
+ * open when a connection is returned, the statements are always back in the cache when the connection goes back to the
+ * pool, and are physically closed with the connection. When the cache is full, the least recently used statement is
+ * physically closed.
+ * <p>
+ * Statements whose settings have been changed (max rows, fetch size, timeout...) or that have thrown an exception
+ * are not put back in the cache, they are physically closed.
+ * <p>
+ * The size is read when the statements are returned, so a new size applies to the existing connections. However,
+ * connections created while the cache is disabled (size 0) are not wrapped.
+ */
+class StatementCache {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatementCache.class);
+
+    /**
+     * The methods changing the settings of a statement. Once called, the statement is not reused.
+     */
+    private static final Set<String> SETTERS = new HashSet<>(Arrays.asList("setMaxRows", "setLargeMaxRows",
+            "setMaxFieldSize", "setQueryTimeout", "setFetchSize", "setFetchDirection", "setEscapeProcessing",
+            "setCursorName", "setPoolable", "closeOnCompletion"));
+
+    private volatile int size;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @return the maximum number of idle statements cached per connection, 0 if the cache is disabled
+     */
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Sets the maximum number of idle statements cached per connection.
+     *
+     * @param size the size, 0 (or a negative value) disables the cache
+     */
+    void setSize(int size) {
+        this.size = Math.max(size, 0);
+    }
+
+    /**
+     * @return the number of statements served from the cache
+     */
+    long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of statements that had to be prepared
+     */
+    long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of statements closed because the cache was full
+     */
+    long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * Wraps the data source creating the physical connections, in order to wrap these connections.
+     *
+     * @param source the data source
+     * @return the wrapped data source
+     */
+    DataSource wrap(final DataSource source) {
+        return (DataSource) Proxy.newProxyInstance(StatementCache.class.getClassLoader(), new Class[]{DataSource.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Object result = invokeUnwrapped(source, method, args);
+                        if (result instanceof Connection) {
+                            return wrap((Connection) result);
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    /**
+     * Wraps a physical connection.
+     *
+     * @param connection the connection
+     * @return the connection caching its prepared statements, the given connection if the cache is disabled
+     */
+    Connection wrap(Connection connection) {
+        if (size == 0) {
+            return connection;
+        }
+        return (Connection) Proxy.newProxyInstance(StatementCache.class.getClassLoader(),
+                new Class[]{Connection.class}, new CachingConnection(connection));
+    }
+
+    private static Object invokeUnwrapped(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * The key of a cached statement: the preparation method, the SQL and the other arguments (result set type,
+     * generated keys...).
+     */
+    private static final class Key {
+
+        private final String method;
+
+        private final Object[] args;
+
+        private final int hash;
+
+        private Key(String method, Object[] args) {
+            this.method = method;
+            this.args = args;
+            this.hash = 31 * method.hashCode() + Arrays.deepHashCode(args);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return hash == other.hash && method.equals(other.method) && Arrays.deepEquals(args, other.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A physical connection and its idle statements.
+     */
+    private final class CachingConnection implements InvocationHandler {
+
+        private final Connection delegate;
+
+        private final LinkedHashMap<Key, CachedStatement> idle = new LinkedHashMap<>(16, 0.75f, true);
+
+        private boolean closed;
+
+        private CachingConnection(Connection delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (("prepareStatement".equals(name) || "prepareCall".equals(name)) && size > 0) {
+                return prepare((Connection) proxy, method, args);
+            }
+            if ("close".equals(name) || "abort".equals(name)) {
+                clear();
+            }
+            return invokeUnwrapped(delegate, method, args);
+        }
+
+        private Object prepare(Connection proxy, Method method, Object[] args) throws Throwable {
+            Key key = new Key(method.getName(), args.clone());
+            CachedStatement statement;
+            synchronized (this) {
+                statement = idle.remove(key);
+            }
+            if (statement != null) {
+                hits.increment();
+            } else {
+                misses.increment();
+                statement = new CachedStatement(this, key, (Statement) invokeUnwrapped(delegate, method, args));
+            }
+            return statement.open(proxy, method.getReturnType());
+        }
+
+        /**
+         * Puts a statement back in the cache, evicting the least recently used one if the cache is full.
+         *
+         * @param statement the statement
+         * @return {@literal true} if the statement has been cached, {@literal false} if it must be closed
+         */
+        private boolean release(CachedStatement statement) {
+            int max = size;
+            List<CachedStatement> evicted = new ArrayList<>();
+            synchronized (this) {
+                if (closed || max == 0 || idle.containsKey(statement.key)) {
+                    return false;
+                }
+                idle.put(statement.key, statement);
+                Iterator<CachedStatement> iterator = idle.values().iterator();
+                while (idle.size() > max && iterator.hasNext()) {
+                    evicted.add(iterator.next());
+                    iterator.remove();
+                }
+            }
+            for (CachedStatement eldest : evicted) {
+                evictions.increment();
+                eldest.closePhysically();
+            }
+            return true;
+        }
+
+        private void clear() {
+            List<CachedStatement> statements;
+            synchronized (this) {
+                closed = true;
+                statements = new ArrayList<>(idle.values());
+                idle.clear();
+            }
+            for (CachedStatement statement : statements) {
+                statement.closePhysically();
+            }
+        }
+    }
+
+    /**
+     * A physical statement. Each time it is taken from the cache, a new handle is created, so references kept on a
+     * previous handle cannot use the statement once it has been closed.
+     */
+    private static final class CachedStatement {
+
+        private final CachingConnection owner;
+
+        private final Key key;
+
+        private final Statement delegate;
+
+        private boolean reusable = true;
+
+        private CachedStatement(CachingConnection owner, Key key, Statement delegate) {
+            this.owner = owner;
+            this.key = key;
+            this.delegate = delegate;
+        }
+
+        private Object open(Connection connection, Class<?> type) {
+            return Proxy.newProxyInstance(StatementCache.class.getClassLoader(), new Class[]{type},
+                    new Handle(connection));
+        }
+
+        private void closePhysically() {
+            try {
+                delegate.close();
+            } catch (SQLException e) {
+                LOGGER.debug("Cannot close a cached statement", e);
+            }
+        }
+
+        /**
+         * Resets the statement, so it can be reused.
+         *
+         * @param results the result sets opened by the handle
+         * @return {@literal true} if the statement has been reset
+         */
+        private boolean reset(List<ResultSet> results) {
+            try {
+                for (ResultSet result : results) {
+                    result.close();
+                }
+                if (delegate instanceof PreparedStatement) {
+                    ((PreparedStatement) delegate).clearParameters();
+                }
+                delegate.clearBatch();
+                delegate.clearWarnings();
+                return true;
+            } catch (SQLException e) {
+                LOGGER.debug("Cannot reset a cached statement", e);
+                return false;
+            }
+        }
+
+        private final class Handle implements InvocationHandler {
+
+            private final Connection connection;
+
+            private final List<ResultSet> results = new ArrayList<>(1);
+
+            private boolean closed;
+
+            private Handle(Connection connection) {
+                this.connection = connection;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                switch (name) {
+                    case "close":
+                        close();
+                        return null;
+                    case "isClosed":
+                        return closed;
+                    case "getConnection":
+                        checkNotClosed();
+                        return connection;
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "toString":
+                        return "Cached " + delegate;
+                    default:
+                        break;
+                }
+                checkNotClosed();
+                if (SETTERS.contains(name)) {
+                    reusable = false;
+                }
+                if (name.startsWith("execute")) {
+                    // Executing a statement closes the result sets of the previous execution.
+                    results.clear();
+                }
+                try {
+                    Object result = invokeUnwrapped(delegate, method, args);
+                    if (result instanceof ResultSet) {
+                        results.add((ResultSet) result);
+                    }
+                    return result;
+                } catch (SQLException e) {
+                    reusable = false;
+                    throw e;
+                }
+            }
+
+            private void checkNotClosed() throws SQLException {
+                if (closed) {
+                    throw new SQLException("Statement closed");
+                }
+            }
+
+            private void close() {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (!reusable || !reset(results) || !owner.release(CachedStatement.this)) {
+                    closePhysically();
+                }
+            }
+        }
+    }
+}
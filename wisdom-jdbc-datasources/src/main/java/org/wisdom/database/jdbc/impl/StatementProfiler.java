@@ -0,0 +1,281 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.configuration.Configuration;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Profiles the statements executed on the connections of a data source (enabled by the {@code logStatements}
+ * property). Statements are aggregated by fingerprint (see {@link SqlFingerprint}), recording the execution time
+ * histogram, the number of rows and the number of errors.
+ * <p>
+ * To keep the overhead low, only a proportion of the executions ({@code statementSampleRate}) is recorded. The
+ * other ones are only timed, so the executions slower than {@code slowStatementThreshold} are always logged. Errors
+ * are always counted.
+ */
+class StatementProfiler implements StatementProfilerMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatementProfiler.class);
+
+    /**
+     * The default sample rate: all executions are recorded.
+     */
+    static final double DEFAULT_SAMPLE_RATE = 1.0;
+
+    /**
+     * The default slow statement threshold in milliseconds.
+     */
+    static final long DEFAULT_SLOW_THRESHOLD = 1000L;
+
+    /**
+     * The maximum number of fingerprints tracked per data source (each of them holds a histogram of about 15 KB). Once
+     * reached, new statements are aggregated under {@link #OTHER}.
+     */
+    static final int MAX_FINGERPRINTS = 250;
+
+    static final String OTHER = "<other>";
+
+    /**
+     * The profilers of the running data sources, by data source name.
+     */
+    private static final ConcurrentMap<String, StatementProfiler> PUBLISHED = new ConcurrentHashMap<>();
+
+    private final String name;
+
+    private final ConcurrentMap<String, Stats> statements = new ConcurrentHashMap<>();
+
+    private volatile double sampleRate;
+
+    private volatile long slowThreshold;
+
+    /**
+     * Creates a profiler.
+     *
+     * @param name          the data source name
+     * @param sampleRate    the proportion of recorded executions, between 0 and 1
+     * @param slowThreshold the slow statement threshold in milliseconds
+     */
+    StatementProfiler(String name, double sampleRate, long slowThreshold) {
+        this.name = name;
+        configure(sampleRate, slowThreshold);
+    }
+
+    /**
+     * Applies the profiling settings from the data source configuration.
+     *
+     * @param configuration the data source configuration
+     */
+    void configure(Configuration configuration) {
+        configure(configuration.getDoubleWithDefault("statementSampleRate", DEFAULT_SAMPLE_RATE),
+                configuration.getLongWithDefault("slowStatementThreshold", DEFAULT_SLOW_THRESHOLD));
+    }
+
+    private void configure(double sampleRate, long slowThreshold) {
+        this.sampleRate = Math.max(0.0, Math.min(1.0, sampleRate));
+        this.slowThreshold = TimeUnit.MILLISECONDS.toNanos(slowThreshold);
+    }
+
+    /**
+     * @return the profilers of the running data sources, sorted by name
+     */
+    static Collection<StatementProfiler> published() {
+        List<StatementProfiler> list = new ArrayList<>(PUBLISHED.values());
+        Collections.sort(list, (a, b) -> a.name.compareTo(b.name));
+        return list;
+    }
+
+    /**
+     * Wraps the given connection to profile the statements created from it.
+     *
+     * @param connection the connection
+     * @return the wrapped connection
+     */
+    Connection wrap(Connection connection) {
+        return ProfiledConnection.wrap(connection, this);
+    }
+
+    /**
+     * Decides whether the current execution is recorded.
+     *
+     * @return {@literal true} if the execution must be recorded
+     */
+    boolean sample() {
+        double rate = sampleRate;
+        return rate >= 1.0 || (rate > 0.0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    /**
+     * @param nanos an execution time in nanoseconds
+     * @return {@literal true} if an execution with the given duration is slow
+     */
+    boolean isSlow(long nanos) {
+        return nanos >= slowThreshold;
+    }
+
+    /**
+     * Records a successful execution.
+     *
+     * @param fingerprint the statement fingerprint
+     * @param nanos       the execution time in nanoseconds
+     * @param sampled     whether the execution is sampled
+     * @return the statistics of the statement, to record the rows, {@literal null} if the execution is not sampled
+     */
+    Stats executed(String fingerprint, long nanos, boolean sampled) {
+        Stats stats = stats(fingerprint);
+        if (isSlow(nanos)) {
+            stats.slow.increment();
+            LOGGER.warn("Slow statement on data source '{}' ({} ms): {}", name,
+                    TimeUnit.NANOSECONDS.toMillis(nanos), fingerprint);
+        }
+        if (!sampled) {
+            return null;
+        }
+        stats.time.record(nanos);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Statement executed on data source '{}' in {} µs: {}", name,
+                    TimeUnit.NANOSECONDS.toMicros(nanos), fingerprint);
+        }
+        return stats;
+    }
+
+    /**
+     * Records a failed execution.
+     *
+     * @param fingerprint the statement fingerprint
+     * @param nanos       the execution time in nanoseconds
+     */
+    void failed(String fingerprint, long nanos) {
+        Stats stats = stats(fingerprint);
+        stats.errors.increment();
+        if (isSlow(nanos)) {
+            stats.slow.increment();
+        }
+        LOGGER.debug("Statement failed on data source '{}' after {} ms: {}", name,
+                TimeUnit.NANOSECONDS.toMillis(nanos), fingerprint);
+    }
+
+    private Stats stats(String fingerprint) {
+        Stats stats = statements.get(fingerprint);
+        if (stats != null) {
+            return stats;
+        }
+        String key = statements.size() < MAX_FINGERPRINTS ? fingerprint : OTHER;
+        return statements.computeIfAbsent(key, k -> new Stats());
+    }
+
+    /**
+     * Publishes the profiler and registers it in JMX.
+     */
+    void open() {
+        StatementProfiler previous = PUBLISHED.put(name, this);
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (previous != null && server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register the statement profiler of data source '{}' in JMX", name, e);
+        }
+    }
+
+    /**
+     * Stops publishing the profiler.
+     */
+    void close() {
+        if (!PUBLISHED.remove(name, this)) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (JMException e) {
+            LOGGER.debug("Cannot unregister the statement profiler of data source '{}' from JMX", name, e);
+        }
+    }
+
+    ObjectName getObjectName() throws JMException {
+        return new ObjectName(PoolMetrics.JMX_DOMAIN + ":type=Statements,name=" + PoolMetrics.quote(name));
+    }
+
+    @Override
+    public String getDataSourceName() {
+        return name;
+    }
+
+    @Override
+    public double getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public long getSlowThreshold() {
+        return TimeUnit.NANOSECONDS.toMillis(slowThreshold);
+    }
+
+    @Override
+    public List<Fingerprint> getStatements() {
+        List<Fingerprint> list = new ArrayList<>();
+        for (Map.Entry<String, Stats> entry : statements.entrySet()) {
+            Stats stats = entry.getValue();
+            list.add(new Fingerprint(entry.getKey(), stats.rows.sum(), stats.errors.sum(), stats.slow.sum(),
+                    stats.time.snapshot()));
+        }
+        Collections.sort(list, (a, b) -> Double.compare(b.getTotal(), a.getTotal()));
+        return list;
+    }
+
+    @Override
+    public void reset() {
+        statements.clear();
+    }
+
+    /**
+     * The statistics of a fingerprint.
+     */
+    static final class Stats {
+
+        final Histogram time = new Histogram();
+
+        final LongAdder rows = new LongAdder();
+
+        final LongAdder errors = new LongAdder();
+
+        final LongAdder slow = new LongAdder();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.util.List;
+
+/**
+ * The JMX view of the statement profiler of a data source, registered as
+ * {@code org.wisdom.database.jdbc:type=Statements,name=<datasource.name>}. Durations are given in milliseconds.
+ */
+public interface StatementProfilerMXBean {
+
+    /**
+     * @return the data source name
+     */
+    String getDataSourceName();
+
+    /**
+     * @return the proportion of executions recorded in the per-statement statistics, between 0 and 1
+     */
+    double getSampleRate();
+
+    /**
+     * @return the duration (in milliseconds) above which a statement is logged as slow
+     */
+    long getSlowThreshold();
+
+    /**
+     * @return the statistics of the profiled statements, the slowest (in total) first
+     */
+    List<Fingerprint> getStatements();
+
+    /**
+     * Clears the statistics.
+     */
+    void reset();
+
+    /**
+     * The statistics of a statement fingerprint. The number of executions, the number of rows and the durations
+     * only consider the sampled executions, while the numbers of errors and slow executions consider all executions.
+     */
+    final class Fingerprint {
+
+        private final String sql;
+        private final long executions;
+        private final long rows;
+        private final long errors;
+        private final long slow;
+        private final double total;
+        private final double mean;
+        private final double p50;
+        private final double p99;
+        private final double max;
+
+        Fingerprint(String sql, long rows, long errors, long slow, Histogram.Snapshot snapshot) {
+            this.sql = sql;
+            this.executions = snapshot.getCount();
+            this.rows = rows;
+            this.errors = errors;
+            this.slow = slow;
+            this.total = snapshot.getMean() * snapshot.getCount() / 1000000.0;
+            this.mean = snapshot.getMean() / 1000000.0;
+            this.p50 = snapshot.getValue(0.50) / 1000000.0;
+            this.p99 = snapshot.getValue(0.99) / 1000000.0;
+            this.max = snapshot.getMax() / 1000000.0;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        public long getExecutions() {
+            return executions;
+        }
+
+        public long getRows() {
+            return rows;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getSlow() {
+            return slow;
+        }
+
+        public double getTotal() {
+            return total;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public double getP50() {
+            return p50;
+        }
+
+        public double getP99() {
+            return p99;
+        }
+
+        public double getMax() {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,668 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.configuration.Configuration;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Routes the connections of a data source to the current {@link org.wisdom.database.jdbc.utils.Tenant} (enabled by
+ * the {@code tenants} section of the data source configuration).
+ * <p>
+ * In the {@code database} mode, each tenant gets its own small pool, created on first use from the {@code url} template
+ * of the section, in which {@code {tenant}} is replaced by the tenant identifier. The pools share a budget of
+ * {@code maximumConnections}: a pool reserves {@code maximumPoolSize} connections, and when the budget is exhausted,
+ * the least recently used pool without connection in use is closed to make room. Pools unused for {@code ttl} are
+ * closed as well.
+ * <p>
+ * In the {@code schema} and {@code catalog} modes, the tenants share the pool of the data source: the schema (or
+ * catalog) given by the {@code schema} template is set when the connection is obtained, and the previous one is
+ * restored when the connection is closed. With drivers predating JDBC 4.1, the schema is set with a
+ * {@code SET SCHEMA} statement and restored to {@code defaultSchema} ({@code PUBLIC} by default).
+ */
+final class TenantRouter implements TenantRouterMXBean, Runnable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(TenantRouter.class);
+
+    static final String CONFIGURATION = "tenants";
+
+    /**
+     * The placeholder replaced by the tenant identifier in the templates.
+     */
+    static final String PLACEHOLDER = "{tenant}";
+
+    /**
+     * The routing modes.
+     */
+    enum Mode {
+        DATABASE, SCHEMA, CATALOG
+    }
+
+    /**
+     * Creates and closes the tenant pools.
+     */
+    interface Pools {
+        /**
+         * Creates a pool.
+         *
+         * @param tenant the tenant
+         * @param config the pool configuration
+         * @return the pool, {@literal null} if it cannot be created (driver not available)
+         * @throws SQLException if the pool cannot be created
+         */
+        HikariDataSource create(String tenant, HikariConfig config) throws SQLException;
+
+        /**
+         * Closes a pool, once its connections are returned.
+         *
+         * @param tenant the tenant
+         * @param pool   the pool
+         */
+        void retire(String tenant, HikariDataSource pool);
+    }
+
+    private final String name;
+
+    private volatile HikariConfig primary;
+
+    private final Pools pools;
+
+    private final Mode mode;
+
+    private final String url;
+
+    private final String user;
+
+    private final String password;
+
+    private final String schema;
+
+    private final String defaultSchema;
+
+    private final int poolSize;
+
+    private final int minimumIdle;
+
+    private final int maximumConnections;
+
+    private final long ttl;
+
+    /**
+     * The {@code tenants} section the router has been created with.
+     */
+    private final Properties settings;
+
+    /**
+     * The tenant pools, completed once created. Getting the pool of a tenant does not lock, only the callers
+     * requesting a pool being created wait for it.
+     */
+    private final ConcurrentMap<String, CompletableFuture<TenantPool>> tenants = new ConcurrentHashMap<>();
+
+    /**
+     * The connections reserved by the tenant pools, including the pools being created.
+     */
+    private final AtomicInteger reserved = new AtomicInteger();
+
+    private final LongAdder created = new LongAdder();
+
+    private final LongAdder evicted = new LongAdder();
+
+    private ScheduledFuture<?> task;
+
+    private volatile boolean stopped;
+
+    /**
+     * Creates a router.
+     *
+     * @param name    the data source name
+     * @param primary the configuration of the data source pool, inherited by the tenant pools
+     * @param section the {@code tenants} section
+     * @param pools   creates and closes the tenant pools
+     */
+    TenantRouter(String name, HikariConfig primary, Configuration section, Pools pools) {
+        this.name = name;
+        this.primary = primary;
+        this.pools = pools;
+        this.url = section.get("url");
+        String configured = section.getWithDefault("mode", url == null ? "schema" : "database");
+        this.mode = Mode.valueOf(configured.trim().toUpperCase(Locale.ENGLISH));
+        if (mode == Mode.DATABASE && (url == null || !url.contains(PLACEHOLDER))) {
+            throw new IllegalArgumentException("The tenant url of data source '" + name + "' must contain "
+                    + PLACEHOLDER);
+        }
+        this.user = section.getWithDefault("user", primary.getUsername());
+        this.password = section.getWithDefault("password", primary.getPassword());
+        this.schema = section.getWithDefault("schema", PLACEHOLDER);
+        this.defaultSchema = section.getWithDefault("defaultSchema", "PUBLIC");
+        this.poolSize = Math.max(1, section.getIntegerWithDefault("maximumPoolSize", 2));
+        this.minimumIdle = Math.min(poolSize, Math.max(0, section.getIntegerWithDefault("minimumIdle", 0)));
+        this.maximumConnections = Math.max(poolSize, section.getIntegerWithDefault("maximumConnections", 100));
+        this.ttl = Math.max(1000L, section.getLongWithDefault("ttl", 10 * 60 * 1000L));
+        this.settings = section.asProperties();
+    }
+
+    /**
+     * Checks whether the router can be kept on a reconfiguration: its {@code tenants} section is unchanged, and the
+     * pool configuration it inherits only changed its runtime settings (see {@link #update(HikariConfig)}).
+     * Otherwise, the router is replaced and its tenant pools are closed.
+     *
+     * @param primary the configuration of the data source pool
+     * @param section the {@code tenants} section
+     * @return {@literal true} if the router can be kept
+     */
+    boolean matches(HikariConfig primary, Configuration section) {
+        return settings.equals(section.asProperties())
+                && PoolReconfiguration.diff(this.primary, primary) != PoolReconfiguration.Change.REBUILD;
+    }
+
+    /**
+     * Applies a new configuration of the data source pool, checked by {@link #matches(HikariConfig, Configuration)}.
+     * The next tenant pools inherit it, and its runtime settings (timeouts, lifetime) are applied in place to the
+     * current ones.
+     *
+     * @param primary the configuration of the data source pool
+     */
+    void update(HikariConfig primary) {
+        this.primary = primary;
+        for (CompletableFuture<TenantPool> future : tenants.values()) {
+            TenantPool pool = created(future);
+            if (pool != null) {
+                PoolReconfiguration.apply(pool.pool, toConfig(pool.tenant));
+            }
+        }
+    }
+
+    /**
+     * Gets a connection for a tenant.
+     *
+     * @param source the data source pool, used in the schema and catalog modes
+     * @param tenant the tenant
+     * @return the connection
+     * @throws SQLException if the connection cannot be obtained
+     */
+    Connection getConnection(DataSource source, String tenant) throws SQLException {
+        if (mode != Mode.DATABASE) {
+            return switchTo(source.getConnection(), tenant);
+        }
+        TenantPool pool = acquire(tenant);
+        try {
+            return pool.track(pool.pool.getConnection());
+        } catch (SQLException | RuntimeException e) {
+            pool.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the schema (or catalog) of a tenant on a connection of the shared pool.
+     */
+    private Connection switchTo(final Connection connection, String tenant) throws SQLException {
+        final String target = schema.replace(PLACEHOLDER, tenant);
+        final String previous;
+        try {
+            if (mode == Mode.SCHEMA) {
+                previous = getSchema(connection);
+                setSchema(connection, target);
+            } else {
+                previous = connection.getCatalog();
+                connection.setCatalog(target);
+            }
+        } catch (SQLException | RuntimeException e) {
+            connection.close();
+            throw e;
+        }
+        return (Connection) Proxy.newProxyInstance(TenantRouter.class.getClassLoader(),
+                new Class[]{Connection.class}, new InvocationHandler() {
+                    private boolean closed;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if ("close".equals(method.getName()) && !closed) {
+                            closed = true;
+                            restore(connection, previous);
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    }
+                });
+    }
+
+    private void restore(Connection connection, String previous) {
+        try {
+            if (mode == Mode.SCHEMA) {
+                setSchema(connection, previous);
+            } else {
+                connection.setCatalog(previous);
+            }
+        } catch (SQLException e) {
+            LOGGER.warn("Cannot restore the schema of a connection of data source '{}'", name, e);
+        }
+    }
+
+    /**
+     * Gets the current schema, using the {@code defaultSchema} setting with drivers predating JDBC 4.1.
+     */
+    private String getSchema(Connection connection) throws SQLException {
+        try {
+            return connection.getSchema();
+        } catch (AbstractMethodError | SQLFeatureNotSupportedException e) {
+            return defaultSchema;
+        }
+    }
+
+    /**
+     * Sets the current schema, using a {@code SET SCHEMA} statement with drivers predating JDBC 4.1.
+     */
+    private static void setSchema(Connection connection, String target) throws SQLException {
+        try {
+            connection.setSchema(target);
+        } catch (AbstractMethodError | SQLFeatureNotSupportedException e) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SET SCHEMA " + target);
+            }
+        }
+    }
+
+    /**
+     * Gets the pool of a tenant, creating it if needed, and counts a connection in use.
+     */
+    private TenantPool acquire(String tenant) throws SQLException {
+        while (true) {
+            CompletableFuture<TenantPool> future = tenants.get(tenant);
+            if (future == null) {
+                CompletableFuture<TenantPool> creation = new CompletableFuture<>();
+                future = tenants.putIfAbsent(tenant, creation);
+                if (future == null) {
+                    future = creation;
+                    create(tenant, creation);
+                }
+            }
+            TenantPool pool = await(tenant, future);
+            if (pool.acquire()) {
+                return pool;
+            }
+            // Evicted meanwhile
+            tenants.remove(tenant, future);
+        }
+    }
+
+    /**
+     * Creates the pool of a tenant, outside of any lock, and completes the given future with it.
+     */
+    private void create(String tenant, CompletableFuture<TenantPool> future) throws SQLException {
+        boolean reservation = false;
+        try {
+            reserve(tenant);
+            reservation = true;
+            HikariDataSource created = pools.create(tenant, toConfig(tenant));
+            if (created == null) {
+                throw new SQLException("Cannot create the pool of tenant '" + tenant + "' of data source '" + name
+                        + "', the driver is not available");
+            }
+            TenantPool pool = new TenantPool(tenant, created);
+            future.complete(pool);
+            this.created.increment();
+            LOGGER.info("Pool of tenant '{}' of data source '{}' created", tenant, name);
+            if (stopped && pool.retire(true)) {
+                // Stopped while the pool was created
+                tenants.remove(tenant, future);
+                pools.retire(tenant, created);
+            }
+        } catch (SQLException | RuntimeException e) {
+            if (reservation) {
+                reserved.addAndGet(-poolSize);
+            }
+            tenants.remove(tenant, future);
+            future.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits for the pool of a tenant created by another caller.
+     */
+    private TenantPool await(String tenant, CompletableFuture<TenantPool> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the pool of tenant '" + tenant + "' of data source '"
+                    + name + "'", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof SQLTransientConnectionException) {
+                throw new SQLTransientConnectionException(cause.getMessage(), cause);
+            }
+            throw new SQLException(cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Reserves the connections of a new pool, closing the least recently used idle pools to make room if needed.
+     */
+    private void reserve(String tenant) throws SQLException {
+        while (true) {
+            int current = reserved.get();
+            if (current + poolSize <= maximumConnections) {
+                if (reserved.compareAndSet(current, current + poolSize)) {
+                    return;
+                }
+            } else if (!evictLeastRecentlyUsed(tenant)) {
+                throw new SQLTransientConnectionException("Cannot create the pool of tenant '" + tenant
+                        + "' of data source '" + name + "', the " + maximumConnections
+                        + " connections are used by other tenants");
+            }
+        }
+    }
+
+    /**
+     * Closes the least recently used pool without connection in use.
+     *
+     * @return {@literal false} if all the pools have connections in use
+     */
+    private boolean evictLeastRecentlyUsed(String tenant) {
+        CompletableFuture<TenantPool> lru = null;
+        TenantPool pool = null;
+        for (CompletableFuture<TenantPool> future : tenants.values()) {
+            TenantPool candidate = created(future);
+            if (candidate != null && candidate.isIdle() && (pool == null || candidate.lastUsed < pool.lastUsed)) {
+                lru = future;
+                pool = candidate;
+            }
+        }
+        if (pool == null) {
+            return false;
+        }
+        if (evict(lru, pool)) {
+            LOGGER.info("Closed the pool of tenant '{}' of data source '{}' to make room for tenant '{}'",
+                    pool.tenant, name, tenant);
+        }
+        // Either closed, or used again meanwhile, so look for another one
+        return true;
+    }
+
+    /**
+     * @return the pool, {@literal null} if still being created or if its creation failed
+     */
+    private static TenantPool created(CompletableFuture<TenantPool> future) {
+        return future.isDone() && !future.isCompletedExceptionally() ? future.join() : null;
+    }
+
+    private HikariConfig toConfig(String tenant) {
+        HikariConfig config = new HikariConfig();
+        primary.copyState(config);
+        // The data source creating the connections of the primary is set when its pool is created.
+        config.setDataSource(null);
+        config.setJdbcUrl(url.replace(PLACEHOLDER, tenant));
+        config.setUsername(user == null ? null : user.replace(PLACEHOLDER, tenant));
+        config.setPassword(password);
+        config.setMaximumPoolSize(poolSize);
+        config.setMinimumIdle(minimumIdle);
+        config.setPoolName(name + "-tenant-" + tenant);
+        config.validate();
+        return config;
+    }
+
+    /**
+     * Closes a pool, unless a connection has been acquired from it meanwhile.
+     *
+     * @return {@literal true} if the pool has been closed
+     */
+    private boolean evict(CompletableFuture<TenantPool> future, TenantPool pool) {
+        if (!pool.retire(false)) {
+            return false;
+        }
+        tenants.remove(pool.tenant, future);
+        reserved.addAndGet(-poolSize);
+        evicted.increment();
+        pools.retire(pool.tenant, pool.pool);
+        return true;
+    }
+
+    /**
+     * Closes the pools unused for longer than the ttl.
+     */
+    @Override
+    public void run() {
+        long now = System.nanoTime();
+        for (CompletableFuture<TenantPool> future : tenants.values()) {
+            TenantPool pool = created(future);
+            long unused = pool == null ? 0 : now - pool.lastUsed;
+            if (pool != null && pool.isIdle() && unused > TimeUnit.MILLISECONDS.toNanos(ttl) && evict(future, pool)) {
+                LOGGER.info("Closed the pool of tenant '{}' of data source '{}', unused for {} ms", pool.tenant,
+                        name, TimeUnit.NANOSECONDS.toMillis(unused));
+            }
+        }
+    }
+
+    /**
+     * Starts the eviction of the unused pools and registers the router in JMX.
+     *
+     * @param executor the executor running the eviction
+     */
+    synchronized void start(ScheduledExecutorService executor) {
+        if (mode == Mode.DATABASE) {
+            long period = Math.max(100L, ttl / 4);
+            task = executor.scheduleWithFixedDelay(this, period, period, TimeUnit.MILLISECONDS);
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register the tenants of data source '{}' in JMX", name, e);
+        }
+    }
+
+    /**
+     * Stops the router and closes all the tenant pools.
+     */
+    synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+        stopped = true;
+        for (CompletableFuture<TenantPool> future : tenants.values()) {
+            TenantPool pool = created(future);
+            if (pool != null && pool.retire(true)) {
+                tenants.remove(pool.tenant, future);
+                pools.retire(pool.tenant, pool.pool);
+            }
+        }
+        reserved.set(0);
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (JMException e) {
+            LOGGER.debug("Cannot unregister the tenants of data source '{}' from JMX", name, e);
+        }
+    }
+
+    ObjectName getObjectName() throws JMException {
+        return new ObjectName(PoolMetrics.JMX_DOMAIN + ":type=Tenants,name=" + PoolMetrics.quote(name));
+    }
+
+    @Override
+    public String getDataSourceName() {
+        return name;
+    }
+
+    @Override
+    public String getMode() {
+        return mode.name();
+    }
+
+    @Override
+    public List<String> getTenants() {
+        List<String> list = new ArrayList<>();
+        for (CompletableFuture<TenantPool> future : tenants.values()) {
+            TenantPool pool = created(future);
+            if (pool != null) {
+                list.add(pool.tenant);
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public int getReservedConnections() {
+        return reserved.get();
+    }
+
+    @Override
+    public int getMaximumConnections() {
+        return maximumConnections;
+    }
+
+    @Override
+    public long getCreatedPools() {
+        return created.sum();
+    }
+
+    @Override
+    public long getEvictedPools() {
+        return evicted.sum();
+    }
+
+    /**
+     * The pool of a tenant, with the number of its connections in use.
+     */
+    private static final class TenantPool {
+
+        private static final int RETIRED = Integer.MIN_VALUE;
+
+        private final String tenant;
+
+        private final HikariDataSource pool;
+
+        /**
+         * The number of connections in use, offset by {@link #RETIRED} once the pool is closed.
+         */
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        private volatile long lastUsed;
+
+        private TenantPool(String tenant, HikariDataSource pool) {
+            this.tenant = tenant;
+            this.pool = pool;
+            this.lastUsed = System.nanoTime();
+        }
+
+        /**
+         * Counts a connection in use.
+         *
+         * @return {@literal false} if the pool is closed
+         */
+        private boolean acquire() {
+            int current;
+            do {
+                current = outstanding.get();
+                if (current < 0) {
+                    return false;
+                }
+            } while (!outstanding.compareAndSet(current, current + 1));
+            lastUsed = System.nanoTime();
+            return true;
+        }
+
+        private boolean isIdle() {
+            return outstanding.get() == 0;
+        }
+
+        /**
+         * Marks the pool as closed, so no more connections are acquired from it.
+         *
+         * @param force whether the pool is closed even if connections are in use
+         * @return {@literal true} if the pool has been marked by this call
+         */
+        private boolean retire(boolean force) {
+            int current;
+            do {
+                current = outstanding.get();
+                if (current < 0 || (current > 0 && !force)) {
+                    return false;
+                }
+            } while (!outstanding.compareAndSet(current, RETIRED + current));
+            return true;
+        }
+
+        private void release() {
+            lastUsed = System.nanoTime();
+            outstanding.decrementAndGet();
+        }
+
+        private Connection track(final Connection connection) {
+            return (Connection) Proxy.newProxyInstance(TenantRouter.class.getClassLoader(),
+                    new Class[]{Connection.class}, new InvocationHandler() {
+                        private boolean closed;
+
+                        @Override
+                        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                            if ("close".equals(method.getName()) && !closed) {
+                                closed = true;
+                                release();
+                            }
+                            try {
+                                return method.invoke(connection, args);
+                            } catch (InvocationTargetException e) {
+                                throw e.getCause();
+                            }
+                        }
+                    });
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import java.util.List;
+
+/**
+ * The JMX view of the tenants of a data source, registered as
+ * {@code org.wisdom.database.jdbc:type=Tenants,name=<datasource.name>}. The metrics of each tenant pool are
+ * registered as the metrics of a replica named {@code tenant-<tenant>}.
+ */
+public interface TenantRouterMXBean {
+
+    /**
+     * @return the data source name
+     */
+    String getDataSourceName();
+
+    /**
+     * @return the routing mode: DATABASE, SCHEMA or CATALOG
+     */
+    String getMode();
+
+    /**
+     * @return the tenants having a pool, empty in the SCHEMA and CATALOG modes
+     */
+    List<String> getTenants();
+
+    /**
+     * @return the number of connections reserved by the tenant pools (sum of their maximum sizes)
+     */
+    int getReservedConnections();
+
+    /**
+     * @return the maximum number of connections of all the tenant pools
+     */
+    int getMaximumConnections();
+
+    /**
+     * @return the number of tenant pools created
+     */
+    long getCreatedPools();
+
+    /**
+     * @return the number of tenant pools closed after being idle, or to make room for another tenant
+     */
+    long getEvictedPools();
+}
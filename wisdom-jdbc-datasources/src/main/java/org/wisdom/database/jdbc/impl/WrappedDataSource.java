@@ -23,13 +23,14 @@ import org.osgi.framework.BundleContext;
 import org.osgi.framework.ServiceRegistration;
 import org.wisdom.api.configuration.Configuration;
 import org.wisdom.database.jdbc.service.DataSources;
+import org.wisdom.database.jdbc.utils.ReadOnly;
+import org.wisdom.database.jdbc.utils.Tenant;
 
 import javax.sql.DataSource;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
-import java.util.Dictionary;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Properties;
@@ -38,13 +39,42 @@ import java.util.logging.Logger;
 /**
  * An implementation of data source delegating call an a wrapped data source. This implementation act as a 'weak
  * reference' as the wrapped data source may not be available.
+ * <p>
+ * This is the object published as service and returned by {@link DataSources}. So, the wrapped pool can be replaced
+ * (when the data source is reconfigured) without impacting the consumers. When the data source has read replicas,
+ * it also routes the read-only connections to them.
  */
 public class WrappedDataSource implements DataSource {
 
-    private Configuration configuration;
+    private volatile Configuration configuration;
     private final String name;
-    private DataSource wrapped;
+    private volatile DataSource wrapped;
     private ServiceRegistration<DataSource> registration;
+    private Hashtable<String, Object> properties;
+    private volatile boolean degraded;
+    private volatile boolean circuitOpen;
+    private volatile ReplicaSet replicas;
+    private volatile StatementProfiler profiler;
+
+    private volatile ResultCache resultCache;
+
+    private volatile PoolSizer sizer;
+
+    private volatile AsyncExecutor async;
+
+    private volatile CircuitBreaker breaker;
+
+    private volatile TenantRouter tenants;
+
+    private volatile IdleShutdown idleShutdown;
+
+    private volatile HoldTimeProfiler holdTime;
+
+    private volatile FailoverSet failover;
+
+    private volatile XAPool xa;
+
+    private volatile WriterLane writer;
 
     public WrappedDataSource(String name, Configuration conf) {
         this.name = name;
@@ -63,10 +93,24 @@ public class WrappedDataSource implements DataSource {
         this.wrapped = null;
     }
 
-    public synchronized boolean isAvailable() {
+    public boolean isAvailable() {
         return wrapped != null;
     }
 
+    /**
+     * Gets the wrapped data source.
+     *
+     * @return the wrapped data source
+     * @throws SQLException if the wrapped data source is not available
+     */
+    private DataSource delegate() throws SQLException {
+        DataSource delegate = wrapped;
+        if (delegate == null) {
+            throw new SQLException("The data source '" + name + "' is not available");
+        }
+        return delegate;
+    }
+
     /**
      * <p>Attempts to establish a connection with the data source that
      * this <code>DataSource</code> object represents.
@@ -76,23 +120,103 @@ public class WrappedDataSource implements DataSource {
      */
     @Override
     public Connection getConnection() throws SQLException {
-        return wrapped.getConnection();
+        touch();
+        WriterLane lane = writer;
+        if (lane != null && xa == null && !ReadOnly.isActive()) {
+            // Outside of the circuit breaker, waiting for the writer connection lent to another caller is not a
+            // failure of the database
+            return intercept(lane.getConnection());
+        }
+        return intercept(route(breaker));
     }
 
     /**
-     * <p>Attempts to establish a connection with the data source that
-     * this <code>DataSource</code> object represents.
+     * Wraps a connection with the statement profiler, the result cache and the hold time profiler, if enabled. The
+     * result cache wraps the statement profiler, so only the queries actually executed on the database are profiled.
+     * The hold time profiler is the outermost wrapper, so it times the whole use of the connection.
+     */
+    private Connection intercept(Connection connection) {
+        StatementProfiler currentProfiler = profiler;
+        if (currentProfiler != null) {
+            connection = currentProfiler.wrap(connection);
+        }
+        ResultCache currentCache = resultCache;
+        if (currentCache != null) {
+            // The same query returns different results for each tenant
+            connection = currentCache.wrap(connection, tenants != null ? Tenant.current() : null);
+        }
+        HoldTimeProfiler currentHoldTime = holdTime;
+        return currentHoldTime == null ? connection : currentHoldTime.wrap(connection);
+    }
+
+    private void touch() {
+        IdleShutdown current = idleShutdown;
+        if (current != null) {
+            current.touch();
+        }
+    }
+
+    /**
+     * Chooses the pool of the connection. Each connection actually acquired from a pool goes through the circuit
+     * breaker, if any. The routing connection of the replicated data sources acquires its physical connection when
+     * first used, so the breaker only rejects its creation while open, and sees the acquisition when it is bound.
+     */
+    private Connection route(CircuitBreaker guard) throws SQLException {
+        DataSource primary = delegate();
+        FailoverSet endpoints = failover;
+        if (endpoints != null) {
+            primary = endpoints.select(primary);
+        }
+        XAPool transactional = xa;
+        if (transactional != null) {
+            // The pools of the tenants and replicas are not XA pools
+            DataSource selected = primary;
+            return acquire(guard, () -> transactional.getConnection(selected));
+        }
+        if (writer != null) {
+            // The pool only serves the read-only blocks, the other connections are lent by the single writer
+            return acquire(guard, primary::getConnection);
+        }
+        TenantRouter router = tenants;
+        String tenant = router != null ? Tenant.current() : null;
+        if (tenant != null) {
+            DataSource selected = primary;
+            return acquire(guard, () -> router.getConnection(selected, tenant));
+        }
+        ReplicaSet set = replicas;
+        if (set == null) {
+            return acquire(guard, primary::getConnection);
+        }
+        if (ReadOnly.isActive()) {
+            DataSource selected = primary;
+            return acquire(guard, () -> set.getReadConnection(selected));
+        }
+        if (guard != null) {
+            guard.admit();
+        }
+        return RoutingConnection.create(primary, set, guard);
+    }
+
+    private static Connection acquire(CircuitBreaker guard, CircuitBreaker.ConnectionSupplier supplier)
+            throws SQLException {
+        return guard == null ? supplier.get() : guard.getConnection(supplier);
+    }
+
+    /**
+     * Gets a connection from the pool of the data source with the given credentials. Unlike {@link #getConnection()},
+     * the connection is not routed (replicas, tenants, failover endpoints, XA pool or single writer), and is not
+     * guarded by the circuit breaker. The HikariCP pools do not support it, and throw a
+     * {@link java.sql.SQLFeatureNotSupportedException}.
      *
-     * @param username the database user on whose behalf the connection is
-     *                 being made
+     * @param username the database user on whose behalf the connection is being made
      * @param password the user's password
      * @return a connection to the data source
      * @throws java.sql.SQLException if a database access error occurs
-     * @since 1.4
      */
     @Override
     public Connection getConnection(String username, String password) throws SQLException {
-        return wrapped.getConnection(username, password);
+        touch();
+        return intercept(delegate().getConnection(username, password));
     }
 
     /**
@@ -118,7 +242,7 @@ public class WrappedDataSource implements DataSource {
      */
     @Override
     public PrintWriter getLogWriter() throws SQLException {
-        return wrapped.getLogWriter();
+        return delegate().getLogWriter();
     }
 
     /**
@@ -143,7 +267,7 @@ public class WrappedDataSource implements DataSource {
      */
     @Override
     public void setLogWriter(PrintWriter out) throws SQLException {
-        wrapped.setLogWriter(out);
+        delegate().setLogWriter(out);
     }
 
     /**
@@ -161,7 +285,7 @@ public class WrappedDataSource implements DataSource {
      */
     @Override
     public void setLoginTimeout(int seconds) throws SQLException {
-        wrapped.setLoginTimeout(seconds);
+        delegate().setLoginTimeout(seconds);
     }
 
     /**
@@ -179,7 +303,7 @@ public class WrappedDataSource implements DataSource {
      */
     @Override
     public int getLoginTimeout() throws SQLException {
-        return wrapped.getLoginTimeout();
+        return delegate().getLoginTimeout();
     }
 
     /**
@@ -195,7 +319,11 @@ public class WrappedDataSource implements DataSource {
      */
     @Override
     public Logger getParentLogger() throws SQLFeatureNotSupportedException {
-        return wrapped.getParentLogger();
+        DataSource delegate = wrapped;
+        if (delegate == null) {
+            throw new SQLFeatureNotSupportedException("The data source '" + name + "' is not available");
+        }
+        return delegate.getParentLogger();
     }
 
     /**
@@ -216,7 +344,10 @@ public class WrappedDataSource implements DataSource {
      * @since 1.6
      */
     public <T> T unwrap(Class<T> iface) throws SQLException {
-        return wrapped.unwrap(iface);
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        return delegate().unwrap(iface);
     }
 
     /**
@@ -235,7 +366,7 @@ public class WrappedDataSource implements DataSource {
      * @since 1.6
      */
     public boolean isWrapperFor(Class<?> iface) throws SQLException {
-        return wrapped.isWrapperFor(iface);
+        return iface.isInstance(this) || delegate().isWrapperFor(iface);
     }
 
     public Configuration getConfiguration() {
@@ -246,12 +377,17 @@ public class WrappedDataSource implements DataSource {
         return configuration.get("driver");
     }
 
-    public void register(BundleContext context) {
+    /**
+     * Registers the data source as a service, if not already registered.
+     *
+     * @param context           the bundle context
+     * @param serviceProperties the service properties, {@literal null} if none
+     */
+    public synchronized void register(BundleContext context, Configuration serviceProperties) {
         if (registration != null) {
             return;
         }
-        Dictionary<String, String> props = new Hashtable<>();
-        Configuration serviceProperties = configuration.getConfiguration("properties");
+        Hashtable<String, Object> props = new Hashtable<>();
         if(serviceProperties!=null){
             Properties properties = serviceProperties.asProperties();
             for(Enumeration<Object> keys = properties.keys(); keys.hasMoreElements(); /* NO-OP */){
@@ -263,13 +399,270 @@ public class WrappedDataSource implements DataSource {
         //  "name" property value from application.conf will silently override the value from service properties.
         //
         props.put(DataSources.DATASOURCE_NAME_PROPERTY, name);
+        props.put(DataSources.DATASOURCE_DEGRADED_PROPERTY, isDegraded());
+        properties = props;
         registration = context.registerService(DataSource.class, this, props);
     }
 
-    public void unregister() {
+    /**
+     * @return whether the data source is degraded, either because its pools could not be warmed up, or because its
+     * circuit breaker is open
+     */
+    public boolean isDegraded() {
+        return degraded || circuitOpen;
+    }
+
+    /**
+     * Marks the data source as degraded (or healthy) after the warm-up of its pools. The
+     * {@link DataSources#DATASOURCE_DEGRADED_PROPERTY} service property is updated accordingly if the data source is
+     * registered. The data source stays degraded while its circuit breaker is open.
+     *
+     * @param degraded whether or not the data source is degraded
+     */
+    public synchronized void setDegraded(boolean degraded) {
+        boolean before = isDegraded();
+        this.degraded = degraded;
+        publishDegraded(before);
+    }
+
+    /**
+     * Records whether the circuit breaker of the data source is open. The data source is degraded while the circuit
+     * is open, independently of the result of the warm-up.
+     *
+     * @param open whether or not the circuit is open
+     */
+    synchronized void setCircuitOpen(boolean open) {
+        boolean before = isDegraded();
+        this.circuitOpen = open;
+        publishDegraded(before);
+    }
+
+    private void publishDegraded(boolean before) {
+        boolean after = isDegraded();
+        if (before != after && registration != null) {
+            properties.put(DataSources.DATASOURCE_DEGRADED_PROPERTY, after);
+            registration.setProperties(properties);
+        }
+    }
+
+    public synchronized void unregister() {
         if (registration != null) {
             registration.unregister();
             registration = null;
+            properties = null;
+        }
+    }
+
+    /**
+     * @return the read replicas, {@literal null} if the data source does not have replicas
+     */
+    ReplicaSet getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * Sets the read replicas. Connections marked as read-only, or obtained during a {@link ReadOnly} unit of work, are
+     * served by the replicas.
+     *
+     * @param replicas the replicas, {@literal null} to disable the routing
+     */
+    void setReplicas(ReplicaSet replicas) {
+        this.replicas = replicas;
+    }
+
+    /**
+     * @return the statement profiler, {@literal null} if the statements are not profiled
+     */
+    StatementProfiler getProfiler() {
+        return profiler;
+    }
+
+    /**
+     * Sets the statement profiler wrapping the connections returned by this data source.
+     *
+     * @param profiler the profiler, {@literal null} to disable the profiling
+     */
+    void setProfiler(StatementProfiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * @return the adaptive sizer of the pool, {@literal null} if the pool has a fixed size
+     */
+    PoolSizer getSizer() {
+        return sizer;
+    }
+
+    /**
+     * @param sizer the adaptive sizer of the pool, {@literal null} if the pool has a fixed size
+     */
+    void setSizer(PoolSizer sizer) {
+        this.sizer = sizer;
+    }
+
+    /**
+     * @return the circuit breaker, {@literal null} if the connection requests are not protected
+     */
+    CircuitBreaker getCircuitBreaker() {
+        return breaker;
+    }
+
+    /**
+     * @param breaker the circuit breaker protecting the connection requests, {@literal null} to disable it
+     */
+    void setCircuitBreaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    /**
+     * @return the connection hold time profiler, {@literal null} if the hold times are not profiled
+     */
+    HoldTimeProfiler getHoldTimeProfiler() {
+        return holdTime;
+    }
+
+    /**
+     * @param holdTime the connection hold time profiler, {@literal null} to disable the profiling
+     */
+    void setHoldTimeProfiler(HoldTimeProfiler holdTime) {
+        this.holdTime = holdTime;
+    }
+
+    /**
+     * @return the failover endpoints, {@literal null} if the data source has a single endpoint
+     */
+    FailoverSet getFailover() {
+        return failover;
+    }
+
+    /**
+     * Sets the failover endpoints. The connections are obtained from the active endpoint.
+     *
+     * @param failover the failover endpoints, {@literal null} to use the data source url only
+     */
+    void setFailover(FailoverSet failover) {
+        this.failover = failover;
+    }
+
+    /**
+     * @return the XA connections enlisted in the JTA transactions, {@literal null} if the data source is not an XA
+     * data source
+     */
+    XAPool getXAPool() {
+        return xa;
+    }
+
+    /**
+     * Sets the XA connections. Within a JTA transaction, the connections are enlisted in the transaction.
+     *
+     * @param xa the XA connections, {@literal null} if the data source is not an XA data source
+     */
+    void setXAPool(XAPool xa) {
+        this.xa = xa;
+    }
+
+    /**
+     * @return the single writer, {@literal null} if the writes use the connections of the pool
+     */
+    WriterLane getWriterLane() {
+        return writer;
+    }
+
+    /**
+     * Sets the single writer. Outside of the read-only blocks, the connections are obtained from the writer.
+     *
+     * @param writer the single writer, {@literal null} to use the connections of the pool
+     */
+    void setWriterLane(WriterLane writer) {
+        this.writer = writer;
+    }
+
+    /**
+     * @return the idle shutdown of the pool, {@literal null} if the pool is not closed when unused
+     */
+    IdleShutdown getIdleShutdown() {
+        return idleShutdown;
+    }
+
+    /**
+     * @param idleShutdown the idle shutdown of the pool, {@literal null} to keep the pool running
+     */
+    void setIdleShutdown(IdleShutdown idleShutdown) {
+        this.idleShutdown = idleShutdown;
+    }
+
+    /**
+     * @return the tenant router, {@literal null} if the connections are not routed to the current tenant
+     */
+    TenantRouter getTenantRouter() {
+        return tenants;
+    }
+
+    /**
+     * Sets the tenant router. While a {@link Tenant} is set on the current thread, the connections are obtained from
+     * the router.
+     *
+     * @param tenants the router, {@literal null} to disable the routing
+     */
+    void setTenantRouter(TenantRouter tenants) {
+        this.tenants = tenants;
+    }
+
+    /**
+     * @return the query result cache, {@literal null} if the results are not cached
+     */
+    ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Sets the query result cache used by the connections returned by this data source.
+     *
+     * @param resultCache the cache, {@literal null} to disable the caching
+     */
+    void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    /**
+     * Gets the executor running the asynchronous connection requests, created on first use from the current
+     * configuration.
+     *
+     * @return the executor
+     */
+    AsyncExecutor getAsyncExecutor() {
+        AsyncExecutor executor = async;
+        if (executor == null) {
+            synchronized (this) {
+                executor = async;
+                if (executor == null) {
+                    executor = AsyncExecutor.create(name, configuration);
+                    async = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the executor running the asynchronous connection requests. The next request creates a new one, using
+     * the configuration in place at that time.
+     */
+    synchronized void closeAsyncExecutor() {
+        if (async != null) {
+            async.shutdown();
+            async = null;
+        }
+    }
+
+    /**
+     * Stops the executor running the asynchronous connection requests if the current configuration changed its
+     * settings. The pending requests complete, the next ones use a new executor.
+     */
+    synchronized void updateAsyncExecutor() {
+        if (async != null && !async.matches(configuration)) {
+            async.shutdown();
+            async = null;
         }
     }
 
@@ -0,0 +1,649 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.wisdom.api.configuration.Configuration;
+import org.wisdom.database.jdbc.service.ConnectionFunction;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Savepoint;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The single writer of a data source (configured in its {@code writer} section), for the databases allowing one
+ * writer at a time, such as SQLite. Instead of letting the connections of the pool compete for the database lock, all
+ * the writes go through a dedicated connection:
+ * <ul>
+ * <li>the writes submitted with {@link org.wisdom.database.jdbc.service.DataSources#write(String, ConnectionFunction)}
+ * are queued, and executed in order by the thread of the lane. The writes queued together (up to {@code batchSize})
+ * are committed in a single transaction, each of them in its own savepoint, so a failing write does not fail the
+ * others;</li>
+ * <li>the connections requested outside of a read-only block (see {@link org.wisdom.database.jdbc.utils.ReadOnly})
+ * lend the writer connection until it is closed. The connection belongs to the lease, not to the thread that
+ * requested it, so it can be handed to another thread. The callers wait for it in order, at most the
+ * {@code connectionTimeout} of the data source. A queued write cannot request it, the request fails immediately.</li>
+ * </ul>
+ * The pool of the data source only serves the read-only blocks. The {@code pragmas} (by default the WAL journal, the
+ * {@code NORMAL} synchronous mode and a busy timeout) are set on each new connection, and the {@code readerPragmas}
+ * (by default {@code query_only}) on the connections of the pool.
+ */
+final class WriterLane implements WriterLaneMXBean {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WriterLane.class);
+
+    static final String CONFIGURATION = "writer";
+
+    static final List<String> DEFAULT_PRAGMAS = Collections.unmodifiableList(Arrays.asList("journal_mode=WAL",
+            "synchronous=NORMAL", "busy_timeout=5000"));
+
+    static final List<String> DEFAULT_READER_PRAGMAS = Collections.singletonList("query_only=1");
+
+    private final String name;
+
+    private final DataSource connections;
+
+    private final int batchSize;
+
+    private volatile long leaseTimeout;
+
+    /**
+     * The {@code writer} section the lane has been created with.
+     */
+    private final Properties settings;
+
+    /**
+     * The configuration of the data source pool the lane has been created with.
+     */
+    private volatile HikariConfig primary;
+
+    private final BlockingQueue<Write<?>> queue;
+
+    /**
+     * The permission to use the writer connection, taken by the lane thread for each batch, and by the callers
+     * borrowing the connection. It is fair, so the callers and the batches get the connection in order.
+     */
+    private final Semaphore lane = new Semaphore(1, true);
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong failedWrites = new AtomicLong();
+
+    private final AtomicLong batches = new AtomicLong();
+
+    private final AtomicLong leases = new AtomicLong();
+
+    /**
+     * The writer connection, opened on first use, guarded by {@link #lane}.
+     */
+    private Connection writer;
+
+    /**
+     * The thread executing the queued writes, holding {@link #lane} while it executes a batch.
+     */
+    private volatile Thread thread;
+
+    private volatile boolean stopped;
+
+    /**
+     * Creates the writer lane of a data source.
+     *
+     * @param name        the data source name
+     * @param connections the data source opening the writer connection (see {@link #initialize(DataSource, List)})
+     * @param section     the {@code writer} section
+     * @param primary     the configuration of the data source pool, its {@code connectionTimeout} is the time a
+     *                    caller waits for the writer connection
+     */
+    WriterLane(String name, DataSource connections, Configuration section, HikariConfig primary) {
+        this.name = name;
+        this.connections = connections;
+        this.batchSize = Math.max(1, section.getIntegerWithDefault("batchSize", 64));
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, section.getIntegerWithDefault("queueSize", 1024)));
+        this.settings = section.asProperties();
+        this.primary = primary;
+        this.leaseTimeout = primary.getConnectionTimeout();
+    }
+
+    /**
+     * Checks whether the lane can be kept on a reconfiguration: its {@code writer} section is unchanged, and the
+     * pool configuration of the data source, used to open the writer connection, only changed its runtime settings.
+     * Keeping the lane keeps the queued writes and the writer connection.
+     *
+     * @param primary the configuration of the data source pool
+     * @param section the {@code writer} section
+     * @return {@literal true} if the lane can be kept
+     */
+    boolean matches(HikariConfig primary, Configuration section) {
+        return settings.equals(section.asProperties())
+                && PoolReconfiguration.diff(this.primary, primary) != PoolReconfiguration.Change.REBUILD;
+    }
+
+    /**
+     * Applies a new configuration of the data source pool, checked by {@link #matches(HikariConfig, Configuration)}.
+     *
+     * @param primary the configuration of the data source pool
+     */
+    void update(HikariConfig primary) {
+        this.primary = primary;
+        this.leaseTimeout = primary.getConnectionTimeout();
+    }
+
+    /**
+     * @param section the {@code writer} section
+     * @return the pragmas set on all the connections
+     */
+    static List<String> getPragmas(Configuration section) {
+        List<String> pragmas = section.getList("pragmas");
+        return pragmas.isEmpty() ? DEFAULT_PRAGMAS : pragmas;
+    }
+
+    /**
+     * @param section the {@code writer} section
+     * @return the pragmas set on the connections of the pool, after the {@link #getPragmas(Configuration)}
+     */
+    static List<String> getReaderPragmas(Configuration section) {
+        List<String> pragmas = section.getList("readerPragmas");
+        return pragmas.isEmpty() ? DEFAULT_READER_PRAGMAS : pragmas;
+    }
+
+    /**
+     * Wraps a data source so the given pragmas are set on each new connection.
+     *
+     * @param source  the data source
+     * @param pragmas the pragmas ({@code name=value})
+     * @return the data source
+     */
+    static DataSource initialize(final DataSource source, final List<String> pragmas) {
+        return (DataSource) Proxy.newProxyInstance(WriterLane.class.getClassLoader(), new Class[]{DataSource.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        Object result = invokeUnwrapped(source, method, args);
+                        if ("getConnection".equals(method.getName())) {
+                            initialize((Connection) result, pragmas);
+                        }
+                        return result;
+                    }
+                });
+    }
+
+    private static void initialize(Connection connection, List<String> pragmas) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            for (String pragma : pragmas) {
+                statement.execute("PRAGMA " + pragma);
+            }
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    private static Object invokeUnwrapped(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Queues a write.
+     *
+     * @param function the write
+     * @param <T>      the type of result
+     * @return the future result, completed once the write is committed. It fails with the exception thrown by the
+     * function, with the commit failure, or with a {@link SQLTransientConnectionException} if the queue is full.
+     */
+    <T> CompletableFuture<T> submit(ConnectionFunction<T> function) {
+        Write<T> write = new Write<>(function);
+        if (stopped) {
+            write.fail(closed());
+        } else if (!queue.offer(write)) {
+            write.fail(new SQLTransientConnectionException("Too many pending writes on data source '" + name
+                    + "' (" + queue.size() + ")"));
+        }
+        return write.future;
+    }
+
+    /**
+     * Lends the writer connection. It is given back to the lane when closed, rolling back the uncommitted changes.
+     *
+     * @return the writer connection
+     * @throws SQLException if the connection cannot be opened, is requested by a queued write, or is not available
+     *                      within the timeout
+     */
+    Connection getConnection() throws SQLException {
+        if (stopped) {
+            throw closed();
+        }
+        if (thread == Thread.currentThread()) {
+            // Waiting would only time out, the batch running this write is the one that must release the connection
+            throw new SQLException("The writer connection of data source '" + name + "' is already held by the "
+                    + "current write, use the connection given to the write");
+        }
+        try {
+            if (!lane.tryAcquire(leaseTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLTransientConnectionException("The writer connection of data source '" + name
+                        + "' is not available, request timed out after " + leaseTimeout + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for the writer connection of data source '" + name
+                    + "'", e);
+        }
+        try {
+            Connection connection = writer();
+            leases.incrementAndGet();
+            return (Connection) Proxy.newProxyInstance(WriterLane.class.getClassLoader(),
+                    new Class[]{Connection.class}, new Lease(connection));
+        } catch (SQLException | RuntimeException e) {
+            lane.release();
+            throw e;
+        }
+    }
+
+    private SQLException closed() {
+        return new SQLException("The writer of data source '" + name + "' is closed");
+    }
+
+    /**
+     * Opens the writer connection if needed, the caller holds the lane.
+     */
+    private Connection writer() throws SQLException {
+        if (writer == null || writer.isClosed()) {
+            writer = connections.getConnection();
+        }
+        return writer;
+    }
+
+    /**
+     * Closes the writer connection, after a failure leaving it in an unknown state. The caller holds the lane.
+     */
+    private void discard() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (SQLException e) {
+                LOGGER.debug("Cannot close the writer connection of data source '{}'", name, e);
+            }
+            writer = null;
+        }
+    }
+
+    private void run() {
+        List<Write<?>> batch = new ArrayList<>(batchSize);
+        while (!stopped) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, batchSize - 1);
+                lane.acquire();
+                try {
+                    execute(batch);
+                } finally {
+                    lane.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                for (Write<?> write : batch) {
+                    write.fail(closed());
+                }
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.error("Unexpected failure of the writer of data source '{}'", name, e);
+                for (Write<?> write : batch) {
+                    write.fail(e);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Executes the given writes in a single transaction, each of them in a savepoint.
+     */
+    private void execute(List<Write<?>> batch) {
+        batches.incrementAndGet();
+        writes.addAndGet(batch.size());
+        Connection connection;
+        try {
+            connection = writer();
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            abort(batch, e);
+            return;
+        }
+        boolean single = batch.size() == 1;
+        for (Write<?> write : batch) {
+            Savepoint savepoint = null;
+            WriteHandle handle = new WriteHandle(connection);
+            try {
+                if (!single) {
+                    savepoint = connection.setSavepoint();
+                }
+                write.run((Connection) Proxy.newProxyInstance(WriterLane.class.getClassLoader(),
+                        new Class[]{Connection.class}, handle));
+                if (savepoint != null) {
+                    connection.releaseSavepoint(savepoint);
+                }
+            } catch (SQLException | RuntimeException e) {
+                write.failure = e;
+                try {
+                    if (savepoint != null) {
+                        connection.rollback(savepoint);
+                    } else {
+                        connection.rollback();
+                    }
+                } catch (SQLException rollback) {
+                    // The transaction is in an unknown state
+                    abort(batch, rollback);
+                    return;
+                }
+            } finally {
+                handle.closed = true;
+            }
+        }
+        try {
+            connection.commit();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            abort(batch, e);
+            return;
+        }
+        for (Write<?> write : batch) {
+            if (!write.complete()) {
+                failedWrites.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Fails all the writes of a batch that could not be committed, and discards the writer connection.
+     */
+    private void abort(List<Write<?>> batch, SQLException cause) {
+        LOGGER.warn("Cannot commit {} write(s) on data source '{}'", batch.size(), name, cause);
+        failedWrites.addAndGet(batch.size());
+        for (Write<?> write : batch) {
+            write.fail(write.failure != null ? write.failure : cause);
+        }
+        if (writer != null) {
+            try {
+                writer.rollback();
+            } catch (SQLException e) {
+                LOGGER.debug("Cannot roll back the writes on data source '{}'", name, e);
+            }
+        }
+        discard();
+    }
+
+    /**
+     * Starts the thread of the lane, and registers the lane in JMX.
+     */
+    synchronized void start() {
+        thread = new Thread(this::run, "wisdom-jdbc-writer-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            ObjectName objectName = getObjectName();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+        } catch (JMException e) {
+            LOGGER.warn("Cannot register the writer of data source '{}' in JMX", name, e);
+        }
+    }
+
+    /**
+     * Stops the lane. The queued writes fail, the running batch and the borrowed writer connection are given
+     * {@code connectionTimeout} milliseconds to complete, then the writer connection is closed.
+     */
+    synchronized void stop() {
+        stopped = true;
+        boolean interrupted = false;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(leaseTimeout);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+            thread = null;
+        }
+        Write<?> pending;
+        while ((pending = queue.poll()) != null) {
+            pending.fail(closed());
+        }
+        try {
+            if (!lane.tryAcquire(leaseTimeout, TimeUnit.MILLISECONDS)) {
+                LOGGER.warn("Closing the writer connection of data source '{}' while still in use", name);
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        // The lane is never released, the writer is closed
+        discard();
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(getObjectName());
+        } catch (JMException e) {
+            LOGGER.debug("Cannot unregister the writer of data source '{}' from JMX", name, e);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    ObjectName getObjectName() throws JMException {
+        return new ObjectName(PoolMetrics.JMX_DOMAIN + ":type=WriterLane,name=" + PoolMetrics.quote(name));
+    }
+
+    @Override
+    public String getDataSourceName() {
+        return name;
+    }
+
+    @Override
+    public int getQueuedWrites() {
+        return queue.size();
+    }
+
+    @Override
+    public long getWrites() {
+        return writes.get();
+    }
+
+    @Override
+    public long getFailedWrites() {
+        return failedWrites.get();
+    }
+
+    @Override
+    public long getBatches() {
+        return batches.get();
+    }
+
+    @Override
+    public double getMeanBatchSize() {
+        long count = batches.get();
+        return count == 0 ? 0 : (double) writes.get() / count;
+    }
+
+    @Override
+    public long getLeases() {
+        return leases.get();
+    }
+
+    /**
+     * A queued write.
+     */
+    private static final class Write<T> {
+
+        private final ConnectionFunction<T> function;
+
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private T result;
+
+        private Exception failure;
+
+        private Write(ConnectionFunction<T> function) {
+            this.function = function;
+        }
+
+        private void run(Connection connection) throws SQLException {
+            result = function.apply(connection);
+        }
+
+        private void fail(Exception cause) {
+            future.completeExceptionally(cause);
+        }
+
+        /**
+         * Completes the future once the transaction is committed.
+         *
+         * @return {@literal true} if the write succeeded
+         */
+        private boolean complete() {
+            if (failure != null) {
+                future.completeExceptionally(failure);
+                return false;
+            }
+            future.complete(result);
+            return true;
+        }
+    }
+
+    /**
+     * The writer connection given to a queued write. The transaction is managed by the lane, so the write cannot
+     * commit it, roll it back, or change the auto-commit mode. Closing the handle does not close the connection.
+     */
+    private static final class WriteHandle implements InvocationHandler {
+
+        private final Connection connection;
+
+        private boolean closed;
+
+        private WriteHandle(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    closed = true;
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "commit":
+                case "setAutoCommit":
+                    throw new SQLException("The transaction of a queued write is managed by the writer, " + name
+                            + " is not allowed");
+                case "rollback":
+                    if (args == null) {
+                        throw new SQLException("The transaction of a queued write is managed by the writer, "
+                                + "rollback is not allowed, throw an exception to cancel the write");
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Connection closed");
+            }
+            return invokeUnwrapped(connection, method, args);
+        }
+    }
+
+    /**
+     * The writer connection lent to a caller, given back to the lane when closed.
+     */
+    private final class Lease implements InvocationHandler {
+
+        private final Connection connection;
+
+        private boolean closed;
+
+        private Lease(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    release();
+                    return null;
+                case "isClosed":
+                    return closed;
+                default:
+                    break;
+            }
+            if (closed) {
+                throw new SQLException("Connection closed");
+            }
+            return invokeUnwrapped(connection, method, args);
+        }
+
+        private void release() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (!connection.isClosed() && !connection.getAutoCommit()) {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                LOGGER.warn("Cannot reset the writer connection of data source '{}'", name, e);
+                discard();
+            } finally {
+                lane.release();
+            }
+        }
+    }
+}
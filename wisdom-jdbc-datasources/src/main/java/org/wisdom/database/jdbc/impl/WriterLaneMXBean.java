@@ -0,0 +1,63 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+/**
+ * The JMX view of the single writer lane of a data source, registered as
+ * {@code org.wisdom.database.jdbc:type=WriterLane,name=<datasource.name>}.
+ */
+public interface WriterLaneMXBean {
+
+    /**
+     * @return the data source name
+     */
+    String getDataSourceName();
+
+    /**
+     * @return the number of writes waiting in the queue
+     */
+    int getQueuedWrites();
+
+    /**
+     * @return the number of queued writes executed (committed or failed)
+     */
+    long getWrites();
+
+    /**
+     * @return the number of queued writes that failed, or whose transaction failed to commit
+     */
+    long getFailedWrites();
+
+    /**
+     * @return the number of transactions committing queued writes
+     */
+    long getBatches();
+
+    /**
+     * @return the mean number of writes committed together
+     */
+    double getMeanBatchSize();
+
+    /**
+     * @return the number of times the writer connection has been lent to a thread (connections requested outside of
+     * the read-only blocks)
+     */
+    long getLeases();
+}
@@ -0,0 +1,395 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Hands out the connections of an XA data source ({@code xa = true}), enlisted in the current JTA transaction.
+ * <p>
+ * The pool of such a data source holds the physical connections of {@link XAConnection}s (see
+ * {@link #connectionSource(XADataSource)}). When a connection is requested within a transaction, a pooled connection is
+ * borrowed, and its {@link XAResource} is enlisted in the transaction. The following requests of the same transaction
+ * get the same connection, so a transaction uses a single physical connection. The connection goes back to the pool
+ * when the transaction completes. Closing the connection handles given to the application does not return the
+ * connection, and the transaction cannot be committed or rolled back through them. Outside of a transaction, the pooled
+ * connections are handed out as is, and use local transactions.
+ * <p>
+ * When the transaction manager is Geronimo's, the XA data source is registered for the recovery, and the enlisted
+ * resources are named after it.
+ */
+final class XAPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(XAPool.class);
+
+    /**
+     * The data source property enabling the XA mode.
+     */
+    static final String XA = "xa";
+
+    /**
+     * Whether Geronimo is available, to name the resources and register the recovery.
+     */
+    private static final boolean GERONIMO = isAvailable("org.apache.geronimo.transaction.manager.NamedXAResource");
+
+    /**
+     * The methods of a connection handle that would complete the transaction.
+     */
+    private static final Set<String> FORBIDDEN = new HashSet<>(Arrays.asList("commit", "rollback", "setSavepoint",
+            "releaseSavepoint"));
+
+    private final String name;
+
+    /**
+     * The name of the resource manager in the transaction log.
+     */
+    private final String resourceName;
+
+    private final XADataSource recovery;
+
+    /**
+     * The configuration of the data source pool the XA data source has been created with.
+     */
+    private final HikariConfig config;
+
+    private final ConcurrentMap<Transaction, Branch> branches = new ConcurrentHashMap<>();
+
+    private volatile TransactionManager transactionManager;
+
+    private boolean registered;
+
+    /**
+     * Creates a new instance.
+     *
+     * @param name     the data source name
+     * @param recovery the XA data source opening the connections used by the recovery
+     * @param config   the configuration of the data source pool the XA data source has been created with
+     */
+    XAPool(String name, XADataSource recovery, HikariConfig config) {
+        this.name = name;
+        this.resourceName = "wisdom-jdbc-" + name;
+        this.recovery = recovery;
+        this.config = config;
+    }
+
+    /**
+     * Checks whether the XA data source has been created for the database of the given configuration: same driver,
+     * url, credentials and driver properties. A reconfiguration keeps the instance in this case, so the
+     * transactions in progress keep their connection, and the recovery stays registered.
+     *
+     * @param target the configuration of the data source pool
+     * @return {@literal true} if the instance can be kept
+     */
+    boolean matches(HikariConfig target) {
+        return Objects.equals(config.getDriverClassName(), target.getDriverClassName())
+                && Objects.equals(config.getJdbcUrl(), target.getJdbcUrl())
+                && Objects.equals(config.getUsername(), target.getUsername())
+                && Objects.equals(config.getPassword(), target.getPassword())
+                && Objects.equals(config.getDataSourceProperties(), target.getDataSourceProperties());
+    }
+
+    private static boolean isAvailable(String classname) {
+        try {
+            Class.forName(classname, false, XAPool.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) { //NOSONAR
+            return false;
+        }
+    }
+
+    /**
+     * Wraps an XA data source as the data source of a pool. Each connection is the connection of a new
+     * {@link XAConnection}, closed with it. The {@code XAConnection} is obtained with
+     * {@code connection.unwrap(XAConnection.class)}.
+     *
+     * @param source the XA data source
+     * @return the data source
+     */
+    static DataSource connectionSource(final XADataSource source) {
+        return (DataSource) Proxy.newProxyInstance(XAPool.class.getClassLoader(), new Class[]{DataSource.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        switch (method.getName()) {
+                            case "getConnection":
+                                XAConnection connection = args == null ? source.getXAConnection()
+                                        : source.getXAConnection((String) args[0], (String) args[1]);
+                                return physical(connection);
+                            case "isWrapperFor":
+                                return false;
+                            case "unwrap":
+                                throw new SQLException("Not a wrapper of " + args[0]);
+                            default:
+                                // The CommonDataSource methods
+                                return invokeUnwrapped(source, XADataSource.class.getMethod(method.getName(),
+                                        method.getParameterTypes()), args);
+                        }
+                    }
+                });
+    }
+
+    private static Connection physical(final XAConnection connection) throws SQLException {
+        final Connection delegate;
+        try {
+            delegate = connection.getConnection();
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return (Connection) Proxy.newProxyInstance(XAPool.class.getClassLoader(), new Class[]{Connection.class},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        switch (method.getName()) {
+                            case "unwrap":
+                                if (args[0] == XAConnection.class) {
+                                    return connection;
+                                }
+                                break;
+                            case "isWrapperFor":
+                                if (args[0] == XAConnection.class) {
+                                    return true;
+                                }
+                                break;
+                            case "close":
+                                try {
+                                    delegate.close();
+                                } finally {
+                                    connection.close();
+                                }
+                                return null;
+                            default:
+                                break;
+                        }
+                        return invokeUnwrapped(delegate, method, args);
+                    }
+                });
+    }
+
+    private static Object invokeUnwrapped(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Sets the transaction manager, and registers the XA data source for the recovery.
+     *
+     * @param manager the transaction manager (a {@link TransactionManager}), {@literal null} if there are none
+     */
+    synchronized void setTransactionManager(Object manager) {
+        unregister();
+        this.transactionManager = (TransactionManager) manager;
+        if (transactionManager != null && GERONIMO) {
+            registered = XARecovery.register(transactionManager, resourceName, recovery);
+            if (registered) {
+                LOGGER.info("XA data source '{}' registered for the transaction recovery", name);
+            }
+        }
+    }
+
+    /**
+     * Unregisters the XA data source from the transaction manager.
+     */
+    synchronized void close() {
+        unregister();
+        transactionManager = null;
+    }
+
+    private void unregister() {
+        if (registered) {
+            XARecovery.unregister(transactionManager, resourceName);
+            registered = false;
+        }
+    }
+
+    /**
+     * @return the number of transactions holding a connection
+     */
+    int getBranches() {
+        return branches.size();
+    }
+
+    /**
+     * Gets a connection, enlisted in the current transaction if any.
+     *
+     * @param pool the pool
+     * @return the connection
+     * @throws SQLException if the connection cannot be obtained or enlisted
+     */
+    Connection getConnection(DataSource pool) throws SQLException {
+        TransactionManager manager = transactionManager;
+        Transaction transaction;
+        try {
+            transaction = manager == null ? null : manager.getTransaction();
+        } catch (SystemException e) {
+            throw new SQLException("Cannot retrieve the current transaction", e);
+        }
+        if (transaction == null) {
+            return pool.getConnection();
+        }
+        Branch branch = branches.get(transaction);
+        if (branch == null) {
+            branch = enlist(pool, transaction);
+        }
+        return branch.handle();
+    }
+
+    private Branch enlist(DataSource pool, Transaction transaction) throws SQLException {
+        try {
+            int status = transaction.getStatus();
+            if (status != Status.STATUS_ACTIVE) {
+                throw new SQLException("Cannot enlist a connection of data source '" + name
+                        + "' in a transaction that is not active (status " + status + ")");
+            }
+        } catch (SystemException e) {
+            throw new SQLException("Cannot retrieve the transaction status", e);
+        }
+        Connection connection = pool.getConnection();
+        try {
+            XAResource resource = connection.unwrap(XAConnection.class).getXAResource();
+            Branch branch = new Branch(transaction, connection);
+            transaction.registerSynchronization(branch);
+            branches.put(transaction, branch);
+            transaction.enlistResource(GERONIMO ? XARecovery.named(resource, resourceName) : resource);
+            return branch;
+        } catch (RollbackException | SystemException | SQLException | RuntimeException e) {
+            // The synchronization (if registered) releases the connection on completion
+            if (branches.remove(transaction) == null) {
+                connection.close();
+            }
+            if (e instanceof SQLException) {
+                throw (SQLException) e;
+            }
+            throw new SQLException("Cannot enlist a connection of data source '" + name + "' in the transaction",
+                    e);
+        }
+    }
+
+    /**
+     * The connection used by a transaction, returned to the pool once the transaction completes.
+     */
+    private final class Branch implements Synchronization {
+
+        private final Transaction transaction;
+
+        private final Connection connection;
+
+        private Branch(Transaction transaction, Connection connection) {
+            this.transaction = transaction;
+            this.connection = connection;
+        }
+
+        /**
+         * @return a new handle on the connection
+         */
+        private Connection handle() {
+            return (Connection) Proxy.newProxyInstance(XAPool.class.getClassLoader(), new Class[]{Connection.class},
+                    new Handle(connection));
+        }
+
+        @Override
+        public void beforeCompletion() {
+            // Nothing to do, the resource is delisted by the transaction manager
+        }
+
+        @Override
+        public void afterCompletion(int status) {
+            branches.remove(transaction, this);
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Cannot return the connection of a completed transaction to the pool of data source '{}'",
+                        name, e);
+            }
+        }
+    }
+
+    /**
+     * A handle on the connection of a transaction, given to the application.
+     */
+    private static final class Handle implements InvocationHandler {
+
+        private final Connection connection;
+
+        private boolean closed;
+
+        private Handle(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            switch (name) {
+                case "close":
+                    closed = true;
+                    return null;
+                case "isClosed":
+                    return closed;
+                case "setAutoCommit":
+                    if ((Boolean) args[0]) {
+                        throw new SQLException("Auto-commit cannot be enabled on a connection enlisted in a JTA "
+                                + "transaction");
+                    }
+                    return null;
+                case "getAutoCommit":
+                    return false;
+                default:
+                    break;
+            }
+            if (closed && !"toString".equals(name) && !"hashCode".equals(name) && !"equals".equals(name)) {
+                throw new SQLException("Connection closed");
+            }
+            if (FORBIDDEN.contains(name)) {
+                throw new SQLException("The connection is enlisted in a JTA transaction, " + name
+                        + " is not allowed");
+            }
+            return invokeUnwrapped(connection, method, args);
+        }
+    }
+}
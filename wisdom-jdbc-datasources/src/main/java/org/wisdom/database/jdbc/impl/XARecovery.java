@@ -0,0 +1,139 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.apache.geronimo.transaction.manager.NamedXAResource;
+import org.apache.geronimo.transaction.manager.NamedXAResourceFactory;
+import org.apache.geronimo.transaction.manager.RecoverableTransactionManager;
+import org.apache.geronimo.transaction.manager.WrapperNamedXAResource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.SystemException;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Registers an XA data source in the Geronimo transaction manager, so the transactions left in doubt (prepared but
+ * not completed when the application stopped) can be recovered. The resources enlisted in the transactions carry the
+ * same name (see {@link #named(XAResource, String)}), so the transaction log can tell which resource manager they
+ * belong to.
+ * <p>
+ * This class is the only one depending on Geronimo, and is only loaded when Geronimo is available (see
+ * {@link XAPool}).
+ */
+final class XARecovery implements NamedXAResourceFactory {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(XARecovery.class);
+
+    private final String name;
+
+    private final XADataSource source;
+
+    /**
+     * The connections opened for the recovery, by resource.
+     */
+    private final Map<NamedXAResource, XAConnection> connections = new IdentityHashMap<>();
+
+    private XARecovery(String name, XADataSource source) {
+        this.name = name;
+        this.source = source;
+    }
+
+    /**
+     * Registers an XA data source in the transaction manager, if it supports the recovery.
+     *
+     * @param manager the transaction manager
+     * @param name    the resource name
+     * @param source  the XA data source
+     * @return {@literal true} if the data source has been registered
+     */
+    static boolean register(TransactionManager manager, String name, XADataSource source) {
+        if (!(manager instanceof RecoverableTransactionManager)) {
+            return false;
+        }
+        ((RecoverableTransactionManager) manager).registerNamedXAResourceFactory(new XARecovery(name, source));
+        return true;
+    }
+
+    /**
+     * Unregisters an XA data source from the transaction manager.
+     *
+     * @param manager the transaction manager
+     * @param name    the resource name
+     */
+    static void unregister(TransactionManager manager, String name) {
+        if (manager instanceof RecoverableTransactionManager) {
+            ((RecoverableTransactionManager) manager).unregisterNamedXAResourceFactory(name);
+        }
+    }
+
+    /**
+     * Names a resource enlisted in a transaction.
+     *
+     * @param resource the resource
+     * @param name     the resource name
+     * @return the named resource
+     */
+    static XAResource named(XAResource resource, String name) {
+        return new WrapperNamedXAResource(resource, name);
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public NamedXAResource getNamedXAResource() throws SystemException {
+        try {
+            XAConnection connection = source.getXAConnection();
+            NamedXAResource resource = new WrapperNamedXAResource(connection.getXAResource(), name);
+            synchronized (connections) {
+                connections.put(resource, connection);
+            }
+            return resource;
+        } catch (SQLException e) {
+            SystemException exception = new SystemException("Cannot open a connection to recover " + name);
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    @Override
+    public void returnNamedXAResource(NamedXAResource resource) {
+        XAConnection connection;
+        synchronized (connections) {
+            connection = connections.remove(resource);
+        }
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                LOGGER.warn("Cannot close the recovery connection of {}", name, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.service;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A function using a connection, see {@link DataSources#withConnection(String, ConnectionFunction)}.
+ *
+ * @param <T> the type of result
+ */
+@FunctionalInterface
+public interface ConnectionFunction<T> {
+
+    /**
+     * Uses the given connection. The connection is closed once the function returns.
+     *
+     * @param connection the connection
+     * @return the result
+     * @throws SQLException if the function fails
+     */
+    T apply(Connection connection) throws SQLException;
+}
@@ -22,6 +22,7 @@ package org.wisdom.database.jdbc.service;
 import javax.sql.DataSource;
 import java.sql.Connection;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * A service letting application to retrieve data sources and open connections on these data sources. It's a
@@ -39,6 +40,12 @@ public interface DataSources {
      */
     public static final String DATASOURCE_NAME_PROPERTY = "datasource.name";
 
+    /**
+     * A property published with the Data Source services indicating whether the data source is degraded, i.e. its
+     * warm-up failed or did not complete in time. A degraded data source is still usable, but connections may fail.
+     */
+    public static final String DATASOURCE_DEGRADED_PROPERTY = "datasource.degraded";
+
     /**
      * Gets the data source with the given name.
      * @param database the data source name
@@ -54,7 +61,7 @@ public interface DataSources {
 
     /**
      * Gets the set of data sources (name -> data source).
-     * @return the map of name -> data source, empty if none.
+     * @return the unmodifiable map of name -> data source, empty if none.
      */
     Map<String, DataSource> getDataSources();
 
@@ -92,4 +99,45 @@ public interface DataSources {
      * or if the connection cannot be opened.
      */
     Connection getConnection(String database, boolean autocommit);
+
+    /**
+     * Gets a connection on the given database without blocking the caller. The connection is acquired on the
+     * asynchronous executor of the data source, whose number of pending requests is bounded: when the limit is
+     * reached, the returned future fails immediately instead of waiting for a connection.
+     * The caller must close the connection. If the future is cancelled, the connection is closed once acquired.
+     *
+     * @param database the data source name
+     * @return the future connection. It fails with a {@link java.sql.SQLException} if the data source is not
+     * available or if the connection cannot be opened, and with a {@link java.sql.SQLTransientConnectionException}
+     * if the data source has too many pending requests.
+     */
+    CompletableFuture<Connection> getConnectionAsync(String database);
+
+    /**
+     * Runs the given function with a connection on the given database, on the asynchronous executor of the data
+     * source (see {@link #getConnectionAsync(String)}). The connection is closed when the function returns.
+     *
+     * @param database the data source name
+     * @param function the function
+     * @param <T>      the type of result
+     * @return the future result of the function. It fails with the exception thrown by the function, or as
+     * {@link #getConnectionAsync(String)} does if the connection cannot be acquired.
+     */
+    <T> CompletableFuture<T> withConnection(String database, ConnectionFunction<T> function);
+
+    /**
+     * Runs the given function in a write transaction on the given database. If the data source has a single writer
+     * (configured in its {@code writer} section), the function is queued and executed by the writer, and committed
+     * with the other writes queued at the same time. Otherwise, it runs as {@link #withConnection(String,
+     * ConnectionFunction)} does, in a transaction. The function must not commit or roll back the transaction: it
+     * throws an exception to cancel its changes.
+     *
+     * @param database the data source name
+     * @param function the function
+     * @param <T>      the type of result
+     * @return the future result of the function, completed once the transaction is committed. It fails with the
+     * exception thrown by the function, with the commit failure, or with a
+     * {@link java.sql.SQLTransientConnectionException} if the data source has too many pending requests.
+     */
+    <T> CompletableFuture<T> write(String database, ConnectionFunction<T> function);
 }
@@ -0,0 +1,658 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Stream;
+
+/**
+ * Loads a large number of rows into a table using several connections in parallel:
+ * <pre>
+ * BulkLoader.Result result = BulkLoader.into(dataSource, "items")
+ *     .columns("id", "name")
+ *     .writers(4)
+ *     .batchSize(1000)
+ *     .commitSize(10000)
+ *     .load(rows);
+ * </pre>
+ * The rows (arrays of values, in the order of the columns) are grouped in batches, and the batches are dispatched to
+ * the writers through a bounded queue. Each writer owns a connection of the data source, executes the batches using
+ * JDBC batching, and commits every {@code commitSize} rows. When the writers fall behind, the queue fills up and the
+ * thread reading the rows blocks, so the rows are never buffered entirely in memory.
+ * <p>
+ * The load is not atomic: each writer commits its own rows. If a writer fails, the load is stopped, the uncommitted
+ * rows of the writers are rolled back and the first error is thrown. The writers check the failure while waiting for
+ * batches, and their statements are bounded by a {@link #timeout(int) timeout}, so a writer waiting for a row locked
+ * by another writer (two rows with the same key in the load) cannot block the load forever.
+ * <p>
+ * In {@link Mode#MERGE} mode, existing rows (identified by the {@link #keys(String...)}) are updated. The merge
+ * statement depends on the database: {@code MERGE ... KEY} on H2, {@code MERGE ... USING} on HSQLDB,
+ * {@code ON DUPLICATE KEY UPDATE} on MySQL and {@code ON CONFLICT} on PostgreSQL. On MySQL, the
+ * {@code rewriteBatchedStatements} option of the driver is enabled on the writer connections, so batches are sent as
+ * multi-row statements.
+ */
+public final class BulkLoader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BulkLoader.class);
+
+    /**
+     * The interface of the MySQL connections holding the {@code rewriteBatchedStatements} option.
+     */
+    private static final String MYSQL_CONNECTION_PROPERTIES = "com.mysql.jdbc.ConnectionProperties";
+
+    /**
+     * Marks the end of the rows in the queue.
+     */
+    private static final List<Object[]> END = Collections.emptyList();
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    /**
+     * The way rows are written.
+     */
+    public enum Mode {
+        /**
+         * Rows are inserted, a row conflicting with an existing one fails the load.
+         */
+        INSERT,
+        /**
+         * Rows are inserted, or update the existing row having the same keys.
+         */
+        MERGE
+    }
+
+    private final DataSource dataSource;
+
+    private final String table;
+
+    private String[] columns;
+
+    private String[] keys = new String[0];
+
+    private Mode mode = Mode.INSERT;
+
+    private int writers = 4;
+
+    private int batchSize = 1000;
+
+    private int commitSize = 10000;
+
+    private int queueSize = -1;
+
+    private int timeout = 60;
+
+    private BulkLoader(DataSource dataSource, String table) {
+        this.dataSource = dataSource;
+        this.table = table;
+    }
+
+    /**
+     * Creates a loader.
+     *
+     * @param dataSource the data source providing the connections of the writers
+     * @param table      the target table
+     * @return the loader
+     */
+    public static BulkLoader into(DataSource dataSource, String table) {
+        if (dataSource == null || table == null) {
+            throw new IllegalArgumentException("The data source and the table must be set");
+        }
+        return new BulkLoader(dataSource, table);
+    }
+
+    /**
+     * Sets the columns receiving the values of each row.
+     *
+     * @param columns the columns
+     * @return the current loader
+     */
+    public BulkLoader columns(String... columns) {
+        this.columns = columns.clone();
+        return this;
+    }
+
+    /**
+     * Sets the columns identifying a row in {@link Mode#MERGE} mode.
+     *
+     * @param keys the key columns, must be part of the columns
+     * @return the current loader
+     */
+    public BulkLoader keys(String... keys) {
+        this.keys = keys.clone();
+        return this;
+    }
+
+    /**
+     * @param mode the way rows are written (default: {@link Mode#INSERT})
+     * @return the current loader
+     */
+    public BulkLoader mode(Mode mode) {
+        this.mode = mode;
+        return this;
+    }
+
+    /**
+     * @param writers the number of writers, and so of connections used in parallel (default: 4). If the data source
+     *                cannot provide that many connections, the load starts with the writers that got one.
+     * @return the current loader
+     */
+    public BulkLoader writers(int writers) {
+        this.writers = positive("writers", writers);
+        return this;
+    }
+
+    /**
+     * @param batchSize the number of rows sent in a JDBC batch (default: 1000)
+     * @return the current loader
+     */
+    public BulkLoader batchSize(int batchSize) {
+        this.batchSize = positive("batchSize", batchSize);
+        return this;
+    }
+
+    /**
+     * @param commitSize the number of rows written by a writer between two commits (default: 10000)
+     * @return the current loader
+     */
+    public BulkLoader commitSize(int commitSize) {
+        this.commitSize = positive("commitSize", commitSize);
+        return this;
+    }
+
+    /**
+     * @param queueSize the number of batches waiting for a writer before the reading of the rows blocks (default:
+     *                  twice the number of writers)
+     * @return the current loader
+     */
+    public BulkLoader queueSize(int queueSize) {
+        this.queueSize = positive("queueSize", queueSize);
+        return this;
+    }
+
+    /**
+     * Sets the timeout of the statements executed by the writers. A writer waiting longer for a lock, for instance
+     * held by the uncommitted rows of another writer, fails the load.
+     *
+     * @param seconds the timeout in seconds, 0 for no timeout (default: 60)
+     * @return the current loader
+     */
+    public BulkLoader timeout(int seconds) {
+        if (seconds < 0) {
+            throw new IllegalArgumentException("timeout must not be negative: " + seconds);
+        }
+        this.timeout = seconds;
+        return this;
+    }
+
+    private static int positive(String name, int value) {
+        if (value <= 0) {
+            throw new IllegalArgumentException(name + " must be positive: " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Loads the rows of the given stream. The stream is consumed on the calling thread.
+     *
+     * @param rows the rows
+     * @return the load statistics
+     * @throws SQLException if the rows cannot be written
+     */
+    public Result load(Stream<Object[]> rows) throws SQLException {
+        return load(rows.iterator());
+    }
+
+    /**
+     * Loads the given rows. The iterator is consumed on the calling thread, which blocks when the writers fall behind.
+     *
+     * @param rows the rows
+     * @return the load statistics
+     * @throws SQLException if the rows cannot be written
+     */
+    public Result load(Iterator<Object[]> rows) throws SQLException {
+        if (columns == null || columns.length == 0) {
+            throw new IllegalStateException("The columns of table " + table + " must be set");
+        }
+        if (mode == Mode.MERGE && keys.length == 0) {
+            throw new IllegalStateException("The keys of table " + table + " must be set to merge rows");
+        }
+        long start = System.nanoTime();
+        Load load = new Load(Math.max(queueSize > 0 ? queueSize : 2 * writers, writers));
+        // Open the connections first, so configuration errors are reported before reading the rows
+        List<Writer> list = new ArrayList<>();
+        try {
+            for (int i = 0; i < writers; i++) {
+                Connection connection;
+                try {
+                    connection = dataSource.getConnection();
+                } catch (SQLTransientConnectionException e) {
+                    if (list.isEmpty()) {
+                        throw e;
+                    }
+                    // The pool is exhausted, or serves a single writer connection
+                    LOGGER.warn("Bulk load into {} with {} writer(s) instead of {}: {}", table, list.size(), writers,
+                            e.getMessage());
+                    break;
+                }
+                list.add(new Writer(load, connection));
+            }
+            Dialect dialect = Dialect.of(list.get(0).connection);
+            String sql = statement(dialect);
+            for (Writer writer : list) {
+                writer.prepare(sql, dialect);
+            }
+        } catch (SQLException | RuntimeException e) {
+            for (Writer writer : list) {
+                writer.close();
+            }
+            throw e;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(list.size(), runnable -> {
+            Thread thread = new Thread(runnable, "wisdom-jdbc-bulk-" + THREADS.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (Writer writer : list) {
+                futures.add(executor.submit(writer));
+            }
+            feed(load, rows, futures);
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            load.fail(new SQLException("Bulk load into " + table + " interrupted", e));
+        } catch (ExecutionException e) {
+            load.fail(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        Throwable failure = load.failure.get();
+        if (failure instanceof SQLException) {
+            throw (SQLException) failure;
+        } else if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        } else if (failure instanceof Error) {
+            throw (Error) failure;
+        } else if (failure != null) {
+            throw new SQLException("Bulk load into " + table + " failed", failure);
+        }
+        Result result = new Result(load.rows.get(), load.batches.get(), System.nanoTime() - start);
+        LOGGER.debug("{} rows loaded into {} in {} ms ({} rows/s)", result.getRows(), table,
+                result.getDuration(TimeUnit.MILLISECONDS), (long) result.getRowsPerSecond());
+        return result;
+    }
+
+    /**
+     * Groups the rows in batches and dispatches them to the writers, blocking while the queue is full.
+     */
+    private void feed(Load load, Iterator<Object[]> rows, List<Future<?>> writers) throws InterruptedException {
+        List<Object[]> batch = new ArrayList<>(batchSize);
+        while (load.failure.get() == null && rows.hasNext()) {
+            Object[] row = rows.next();
+            if (row.length != columns.length) {
+                load.fail(new IllegalArgumentException("Expected " + columns.length + " values, got "
+                        + row.length + ": " + Arrays.toString(row)));
+                break;
+            }
+            batch.add(row);
+            if (batch.size() == batchSize) {
+                offer(load, batch, writers);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty() && load.failure.get() == null) {
+            offer(load, batch, writers);
+        }
+        for (int i = 0; i < writers.size(); i++) {
+            offer(load, END, writers);
+        }
+    }
+
+    private static void offer(Load load, List<Object[]> batch, List<Future<?>> writers) throws InterruptedException {
+        while (!load.queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+            if (load.failure.get() != null) {
+                // Unblock the remaining writers, they stop on the failure
+                load.queue.clear();
+            }
+            boolean running = false;
+            for (Future<?> writer : writers) {
+                running = running || !writer.isDone();
+            }
+            if (!running) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Builds the statement executed for each row.
+     */
+    String statement(Dialect dialect) throws SQLFeatureNotSupportedException {
+        String names = String.join(", ", columns);
+        String parameters = String.join(", ", Collections.nCopies(columns.length, "?"));
+        String insert = "INSERT INTO " + table + " (" + names + ") VALUES (" + parameters + ")";
+        if (mode == Mode.INSERT) {
+            return insert;
+        }
+        List<String> keyList = Arrays.asList(keys);
+        List<String> values = new ArrayList<>();
+        for (String column : columns) {
+            if (!keyList.contains(column)) {
+                values.add(column);
+            }
+        }
+        StringBuilder sql = new StringBuilder();
+        switch (dialect) {
+            case H2:
+                return "MERGE INTO " + table + " (" + names + ") KEY (" + String.join(", ", keys) + ") VALUES ("
+                        + parameters + ")";
+            case HSQLDB:
+                sql.append("MERGE INTO ").append(table).append(" USING (VALUES (").append(parameters)
+                        .append(")) AS v (").append(names).append(") ON ");
+                for (int i = 0; i < keys.length; i++) {
+                    sql.append(i == 0 ? "" : " AND ").append(table).append('.').append(keys[i])
+                            .append(" = v.").append(keys[i]);
+                }
+                if (!values.isEmpty()) {
+                    sql.append(" WHEN MATCHED THEN UPDATE SET ");
+                    for (int i = 0; i < values.size(); i++) {
+                        sql.append(i == 0 ? "" : ", ").append(table).append('.').append(values.get(i))
+                                .append(" = v.").append(values.get(i));
+                    }
+                }
+                sql.append(" WHEN NOT MATCHED THEN INSERT (").append(names).append(") VALUES (");
+                for (int i = 0; i < columns.length; i++) {
+                    sql.append(i == 0 ? "" : ", ").append("v.").append(columns[i]);
+                }
+                return sql.append(')').toString();
+            case MYSQL:
+                sql.append(insert).append(" ON DUPLICATE KEY UPDATE ");
+                // Updating a key with itself makes the statement valid when all columns are keys
+                List<String> updated = values.isEmpty() ? keyList : values;
+                for (int i = 0; i < updated.size(); i++) {
+                    sql.append(i == 0 ? "" : ", ").append(updated.get(i)).append(" = VALUES(")
+                            .append(updated.get(i)).append(')');
+                }
+                return sql.toString();
+            case POSTGRESQL:
+                sql.append(insert).append(" ON CONFLICT (").append(String.join(", ", keys)).append(") DO ");
+                if (values.isEmpty()) {
+                    return sql.append("NOTHING").toString();
+                }
+                sql.append("UPDATE SET ");
+                for (int i = 0; i < values.size(); i++) {
+                    sql.append(i == 0 ? "" : ", ").append(values.get(i)).append(" = EXCLUDED.")
+                            .append(values.get(i));
+                }
+                return sql.toString();
+            default:
+                throw new SQLFeatureNotSupportedException("Merging rows is not supported on this database");
+        }
+    }
+
+    /**
+     * The state shared by the writers of a load.
+     */
+    private static final class Load {
+
+        private final BlockingQueue<List<Object[]>> queue;
+
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        private final AtomicLong rows = new AtomicLong();
+
+        private final AtomicLong batches = new AtomicLong();
+
+        private Load(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+
+        private void fail(Throwable error) {
+            if (!failure.compareAndSet(null, error) && failure.get() != error) {
+                failure.get().addSuppressed(error);
+            }
+        }
+    }
+
+    /**
+     * Writes the batches taken from the queue on its own connection.
+     */
+    private final class Writer implements Runnable {
+
+        private final Load load;
+
+        private final Connection connection;
+
+        private final boolean autoCommit;
+
+        private PreparedStatement statement;
+
+        private Boolean rewrite;
+
+        private Writer(Load load, Connection connection) throws SQLException {
+            this.load = load;
+            this.connection = connection;
+            this.autoCommit = connection.getAutoCommit();
+        }
+
+        private void prepare(String sql, Dialect dialect) throws SQLException {
+            connection.setAutoCommit(false);
+            if (dialect == Dialect.MYSQL) {
+                rewrite = setRewriteBatchedStatements(connection, true);
+            }
+            statement = connection.prepareStatement(sql);
+            statement.setQueryTimeout(timeout);
+        }
+
+        @Override
+        public void run() {
+            long uncommitted = 0;
+            try {
+                while (load.failure.get() == null) {
+                    // Polls, so a writer stops on the failure of another one even if no end marker is queued
+                    List<Object[]> batch = load.queue.poll(100, TimeUnit.MILLISECONDS);
+                    if (batch == END) {
+                        break;
+                    } else if (batch == null) {
+                        continue;
+                    }
+                    for (Object[] row : batch) {
+                        for (int i = 0; i < row.length; i++) {
+                            if (row[i] == null) {
+                                statement.setNull(i + 1, Types.NULL);
+                            } else {
+                                statement.setObject(i + 1, row[i]);
+                            }
+                        }
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                    uncommitted += batch.size();
+                    load.batches.incrementAndGet();
+                    if (uncommitted >= commitSize) {
+                        connection.commit();
+                        load.rows.addAndGet(uncommitted);
+                        uncommitted = 0;
+                    }
+                }
+                if (load.failure.get() == null) {
+                    connection.commit();
+                    load.rows.addAndGet(uncommitted);
+                } else {
+                    connection.rollback();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                load.fail(new SQLException("Bulk load into " + table + " interrupted", e));
+                rollback();
+            } catch (SQLException | RuntimeException e) {
+                load.fail(e);
+                rollback();
+            } finally {
+                close();
+            }
+        }
+
+        private void rollback() {
+            try {
+                connection.rollback();
+            } catch (SQLException e) {
+                LOGGER.debug("Cannot rollback the bulk load into {}", table, e);
+            }
+        }
+
+        private void close() {
+            try {
+                if (statement != null) {
+                    statement.close();
+                }
+                if (rewrite != null) {
+                    setRewriteBatchedStatements(connection, rewrite);
+                }
+                connection.setAutoCommit(autoCommit);
+            } catch (SQLException e) {
+                LOGGER.debug("Cannot restore the connection used to load {}", table, e);
+            } finally {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    LOGGER.debug("Cannot close the connection used to load {}", table, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Enables or disables the {@code rewriteBatchedStatements} option of a MySQL connection. The option is set on the
+     * physical connection of the driver, unwrapped through the pool (and the wrappers of the data source) as a
+     * {@value #MYSQL_CONNECTION_PROPERTIES}. This interface is not imported by the bundle, so it is loaded by the class
+     * loader of the driver (the one of its metadata object, which is not wrapped), or by the one of this class.
+     *
+     * @param connection the connection
+     * @param enabled    the value of the option
+     * @return the previous value, {@literal null} if the connection does not support this option
+     */
+    private static Boolean setRewriteBatchedStatements(Connection connection, boolean enabled) {
+        try {
+            Class<?> type = load(MYSQL_CONNECTION_PROPERTIES, connection.getMetaData().getClass().getClassLoader());
+            if (type == null || !connection.isWrapperFor(type)) {
+                LOGGER.debug("The connection {} does not support the rewriteBatchedStatements option", connection);
+                return null;
+            }
+            Object physical = connection.unwrap(type);
+            Boolean previous = (Boolean) type.getMethod("getRewriteBatchedStatements").invoke(physical);
+            type.getMethod("setRewriteBatchedStatements", boolean.class).invoke(physical, enabled);
+            return previous;
+        } catch (ReflectiveOperationException | SQLException | RuntimeException e) {
+            LOGGER.debug("Cannot set the rewriteBatchedStatements option of {}", connection, e);
+            return null;
+        }
+    }
+
+    private static Class<?> load(String name, ClassLoader driver) {
+        for (ClassLoader loader : new ClassLoader[]{driver, BulkLoader.class.getClassLoader()}) {
+            if (loader == null) {
+                continue;
+            }
+            try {
+                return Class.forName(name, false, loader);
+            } catch (ClassNotFoundException e) {
+                // Try the next one
+            }
+        }
+        return null;
+    }
+
+    /**
+     * The statistics of a load.
+     */
+    public static final class Result {
+
+        private final long rows;
+
+        private final long batches;
+
+        private final long nanos;
+
+        private Result(long rows, long batches, long nanos) {
+            this.rows = rows;
+            this.batches = batches;
+            this.nanos = nanos;
+        }
+
+        /**
+         * @return the number of rows written
+         */
+        public long getRows() {
+            return rows;
+        }
+
+        /**
+         * @return the number of batches executed
+         */
+        public long getBatches() {
+            return batches;
+        }
+
+        /**
+         * @param unit the unit
+         * @return the duration of the load in the given unit
+         */
+        public long getDuration(TimeUnit unit) {
+            return unit.convert(nanos, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @return the throughput of the load
+         */
+        public double getRowsPerSecond() {
+            return nanos == 0 ? 0 : rows * 1e9 / nanos;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A copy of the content of an embedded database (H2 or HSQLDB), captured once, and restored quickly between tests or
+ * development cycles, instead of rebuilding the schema and seeding the data again:
+ * <pre>
+ * DatabaseSnapshot snapshot = DatabaseSnapshot.capture(source);
+ * // ... the database is modified
+ * snapshot.restore(source);
+ * </pre>
+ * On H2, the database is saved in a compressed script file with the {@code SCRIPT} command, and restored with
+ * {@code DROP ALL OBJECTS} and {@code RUNSCRIPT}, without leaving the database. On HSQLDB, the schema definition and the
+ * rows of the tables are kept in memory, and restored after dropping the schemas, in batches.
+ * <p>
+ * The restore replaces the whole content of the database (including the objects created after the capture), and must
+ * not run concurrently with other uses of the database. The {@code SnapshotRule} of the test jar restores a snapshot
+ * before each test.
+ */
+public final class DatabaseSnapshot implements AutoCloseable {
+
+    /**
+     * The schemas managed by HSQLDB itself.
+     */
+    private static final List<String> HSQLDB_SYSTEM_SCHEMAS = Arrays.asList("INFORMATION_SCHEMA",
+            "SYSTEM_LOBS");
+
+    private final Image image;
+
+    private DatabaseSnapshot(Image image) {
+        this.image = image;
+    }
+
+    /**
+     * Captures the content of the database of the given data source.
+     *
+     * @param source the data source
+     * @return the snapshot
+     * @throws SQLException if the database is not supported (only H2 and HSQLDB are), or cannot be read
+     */
+    public static DatabaseSnapshot capture(DataSource source) throws SQLException {
+        try (Connection connection = source.getConnection()) {
+            return capture(connection);
+        }
+    }
+
+    /**
+     * Captures the content of the database of the given connection.
+     *
+     * @param connection the connection
+     * @return the snapshot
+     * @throws SQLException if the database is not supported (only H2 and HSQLDB are), or cannot be read
+     */
+    public static DatabaseSnapshot capture(Connection connection) throws SQLException {
+        Dialect dialect = Dialect.of(connection);
+        switch (dialect) {
+            case H2:
+                return new DatabaseSnapshot(H2Image.capture(connection));
+            case HSQLDB:
+                return new DatabaseSnapshot(HsqldbImage.capture(connection));
+            default:
+                throw new SQLException("Snapshots are only supported on H2 and HSQLDB databases, not on "
+                        + connection.getMetaData().getDatabaseProductName());
+        }
+    }
+
+    /**
+     * Restores the content of the database of the given data source.
+     *
+     * @param source the data source
+     * @throws SQLException if the snapshot cannot be restored
+     */
+    public void restore(DataSource source) throws SQLException {
+        try (Connection connection = source.getConnection()) {
+            restore(connection);
+        }
+    }
+
+    /**
+     * Restores the content of the database of the given connection. The auto-commit mode of the connection is
+     * preserved.
+     *
+     * @param connection the connection
+     * @throws SQLException if the snapshot cannot be restored
+     */
+    public void restore(Connection connection) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        try {
+            connection.setAutoCommit(false);
+            image.restore(connection);
+            connection.commit();
+        } catch (SQLException | RuntimeException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Releases the snapshot (deletes the script file of an H2 snapshot).
+     */
+    @Override
+    public void close() {
+        image.close();
+    }
+
+    private static String quote(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+
+    private static String literal(String value) {
+        return '\'' + value.replace("'", "''") + '\'';
+    }
+
+    /**
+     * The saved content of a database.
+     */
+    private interface Image {
+        void restore(Connection connection) throws SQLException;
+
+        void close();
+    }
+
+    /**
+     * An H2 database, saved in a compressed script.
+     */
+    private static final class H2Image implements Image {
+
+        private final File script;
+
+        private H2Image(File script) {
+            this.script = script;
+        }
+
+        static H2Image capture(Connection connection) throws SQLException {
+            File script;
+            try {
+                script = File.createTempFile("wisdom-snapshot-", ".sql.zip");
+            } catch (IOException e) {
+                throw new SQLException("Cannot create the snapshot file", e);
+            }
+            script.deleteOnExit();
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("SCRIPT TO " + literal(script.getAbsolutePath()) + " COMPRESSION DEFLATE");
+            } catch (SQLException e) {
+                script.delete();
+                throw e;
+            }
+            return new H2Image(script);
+        }
+
+        @Override
+        public void restore(Connection connection) throws SQLException {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("DROP ALL OBJECTS");
+                statement.execute("RUNSCRIPT FROM " + literal(script.getAbsolutePath()) + " COMPRESSION DEFLATE");
+            }
+        }
+
+        @Override
+        public void close() {
+            script.delete();
+        }
+    }
+
+    /**
+     * An HSQLDB database, kept in memory: the statements creating its schemas, and the rows of its tables.
+     */
+    private static final class HsqldbImage implements Image {
+
+        private final List<String> definitions;
+
+        private final List<Table> tables;
+
+        private HsqldbImage(List<String> definitions, List<Table> tables) {
+            this.definitions = definitions;
+            this.tables = tables;
+        }
+
+        static HsqldbImage capture(Connection connection) throws SQLException {
+            List<String> definitions = new ArrayList<>();
+            try (Statement statement = connection.createStatement();
+                 // Without a file, the script contains the definitions only
+                 ResultSet results = statement.executeQuery("SCRIPT")) {
+                while (results.next()) {
+                    String line = results.getString(1);
+                    if (isDefinition(line)) {
+                        definitions.add(line);
+                    }
+                }
+            }
+            List<Table> tables = new ArrayList<>();
+            DatabaseMetaData metadata = connection.getMetaData();
+            try (ResultSet results = metadata.getTables(null, null, "%", new String[]{"TABLE"})) {
+                while (results.next()) {
+                    String schema = results.getString("TABLE_SCHEM");
+                    if (!HSQLDB_SYSTEM_SCHEMAS.contains(schema)) {
+                        tables.add(Table.capture(connection, schema, results.getString("TABLE_NAME")));
+                    }
+                }
+            }
+            return new HsqldbImage(Collections.unmodifiableList(definitions), Collections.unmodifiableList(tables));
+        }
+
+        /**
+         * Selects the statements of the script defining the user objects. The database settings, the users and the
+         * grants are not changed by the restore, and the system schemas are left as is.
+         */
+        private static boolean isDefinition(String line) {
+            String upper = line.toUpperCase(Locale.ENGLISH);
+            if (upper.startsWith("CREATE SCHEMA ")) {
+                return !upper.startsWith("CREATE SCHEMA PUBLIC ");
+            }
+            if (upper.startsWith("ALTER SEQUENCE SYSTEM_LOBS.")) {
+                return false;
+            }
+            return upper.startsWith("SET SCHEMA ")
+                    || (upper.startsWith("CREATE ") && !upper.startsWith("CREATE USER ")
+                    && !upper.startsWith("CREATE ROLE "))
+                    || upper.startsWith("ALTER TABLE ")
+                    || upper.startsWith("ALTER SEQUENCE ");
+        }
+
+        @Override
+        public void restore(Connection connection) throws SQLException {
+            String schema = connection.getSchema();
+            try (Statement statement = connection.createStatement()) {
+                List<String> schemas = new ArrayList<>();
+                try (ResultSet results = connection.getMetaData().getSchemas()) {
+                    while (results.next()) {
+                        schemas.add(results.getString("TABLE_SCHEM"));
+                    }
+                }
+                statement.execute("SET DATABASE REFERENTIAL INTEGRITY FALSE");
+                try {
+                    for (String name : schemas) {
+                        if ("PUBLIC".equals(name)) {
+                            // Recreated empty
+                            statement.execute("DROP SCHEMA PUBLIC CASCADE");
+                        } else if (!HSQLDB_SYSTEM_SCHEMAS.contains(name)) {
+                            statement.execute("DROP SCHEMA " + quote(name) + " CASCADE");
+                        }
+                    }
+                    for (String definition : definitions) {
+                        statement.addBatch(definition);
+                    }
+                    statement.executeBatch();
+                    for (Table table : tables) {
+                        table.restore(connection);
+                    }
+                } finally {
+                    statement.execute("SET DATABASE REFERENTIAL INTEGRITY TRUE");
+                }
+            }
+            if (schema != null) {
+                connection.setSchema(schema);
+            }
+        }
+
+        @Override
+        public void close() {
+            // Nothing to release
+        }
+    }
+
+    /**
+     * The rows of a table.
+     */
+    private static final class Table {
+
+        private final String insert;
+
+        private final int[] types;
+
+        private final List<Object[]> rows;
+
+        private Table(String insert, int[] types, List<Object[]> rows) {
+            this.insert = insert;
+            this.types = types;
+            this.rows = rows;
+        }
+
+        static Table capture(Connection connection, String schema, String name) throws SQLException {
+            String table = quote(schema) + "." + quote(name);
+            List<Object[]> rows = new ArrayList<>();
+            try (Statement statement = connection.createStatement();
+                 ResultSet results = statement.executeQuery("SELECT * FROM " + table)) {
+                ResultSetMetaData metadata = results.getMetaData();
+                int[] types = new int[metadata.getColumnCount()];
+                StringBuilder insert = new StringBuilder("INSERT INTO ").append(table).append(" VALUES (");
+                for (int i = 0; i < types.length; i++) {
+                    types[i] = metadata.getColumnType(i + 1);
+                    insert.append(i == 0 ? "?" : ", ?");
+                }
+                insert.append(')');
+                while (results.next()) {
+                    Object[] row = new Object[types.length];
+                    for (int i = 0; i < types.length; i++) {
+                        row[i] = read(results, i + 1, types[i]);
+                    }
+                    rows.add(row);
+                }
+                return new Table(insert.toString(), types, rows);
+            }
+        }
+
+        /**
+         * Reads a value, copying the large objects, as they do not outlive the result set.
+         */
+        private static Object read(ResultSet results, int column, int type) throws SQLException {
+            switch (type) {
+                case Types.BLOB:
+                    return results.getBytes(column);
+                case Types.CLOB:
+                case Types.NCLOB:
+                    return results.getString(column);
+                default:
+                    return results.getObject(column);
+            }
+        }
+
+        void restore(Connection connection) throws SQLException {
+            if (rows.isEmpty()) {
+                return;
+            }
+            try (PreparedStatement statement = connection.prepareStatement(insert)) {
+                for (Object[] row : rows) {
+                    for (int i = 0; i < row.length; i++) {
+                        if (row[i] == null) {
+                            statement.setNull(i + 1, types[i]);
+                        } else {
+                            statement.setObject(i + 1, row[i]);
+                        }
+                    }
+                    statement.addBatch();
+                }
+                statement.executeBatch();
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Locale;
+
+/**
+ * The databases needing a specific handling (merge statement, batching or cursor options), identified from the
+ * product name reported by the driver.
+ */
+enum Dialect {
+    H2, HSQLDB, DERBY, SQLITE, MYSQL, POSTGRESQL, GENERIC;
+
+    /**
+     * Identifies the database of a connection.
+     *
+     * @param connection the connection
+     * @return the dialect, {@link #GENERIC} if the database is not known
+     * @throws SQLException if the metadata of the connection cannot be read
+     */
+    static Dialect of(Connection connection) throws SQLException {
+        String product = connection.getMetaData().getDatabaseProductName().toLowerCase(Locale.ENGLISH);
+        if (product.contains("h2")) {
+            return H2;
+        } else if (product.contains("hsql")) {
+            return HSQLDB;
+        } else if (product.contains("derby")) {
+            return DERBY;
+        } else if (product.contains("sqlite")) {
+            return SQLITE;
+        } else if (product.contains("mysql") || product.contains("mariadb")) {
+            return MYSQL;
+        } else if (product.contains("postgresql")) {
+            return POSTGRESQL;
+        }
+        return GENERIC;
+    }
+}
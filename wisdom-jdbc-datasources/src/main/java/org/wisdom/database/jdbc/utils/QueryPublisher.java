@@ -0,0 +1,225 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A Reactive Streams publisher emitting the results of a {@link StreamingQuery}:
+ * <pre>
+ * Publisher&lt;String&gt; names = QueryPublisher.of(StreamingQuery.of(dataSource, "SELECT name FROM items"),
+ *         row -&gt; row.getString(1));
+ * </pre>
+ * Each subscription opens its own cursor on the first request, and reads as many rows as requested. The JDBC calls
+ * and the signals to the subscriber are made by a single task at a time (drain loop), so the cursor is never accessed
+ * concurrently.
+ * <p>
+ * This class is kept separated from {@link StreamingQuery}, so the Reactive Streams API (an optional dependency) is
+ * only required when a publisher is created.
+ *
+ * @param <T> the type of elements
+ */
+public final class QueryPublisher<T> implements Publisher<T> {
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    /**
+     * The executor used when none is given. Idle threads are released after one minute.
+     */
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "wisdom-jdbc-stream-" + THREADS.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final StreamingQuery query;
+
+    private final StreamingQuery.RowMapper<T> mapper;
+
+    private final Executor executor;
+
+    private QueryPublisher(StreamingQuery query, StreamingQuery.RowMapper<T> mapper, Executor executor) {
+        this.query = query;
+        this.mapper = mapper;
+        this.executor = executor;
+    }
+
+    /**
+     * Creates a publisher emitting the results of a query. The query is executed for each subscriber, once it
+     * requests its first element. The rows are read on demand, in a thread of a shared pool.
+     *
+     * @param query  the query
+     * @param mapper the function mapping each row
+     * @param <T>    the type of elements
+     * @return the publisher
+     */
+    public static <T> Publisher<T> of(StreamingQuery query, StreamingQuery.RowMapper<T> mapper) {
+        return new QueryPublisher<>(query, mapper, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * Creates a publisher emitting the results of a query. The query is executed for each subscriber, once it
+     * requests its first element. The rows are read on demand, in a thread of the given executor. As JDBC calls are
+     * blocking, the executor should not be a pool of event loop threads.
+     *
+     * @param query    the query
+     * @param mapper   the function mapping each row
+     * @param executor the executor reading the rows
+     * @param <T>      the type of elements
+     * @return the publisher
+     */
+    public static <T> Publisher<T> of(StreamingQuery query, StreamingQuery.RowMapper<T> mapper, Executor executor) {
+        return new QueryPublisher<>(query, mapper, executor);
+    }
+
+    @Override
+    public void subscribe(Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("The subscriber must be set");
+        }
+        subscriber.onSubscribe(new QuerySubscription(subscriber));
+    }
+
+    private final class QuerySubscription implements Subscription, Runnable {
+
+        private final Subscriber<? super T> subscriber;
+
+        private final AtomicLong requested = new AtomicLong();
+
+        /**
+         * The number of pending drain requests, the drain loop runs while it is positive.
+         */
+        private final AtomicInteger pending = new AtomicInteger();
+
+        private volatile boolean cancelled;
+
+        private volatile Throwable invalid;
+
+        // Only accessed by the drain loop
+
+        private StreamingQuery.Cursor cursor;
+
+        private boolean done;
+
+        private QuerySubscription(Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalid = new IllegalArgumentException("The number of requested elements must be positive: " + n);
+            } else {
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, next));
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    // Nothing runs the loop, so the subscription ends here
+                    pending.set(0);
+                    if (!cancelled) {
+                        cancelled = true;
+                        subscriber.onError(e);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!done) {
+                    drain();
+                }
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (cancelled) {
+                terminate();
+                return;
+            }
+            if (invalid != null) {
+                terminate();
+                subscriber.onError(invalid);
+                return;
+            }
+            long demand = requested.get();
+            long emitted = 0;
+            try {
+                if (cursor == null && demand > 0) {
+                    cursor = query.open();
+                }
+                while (emitted < demand && !cancelled) {
+                    if (!cursor.next()) {
+                        terminate();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    subscriber.onNext(mapper.map(cursor.results()));
+                    emitted++;
+                }
+            } catch (Exception e) {
+                terminate();
+                subscriber.onError(e);
+                return;
+            }
+            if (cancelled) {
+                terminate();
+            } else if (emitted > 0 && demand != Long.MAX_VALUE) {
+                requested.addAndGet(-emitted);
+            }
+        }
+
+        private void terminate() {
+            done = true;
+            if (cursor != null) {
+                cursor.closeQuietly();
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Demarcates read-only units of work. While a read-only unit of work is running on the current thread, the
+ * connections obtained from a data source configured with replicas (using {@code db.name.replicas}) are served by
+ * the replicas, even if they are not explicitly marked as read-only.
+ * <p>
+ * Units of work can be nested, {@link #enter()} and {@link #exit()} calls must be balanced:
+ * <pre>
+ * ReadOnly.enter();
+ * try {
+ *     // ...
+ * } finally {
+ *     ReadOnly.exit();
+ * }
+ * </pre>
+ */
+public final class ReadOnly {
+
+    /**
+     * The nesting depth of the read-only units of work running on the current thread, {@literal null} if none.
+     */
+    private static final ThreadLocal<Integer> DEPTH = new ThreadLocal<>();
+
+    private ReadOnly() {
+        // Avoid direct instantiation
+    }
+
+    /**
+     * Starts a read-only unit of work on the current thread.
+     */
+    public static void enter() {
+        Integer depth = DEPTH.get();
+        DEPTH.set(depth == null ? 1 : depth + 1);
+    }
+
+    /**
+     * Ends the current read-only unit of work.
+     */
+    public static void exit() {
+        Integer depth = DEPTH.get();
+        if (depth == null || depth <= 1) {
+            DEPTH.remove();
+        } else {
+            DEPTH.set(depth - 1);
+        }
+    }
+
+    /**
+     * @return {@literal true} if a read-only unit of work is running on the current thread
+     */
+    public static boolean isActive() {
+        return DEPTH.get() != null;
+    }
+
+    /**
+     * Executes the given task in a read-only unit of work.
+     *
+     * @param task the task
+     * @param <T>  the type of result
+     * @return the result of the task
+     * @throws Exception if the task throws an exception
+     */
+    public static <T> T execute(Callable<T> task) throws Exception {
+        enter();
+        try {
+            return task.call();
+        } finally {
+            exit();
+        }
+    }
+}
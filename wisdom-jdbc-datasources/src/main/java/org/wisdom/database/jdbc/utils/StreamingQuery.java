@@ -0,0 +1,261 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Reads the results of a query without loading them in memory:
+ * <pre>
+ * try (Stream&lt;String&gt; names = StreamingQuery.of(dataSource, "SELECT name FROM items WHERE price &gt; ?", 10)
+ *         .stream(row -&gt; row.getString(1))) {
+ *     names.forEach(writer::println);
+ * }
+ * </pre>
+ * Each consumer gets its own connection and cursor, opened with the options making the driver fetch the rows by
+ * chunks instead of buffering the whole result: {@code fetchSize} set to {@link Integer#MIN_VALUE} on MySQL (row by
+ * row streaming), auto-commit disabled on PostgreSQL (the fetch size is ignored otherwise), and the fetch size hint
+ * on the other databases. The embedded databases (H2, HSQLDB, Derby, SQLite) do not need specific options.
+ * <p>
+ * The connection is held until the consumer is done: the stream must be closed (it is also closed once all the rows
+ * have been read). The results can also be published to a Reactive Streams subscriber with {@link QueryPublisher},
+ * which releases the connection on completion, error or cancellation. This class does not reference the Reactive
+ * Streams API, so it can be used without it.
+ */
+public final class StreamingQuery {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingQuery.class);
+
+    /**
+     * Maps the current row of a result set to an object.
+     *
+     * @param <T> the type of object
+     */
+    @FunctionalInterface
+    public interface RowMapper<T> {
+        /**
+         * Maps the current row. This method must not move the cursor.
+         *
+         * @param row the result set, positioned on the row
+         * @return the object
+         * @throws SQLException if the row cannot be read
+         */
+        T map(ResultSet row) throws SQLException;
+    }
+
+    private final DataSource dataSource;
+
+    private final String sql;
+
+    private final Object[] parameters;
+
+    private int fetchSize = 1000;
+
+    private StreamingQuery(DataSource dataSource, String sql, Object[] parameters) {
+        this.dataSource = dataSource;
+        this.sql = sql;
+        this.parameters = parameters;
+    }
+
+    /**
+     * Creates a query.
+     *
+     * @param dataSource the data source
+     * @param sql        the query
+     * @param parameters the values of the query parameters
+     * @return the query
+     */
+    public static StreamingQuery of(DataSource dataSource, String sql, Object... parameters) {
+        if (dataSource == null || sql == null) {
+            throw new IllegalArgumentException("The data source and the query must be set");
+        }
+        return new StreamingQuery(dataSource, sql, parameters.clone());
+    }
+
+    /**
+     * @param fetchSize the number of rows fetched from the database at once (default: 1000), ignored on MySQL that
+     *                  streams the rows one by one
+     * @return the current query
+     */
+    public StreamingQuery fetchSize(int fetchSize) {
+        if (fetchSize <= 0) {
+            throw new IllegalArgumentException("fetchSize must be positive: " + fetchSize);
+        }
+        this.fetchSize = fetchSize;
+        return this;
+    }
+
+    /**
+     * Executes the query and returns its results as a sequential stream. The stream holds a connection until it is
+     * closed or all its elements have been consumed, so it should be used in a try-with-resources statement. An
+     * error while reading the results is thrown as an {@link IllegalStateException} having the
+     * {@link SQLException} as cause.
+     *
+     * @param mapper the function mapping each row
+     * @param <T>    the type of elements
+     * @return the stream
+     * @throws SQLException if the query cannot be executed
+     */
+    public <T> Stream<T> stream(RowMapper<T> mapper) throws SQLException {
+        Cursor cursor = open();
+        Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE, Spliterator.ORDERED) {
+            @Override
+            public boolean tryAdvance(Consumer<? super T> action) {
+                T element;
+                try {
+                    if (!cursor.next()) {
+                        return false;
+                    }
+                    element = mapper.map(cursor.results());
+                } catch (SQLException e) {
+                    cursor.closeQuietly();
+                    throw new IllegalStateException("Cannot read the results of " + sql, e);
+                }
+                action.accept(element);
+                return true;
+            }
+        };
+        return StreamSupport.stream(spliterator, false).onClose(cursor::closeQuietly);
+    }
+
+    /**
+     * Opens a cursor on the results of the query.
+     *
+     * @return the cursor
+     * @throws SQLException if the query cannot be executed
+     */
+    Cursor open() throws SQLException {
+        Cursor cursor = new Cursor(dataSource.getConnection());
+        try {
+            cursor.execute();
+            return cursor;
+        } catch (SQLException | RuntimeException e) {
+            cursor.closeQuietly();
+            throw e;
+        }
+    }
+
+    /**
+     * An open result set, with the statement and the connection it holds.
+     */
+    final class Cursor {
+
+        private final Connection connection;
+
+        private boolean autoCommit = true;
+
+        private boolean restoreAutoCommit;
+
+        private PreparedStatement statement;
+
+        private ResultSet results;
+
+        private boolean closed;
+
+        private Cursor(Connection connection) {
+            this.connection = connection;
+        }
+
+        private void execute() throws SQLException {
+            Dialect dialect = Dialect.of(connection);
+            if (dialect == Dialect.POSTGRESQL) {
+                // PostgreSQL only uses a cursor in a transaction
+                autoCommit = connection.getAutoCommit();
+                if (autoCommit) {
+                    connection.setAutoCommit(false);
+                    restoreAutoCommit = true;
+                }
+            }
+            statement = connection.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(dialect == Dialect.MYSQL ? Integer.MIN_VALUE : fetchSize);
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            results = statement.executeQuery();
+        }
+
+        /**
+         * @return the result set
+         */
+        ResultSet results() {
+            return results;
+        }
+
+        /**
+         * Moves to the next row. The cursor is closed after the last row.
+         *
+         * @return {@literal true} if the cursor is on a row, {@literal false} if there are no more rows
+         * @throws SQLException if the next row cannot be read
+         */
+        boolean next() throws SQLException {
+            if (closed) {
+                return false;
+            }
+            if (results.next()) {
+                return true;
+            }
+            closeQuietly();
+            return false;
+        }
+
+        /**
+         * Closes the result set and the statement, and returns the connection to the pool. Errors are logged.
+         */
+        void closeQuietly() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if (results != null) {
+                    results.close();
+                }
+                if (statement != null) {
+                    statement.close();
+                }
+                if (restoreAutoCommit) {
+                    // Nothing was written, ends the read transaction
+                    connection.rollback();
+                    connection.setAutoCommit(autoCommit);
+                }
+            } catch (SQLException e) {
+                LOGGER.debug("Cannot close the cursor of {}", sql, e);
+            } finally {
+                try {
+                    connection.close();
+                } catch (SQLException e) {
+                    LOGGER.debug("Cannot close the connection used by {}", sql, e);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the tenant of the connections obtained on the current thread. When a data source is configured with
+ * tenants (using {@code db.name.tenants}), its connections are served by the pool (or the schema) of the current
+ * tenant. Without current tenant, they are served by the data source itself.
+ * <pre>
+ * Tenant.execute("acme", () -&gt; {
+ *     try (Connection connection = dataSource.getConnection()) {
+ *         // ...
+ *     }
+ * });
+ * </pre>
+ * Tenant identifiers are inserted in urls and schema names, so they can only contain letters, digits, {@code _} and
+ * {@code -}.
+ */
+public final class Tenant {
+
+    private static final Pattern IDENTIFIER = Pattern.compile("[A-Za-z0-9_\\-]+");
+
+    private static final ThreadLocal<String> CURRENT = new ThreadLocal<>();
+
+    private Tenant() {
+        // Avoid direct instantiation
+    }
+
+    /**
+     * @return the tenant of the current thread, {@literal null} if none
+     */
+    public static String current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Sets the tenant of the current thread. {@link #clear()} must be called once done.
+     *
+     * @param tenant the tenant identifier, {@literal null} to clear the current tenant
+     * @return the previous tenant, {@literal null} if none
+     */
+    public static String set(String tenant) {
+        String previous = CURRENT.get();
+        if (tenant == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(check(tenant));
+        }
+        return previous;
+    }
+
+    /**
+     * Clears the tenant of the current thread.
+     */
+    public static void clear() {
+        CURRENT.remove();
+    }
+
+    /**
+     * Executes the given task for a tenant. The previous tenant is restored afterwards.
+     *
+     * @param tenant the tenant identifier
+     * @param task   the task
+     * @param <T>    the type of result
+     * @return the result of the task
+     * @throws Exception if the task throws an exception
+     */
+    public static <T> T execute(String tenant, Callable<T> task) throws Exception {
+        String previous = set(tenant);
+        try {
+            return task.call();
+        } finally {
+            set(previous);
+        }
+    }
+
+    /**
+     * Checks a tenant identifier.
+     *
+     * @param tenant the identifier
+     * @return the identifier
+     * @throws IllegalArgumentException if the identifier contains forbidden characters
+     */
+    public static String check(String tenant) {
+        if (tenant == null || !IDENTIFIER.matcher(tenant).matches()) {
+            throw new IllegalArgumentException("Invalid tenant identifier: " + tenant);
+        }
+        return tenant;
+    }
+}
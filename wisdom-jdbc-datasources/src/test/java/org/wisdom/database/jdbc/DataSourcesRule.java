@@ -0,0 +1,138 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2014 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc;
+
+import com.typesafe.config.ConfigFactory;
+import org.h2.Driver;
+import org.junit.rules.ExternalResource;
+import org.mockito.invocation.InvocationOnMock;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.wisdom.api.configuration.ApplicationConfiguration;
+import org.wisdom.configuration.ConfigurationImpl;
+import org.wisdom.database.jdbc.impl.HikariCPDataSources;
+
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Creates a {@link HikariCPDataSources} from a configuration map, and stops it once the test completes, whether it
+ * succeeds or not.
+ */
+public class DataSourcesRule extends ExternalResource {
+
+    private HikariCPDataSources sources;
+
+    private ApplicationConfiguration configuration;
+
+    /**
+     * Starts the data sources described by the given configuration, using the H2 driver.
+     *
+     * @param map the configuration, relative to the {@code db} prefix
+     * @return the started data sources
+     */
+    public HikariCPDataSources start(Map<String, Object> map) throws SQLException {
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+        return start("org.h2.Driver", factory, map);
+    }
+
+    /**
+     * Starts the data sources described by the given configuration, using the given factory.
+     *
+     * @param driver  the driver class the factory is bound for
+     * @param factory the factory
+     * @param map     the configuration, relative to the {@code db} prefix
+     * @return the started data sources
+     */
+    public HikariCPDataSources start(String driver, DataSourceFactory factory, Map<String, Object> map)
+            throws SQLException {
+        HikariCPDataSources created = create(driver, factory, map);
+        created.onStart();
+        return created;
+    }
+
+    /**
+     * Creates the data sources described by the given configuration, without starting them. It lets the test bind
+     * the other services before calling {@link HikariCPDataSources#onStart()}.
+     *
+     * @param driver  the driver class the factory is bound for
+     * @param factory the factory
+     * @param map     the configuration, relative to the {@code db} prefix
+     * @return the data sources
+     */
+    public HikariCPDataSources create(String driver, DataSourceFactory factory, Map<String, Object> map) {
+        stop();
+        configuration = mock(ApplicationConfiguration.class);
+        // The other settings of the application keep their default value
+        when(configuration.getIntegerWithDefault(anyString(), anyInt())).thenAnswer(DataSourcesRule::byDefault);
+        when(configuration.getLongWithDefault(anyString(), anyLong())).thenAnswer(DataSourcesRule::byDefault);
+        when(configuration.getBooleanWithDefault(anyString(), anyBoolean())).thenAnswer(DataSourcesRule::byDefault);
+        configure(map);
+        sources = new HikariCPDataSources(mock(BundleContext.class)).setApplicationConfiguration(configuration);
+        sources.bindFactory(factory, Collections.singletonMap(DataSourceFactory.OSGI_JDBC_DRIVER_CLASS, driver));
+        return sources;
+    }
+
+    /**
+     * Replaces the configuration and applies it, as the configuration admin would do.
+     *
+     * @param map the new configuration
+     */
+    public void reconfigure(Map<String, Object> map) throws SQLException {
+        configure(map);
+        sources.onStart();
+    }
+
+    /**
+     * Stops the data sources, if not already stopped.
+     */
+    public void stop() {
+        if (sources != null) {
+            HikariCPDataSources stopped = sources;
+            sources = null;
+            stopped.onStop();
+        }
+    }
+
+    @Override
+    protected void after() {
+        stop();
+    }
+
+    private static Object byDefault(InvocationOnMock invocation) {
+        return invocation.getArguments()[1];
+    }
+
+    private void configure(Map<String, Object> map) {
+        when(configuration.getConfiguration(HikariCPDataSources.DB_CONFIGURATION_PREFIX)).thenReturn(
+                new ConfigurationImpl(null, ConfigFactory.parseMap(map)));
+    }
+}
@@ -19,10 +19,20 @@
  */
 package org.wisdom.database.jdbc;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.typesafe.config.ConfigFactory;
+import com.zaxxer.hikari.HikariDataSource;
+import org.apache.geronimo.transaction.log.UnrecoverableLog;
+import org.apache.geronimo.transaction.manager.NamedXAResourceFactory;
+import org.apache.geronimo.transaction.manager.TransactionManagerImpl;
+import org.apache.geronimo.transaction.manager.XidFactory;
+import org.apache.geronimo.transaction.manager.XidFactoryImpl;
 import org.h2.Driver;
+import org.h2.jdbcx.JdbcDataSource;
+import org.h2.tools.Server;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -33,17 +43,46 @@ import org.wisdom.api.configuration.ApplicationConfiguration;
 import org.wisdom.api.configuration.Configuration;
 import org.wisdom.configuration.ConfigurationImpl;
 import org.wisdom.database.jdbc.impl.HikariCPDataSources;
+import org.wisdom.database.jdbc.impl.WrappedDataSource;
+import org.wisdom.database.jdbc.utils.ReadOnly;
+import org.wisdom.database.jdbc.utils.Tenant;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.sql.DataSource;
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import javax.transaction.TransactionManager;
+import javax.transaction.xa.XAResource;
+import javax.transaction.xa.Xid;
 import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
 import static org.mockito.Matchers.any;
 import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 /**
@@ -53,6 +92,9 @@ public class TestWithH2 {
 
     public static final File DB_FILE = new File("target/h2test.db.mv.db");
 
+    @Rule
+    public DataSourcesRule fixture = new DataSourcesRule();
+
     @Before
     public void setUp() {
         if (DB_FILE.isFile()) {
@@ -213,4 +255,834 @@ public class TestWithH2 {
         sources.onStop();
     }
 
-}
\ No newline at end of file
+    @Test
+    public void testReconfiguration() throws ClassNotFoundException, SQLException, InterruptedException {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-reconf"));
+
+        DataSource published = sources.getDataSource();
+        HikariDataSource pool = published.unwrap(HikariDataSource.class);
+        assertThat(pool.getMaximumPoolSize()).isEqualTo(10);
+
+        // Runtime settings are applied in place
+        fixture.reconfigure(ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-reconf",
+                "default.maximumPoolSize", 20));
+        assertThat(sources.getDataSource()).isSameAs(published);
+        assertThat(published.unwrap(HikariDataSource.class)).isSameAs(pool);
+        assertThat(pool.getMaximumPoolSize()).isEqualTo(20);
+
+        // Url changes rebuild the pool, the previous one is drained and closed
+        Connection inUse = published.getConnection();
+        fixture.reconfigure(ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-reconf-2",
+                "default.maximumPoolSize", 20));
+        assertThat(sources.getDataSource()).isSameAs(published);
+        assertThat(published.unwrap(HikariDataSource.class)).isNotSameAs(pool);
+        assertThat(pool.isClosed()).isFalse();
+        assertThat(inUse.isValid(1)).isTrue();
+        inUse.close();
+        for (int i = 0; i < 50 && !pool.isClosed(); i++) {
+            Thread.sleep(100);
+        }
+        assertThat(pool.isClosed()).isTrue();
+    }
+
+    @Test
+    public void testReplicatedDataSourceWithAnUnreachableDatabaseIsDegraded() throws Exception {
+        int closed = freePort();
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>builder()
+                .put("unreachable-primary.driver", "org.h2.Driver")
+                .put("unreachable-primary.url", "jdbc:h2:tcp://localhost:" + closed + "/mem:unreachable")
+                .put("unreachable-primary.connectionTimeout", 500)
+                .put("unreachable-primary.replicas.r1.url", "jdbc:h2:mem:wisdom-reachable-replica")
+                .put("unreachable-replica.driver", "org.h2.Driver")
+                .put("unreachable-replica.url", "jdbc:h2:mem:wisdom-reachable-primary")
+                .put("unreachable-replica.connectionTimeout", 500)
+                .put("unreachable-replica.replicas.r1.url", "jdbc:h2:tcp://localhost:" + closed + "/mem:unreachable")
+                .put("replicated.driver", "org.h2.Driver")
+                .put("replicated.url", "jdbc:h2:mem:wisdom-replicated-primary")
+                .put("replicated.replicas.r1.url", "jdbc:h2:mem:wisdom-replicated-replica")
+                .build());
+        assertThat(((WrappedDataSource) sources.getDataSource("unreachable-primary")).isDegraded()).isTrue();
+        assertThat(((WrappedDataSource) sources.getDataSource("unreachable-replica")).isDegraded()).isTrue();
+        assertThat(((WrappedDataSource) sources.getDataSource("replicated")).isDegraded()).isFalse();
+    }
+
+    @Test
+    public void testReadReplicas() throws Exception {
+        // Each database stores its own name
+        for (String db : new String[]{"wisdom-primary", "wisdom-replica-1", "wisdom-replica-2"}) {
+            try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:" + db + ";DB_CLOSE_DELAY=-1");
+                 Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE origin (name VARCHAR(64))");
+                statement.execute("INSERT INTO origin VALUES ('" + db + "')");
+            }
+        }
+
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>of(
+                "default.driver", "org.h2.Driver",
+                "default.url", "jdbc:h2:mem:wisdom-primary;DB_CLOSE_DELAY=-1",
+                "default.replicas.r1.url", "jdbc:h2:mem:wisdom-replica-1;DB_CLOSE_DELAY=-1",
+                "default.replicas.r2.url", "jdbc:h2:mem:wisdom-replica-2;DB_CLOSE_DELAY=-1"
+        ));
+        assertThat(sources.getDataSources()).hasSize(1);
+
+        // Read-write connections use the primary
+        try (Connection connection = sources.getConnection()) {
+            assertThat(origin(connection)).isEqualTo("wisdom-primary");
+        }
+
+        // Read-only connections use the replicas, the least loaded one first
+        try (Connection c1 = sources.getConnection(); Connection c2 = sources.getConnection()) {
+            c1.setReadOnly(true);
+            c2.setReadOnly(true);
+            String first = origin(c1);
+            String second = origin(c2);
+            assertThat(first).startsWith("wisdom-replica-");
+            assertThat(second).startsWith("wisdom-replica-").isNotEqualTo(first);
+        }
+
+        // So do the connections obtained in a read-only unit of work
+        String origin = ReadOnly.execute(() -> {
+            try (Connection connection = sources.getConnection()) {
+                return origin(connection);
+            }
+        });
+        assertThat(origin).startsWith("wisdom-replica-");
+    }
+
+    @Test
+    public void testConnectionsWithCredentialsAreNotSupportedByThePools() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>of(
+                "credentials.driver", "org.h2.Driver",
+                "credentials.url", "jdbc:h2:mem:wisdom-credentials",
+                "credentials.replicas.r1.url", "jdbc:h2:mem:wisdom-credentials-replica"
+        ));
+        try {
+            sources.getDataSource("credentials").getConnection("sa", "").close();
+            fail("The pool does not support the connections with credentials");
+        } catch (SQLFeatureNotSupportedException e) {
+            // Expected
+        }
+        try (Connection connection = sources.getConnection("credentials")) {
+            assertThat(connection.isValid(1)).isTrue();
+        }
+    }
+
+    @Test
+    public void testMetricsAreExportedInJMX() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>of(
+                "metrics.driver", "org.h2.Driver",
+                "metrics.url", "jdbc:h2:mem:wisdom-metrics"));
+        for (int i = 0; i < 10; i++) {
+            sources.getConnection("metrics").close();
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.wisdom.database.jdbc:type=DataSource,name=metrics");
+        assertThat(server.isRegistered(name)).isTrue();
+        assertThat(server.getAttribute(name, "DataSourceName")).isEqualTo("metrics");
+        assertThat((Long) ((CompositeData) server.getAttribute(name, "AcquireTime")).get("count"))
+                .isGreaterThanOrEqualTo(10L);
+        assertThat((Long) ((CompositeData) server.getAttribute(name, "UsageTime")).get("count"))
+                .isGreaterThanOrEqualTo(10L);
+        assertThat((Long) ((CompositeData) server.getAttribute(name, "CreationTime")).get("count"))
+                .isGreaterThanOrEqualTo(1L);
+
+        fixture.stop();
+        assertThat(server.isRegistered(name)).isFalse();
+    }
+
+    @Test
+    public void testStatementCache() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>of(
+                "cached.driver", "org.h2.Driver",
+                "cached.url", "jdbc:h2:mem:wisdom-cache",
+                "cached.maximumPoolSize", 1,
+                "cached.statementCacheSize", 4));
+        for (int i = 0; i < 10; i++) {
+            try (Connection connection = sources.getConnection("cached")) {
+                // The statement is not closed explicitly, the pool closes it when the connection is returned.
+                PreparedStatement statement = connection.prepareStatement("SELECT ? FROM dual");
+                statement.setInt(1, i);
+                try (ResultSet results = statement.executeQuery()) {
+                    assertThat(results.next()).isTrue();
+                    assertThat(results.getInt(1)).isEqualTo(i);
+                }
+            }
+        }
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.wisdom.database.jdbc:type=DataSource,name=cached");
+        assertThat(server.getAttribute(name, "StatementCacheSize")).isEqualTo(4);
+        assertThat(server.getAttribute(name, "StatementCacheMisses")).isEqualTo(1L);
+        assertThat(server.getAttribute(name, "StatementCacheHits")).isEqualTo(9L);
+    }
+
+    @Test
+    public void testAdaptiveSizing() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>builder()
+                .put("adaptive.driver", "org.h2.Driver")
+                .put("adaptive.url", "jdbc:h2:mem:wisdom-adaptive")
+                .put("adaptive.maximumPoolSize", 8)
+                .put("adaptive.adaptiveSizing.interval", 100)
+                .put("adaptive.adaptiveSizing.samples", 2)
+                .put("adaptive.adaptiveSizing.minimumSize", 2)
+                .build());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.wisdom.database.jdbc:type=PoolSizer,name=adaptive");
+        assertThat(server.isRegistered(name)).isTrue();
+        // The pool is idle, so it shrinks
+        long deadline = System.currentTimeMillis() + 10000;
+        while ((Long) server.getAttribute(name, "Shrinks") == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat((Long) server.getAttribute(name, "Shrinks")).isPositive();
+        assertThat((Integer) server.getAttribute(name, "CurrentSize")).isLessThan(8);
+        assertThat((CompositeData[]) server.getAttribute(name, "Decisions")).isNotEmpty();
+        sources.getConnection("adaptive").close();
+
+        fixture.stop();
+        assertThat(server.isRegistered(name)).isFalse();
+    }
+
+    @Test
+    public void testAdaptiveSizingOfAnExhaustedPool() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>builder()
+                .put("exhausted.driver", "org.h2.Driver")
+                .put("exhausted.url", "jdbc:h2:mem:wisdom-exhausted")
+                .put("exhausted.maximumPoolSize", 1)
+                .put("exhausted.connectionTimeout", 5000)
+                .put("exhausted.adaptiveSizing.interval", 100)
+                .put("exhausted.adaptiveSizing.samples", 2)
+                .put("exhausted.adaptiveSizing.minimumSize", 1)
+                .build());
+
+        // The sizer does not wait for a connection of the pool, so it grows it while a caller is waiting
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.wisdom.database.jdbc:type=PoolSizer,name=exhausted");
+        CompletableFuture<Boolean> waiting;
+        try (Connection held = sources.getConnection("exhausted")) {
+            waiting = CompletableFuture.supplyAsync(() -> {
+                try (Connection connection = sources.getConnection("exhausted")) {
+                    return connection.isValid(1);
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            long deadline = System.currentTimeMillis() + 3000;
+            while ((Long) server.getAttribute(name, "Growths") == 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertThat((Long) server.getAttribute(name, "Growths")).isPositive();
+        }
+        assertThat(waiting.get(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testAsyncConnections() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>builder()
+                .put("async.driver", "org.h2.Driver")
+                .put("async.url", "jdbc:h2:mem:wisdom-async")
+                .put("async.async.threads", 2)
+                .build());
+
+        Connection connection = sources.getConnectionAsync("async").get(5, TimeUnit.SECONDS);
+        assertThat(connection.isValid(1)).isTrue();
+        connection.close();
+
+        Integer result = sources.withConnection("async", c -> {
+            try (Statement statement = c.createStatement();
+                 ResultSet results = statement.executeQuery("SELECT 1 + 1")) {
+                results.next();
+                return results.getInt(1);
+            }
+        }).get(5, TimeUnit.SECONDS);
+        assertThat(result).isEqualTo(2);
+
+        assertThat(sources.getConnectionAsync("missing").isCompletedExceptionally()).isTrue();
+        fixture.stop();
+        assertThat(sources.getConnectionAsync("async").isCompletedExceptionally()).isTrue();
+    }
+
+    @Test
+    public void testProfile() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>builder()
+                .put("analytics.driver", "org.h2.Driver")
+                .put("analytics.url", "jdbc:h2:mem:wisdom-profile")
+                .put("analytics.profile", "analytics")
+                // Explicit driver properties win over the profile
+                .put("analytics.dataSource.CACHE_SIZE", 8192)
+                .build());
+
+        try (Connection connection = sources.getConnection("analytics")) {
+            assertThat(setting(connection, "MAX_MEMORY_ROWS")).isEqualTo("100000");
+            assertThat(setting(connection, "CACHE_SIZE")).isEqualTo("8192");
+        }
+    }
+
+    @Test
+    public void testLazy() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>builder()
+                .put("lazy.driver", "org.h2.Driver")
+                .put("lazy.url", "jdbc:h2:mem:wisdom-lazy")
+                .put("lazy.lazy", true)
+                .put("lazy.idleShutdown", 200)
+                .build());
+
+        // The pool metrics are published when the pool starts
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.wisdom.database.jdbc:type=DataSource,name=lazy");
+        assertThat(sources.getDataSource("lazy")).isNotNull();
+        assertThat(server.isRegistered(name)).isFalse();
+
+        sources.getConnection("lazy").close();
+        assertThat(server.isRegistered(name)).isTrue();
+
+        // Closed once unused
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.isRegistered(name) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(server.isRegistered(name)).isFalse();
+
+        // And started again on demand
+        Connection connection = sources.getConnection("lazy");
+        assertThat(connection.isValid(1)).isTrue();
+        connection.close();
+        assertThat(server.isRegistered(name)).isTrue();
+    }
+
+    @Test
+    public void testLazyReplicasAreClosedOnceUnused() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>builder()
+                .put("lazyreplicated.driver", "org.h2.Driver")
+                .put("lazyreplicated.url", "jdbc:h2:mem:wisdom-lazy-primary")
+                .put("lazyreplicated.replicas.r1.url", "jdbc:h2:mem:wisdom-lazy-replica")
+                .put("lazyreplicated.lazy", true)
+                .put("lazyreplicated.idleShutdown", 200)
+                .build());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.wisdom.database.jdbc:type=DataSource,name=lazyreplicated,replica=r1");
+        assertThat(server.isRegistered(name)).isFalse();
+
+        // Only the replica is started by a read
+        String url = ReadOnly.execute(() -> {
+            try (Connection connection = sources.getConnection("lazyreplicated")) {
+                return connection.getMetaData().getURL();
+            }
+        });
+        assertThat(url).isEqualTo("jdbc:h2:mem:wisdom-lazy-replica");
+        assertThat(server.isRegistered(name)).isTrue();
+
+        // Closed once unused
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.isRegistered(name) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(server.isRegistered(name)).isFalse();
+
+        // And started again on demand
+        ReadOnly.execute(() -> {
+            sources.getConnection("lazyreplicated").close();
+            return null;
+        });
+        assertThat(server.isRegistered(name)).isTrue();
+    }
+
+    @Test
+    public void testHoldTime() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>builder()
+                .put("held.driver", "org.h2.Driver")
+                .put("held.url", "jdbc:h2:mem:wisdom-held")
+                .put("held.holdTime.sampleRate", 1.0)
+                .put("held.holdTime.depth", 1)
+                .build());
+
+        Connection connection = sources.getConnection("held");
+        Thread.sleep(20);
+        connection.close();
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.wisdom.database.jdbc:type=HoldTime,name=held");
+        // The warm-up opens the connections of the pool directly, they are not held by the application
+        CompositeData[] top = (CompositeData[]) server.getAttribute(name, "TopByTotal");
+        assertThat(top).hasSize(1);
+        assertThat((String) top[0].get("stack")).startsWith(TestWithH2.class.getName() + ".testHoldTime:");
+        assertThat((Long) top[0].get("connections")).isEqualTo(1L);
+        assertThat((Double) top[0].get("max")).isGreaterThanOrEqualTo(19.0);
+        fixture.stop();
+        assertThat(server.isRegistered(name)).isFalse();
+    }
+
+    @Test
+    public void testTenants() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>builder()
+                .put("saas.driver", "org.h2.Driver")
+                .put("saas.url", "jdbc:h2:mem:wisdom-saas")
+                .put("saas.tenants.url", "jdbc:h2:mem:wisdom-saas-{tenant};DB_CLOSE_DELAY=-1")
+                .build());
+
+        DataSource source = sources.getDataSource("saas");
+        assertThat(database(source.getConnection())).isEqualTo("WISDOM-SAAS");
+        assertThat(Tenant.execute("acme", () -> database(source.getConnection()))).isEqualTo("WISDOM-SAAS-ACME");
+        assertThat(Tenant.current()).isNull();
+    }
+
+    @Test
+    public void testTenantPoolsAreKeptAcrossUnrelatedReconfigurations() throws Exception {
+        ImmutableMap<String, Object> settings = ImmutableMap.<String, Object>builder()
+                .put("saas-reconf.driver", "org.h2.Driver")
+                .put("saas-reconf.url", "jdbc:h2:mem:wisdom-saas-reconf")
+                .put("saas-reconf.tenants.url", "jdbc:h2:mem:wisdom-saas-reconf-{tenant};DB_CLOSE_DELAY=-1")
+                .build();
+        HikariCPDataSources sources = fixture.start(settings);
+        DataSource source = sources.getDataSource("saas-reconf");
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.wisdom.database.jdbc:type=Tenants,name=saas-reconf");
+
+        Connection inUse = Tenant.execute("acme", source::getConnection);
+        assertThat(server.getAttribute(name, "CreatedPools")).isEqualTo(1L);
+
+        // Unrelated and runtime changes keep the tenant pools
+        fixture.reconfigure(ImmutableMap.<String, Object>builder().putAll(settings)
+                .put("saas-reconf.maximumPoolSize", 5)
+                .put("saas-reconf.logStatements", true)
+                .build());
+        assertThat(server.getAttribute(name, "CreatedPools")).isEqualTo(1L);
+        assertThat((String[]) server.getAttribute(name, "Tenants")).containsExactly("acme");
+        assertThat(inUse.isValid(1)).isTrue();
+        inUse.close();
+        assertThat(Tenant.execute("acme", () -> database(source.getConnection())))
+                .isEqualTo("WISDOM-SAAS-RECONF-ACME");
+        assertThat(server.getAttribute(name, "CreatedPools")).isEqualTo(1L);
+
+        // Changes of the tenants section replace the router
+        fixture.reconfigure(ImmutableMap.<String, Object>builder().putAll(settings)
+                .put("saas-reconf.tenants.maximumPoolSize", 3)
+                .build());
+        assertThat(server.getAttribute(name, "CreatedPools")).isEqualTo(0L);
+        assertThat(Tenant.execute("acme", () -> database(source.getConnection())))
+                .isEqualTo("WISDOM-SAAS-RECONF-ACME");
+        assertThat(server.getAttribute(name, "CreatedPools")).isEqualTo(1L);
+    }
+
+    @Test
+    public void testAsyncConnectionsAreOpenedForTheTenantOfTheCaller() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>builder()
+                .put("saas-async.driver", "org.h2.Driver")
+                .put("saas-async.url", "jdbc:h2:mem:wisdom-saas-async")
+                .put("saas-async.tenants.url", "jdbc:h2:mem:wisdom-saas-async-{tenant};DB_CLOSE_DELAY=-1")
+                .build());
+
+        CompletableFuture<Connection> future = Tenant.execute("acme",
+                () -> sources.getConnectionAsync("saas-async"));
+        assertThat(database(future.get(5, TimeUnit.SECONDS))).isEqualTo("WISDOM-SAAS-ASYNC-ACME");
+        assertThat(Tenant.execute("globex", () -> sources.withConnection("saas-async", TestWithH2::database))
+                .get(5, TimeUnit.SECONDS)).isEqualTo("WISDOM-SAAS-ASYNC-GLOBEX");
+        assertThat(database(sources.getConnectionAsync("saas-async").get(5, TimeUnit.SECONDS)))
+                .isEqualTo("WISDOM-SAAS-ASYNC");
+    }
+
+    @Test
+    public void testAsyncConnectionsAreOpenedInTheReadOnlyBlockOfTheCaller() throws Exception {
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>of(
+                "replicated-async.driver", "org.h2.Driver",
+                "replicated-async.url", "jdbc:h2:mem:wisdom-replicated-async",
+                "replicated-async.replicas.r1.url", "jdbc:h2:mem:wisdom-replicated-async-replica"));
+
+        CompletableFuture<Connection> future = ReadOnly.execute(() -> sources.getConnectionAsync("replicated-async"));
+        assertThat(database(future.get(5, TimeUnit.SECONDS))).isEqualTo("WISDOM-REPLICATED-ASYNC-REPLICA");
+        assertThat(ReadOnly.execute(() -> sources.withConnection("replicated-async", TestWithH2::database))
+                .get(5, TimeUnit.SECONDS)).isEqualTo("WISDOM-REPLICATED-ASYNC-REPLICA");
+        assertThat(database(sources.getConnectionAsync("replicated-async").get(5, TimeUnit.SECONDS)))
+                .isEqualTo("WISDOM-REPLICATED-ASYNC");
+    }
+
+    @Test
+    public void testCachedResultsAreNotSharedBetweenTenants() throws Exception {
+        for (String tenant : new String[]{"acme", "globex"}) {
+            try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:wisdom-cached-" + tenant
+                    + ";DB_CLOSE_DELAY=-1");
+                 Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE origin (name VARCHAR(64))");
+                statement.execute("INSERT INTO origin VALUES ('" + tenant + "')");
+            }
+        }
+        HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>builder()
+                .put("tenanted.driver", "org.h2.Driver")
+                .put("tenanted.url", "jdbc:h2:mem:wisdom-cached")
+                .put("tenanted.tenants.url", "jdbc:h2:mem:wisdom-cached-{tenant};DB_CLOSE_DELAY=-1")
+                .put("tenanted.resultCache.maxEntries", 10)
+                .build());
+
+        DataSource source = sources.getDataSource("tenanted");
+        for (int i = 0; i < 2; i++) {
+            assertThat(Tenant.execute("acme", () -> {
+                try (Connection connection = source.getConnection()) {
+                    return origin(connection);
+                }
+            })).isEqualTo("acme");
+            assertThat(Tenant.execute("globex", () -> {
+                try (Connection connection = source.getConnection()) {
+                    return origin(connection);
+                }
+            })).isEqualTo("globex");
+        }
+
+        ObjectName name = new ObjectName("org.wisdom.database.jdbc:type=ResultCache,name=tenanted");
+        assertThat(ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Hits")).isEqualTo(2L);
+    }
+
+    @Test
+    public void testFailover() throws Exception {
+        int primaryPort = freePort();
+        int secondaryPort = freePort();
+        Server primary = Server.createTcpServer("-tcpPort", Integer.toString(primaryPort)).start();
+        Server secondary = Server.createTcpServer("-tcpPort", Integer.toString(secondaryPort)).start();
+        try {
+            ImmutableMap<String, Object> settings = ImmutableMap.<String, Object>builder()
+                    .put("ha.driver", "org.h2.Driver")
+                    .put("ha.url", "jdbc:h2:tcp://localhost:" + primaryPort + "/mem:failover-a;DB_CLOSE_DELAY=-1")
+                    .put("ha.failover.urls", ImmutableList.of(
+                            "jdbc:h2:tcp://localhost:" + secondaryPort + "/mem:failover-b;DB_CLOSE_DELAY=-1"))
+                    .put("ha.failover.probeInterval", 100)
+                    .put("ha.failover.evictionTimeout", 0)
+                    .put("ha.connectionTimeout", 1000)
+                    .build();
+            HikariCPDataSources sources = fixture.start(settings);
+            assertThat(database(sources.getConnection("ha"))).isEqualToIgnoringCase("failover-a");
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.wisdom.database.jdbc:type=Failover,name=ha");
+            CompositeData[] endpoints = (CompositeData[]) server.getAttribute(name, "Endpoints");
+            assertThat(endpoints).hasSize(2);
+            assertThat((Boolean) endpoints[0].get("active")).isTrue();
+
+            // The primary goes down, the new connections are served by the secondary
+            primary.stop();
+            waitForActiveEndpoint(server, name, secondaryPort);
+            assertThat(database(sources.getConnection("ha"))).isEqualToIgnoringCase("failover-b");
+            endpoints = (CompositeData[]) server.getAttribute(name, "Endpoints");
+            assertThat((Boolean) endpoints[0].get("healthy")).isFalse();
+            assertThat((String) endpoints[0].get("lastError")).isNotNull();
+
+            // An unrelated reconfiguration keeps the failover state, the primary is still avoided
+            fixture.reconfigure(ImmutableMap.<String, Object>builder().putAll(settings)
+                    .put("ha.maximumPoolSize", 5)
+                    .build());
+            assertThat((String) server.getAttribute(name, "ActiveEndpoint")).contains(":" + secondaryPort + "/");
+            assertThat(database(sources.getConnection("ha"))).isEqualToIgnoringCase("failover-b");
+            assertThat((Long) server.getAttribute(name, "Switches")).isEqualTo(1L);
+
+            // And back to the primary once it is up again
+            primary = Server.createTcpServer("-tcpPort", Integer.toString(primaryPort)).start();
+            waitForActiveEndpoint(server, name, primaryPort);
+            assertThat(database(sources.getConnection("ha"))).isEqualToIgnoringCase("failover-a");
+            assertThat((Long) server.getAttribute(name, "Switches")).isEqualTo(2L);
+        } finally {
+            fixture.stop();
+            primary.stop();
+            secondary.stop();
+        }
+    }
+
+    @Test
+    public void testTheProbesOfAnUnresponsiveEndpointAreBounded() throws Exception {
+        // Accepts the TCP connections (in the backlog), but never answers
+        try (ServerSocket blackHole = new ServerSocket(0)) {
+            HikariCPDataSources sources = fixture.start(ImmutableMap.<String, Object>builder()
+                    .put("unresponsive.driver", "org.h2.Driver")
+                    .put("unresponsive.url", "jdbc:h2:mem:wisdom-unresponsive")
+                    .put("unresponsive.failover.urls", ImmutableList.of(
+                            "jdbc:h2:tcp://localhost:" + blackHole.getLocalPort() + "/mem:unresponsive"))
+                    .put("unresponsive.failover.probeTimeout", 1000)
+                    .put("unresponsive.failover.failureThreshold", 1)
+                    .build());
+
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("org.wisdom.database.jdbc:type=Failover,name=unresponsive");
+            CompletableFuture<Void> probe = CompletableFuture.runAsync(() -> {
+                try {
+                    server.invoke(name, "probe", new Object[0], new String[0]);
+                } catch (JMException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            // Fails with a TimeoutException if the probe hangs
+            probe.get(5, TimeUnit.SECONDS);
+
+            CompositeData[] endpoints = (CompositeData[]) server.getAttribute(name, "Endpoints");
+            assertThat((Boolean) endpoints[0].get("healthy")).isTrue();
+            assertThat((Boolean) endpoints[1].get("healthy")).isFalse();
+            assertThat((String) endpoints[1].get("lastError")).contains("No response");
+            assertThat(database(sources.getConnection("unresponsive"))).isEqualToIgnoringCase("wisdom-unresponsive");
+        }
+    }
+
+    private static void waitForActiveEndpoint(MBeanServer server, ObjectName name, int port) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!((String) server.getAttribute(name, "ActiveEndpoint")).contains(":" + port + "/")
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat((String) server.getAttribute(name, "ActiveEndpoint")).contains(":" + port + "/");
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    @Test
+    public void testDriverIsSharedAndNotRegistered() throws Exception {
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDriver(any(Properties.class))).thenReturn(new Driver());
+        int registered = Collections.list(DriverManager.getDrivers()).size();
+
+        HikariCPDataSources sources = fixture.start("org.h2.Driver", factory, ImmutableMap.<String, Object>builder()
+                .put("first.driver", "org.h2.Driver")
+                .put("first.url", "jdbc:h2:mem:wisdom-first")
+                .put("second.driver", "org.h2.Driver")
+                .put("second.url", "jdbc:h2:mem:wisdom-second")
+                .build());
+        assertThat(database(sources.getConnection("first"))).isEqualToIgnoringCase("wisdom-first");
+        assertThat(database(sources.getConnection("second"))).isEqualToIgnoringCase("wisdom-second");
+        fixture.stop();
+
+        // The factory does not create data sources, so a single driver is created, and kept out of the DriverManager
+        verify(factory, times(1)).createDriver(any(Properties.class));
+        assertThat(Collections.list(DriverManager.getDrivers())).hasSize(registered);
+    }
+
+    @Test
+    public void testDataSourceFactoryCreatesTheConnections() throws Exception {
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDataSource(any(Properties.class))).thenAnswer(new Answer<DataSource>() {
+            @Override
+            public DataSource answer(InvocationOnMock invocation) throws Throwable {
+                Properties properties = (Properties) invocation.getArguments()[0];
+                JdbcDataSource source = new JdbcDataSource();
+                source.setURL(properties.getProperty(DataSourceFactory.JDBC_URL));
+                return source;
+            }
+        });
+
+        HikariCPDataSources sources = fixture.start("org.h2.Driver", factory, ImmutableMap.<String, Object>builder()
+                .put("factory.driver", "org.h2.Driver")
+                .put("factory.url", "jdbc:h2:mem:wisdom-factory")
+                .build());
+        assertThat(database(sources.getConnection("factory"))).isEqualToIgnoringCase("wisdom-factory");
+        fixture.stop();
+
+        verify(factory, times(1)).createDataSource(any(Properties.class));
+        verify(factory, never()).createDriver(any(Properties.class));
+    }
+
+    @Test
+    public void testXA() throws Exception {
+        DataSourceFactory factory = xaFactory();
+        TransactionManagerImpl manager = spy(new TransactionManagerImpl());
+
+        HikariCPDataSources sources = fixture.create("org.h2.Driver", factory, ImmutableMap.<String, Object>builder()
+                .put("xa.driver", "org.h2.Driver")
+                .put("xa.url", "jdbc:h2:mem:wisdom-xa;DB_CLOSE_DELAY=-1")
+                .put("xa.xa", true)
+                .build());
+        sources.bindTransactionManager(manager);
+        sources.onStart();
+        verify(manager).registerNamedXAResourceFactory(any(NamedXAResourceFactory.class));
+
+        DataSource source = sources.getDataSource("xa");
+        // Outside of a transaction, local transactions
+        try (Connection connection = source.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE account (id INT PRIMARY KEY, balance INT)");
+        }
+
+        // Rolled back
+        manager.begin();
+        insert(manager, source, 1);
+        manager.rollback();
+        assertThat(count(source)).isEqualTo(0);
+
+        // Committed, a single connection per transaction
+        manager.begin();
+        String session = insert(manager, source, 1);
+        assertThat(insert(manager, source, 2)).isEqualTo(session);
+        manager.commit();
+        assertThat(count(source)).isEqualTo(2);
+
+        fixture.stop();
+        verify(manager).unregisterNamedXAResourceFactory("wisdom-jdbc-xa");
+    }
+
+    @Test
+    public void testXATransactionsSpanReconfigurations() throws Exception {
+        TransactionManagerImpl manager = spy(new TransactionManagerImpl());
+        ImmutableMap<String, Object> settings = ImmutableMap.<String, Object>builder()
+                .put("xa-reconf.driver", "org.h2.Driver")
+                .put("xa-reconf.url", "jdbc:h2:mem:wisdom-xa-reconf;DB_CLOSE_DELAY=-1")
+                .put("xa-reconf.xa", true)
+                .build();
+        HikariCPDataSources sources = fixture.create("org.h2.Driver", xaFactory(), settings);
+        sources.bindTransactionManager(manager);
+        sources.onStart();
+        DataSource source = sources.getDataSource("xa-reconf");
+        try (Connection connection = source.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE account (id INT PRIMARY KEY, balance INT)");
+        }
+
+        manager.begin();
+        String session = insert(manager, source, 1);
+        // An unrelated change, and one rebuilding the pool
+        fixture.reconfigure(ImmutableMap.<String, Object>builder().putAll(settings)
+                .put("xa-reconf.maximumPoolSize", 5)
+                .put("xa-reconf.isolation", "SERIALIZABLE")
+                .build());
+        // The transaction keeps its connection, and the recovery stays registered
+        assertThat(insert(manager, source, 2)).isEqualTo(session);
+        manager.commit();
+        assertThat(count(source)).isEqualTo(2);
+        verify(manager, never()).unregisterNamedXAResourceFactory(anyString());
+    }
+
+    @Test
+    public void testXARecoveryRollsBackTheTransactionsInDoubt() throws Exception {
+        new File("target/wisdom-xa-recovery.mv.db").delete();
+        String url = "jdbc:h2:./target/wisdom-xa-recovery";
+        JdbcDataSource database = new JdbcDataSource();
+        database.setURL(url);
+        try (Connection connection = database.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE account (id INT PRIMARY KEY, balance INT)");
+        }
+
+        // A branch of a transaction is prepared, and the application stops before its completion
+        XidFactory previous = new XidFactoryImpl("wisdom-xa-recovery".getBytes());
+        Xid xid = previous.createBranch(previous.createXid(), 1);
+        XAConnection prepared = database.getXAConnection();
+        XAResource resource = prepared.getXAResource();
+        resource.start(xid, XAResource.TMNOFLAGS);
+        try (Statement statement = prepared.getConnection().createStatement()) {
+            statement.executeUpdate("INSERT INTO account VALUES (1, 100)");
+        }
+        resource.end(xid, XAResource.TMSUCCESS);
+        assertThat(resource.prepare(xid)).isEqualTo(XAResource.XA_OK);
+        try (Connection connection = database.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("SHUTDOWN IMMEDIATELY");
+        } catch (SQLException e) {
+            // Expected, the database is closed
+        }
+        assertThat(inDoubt(database)).hasSize(1);
+
+        // On restart, the transaction is not in the transaction log, so it is rolled back when the data source is
+        // registered for the recovery
+        Thread.sleep(10);
+        XidFactory xids = new XidFactoryImpl("wisdom-xa-recovery".getBytes());
+        HikariCPDataSources sources = fixture.create("org.h2.Driver", xaFactory(),
+                ImmutableMap.<String, Object>builder()
+                        .put("recovered.driver", "org.h2.Driver")
+                        .put("recovered.url", url)
+                        .put("recovered.xa", true)
+                        .build());
+        sources.bindTransactionManager(new TransactionManagerImpl(600, xids, new UnrecoverableLog()));
+        sources.onStart();
+
+        assertThat(inDoubt(database)).isEmpty();
+        assertThat(count(sources.getDataSource("recovered"))).isEqualTo(0);
+    }
+
+    private static Xid[] inDoubt(XADataSource database) throws Exception {
+        XAConnection connection = database.getXAConnection();
+        try {
+            return connection.getXAResource().recover(XAResource.TMSTARTRSCAN | XAResource.TMENDRSCAN);
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return a data source factory creating H2 XA data sources
+     */
+    private static DataSourceFactory xaFactory() throws SQLException {
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createXADataSource(any(Properties.class))).thenAnswer(new Answer<XADataSource>() {
+            @Override
+            public XADataSource answer(InvocationOnMock invocation) throws Throwable {
+                Properties properties = (Properties) invocation.getArguments()[0];
+                JdbcDataSource source = new JdbcDataSource();
+                source.setURL(properties.getProperty(DataSourceFactory.JDBC_URL));
+                return source;
+            }
+        });
+        return factory;
+    }
+
+    /**
+     * Inserts an account within the current transaction.
+     *
+     * @return the database session id of the connection
+     */
+    private static String insert(TransactionManager manager, DataSource source, int id) throws Exception {
+        assertThat(manager.getTransaction()).isNotNull();
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement()) {
+            assertThat(connection.getAutoCommit()).isFalse();
+            statement.executeUpdate("INSERT INTO account VALUES (" + id + ", 100)");
+            try {
+                connection.commit();
+                fail("The transaction cannot be committed from the connection");
+            } catch (SQLException e) {
+                // Expected
+            }
+            try (ResultSet results = statement.executeQuery("SELECT SESSION_ID()")) {
+                assertThat(results.next()).isTrue();
+                return results.getString(1);
+            }
+        }
+    }
+
+    private static int count(DataSource source) throws SQLException {
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("SELECT COUNT(*) FROM account")) {
+            assertThat(results.next()).isTrue();
+            return results.getInt(1);
+        }
+    }
+
+    private static String database(Connection connection) throws SQLException {
+        try (Connection closed = connection;
+             Statement statement = closed.createStatement();
+             ResultSet results = statement.executeQuery("SELECT DATABASE()")) {
+            assertThat(results.next()).isTrue();
+            return results.getString(1);
+        }
+    }
+
+    private static String setting(Connection connection, String name) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(
+                "SELECT VALUE FROM INFORMATION_SCHEMA.SETTINGS WHERE NAME = ?")) {
+            statement.setString(1, name);
+            try (ResultSet results = statement.executeQuery()) {
+                assertThat(results.next()).isTrue();
+                return results.getString(1);
+            }
+        }
+    }
+
+    private static String origin(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("SELECT name FROM origin")) {
+            assertThat(results.next()).isTrue();
+            return results.getString(1);
+        }
+    }
+
+}
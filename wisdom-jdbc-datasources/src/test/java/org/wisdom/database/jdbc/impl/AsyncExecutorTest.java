@@ -0,0 +1,140 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigFactory;
+import org.junit.After;
+import org.junit.Test;
+import org.wisdom.api.configuration.Configuration;
+import org.wisdom.configuration.ConfigurationImpl;
+
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Checks the admission and cancellation handling of the asynchronous executor.
+ */
+public class AsyncExecutorTest {
+
+    private AsyncExecutor executor;
+
+    @After
+    public void tearDown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testFailFastWhenSaturated() throws Exception {
+        executor = new AsyncExecutor("test", 1, 1, false);
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> first = executor.submit(() -> {
+            release.await();
+            return "first";
+        }, null);
+        CompletableFuture<String> second = executor.submit(() -> "second", null);
+        CompletableFuture<String> third = executor.submit(() -> "third", null);
+
+        // Rejected immediately, without waiting for the running tasks
+        assertThat(third.isCompletedExceptionally()).isTrue();
+        try {
+            third.get();
+            fail("Rejected request expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(SQLTransientConnectionException.class);
+        }
+        assertThat(executor.getPending()).isEqualTo(2);
+
+        release.countDown();
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo("first");
+        assertThat(second.get(5, TimeUnit.SECONDS)).isEqualTo("second");
+        // Permits are released after the completion of the futures
+        long deadline = System.currentTimeMillis() + 5000;
+        while (executor.getPending() != 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertThat(executor.submit(() -> "fourth", null).get(5, TimeUnit.SECONDS)).isEqualTo("fourth");
+    }
+
+    @Test
+    public void testResultOfCancelledRequestIsDiscarded() throws Exception {
+        executor = new AsyncExecutor("test", 1, 0, false);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch discarded = new CountDownLatch(1);
+        AtomicReference<String> discard = new AtomicReference<>();
+        CompletableFuture<String> future = executor.submit(() -> {
+            started.countDown();
+            release.await();
+            return "resource";
+        }, value -> {
+            discard.set(value);
+            discarded.countDown();
+        });
+        started.await();
+        future.cancel(false);
+        release.countDown();
+        assertThat(discarded.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(discard.get()).isEqualTo("resource");
+    }
+
+    @Test
+    public void testFailureIsPropagated() throws Exception {
+        executor = new AsyncExecutor("test", 2, 2, true);
+        CompletableFuture<String> future = executor.submit(() -> {
+            throw new IllegalStateException("boom");
+        }, null);
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Failure expected");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalStateException.class).hasMessage("boom");
+        }
+    }
+
+    @Test
+    public void testMatchesOnlyItsSettings() {
+        executor = AsyncExecutor.create("test", configuration(ImmutableMap.<String, Object>of(
+                "maximumPoolSize", 4, "async.threads", 2)));
+        // Unrelated changes
+        assertThat(executor.matches(configuration(ImmutableMap.<String, Object>of(
+                "maximumPoolSize", 4, "async.threads", 2, "idleTimeout", 1000)))).isTrue();
+        assertThat(executor.matches(configuration(ImmutableMap.<String, Object>of(
+                "maximumPoolSize", 8, "async.threads", 2)))).isTrue();
+        // Changes of the executor settings
+        assertThat(executor.matches(configuration(ImmutableMap.<String, Object>of(
+                "maximumPoolSize", 4, "async.threads", 3)))).isFalse();
+        assertThat(executor.matches(configuration(ImmutableMap.<String, Object>of(
+                "maximumPoolSize", 4)))).isFalse();
+    }
+
+    private static Configuration configuration(ImmutableMap<String, Object> settings) {
+        return new ConfigurationImpl(null, ConfigFactory.parseMap(settings));
+    }
+}
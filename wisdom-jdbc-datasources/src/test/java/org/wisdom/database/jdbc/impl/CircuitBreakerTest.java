@@ -0,0 +1,280 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigFactory;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.Before;
+import org.junit.Test;
+import org.wisdom.configuration.ConfigurationImpl;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the state changes of the circuit breaker.
+ */
+public class CircuitBreakerTest {
+
+    private static final CircuitBreaker.ConnectionSupplier DOWN = () -> {
+        throw new SQLException("down");
+    };
+
+    private WrappedDataSource source;
+
+    private CircuitBreaker breaker;
+
+    private final List<String> notifications = Collections.synchronizedList(new ArrayList<>());
+
+    @Before
+    public void setUp() {
+        source = new WrappedDataSource("test", null);
+        breaker = create(ImmutableMap.<String, Object>of("failureThreshold", 3, "openDuration", 100));
+    }
+
+    private CircuitBreaker create(Map<String, Object> settings) {
+        CircuitBreaker created = new CircuitBreaker(source);
+        created.configure(new ConfigurationImpl(null, ConfigFactory.parseMap(settings)));
+        created.addNotificationListener((notification, handback) -> notifications.add(notification.getType()),
+                null, null);
+        return created;
+    }
+
+    private static Connection valid() throws SQLException {
+        Connection connection = mock(Connection.class);
+        when(connection.isValid(anyInt())).thenReturn(true);
+        return connection;
+    }
+
+    private void fails(CircuitBreaker.ConnectionSupplier supplier, Class<? extends SQLException> expected) {
+        try {
+            breaker.getConnection(supplier);
+            fail("Failure expected");
+        } catch (SQLException e) {
+            assertThat((Throwable) e).isInstanceOf(expected);
+        }
+    }
+
+    @Test
+    public void testOpensAfterConsecutiveFailures() throws SQLException {
+        fails(DOWN, SQLException.class);
+        fails(DOWN, SQLException.class);
+        // A success resets the counter
+        breaker.getConnection(CircuitBreakerTest::valid);
+        assertThat(breaker.getConsecutiveFailures()).isZero();
+        fails(DOWN, SQLException.class);
+        fails(DOWN, SQLException.class);
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        fails(DOWN, SQLException.class);
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(source.isDegraded()).isTrue();
+
+        // Rejected without calling the pool
+        long start = System.nanoTime();
+        fails(() -> {
+            throw new AssertionError("The pool must not be called");
+        }, CircuitBreaker.OpenCircuitException.class);
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isLessThan(50);
+        assertThat(breaker.getRejected()).isEqualTo(1);
+        assertThat(breaker.getTrips()).isEqualTo(1);
+        assertThat(notifications).containsExactly(CircuitBreaker.NOTIFICATION_PREFIX + "open");
+    }
+
+    @Test
+    public void testRecoveryAfterASuccessfulProbe() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            fails(DOWN, SQLException.class);
+        }
+        Thread.sleep(150);
+        Connection connection = valid();
+        assertThat(breaker.getConnection(() -> connection)).isSameAs(connection);
+        verify(connection).isValid(anyInt());
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(source.isDegraded()).isFalse();
+        assertThat(notifications).containsExactly(CircuitBreaker.NOTIFICATION_PREFIX + "open",
+                CircuitBreaker.NOTIFICATION_PREFIX + "half_open", CircuitBreaker.NOTIFICATION_PREFIX + "closed");
+    }
+
+    @Test
+    public void testFailedProbeOpensAgain() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            fails(DOWN, SQLException.class);
+        }
+        Thread.sleep(150);
+        Connection invalid = mock(Connection.class);
+        fails(() -> invalid, SQLException.class);
+        verify(invalid).close();
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        // The open duration restarts
+        fails(CircuitBreakerTest::valid, CircuitBreaker.OpenCircuitException.class);
+    }
+
+    @Test
+    public void testSingleProbe() throws Exception {
+        for (int i = 0; i < 3; i++) {
+            fails(DOWN, SQLException.class);
+        }
+        Thread.sleep(150);
+        CountDownLatch probing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Connection> probe = executor.submit(() -> breaker.getConnection(() -> {
+                probing.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return valid();
+            }));
+            assertThat(probing.await(5, TimeUnit.SECONDS)).isTrue();
+            assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+            // Other requests are rejected while the probe runs
+            fails(CircuitBreakerTest::valid, CircuitBreaker.OpenCircuitException.class);
+            release.countDown();
+            assertThat(probe.get(5, TimeUnit.SECONDS)).isNotNull();
+            assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOpensOnSlowAcquisitions() throws Exception {
+        breaker = create(ImmutableMap.<String, Object>of("slowThreshold", 5, "window", 100, "minimumSamples", 3));
+        long deadline = System.currentTimeMillis() + 5000;
+        while (breaker.state() == CircuitBreaker.State.CLOSED && System.currentTimeMillis() < deadline) {
+            breaker.getConnection(() -> {
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return valid();
+            });
+        }
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.getLastTransitionReason()).contains("99th percentile");
+    }
+
+    @Test
+    public void testFastAcquisitionsDoNotOpen() throws Exception {
+        breaker = create(ImmutableMap.<String, Object>of("slowThreshold", 500, "window", 100, "minimumSamples", 3));
+        long end = System.currentTimeMillis() + 300;
+        while (System.currentTimeMillis() < end) {
+            breaker.getConnection(CircuitBreakerTest::valid);
+        }
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    public void testTheWarmUpDegradationIsKeptWhenTheCircuitCloses() throws Exception {
+        source.setDegraded(true);
+        for (int i = 0; i < 3; i++) {
+            fails(DOWN, SQLException.class);
+        }
+        Thread.sleep(150);
+        breaker.getConnection(CircuitBreakerTest::valid);
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(source.isDegraded()).isTrue();
+
+        source.setDegraded(false);
+        assertThat(source.isDegraded()).isFalse();
+    }
+
+    @Test
+    public void testTheConnectionsOfAReplicatedDataSourceAreAcquiredThroughTheBreaker() throws Exception {
+        DataSource primary = mock(DataSource.class);
+        when(primary.getConnection()).thenThrow(new SQLException("down"));
+        HikariDataSource pool = mock(HikariDataSource.class);
+        source.set(primary);
+        source.setReplicas(new ReplicaSet("default",
+                Collections.singletonList(new ReplicaSet.Replica("r1", pool))));
+        source.setCircuitBreaker(breaker);
+
+        // The physical connection is acquired when the routing connection is first used
+        for (int i = 0; i < 3; i++) {
+            Connection connection = source.getConnection();
+            try {
+                connection.createStatement();
+                fail("Failure expected");
+            } catch (SQLException e) {
+                assertThat((Throwable) e).hasMessage("down");
+            }
+        }
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(source.isDegraded()).isTrue();
+        try {
+            source.getConnection();
+            fail("Failure expected");
+        } catch (SQLException e) {
+            assertThat((Throwable) e).isInstanceOf(CircuitBreaker.OpenCircuitException.class);
+        }
+
+        // The first use after the open duration probes the database
+        Thread.sleep(150);
+        Connection physical = valid();
+        reset(primary);
+        when(primary.getConnection()).thenReturn(physical);
+        source.getConnection().createStatement();
+        verify(physical).isValid(anyInt());
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(source.isDegraded()).isFalse();
+        verify(pool, never()).getConnection();
+    }
+
+    @Test
+    public void testJmxRegistration() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.wisdom.database.jdbc:type=CircuitBreaker,name=test");
+        breaker.start();
+        try {
+            assertThat(server.getAttribute(name, "State")).isEqualTo("CLOSED");
+            assertThat(server.getAttribute(name, "FailureThreshold")).isEqualTo(3);
+        } finally {
+            breaker.stop();
+        }
+        assertThat(server.isRegistered(name)).isFalse();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.Test;
+
+import javax.sql.DataSource;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+
+/**
+ * Checks the copy-on-write semantic of the data source registry.
+ */
+public class DataSourceRegistryTest {
+
+    @Test
+    public void testSnapshotsAreNotModified() {
+        WrappedDataSource ds = available("default");
+        DataSourceRegistry empty = DataSourceRegistry.EMPTY;
+        DataSourceRegistry one = empty.with("default", ds);
+
+        assertThat(empty.names()).isEmpty();
+        assertThat(empty.available()).isEmpty();
+        assertThat(one.get("default")).isSameAs(ds);
+        assertThat(one.available()).containsKeys("default");
+
+        DataSourceRegistry none = one.without("default");
+        assertThat(none.contains("default")).isFalse();
+        assertThat(one.contains("default")).isTrue();
+        assertThat(none.without("missing")).isSameAs(none);
+    }
+
+    @Test
+    public void testPendingEntriesAreNotAvailable() {
+        WrappedDataSource pending = new WrappedDataSource("pending", null);
+        DataSourceRegistry registry = DataSourceRegistry.EMPTY.with("pending", pending);
+        assertThat(registry.contains("pending")).isTrue();
+        assertThat(registry.get("pending")).isNull();
+        assertThat(registry.entry("pending")).isSameAs(pending);
+        assertThat(registry.available()).isEmpty();
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testAvailableMapIsUnmodifiable() {
+        DataSourceRegistry.EMPTY.with("default", available("default")).available().clear();
+    }
+
+    private WrappedDataSource available(String name) {
+        WrappedDataSource source = new WrappedDataSource(name, null);
+        source.set(mock(DataSource.class));
+        return source;
+    }
+}
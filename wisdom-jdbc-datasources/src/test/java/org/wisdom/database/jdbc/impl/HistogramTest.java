@@ -0,0 +1,90 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+/**
+ * Checks the log-linear histogram.
+ */
+public class HistogramTest {
+
+    @Test
+    public void testBucketsAreContiguous() {
+        long previous = -1;
+        for (int i = 0; Histogram.highestValue(i) > previous && Histogram.highestValue(i) < Long.MAX_VALUE; i++) {
+            long highest = Histogram.highestValue(i);
+            assertThat(Histogram.index(previous + 1)).isEqualTo(i);
+            assertThat(Histogram.index(highest)).isEqualTo(i);
+            previous = highest;
+        }
+        assertThat(Histogram.index(Long.MAX_VALUE)).isEqualTo(Histogram.index(previous + 1));
+    }
+
+    @Test
+    public void testRelativePrecision() {
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            long highest = Histogram.highestValue(Histogram.index(value));
+            assertThat(highest).isGreaterThanOrEqualTo(value);
+            assertThat((double) (highest - value) / value).isLessThanOrEqualTo(1.0 / 32);
+        }
+    }
+
+    @Test
+    public void testQuantiles() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i, TimeUnit.MICROSECONDS);
+        }
+        histogram.record(-1);
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertThat(snapshot.getCount()).isEqualTo(1000);
+        assertThat(snapshot.getMax()).isEqualTo(TimeUnit.MICROSECONDS.toNanos(1000));
+        assertThat(snapshot.getMean()).isCloseTo(500500.0, within(1.0));
+        assertThat((double) snapshot.getValue(0.5)).isCloseTo(500000.0, within(500000.0 / 32));
+        assertThat((double) snapshot.getValue(0.99)).isCloseTo(990000.0, within(990000.0 / 32));
+        assertThat(snapshot.getValue(1.0)).isEqualTo(snapshot.getMax());
+        assertThat(new Histogram().snapshot().getValue(0.99)).isZero();
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        final Histogram histogram = new Histogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(histogram.snapshot().getCount()).isEqualTo(40000);
+        assertThat(histogram.snapshot().getMax()).isEqualTo(9999);
+    }
+}
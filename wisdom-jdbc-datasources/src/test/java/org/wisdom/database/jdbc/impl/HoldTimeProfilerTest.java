@@ -0,0 +1,122 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Test;
+import org.wisdom.configuration.ConfigurationImpl;
+
+import java.sql.Connection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Checks the call site computation and the aggregation of the hold times.
+ */
+public class HoldTimeProfilerTest {
+
+    private static HoldTimeProfiler create(Map<String, Object> settings) {
+        HoldTimeProfiler profiler = new HoldTimeProfiler("test");
+        profiler.configure(new ConfigurationImpl(null, ConfigFactory.parseMap(settings)));
+        return profiler;
+    }
+
+    @Test
+    public void testCallSite() {
+        StackTraceElement[] stack = new StackTraceElement[]{
+                new StackTraceElement("org.wisdom.database.jdbc.impl.HoldTimeProfiler", "wrap", "H.java", 10),
+                new StackTraceElement("org.wisdom.database.jdbc.impl.WrappedDataSource", "getConnection", "W.java", 20),
+                new StackTraceElement("com.sun.proxy.$Proxy12", "getConnection", null, -1),
+                new StackTraceElement("com.acme.Repository", "find", "Repository.java", 42),
+                new StackTraceElement("com.acme.Controller", "list", "Controller.java", 12),
+                new StackTraceElement("java.lang.reflect.Method", "invoke", "Method.java", 498),
+                new StackTraceElement("org.wisdom.router.Route", "invoke", "Route.java", 7),
+        };
+        assertThat(HoldTimeProfiler.callSite(stack, 1)).isEqualTo("com.acme.Repository.find:42");
+        assertThat(HoldTimeProfiler.callSite(stack, 3)).isEqualTo(
+                "com.acme.Repository.find:42 < com.acme.Controller.list:12 < org.wisdom.router.Route.invoke:7");
+        assertThat(HoldTimeProfiler.callSite(new StackTraceElement[]{stack[0]}, 3))
+                .isEqualTo(HoldTimeProfiler.INTERNAL);
+    }
+
+    @Test
+    public void testTop() {
+        HoldTimeProfiler profiler = create(ImmutableMap.<String, Object>of("top", 2));
+        for (int i = 0; i < 100; i++) {
+            // Many short holds
+            profiler.record("short", TimeUnit.MILLISECONDS.toNanos(2));
+        }
+        // A few long holds
+        profiler.record("long", TimeUnit.MILLISECONDS.toNanos(100));
+        profiler.record("long", TimeUnit.MILLISECONDS.toNanos(120));
+        profiler.record("tiny", TimeUnit.MICROSECONDS.toNanos(10));
+
+        List<HoldTimeProfilerMXBean.CallSite> total = profiler.getTopByTotal();
+        assertThat(total).hasSize(2);
+        assertThat(total.get(0).getStack()).isEqualTo("long");
+        assertThat(total.get(1).getStack()).isEqualTo("short");
+        assertThat(total.get(1).getConnections()).isEqualTo(100);
+
+        List<HoldTimeProfilerMXBean.CallSite> p99 = profiler.getTopByP99();
+        assertThat(p99.get(0).getStack()).isEqualTo("long");
+        assertThat(p99.get(0).getP99()).isGreaterThanOrEqualTo(115.0);
+
+        profiler.reset();
+        assertThat(profiler.getTopByTotal()).isEmpty();
+    }
+
+    @Test
+    public void testCallSitesAreBounded() {
+        HoldTimeProfiler profiler = create(ImmutableMap.<String, Object>of("top", 1000));
+        for (int i = 0; i < HoldTimeProfiler.MAX_CALL_SITES + 10; i++) {
+            profiler.record("site-" + i, 1000);
+        }
+        List<HoldTimeProfilerMXBean.CallSite> sites = profiler.getTopByTotal();
+        assertThat(sites).hasSize(HoldTimeProfiler.MAX_CALL_SITES + 1);
+        assertThat(sites).extracting("stack").contains(HoldTimeProfiler.OTHER);
+    }
+
+    @Test
+    public void testSampling() throws Exception {
+        Connection connection = mock(Connection.class);
+        HoldTimeProfiler disabled = create(ImmutableMap.<String, Object>of("sampleRate", 0));
+        assertThat(disabled.wrap(connection)).isSameAs(connection);
+
+        HoldTimeProfiler profiler = create(ImmutableMap.<String, Object>of("sampleRate", 1));
+        Connection wrapped = profiler.wrap(connection);
+        assertThat(wrapped).isNotSameAs(connection);
+        assertThat(profiler.getTopByTotal()).hasSize(1);
+        assertThat(profiler.getTopByTotal().get(0).getOpen()).isEqualTo(1);
+        assertThat(profiler.getTopByTotal().get(0).getConnections()).isEqualTo(0);
+
+        wrapped.close();
+        wrapped.close();
+        verify(connection, org.mockito.Mockito.times(2)).close();
+        HoldTimeProfilerMXBean.CallSite site = profiler.getTopByTotal().get(0);
+        assertThat(site.getOpen()).isEqualTo(0);
+        assertThat(site.getConnections()).isEqualTo(1);
+    }
+}
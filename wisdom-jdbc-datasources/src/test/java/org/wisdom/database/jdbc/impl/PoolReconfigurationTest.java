@@ -0,0 +1,85 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariConfig;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the computation of the changes between two pool configurations.
+ */
+public class PoolReconfigurationTest {
+
+    private HikariConfig config() {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:h2:mem:reconfiguration");
+        config.setUsername("sa");
+        config.setMinimumIdle(10);
+        config.setMaximumPoolSize(10);
+        return config;
+    }
+
+    @Test
+    public void testUnchanged() {
+        assertThat(PoolReconfiguration.diff(config(), config())).isEqualTo(PoolReconfiguration.Change.NONE);
+    }
+
+    @Test
+    public void testRuntimeSettings() {
+        HikariConfig target = config();
+        target.setMaximumPoolSize(20);
+        target.setConnectionTimeout(5000);
+        target.setLeakDetectionThreshold(10000);
+        assertThat(PoolReconfiguration.diff(config(), target)).isEqualTo(PoolReconfiguration.Change.RUNTIME);
+
+        HikariConfig current = config();
+        PoolReconfiguration.apply(current, target);
+        assertThat(current.getMaximumPoolSize()).isEqualTo(20);
+        assertThat(current.getConnectionTimeout()).isEqualTo(5000);
+        assertThat(current.getLeakDetectionThreshold()).isEqualTo(10000);
+        assertThat(PoolReconfiguration.diff(current, target)).isEqualTo(PoolReconfiguration.Change.NONE);
+    }
+
+    @Test
+    public void testIdentityChangesRequireRebuild() {
+        HikariConfig target = config();
+        target.setJdbcUrl("jdbc:h2:mem:other");
+        assertThat(PoolReconfiguration.diff(config(), target)).isEqualTo(PoolReconfiguration.Change.REBUILD);
+
+        target = config();
+        target.setPassword("secret");
+        assertThat(PoolReconfiguration.diff(config(), target)).isEqualTo(PoolReconfiguration.Change.REBUILD);
+
+        target = config();
+        target.setAutoCommit(false);
+        assertThat(PoolReconfiguration.diff(config(), target)).isEqualTo(PoolReconfiguration.Change.REBUILD);
+    }
+
+    @Test
+    public void testPoolNameChangeRequiresRebuild() {
+        HikariConfig current = config();
+        current.setPoolName("pool");
+        HikariConfig target = config();
+        target.setPoolName("renamed");
+        assertThat(PoolReconfiguration.diff(current, target)).isEqualTo(PoolReconfiguration.Change.REBUILD);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigFactory;
+import org.junit.Before;
+import org.junit.Test;
+import org.wisdom.configuration.ConfigurationImpl;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the sizing decisions of the adaptive pool sizer.
+ */
+public class PoolSizerTest {
+
+    private static final double SLOW = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private PoolSizer sizer;
+
+    @Before
+    public void setUp() {
+        sizer = new PoolSizer(new WrappedDataSource("test", null));
+        sizer.configure(new ConfigurationImpl(null, ConfigFactory.parseMap(ImmutableMap.<String, Object>of(
+                "minimumSize", 2,
+                "maximumSize", 20,
+                "samples", 3))), 10);
+    }
+
+    @Test
+    public void testGrowsAfterConsecutiveSamplesUnderPressure() {
+        assertThat(sizer.decide(8, SLOW, 0, 0.9)).isEqualTo(8);
+        assertThat(sizer.decide(8, 0, 3, 0.9)).isEqualTo(8);
+        assertThat(sizer.decide(8, SLOW, 0, 1.0)).isEqualTo(10);
+        // The counter restarts after a resize
+        assertThat(sizer.decide(10, SLOW, 0, 1.0)).isEqualTo(10);
+    }
+
+    @Test
+    public void testHysteresis() {
+        for (int i = 0; i < 10; i++) {
+            // Alternating pressure and normal load never resizes
+            assertThat(sizer.decide(8, SLOW, 0, 0.9)).isEqualTo(8);
+            assertThat(sizer.decide(8, 0, 0, 0.5)).isEqualTo(8);
+            // Wait without utilization (slow database, not a pool shortage) does not grow
+            assertThat(sizer.decide(8, SLOW, 0, 0.5)).isEqualTo(8);
+        }
+    }
+
+    @Test
+    public void testShrinksWhenIdle() {
+        assertThat(sizer.decide(16, 0, 0, 0.1)).isEqualTo(16);
+        assertThat(sizer.decide(16, 0, 0, 0.1)).isEqualTo(16);
+        assertThat(sizer.decide(16, 0, 0, 0.1)).isEqualTo(14);
+        for (int i = 0; i < 3; i++) {
+            sizer.decide(3, 0, 0, 0.0);
+        }
+        assertThat(sizer.decide(2, 0, 0, 0.0)).isEqualTo(2);
+        assertThat(sizer.decide(2, 0, 0, 0.0)).isEqualTo(2);
+        assertThat(sizer.decide(2, 0, 0, 0.0)).isEqualTo(2);
+    }
+
+    @Test
+    public void testBounds() {
+        assertThat(sizer.decide(1, 0, 0, 0.5)).isEqualTo(2);
+        assertThat(sizer.decide(30, 0, 0, 0.5)).isEqualTo(20);
+        for (int i = 0; i < 2; i++) {
+            sizer.decide(19, SLOW, 1, 1.0);
+        }
+        assertThat(sizer.decide(19, SLOW, 1, 1.0)).isEqualTo(20);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the parallel warm-up of data sources.
+ */
+public class PoolWarmUpTest {
+
+    @Test
+    public void testFailingAndSlowDataSourcesAreDegraded() throws SQLException {
+        Connection connection = mock(Connection.class);
+        WrappedDataSource ok = source("ok");
+        when(ok.getWrapped().getConnection()).thenReturn(connection);
+
+        WrappedDataSource failing = source("failing");
+        when(failing.getWrapped().getConnection()).thenThrow(new SQLException("unreachable"));
+
+        WrappedDataSource slow = source("slow");
+        when(slow.getWrapped().getConnection()).thenAnswer(invocation -> {
+            Thread.sleep(10000);
+            return connection;
+        });
+
+        long begin = System.currentTimeMillis();
+        List<PoolWarmUp.Result> results = new PoolWarmUp(2, 500, true).warmUp(Arrays.asList(ok, failing, slow));
+        assertThat(System.currentTimeMillis() - begin).isLessThan(5000);
+
+        assertThat(results).hasSize(3);
+        assertThat(results.get(0).isSuccessful()).isTrue();
+        assertThat(results.get(0).getConnections()).isEqualTo(1);
+        assertThat(results.get(1).getError()).contains("unreachable");
+        assertThat(results.get(2).getError()).contains("500 ms");
+
+        assertThat(ok.isDegraded()).isFalse();
+        assertThat(failing.isDegraded()).isTrue();
+        assertThat(slow.isDegraded()).isTrue();
+        verify(connection).close();
+    }
+
+    @Test
+    public void testRecoveredDataSourceIsNotDegradedAnymore() throws SQLException {
+        WrappedDataSource source = source("default");
+        source.setDegraded(true);
+        when(source.getWrapped().getConnection()).thenReturn(mock(Connection.class));
+        new PoolWarmUp(1, 1000, false).warmUp(Arrays.asList(source));
+        assertThat(source.isDegraded()).isFalse();
+    }
+
+    private WrappedDataSource source(String name) {
+        WrappedDataSource source = new WrappedDataSource(name, null);
+        source.set(mock(DataSource.class));
+        return source;
+    }
+}
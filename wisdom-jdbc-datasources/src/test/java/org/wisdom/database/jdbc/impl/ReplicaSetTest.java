@@ -0,0 +1,93 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the balancing of read connections on replicas.
+ */
+public class ReplicaSetTest {
+
+    @Test
+    public void testLeastOutstandingReplicaIsSelected() throws SQLException {
+        ReplicaSet.Replica r1 = replica("r1");
+        ReplicaSet.Replica r2 = replica("r2");
+        ReplicaSet set = new ReplicaSet("default", Arrays.asList(r1, r2));
+        DataSource primary = mock(DataSource.class);
+
+        Connection first = set.getReadConnection(primary);
+        ReplicaSet.Replica busy = r1.getOutstanding() == 1 ? r1 : r2;
+        ReplicaSet.Replica other = busy == r1 ? r2 : r1;
+
+        // The second connection goes to the other replica, whatever the round-robin position.
+        Connection second = set.getReadConnection(primary);
+        assertThat(busy.getOutstanding()).isEqualTo(1);
+        assertThat(other.getOutstanding()).isEqualTo(1);
+
+        // Once the first connection is closed, its replica is the least loaded one.
+        first.close();
+        first.close();
+        assertThat(busy.getOutstanding()).isZero();
+        Connection third = set.getReadConnection(primary);
+        assertThat(busy.getOutstanding()).isEqualTo(1);
+        assertThat(other.getOutstanding()).isEqualTo(1);
+
+        second.close();
+        third.close();
+        assertThat(r1.getOutstanding()).isZero();
+        assertThat(r2.getOutstanding()).isZero();
+    }
+
+    @Test
+    public void testFailingReplicasFallBackToThePrimary() throws SQLException {
+        ReplicaSet.Replica r1 = replica("r1");
+        when(r1.getPool().getConnection()).thenThrow(new SQLException("down"));
+        ReplicaSet.Replica r2 = replica("r2");
+        when(r2.getPool().getConnection()).thenThrow(new SQLException("down"));
+        ReplicaSet set = new ReplicaSet("default", Arrays.asList(r1, r2));
+
+        DataSource primary = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        when(primary.getConnection()).thenReturn(connection);
+
+        assertThat(set.getReadConnection(primary)).isSameAs(connection);
+        verify(connection).setReadOnly(true);
+        assertThat(r1.getOutstanding()).isZero();
+        assertThat(r2.getOutstanding()).isZero();
+    }
+
+    private ReplicaSet.Replica replica(String name) throws SQLException {
+        HikariDataSource pool = mock(HikariDataSource.class);
+        when(pool.getConnection()).thenReturn(mock(Connection.class));
+        return new ReplicaSet.Replica(name, pool);
+    }
+}
@@ -0,0 +1,227 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the query result cache on a H2 database.
+ */
+public class ResultCacheTest {
+
+    private static final String QUERY = "SELECT name, price, created FROM items WHERE id = ?";
+
+    private ResultCache cache;
+
+    private Connection raw;
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        cache = new ResultCache("test", 100, ResultCache.DEFAULT_MAX_WEIGHT, 10, 0);
+        raw = DriverManager.getConnection("jdbc:h2:mem:result-cache");
+        connection = cache.wrap(raw);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE items (id INT PRIMARY KEY, name VARCHAR(32), price DECIMAL(10, 2), "
+                    + "created TIMESTAMP)");
+            statement.execute("INSERT INTO items VALUES (1, 'a', 1.50, '2016-01-01 10:00:00'), "
+                    + "(2, 'b', 2.00, NULL)");
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        raw.close();
+    }
+
+    @Test
+    public void testQueriesAreServedFromTheCache() throws SQLException {
+        assertThat(name(1)).isEqualTo("a");
+        assertThat(name(2)).isEqualTo("b");
+        assertThat(name(1)).isEqualTo("a");
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(2);
+        assertThat(cache.getEntries()).isEqualTo(2);
+        assertThat(cache.getWeight()).isPositive();
+
+        // Written outside the cache, so not seen
+        try (Statement statement = raw.createStatement()) {
+            statement.executeUpdate("UPDATE items SET name = 'z' WHERE id = 1");
+        }
+        assertThat(name(1)).isEqualTo("a");
+    }
+
+    @Test
+    public void testCachedValues() throws SQLException {
+        read(1);
+        try (PreparedStatement statement = connection.prepareStatement(QUERY)) {
+            statement.setInt(1, 1);
+            try (ResultSet results = statement.executeQuery()) {
+                assertThat(results.getStatement()).isSameAs(statement);
+                assertThat(results.getMetaData().getColumnCount()).isEqualTo(3);
+                assertThat(results.getMetaData().getColumnLabel(2)).isEqualTo("PRICE");
+                assertThat(results.next()).isTrue();
+                assertThat(results.getString("name")).isEqualTo("a");
+                assertThat(results.getBigDecimal(2)).isEqualTo(new BigDecimal("1.50"));
+                assertThat(results.getDouble("PRICE")).isEqualTo(1.5);
+                assertThat(results.getInt(2)).isEqualTo(1);
+                Timestamp created = results.getTimestamp(3);
+                created.setTime(0);
+                assertThat(results.getTimestamp(3)).isEqualTo(Timestamp.valueOf("2016-01-01 10:00:00"));
+                assertThat(results.getObject(1, String.class)).isEqualTo("a");
+                assertThat(results.next()).isFalse();
+            }
+            assertThat(cache.getHits()).isEqualTo(1);
+
+            statement.setInt(1, 2);
+            try (ResultSet results = statement.executeQuery()) {
+                assertThat(results.next()).isTrue();
+                assertThat(results.getTimestamp(3)).isNull();
+                assertThat(results.wasNull()).isTrue();
+                assertThat(results.getLong(3)).isZero();
+            }
+        }
+    }
+
+    @Test
+    public void testWritesInvalidateTheReadTables() throws SQLException {
+        long invalidations = cache.getInvalidations();
+        assertThat(name(1)).isEqualTo("a");
+        try (PreparedStatement statement = connection.prepareStatement("UPDATE items SET name = ? WHERE id = ?")) {
+            statement.setString(1, "c");
+            statement.setInt(2, 1);
+            assertThat(statement.executeUpdate()).isEqualTo(1);
+        }
+        assertThat(name(1)).isEqualTo("c");
+        assertThat(cache.getHits()).isZero();
+        assertThat(cache.getInvalidations()).isEqualTo(invalidations + 1);
+
+        try (Statement statement = connection.createStatement()) {
+            statement.addBatch("INSERT INTO items VALUES (3, 'c', 3, NULL)");
+            statement.addBatch("DELETE FROM items WHERE id = 1");
+            statement.executeBatch();
+        }
+        assertThat(name(1)).isNull();
+    }
+
+    @Test
+    public void testTransactionsBypassTheCacheOnceTheyHaveWritten() throws SQLException {
+        long invalidations = cache.getInvalidations();
+        assertThat(name(1)).isEqualTo("a");
+        connection.setAutoCommit(false);
+        assertThat(name(1)).isEqualTo("a");
+        assertThat(cache.getHits()).isEqualTo(1);
+
+        try (Statement statement = connection.createStatement()) {
+            statement.executeUpdate("UPDATE items SET name = 'd' WHERE id = 1");
+        }
+        assertThat(name(1)).isEqualTo("d");
+        assertThat(name(1)).isEqualTo("d");
+        assertThat(cache.getEntries()).isEqualTo(1);
+        connection.rollback();
+        // Once when executed, once when rolled back
+        assertThat(cache.getInvalidations()).isEqualTo(invalidations + 2);
+
+        assertThat(name(1)).isEqualTo("a");
+        assertThat(name(1)).isEqualTo("a");
+        assertThat(cache.getHits()).isEqualTo(2);
+        connection.setAutoCommit(true);
+    }
+
+    @Test
+    public void testLimits() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            for (int i = 10; i < 30; i++) {
+                statement.executeUpdate("INSERT INTO items VALUES (" + i + ", 'x', 1, NULL)");
+            }
+            // More than 10 rows, not cached but fully readable
+            for (int round = 0; round < 2; round++) {
+                try (ResultSet results = statement.executeQuery("SELECT id FROM items ORDER BY id")) {
+                    int count = 0;
+                    while (results.next()) {
+                        assertThat(results.getInt(1)).isPositive();
+                        count++;
+                    }
+                    assertThat(count).isEqualTo(22);
+                }
+            }
+        }
+        assertThat(cache.getEntries()).isZero();
+
+        for (int i = 10; i < 30; i++) {
+            read(i);
+        }
+        assertThat(cache.getEntries()).isEqualTo(20);
+        assertThat(cache.getEvictions()).isZero();
+
+        ResultCache small = new ResultCache("small", 5, ResultCache.DEFAULT_MAX_WEIGHT, 10, 0);
+        connection = small.wrap(raw);
+        for (int i = 10; i < 30; i++) {
+            read(i);
+        }
+        assertThat(small.getEntries()).isEqualTo(5);
+        assertThat(small.getEvictions()).isEqualTo(15);
+    }
+
+    @Test
+    public void testJmxRegistration() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        cache.open();
+        assertThat(server.isRegistered(cache.getObjectName())).isTrue();
+        name(1);
+        name(1);
+        assertThat(server.getAttribute(cache.getObjectName(), "HitRatio")).isEqualTo(0.5);
+        cache.close();
+        assertThat(server.isRegistered(cache.getObjectName())).isFalse();
+        assertThat(cache.getEntries()).isZero();
+    }
+
+    private String name(int id) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT name FROM items WHERE id = ?")) {
+            statement.setInt(1, id);
+            try (ResultSet results = statement.executeQuery()) {
+                return results.next() ? results.getString(1) : null;
+            }
+        }
+    }
+
+    private void read(int id) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(QUERY)) {
+            statement.setInt(1, id);
+            statement.executeQuery().close();
+        }
+    }
+}
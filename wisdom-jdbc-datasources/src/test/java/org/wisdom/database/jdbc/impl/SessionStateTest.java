@@ -0,0 +1,145 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the session state tracking.
+ */
+public class SessionStateTest {
+
+    @Test
+    public void testRedundantCallsAreSkipped() throws SQLException {
+        SessionState state = new SessionState();
+        Connection physical = mock(Connection.class);
+        Connection connection = state.wrap(physical);
+
+        connection.setAutoCommit(false);
+        connection.setAutoCommit(false);
+        connection.setReadOnly(true);
+        connection.setReadOnly(true);
+        connection.setAutoCommit(true);
+
+        verify(physical, times(1)).setAutoCommit(false);
+        verify(physical, times(1)).setAutoCommit(true);
+        verify(physical, times(1)).setReadOnly(true);
+        assertThat(state.getCalls()).isEqualTo(5);
+        assertThat(state.getSkipped()).isEqualTo(2);
+    }
+
+    @Test
+    public void testValuesAreLearntFromGetters() throws SQLException {
+        SessionState state = new SessionState();
+        Connection physical = mock(Connection.class);
+        when(physical.getTransactionIsolation()).thenReturn(Connection.TRANSACTION_READ_COMMITTED);
+        when(physical.getCatalog()).thenReturn(null);
+        Connection connection = state.wrap(physical);
+
+        assertThat(connection.getTransactionIsolation()).isEqualTo(Connection.TRANSACTION_READ_COMMITTED);
+        connection.setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        connection.setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        // A null catalog is a known value
+        connection.getCatalog();
+        connection.setCatalog(null);
+
+        verify(physical, times(0)).setTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        verify(physical, times(1)).setTransactionIsolation(Connection.TRANSACTION_SERIALIZABLE);
+        verify(physical, times(0)).setCatalog(null);
+        assertThat(state.getSkipped()).isEqualTo(2);
+    }
+
+    @Test
+    public void testFailuresForgetTheValue() throws SQLException {
+        SessionState state = new SessionState();
+        Connection physical = mock(Connection.class);
+        Connection connection = state.wrap(physical);
+
+        connection.setSchema("a");
+        doThrow(new SQLException("boom")).when(physical).setSchema("b");
+        try {
+            connection.setSchema("b");
+            fail("Exception expected");
+        } catch (SQLException e) {
+            assertThat(e.getMessage()).isEqualTo("boom");
+        }
+        // The schema may have changed, or not
+        connection.setSchema("a");
+        verify(physical, times(2)).setSchema("a");
+        assertThat(state.getSkipped()).isEqualTo(0);
+    }
+
+    @Test
+    public void testDisabledTrackingForwardsTheCalls() throws SQLException {
+        SessionState state = new SessionState();
+        Connection physical = mock(Connection.class);
+        Connection connection = state.wrap(physical);
+        state.setEnabled(false);
+
+        connection.setAutoCommit(false);
+        connection.setAutoCommit(false);
+        verify(physical, times(2)).setAutoCommit(false);
+
+        // New connections are not wrapped
+        assertThat(state.wrap(physical)).isSameAs(physical);
+    }
+
+    @Test
+    public void testStateIsResetWhenReturnedToThePool() throws SQLException {
+        SessionState state = new SessionState();
+        JdbcDataSource h2 = new JdbcDataSource();
+        h2.setURL("jdbc:h2:mem:session-state;DB_CLOSE_DELAY=-1");
+        HikariConfig config = new HikariConfig();
+        config.setDataSource(state.wrap(h2));
+        config.setMaximumPoolSize(1);
+        config.setAutoCommit(true);
+        try (HikariDataSource pool = new HikariDataSource(config)) {
+            try (Connection connection = pool.getConnection()) {
+                connection.setAutoCommit(false);
+                connection.setAutoCommit(false);
+                connection.setReadOnly(true);
+            }
+            // The pool restored the defaults through the tracking
+            try (Connection connection = pool.getConnection()) {
+                assertThat(connection.getAutoCommit()).isTrue();
+                assertThat(connection.isReadOnly()).isFalse();
+                long skipped = state.getSkipped();
+                connection.setAutoCommit(true);
+                assertThat(state.getSkipped()).isEqualTo(skipped + 1);
+                connection.setAutoCommit(false);
+                assertThat(connection.getAutoCommit()).isFalse();
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the normalization of SQL statements.
+ */
+public class SqlFingerprintTest {
+
+    @Test
+    public void testLiteralsAreReplaced() {
+        assertThat(SqlFingerprint.of("SELECT * FROM users WHERE name = 'O''Hara' AND age > 42"))
+                .isEqualTo("select * from users where name = ? and age > ?");
+        assertThat(SqlFingerprint.of("UPDATE t SET x = -1.5e-3, y=0x1F WHERE id=?"))
+                .isEqualTo("update t set x = ?, y=? where id=?");
+        assertThat(SqlFingerprint.of("SELECT a-1 FROM t1")).isEqualTo("select a-? from t1");
+    }
+
+    @Test
+    public void testSameStatementsHaveTheSameFingerprint() {
+        assertThat(SqlFingerprint.of("select *   from USERS\n where id = 1"))
+                .isEqualTo(SqlFingerprint.of("SELECT * FROM users WHERE id = 2"));
+    }
+
+    @Test
+    public void testListsAreCollapsed() {
+        assertThat(SqlFingerprint.of("SELECT * FROM t WHERE id IN (1, 2, 3)"))
+                .isEqualTo("select * from t where id in (?+)");
+        assertThat(SqlFingerprint.of("INSERT INTO t (a, b) VALUES (?,?)"))
+                .isEqualTo("insert into t (a, b) values (?+)");
+        assertThat(SqlFingerprint.of("SELECT count(*) FROM t WHERE x = (1)"))
+                .isEqualTo("select count(*) from t where x = (?)");
+    }
+
+    @Test
+    public void testCommentsAndQuotedIdentifiers() {
+        assertThat(SqlFingerprint.of("/* report */ SELECT \"Name\" FROM t -- trailing\nWHERE `Id` = 3"))
+                .isEqualTo("select \"Name\" from t where `Id` = ?");
+        assertThat(SqlFingerprint.of(null)).isEmpty();
+    }
+}
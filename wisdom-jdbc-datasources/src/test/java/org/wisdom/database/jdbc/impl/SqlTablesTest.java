@@ -0,0 +1,66 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Checks the extraction of the tables read and written by statements.
+ */
+public class SqlTablesTest {
+
+    private static String fp(String sql) {
+        return SqlFingerprint.of(sql);
+    }
+
+    @Test
+    public void testReadTables() {
+        assertThat(SqlTables.read(fp("SELECT * FROM Users WHERE id = 1"))).containsExactly("users");
+        assertThat(SqlTables.read(fp("SELECT * FROM app.users u, \"Roles\" AS r WHERE u.role = r.id")))
+                .containsExactly("users", "roles");
+        assertThat(SqlTables.read(fp("SELECT * FROM a LEFT OUTER JOIN b ON a.x = b.x JOIN c USING (y)")))
+                .containsExactly("a", "b", "c");
+        assertThat(SqlTables.read(fp("SELECT * FROM (SELECT id FROM orders) o WHERE o.id IN "
+                + "(SELECT id FROM lines)"))).containsExactly("orders", "lines");
+    }
+
+    @Test
+    public void testCacheableQueries() {
+        assertThat(SqlTables.isCacheable(fp("SELECT name FROM users WHERE id = ?"))).isTrue();
+        assertThat(SqlTables.isCacheable(fp("SELECT name FROM users FOR UPDATE"))).isFalse();
+        assertThat(SqlTables.isCacheable(fp("SELECT 1"))).isFalse();
+        assertThat(SqlTables.isCacheable(fp("SELECT NEXTVAL('seq')"))).isFalse();
+        assertThat(SqlTables.isCacheable(fp("UPDATE users SET name = 'x'"))).isFalse();
+    }
+
+    @Test
+    public void testWrittenTables() {
+        assertThat(SqlTables.written(fp("INSERT INTO Users (id, name) VALUES (1, 'a')"))).containsExactly("users");
+        assertThat(SqlTables.written(fp("update app.users set name = ? where id = ?"))).containsExactly("users");
+        assertThat(SqlTables.written(fp("DELETE FROM `users` WHERE id = 1"))).containsExactly("users");
+        assertThat(SqlTables.written(fp("MERGE INTO users KEY (id) VALUES (1, 'a')"))).containsExactly("users");
+        assertThat(SqlTables.written(fp("TRUNCATE TABLE users"))).containsExactly("users");
+        assertThat(SqlTables.written(fp("SELECT * FROM users"))).isEmpty();
+        assertThat(SqlTables.written(fp("DROP TABLE users"))).isNull();
+        assertThat(SqlTables.written(fp("CALL cleanup()"))).isNull();
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Checks the prepared statement cache on a H2 database.
+ */
+public class StatementCacheTest {
+
+    private StatementCache cache;
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        cache = new StatementCache();
+        cache.setSize(2);
+        connection = cache.wrap(DriverManager.getConnection("jdbc:h2:mem:statement-cache"));
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE items (id INT PRIMARY KEY, name VARCHAR(32))");
+            statement.execute("INSERT INTO items VALUES (1, 'a'), (2, 'b'), (3, 'c')");
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void testStatementsAreReused() throws SQLException {
+        PreparedStatement first = connection.prepareStatement("SELECT name FROM items WHERE id = ?");
+        Statement physical = first.unwrap(Statement.class);
+        first.close();
+        assertThat(first.isClosed()).isTrue();
+
+        PreparedStatement second = connection.prepareStatement("SELECT name FROM items WHERE id = ?");
+        assertThat(second).isNotSameAs(first);
+        assertThat(second.unwrap(Statement.class)).isSameAs(physical);
+        assertThat(second.isClosed()).isFalse();
+        assertThat(second.getConnection()).isSameAs(connection);
+        second.close();
+
+        // Different options, different statement
+        connection.prepareStatement("SELECT name FROM items WHERE id = ?", Statement.RETURN_GENERATED_KEYS).close();
+
+        assertThat(cache.getHits()).isEqualTo(1);
+        assertThat(cache.getMisses()).isEqualTo(2);
+    }
+
+    @Test
+    public void testStatementsAreResetWhenClosed() throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("SELECT name FROM items WHERE id = ?");
+        statement.setInt(1, 1);
+        ResultSet results = statement.executeQuery();
+        statement.close();
+        assertThat(results.isClosed()).isTrue();
+
+        try {
+            statement.executeQuery();
+            fail("The handle is closed");
+        } catch (SQLException e) {
+            // Expected
+        }
+
+        PreparedStatement reused = connection.prepareStatement("SELECT name FROM items WHERE id = ?");
+        try {
+            reused.executeQuery();
+            fail("The parameters must have been cleared");
+        } catch (SQLException e) {
+            // Expected
+        }
+        reused.close();
+        // The statement has failed, it must not be reused
+        connection.prepareStatement("SELECT name FROM items WHERE id = ?").close();
+        assertThat(cache.getHits()).isEqualTo(1);
+    }
+
+    @Test
+    public void testModifiedStatementsAreNotReused() throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("SELECT name FROM items");
+        Statement physical = statement.unwrap(Statement.class);
+        statement.setMaxRows(1);
+        statement.close();
+        assertThat(physical.isClosed()).isTrue();
+        connection.prepareStatement("SELECT name FROM items").close();
+        assertThat(cache.getHits()).isZero();
+    }
+
+    @Test
+    public void testLeastRecentlyUsedStatementsAreEvicted() throws SQLException {
+        Statement a = open("SELECT 1");
+        Statement b = open("SELECT 2");
+        Statement c = open("SELECT 3");
+        assertThat(a.isClosed()).isTrue();
+        assertThat(b.isClosed()).isFalse();
+        assertThat(cache.getEvictions()).isEqualTo(1);
+
+        connection.close();
+        assertThat(b.isClosed()).isTrue();
+        assertThat(c.isClosed()).isTrue();
+    }
+
+    @Test
+    public void testConcurrentStatementsWithTheSameSql() throws SQLException {
+        PreparedStatement a = connection.prepareStatement("SELECT 1");
+        PreparedStatement b = connection.prepareStatement("SELECT 1");
+        Statement physicalA = a.unwrap(Statement.class);
+        Statement physicalB = b.unwrap(Statement.class);
+        assertThat(physicalA).isNotSameAs(physicalB);
+        a.close();
+        b.close();
+        assertThat(physicalA.isClosed()).isFalse();
+        assertThat(physicalB.isClosed()).isTrue();
+    }
+
+    /**
+     * Prepares a statement and closes it.
+     *
+     * @param sql the SQL
+     * @return the physical statement
+     */
+    private Statement open(String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql)) {
+            return statement.unwrap(Statement.class);
+        }
+    }
+}
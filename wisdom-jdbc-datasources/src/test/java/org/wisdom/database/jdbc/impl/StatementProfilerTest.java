@@ -0,0 +1,133 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Checks the statement profiler on a H2 database.
+ */
+public class StatementProfilerTest {
+
+    private Connection connection;
+
+    @Before
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:profiler");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE items (id INT PRIMARY KEY, name VARCHAR(32))");
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void testExecutionsAreAggregatedByFingerprint() throws SQLException {
+        StatementProfiler profiler = new StatementProfiler("test", 1.0, 10000);
+        Connection profiled = profiler.wrap(connection);
+
+        try (PreparedStatement insert = profiled.prepareStatement("INSERT INTO items VALUES (?, ?)")) {
+            for (int i = 0; i < 5; i++) {
+                insert.setInt(1, i);
+                insert.setString(2, "item-" + i);
+                assertThat(insert.executeUpdate()).isEqualTo(1);
+            }
+            assertThat(insert.getConnection()).isSameAs(profiled);
+        }
+        try (Statement statement = profiled.createStatement()) {
+            for (int i = 0; i < 3; i++) {
+                try (ResultSet results = statement.executeQuery("SELECT * FROM items WHERE id < " + (i + 2))) {
+                    while (results.next()) {
+                        assertThat(results.getStatement()).isSameAs(statement);
+                    }
+                }
+            }
+            try {
+                statement.executeQuery("SELECT * FROM missing WHERE id = 1");
+                fail("Table not found expected");
+            } catch (SQLException e) {
+                // Expected
+            }
+        }
+
+        List<StatementProfilerMXBean.Fingerprint> statements = profiler.getStatements();
+        assertThat(statements).hasSize(3);
+        StatementProfilerMXBean.Fingerprint insert = find(statements, "insert into items values (?+)");
+        assertThat(insert.getExecutions()).isEqualTo(5);
+        assertThat(insert.getRows()).isEqualTo(5);
+        StatementProfilerMXBean.Fingerprint select = find(statements, "select * from items where id < ?");
+        assertThat(select.getExecutions()).isEqualTo(3);
+        assertThat(select.getRows()).isEqualTo(2 + 3 + 4);
+        StatementProfilerMXBean.Fingerprint error = find(statements, "select * from missing where id = ?");
+        assertThat(error.getErrors()).isEqualTo(1);
+        assertThat(error.getExecutions()).isZero();
+
+        profiler.reset();
+        assertThat(profiler.getStatements()).isEmpty();
+    }
+
+    @Test
+    public void testSlowStatementsAreCountedEvenIfNotSampled() throws SQLException {
+        StatementProfiler profiler = new StatementProfiler("test", 0.0, 0);
+        try (Statement statement = profiler.wrap(connection).createStatement()) {
+            statement.executeQuery("SELECT * FROM items").close();
+        }
+        StatementProfilerMXBean.Fingerprint select = find(profiler.getStatements(), "select * from items");
+        assertThat(select.getSlow()).isEqualTo(1);
+        assertThat(select.getExecutions()).isZero();
+    }
+
+    @Test
+    public void testUnsampledFastStatementsAreNotRecorded() throws SQLException {
+        StatementProfiler profiler = new StatementProfiler("test", 0.0, 10000);
+        try (Statement statement = profiler.wrap(connection).createStatement()) {
+            statement.addBatch("INSERT INTO items VALUES (100, 'a')");
+            statement.addBatch("INSERT INTO items VALUES (101, 'b')");
+            assertThat(statement.executeBatch()).containsExactly(1, 1);
+        }
+        assertThat(profiler.getStatements()).isEmpty();
+    }
+
+    private StatementProfilerMXBean.Fingerprint find(List<StatementProfilerMXBean.Fingerprint> statements,
+                                                      String sql) {
+        for (StatementProfilerMXBean.Fingerprint fingerprint : statements) {
+            if (fingerprint.getSql().equals(sql)) {
+                return fingerprint;
+            }
+        }
+        throw new AssertionError("No statement " + sql + " in " + statements.size() + " fingerprints");
+    }
+}
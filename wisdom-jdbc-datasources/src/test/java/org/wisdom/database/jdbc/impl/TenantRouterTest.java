@@ -0,0 +1,274 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigFactory;
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.wisdom.configuration.ConfigurationImpl;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Checks the creation and the eviction of the tenant pools, and the schema switching.
+ */
+public class TenantRouterTest {
+
+    private final List<String> retired = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * When set, the creation of the pool of the {@code slow} tenant counts down {@link #creating}, and waits for it.
+     */
+    private volatile CountDownLatch blocked;
+
+    private final CountDownLatch creating = new CountDownLatch(1);
+
+    private final TenantRouter.Pools pools = new TenantRouter.Pools() {
+        @Override
+        public HikariDataSource create(String tenant, HikariConfig config) throws SQLException {
+            CountDownLatch latch = blocked;
+            if (latch != null && "slow".equals(tenant)) {
+                creating.countDown();
+                try {
+                    latch.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new HikariDataSource(config);
+        }
+
+        @Override
+        public void retire(String tenant, HikariDataSource pool) {
+            retired.add(tenant);
+            pool.close();
+        }
+    };
+
+    private HikariDataSource primary;
+
+    private TenantRouter router;
+
+    @Before
+    public void setUp() {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:h2:mem:tenant-primary;DB_CLOSE_DELAY=-1");
+        config.setDriverClassName("org.h2.Driver");
+        config.setMaximumPoolSize(2);
+        config.setPoolName("test");
+        primary = new HikariDataSource(config);
+    }
+
+    @After
+    public void tearDown() {
+        if (router != null) {
+            router.stop();
+        }
+        primary.close();
+    }
+
+    private TenantRouter create(Map<String, Object> settings) {
+        return new TenantRouter("test", primary, new ConfigurationImpl(null, ConfigFactory.parseMap(settings)), pools);
+    }
+
+    private static String database(Connection connection) throws SQLException {
+        return query(connection, "SELECT DATABASE()");
+    }
+
+    private CompletableFuture<String> database(String tenant) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Connection connection = router.getConnection(primary, tenant)) {
+                return database(connection);
+            } catch (SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    private static String schema(Connection connection) throws SQLException {
+        return query(connection, "SELECT SCHEMA()");
+    }
+
+    private static String query(Connection connection, String sql) throws SQLException {
+        try (Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery(sql)) {
+            assertThat(results.next()).isTrue();
+            return results.getString(1);
+        }
+    }
+
+    @Test
+    public void testPoolPerTenant() throws SQLException {
+        router = create(ImmutableMap.<String, Object>of("url", "jdbc:h2:mem:tenant_{tenant};DB_CLOSE_DELAY=-1"));
+        assertThat(router.getMode()).isEqualTo("DATABASE");
+
+        try (Connection connection = router.getConnection(primary, "acme")) {
+            assertThat(database(connection)).isEqualTo("TENANT_ACME");
+        }
+        try (Connection connection = router.getConnection(primary, "globex")) {
+            assertThat(database(connection)).isEqualTo("TENANT_GLOBEX");
+        }
+        try (Connection connection = router.getConnection(primary, "acme")) {
+            assertThat(database(connection)).isEqualTo("TENANT_ACME");
+        }
+        assertThat(router.getTenants()).containsOnly("acme", "globex");
+        assertThat(router.getCreatedPools()).isEqualTo(2);
+        assertThat(router.getReservedConnections()).isEqualTo(4);
+
+        router.stop();
+        assertThat(retired).containsOnly("acme", "globex");
+        assertThat(router.getTenants()).isEmpty();
+        router = null;
+    }
+
+    @Test
+    public void testPoolCreationDoesNotBlockTheOtherTenants() throws Exception {
+        router = create(ImmutableMap.<String, Object>of("url", "jdbc:h2:mem:tenant_{tenant};DB_CLOSE_DELAY=-1"));
+        router.getConnection(primary, "acme").close();
+
+        blocked = new CountDownLatch(1);
+        CompletableFuture<String> slow = database("slow");
+        assertThat(creating.await(5, TimeUnit.SECONDS)).isTrue();
+        // While the pool of a tenant is created, the other tenants are served, whether they have a pool or not
+        assertThat(database("acme").get(5, TimeUnit.SECONDS)).isEqualTo("TENANT_ACME");
+        assertThat(database("globex").get(5, TimeUnit.SECONDS)).isEqualTo("TENANT_GLOBEX");
+        assertThat(slow.isDone()).isFalse();
+
+        blocked.countDown();
+        assertThat(slow.get(5, TimeUnit.SECONDS)).isEqualTo("TENANT_SLOW");
+        assertThat(router.getCreatedPools()).isEqualTo(3);
+        assertThat(router.getReservedConnections()).isEqualTo(6);
+    }
+
+    @Test
+    public void testConcurrentRequestsShareThePoolOfATenant() throws Exception {
+        router = create(ImmutableMap.<String, Object>of("url", "jdbc:h2:mem:tenant_{tenant};DB_CLOSE_DELAY=-1"));
+        List<CompletableFuture<String>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(database("acme"));
+        }
+        for (CompletableFuture<String> result : results) {
+            assertThat(result.get(5, TimeUnit.SECONDS)).isEqualTo("TENANT_ACME");
+        }
+        assertThat(router.getCreatedPools()).isEqualTo(1);
+        assertThat(router.getReservedConnections()).isEqualTo(2);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws SQLException {
+        router = create(ImmutableMap.<String, Object>of(
+                "url", "jdbc:h2:mem:tenant_{tenant};DB_CLOSE_DELAY=-1",
+                "maximumPoolSize", 1,
+                "maximumConnections", 2));
+
+        router.getConnection(primary, "a").close();
+        Connection b = router.getConnection(primary, "b");
+        // a is the least recently used tenant without connection in use
+        router.getConnection(primary, "c").close();
+        assertThat(retired).containsExactly("a");
+        assertThat(router.getTenants()).containsOnly("b", "c");
+        assertThat(router.getEvictedPools()).isEqualTo(1);
+
+        // c is idle, so it is evicted, while b is in use
+        Connection d = router.getConnection(primary, "d");
+        assertThat(retired).containsExactly("a", "c");
+
+        // b and d are in use, no room for e
+        try {
+            router.getConnection(primary, "e");
+            fail("Exception expected");
+        } catch (SQLTransientConnectionException e) {
+            assertThat(e.getMessage()).contains("'e'");
+        }
+        b.close();
+        d.close();
+        router.getConnection(primary, "e").close();
+        assertThat(router.getTenants()).hasSize(2).contains("e");
+    }
+
+    @Test
+    public void testIdleEviction() throws Exception {
+        router = create(ImmutableMap.<String, Object>of(
+                "url", "jdbc:h2:mem:tenant_{tenant};DB_CLOSE_DELAY=-1",
+                "ttl", 1000));
+        Connection busy = router.getConnection(primary, "busy");
+        router.getConnection(primary, "idle").close();
+
+        ScheduledExecutorService executor = new ScheduledThreadPoolExecutor(1);
+        try {
+            router.start(executor);
+            Thread.sleep(1500);
+            assertThat(router.getTenants()).containsOnly("busy");
+            assertThat(retired).containsOnly("idle");
+        } finally {
+            busy.close();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSchemaPerTenant() throws SQLException {
+        try (Connection connection = primary.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE SCHEMA IF NOT EXISTS T_ACME");
+            statement.execute("CREATE TABLE IF NOT EXISTS T_ACME.ITEMS(ID INT)");
+            statement.execute("INSERT INTO T_ACME.ITEMS VALUES (1)");
+        }
+        router = create(ImmutableMap.<String, Object>of("schema", "T_{tenant}"));
+        assertThat(router.getMode()).isEqualTo("SCHEMA");
+
+        try (Connection connection = router.getConnection(primary, "ACME");
+             Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("SELECT COUNT(*) FROM ITEMS")) {
+            assertThat(schema(connection)).isEqualTo("T_ACME");
+            assertThat(results.next()).isTrue();
+            assertThat(results.getInt(1)).isEqualTo(1);
+        }
+        // The schema is restored when the connection returns to the pool
+        try (Connection connection = primary.getConnection()) {
+            assertThat(schema(connection)).isEqualTo("PUBLIC");
+        }
+        assertThat(router.getTenants()).isEmpty();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUrlWithoutPlaceholder() {
+        create(ImmutableMap.<String, Object>of("mode", "database", "url", "jdbc:h2:mem:shared"));
+    }
+}
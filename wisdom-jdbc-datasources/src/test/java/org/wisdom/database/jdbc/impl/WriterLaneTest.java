@@ -0,0 +1,416 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.impl;
+
+import com.google.common.collect.ImmutableMap;
+import com.typesafe.config.ConfigFactory;
+import com.zaxxer.hikari.HikariConfig;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.osgi.service.jdbc.DataSourceFactory;
+import org.sqlite.SQLiteDataSource;
+import org.wisdom.database.jdbc.DataSourcesRule;
+import org.wisdom.api.configuration.Configuration;
+import org.wisdom.configuration.ConfigurationImpl;
+import org.wisdom.database.jdbc.utils.BulkLoader;
+import org.wisdom.database.jdbc.utils.ReadOnly;
+
+import javax.sql.DataSource;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Statement;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the single writer, on a SQLite database.
+ */
+public class WriterLaneTest {
+
+    private static final File DB = new File("target/writer-lane.db");
+
+    @Rule
+    public DataSourcesRule fixture = new DataSourcesRule();
+
+    private WriterLane lane;
+
+    @Before
+    public void setUp() throws SQLException {
+        delete();
+        try (Connection connection = sqlite().getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE item (id INTEGER PRIMARY KEY, name TEXT NOT NULL)");
+        }
+    }
+
+    @After
+    public void tearDown() {
+        // Before deleting the database, closing the connections of the pool afterwards would delete the next WAL file
+        fixture.stop();
+        if (lane != null) {
+            lane.stop();
+        }
+        delete();
+    }
+
+    private static void delete() {
+        for (String suffix : new String[]{"", "-wal", "-shm"}) {
+            new File(DB.getPath() + suffix).delete();
+        }
+    }
+
+    private static SQLiteDataSource sqlite() {
+        SQLiteDataSource source = new SQLiteDataSource();
+        source.setUrl("jdbc:sqlite:" + DB.getPath());
+        return source;
+    }
+
+    private static Configuration section(ImmutableMap<String, Object> settings) {
+        return new ConfigurationImpl(null, ConfigFactory.parseMap(settings));
+    }
+
+    private WriterLane start(ImmutableMap<String, Object> settings) {
+        Configuration section = section(settings);
+        HikariConfig primary = new HikariConfig();
+        primary.setConnectionTimeout(1000);
+        lane = new WriterLane("test", WriterLane.initialize(sqlite(), WriterLane.getPragmas(section)), section,
+                primary);
+        lane.start();
+        return lane;
+    }
+
+    private static int count(DataSource source) throws SQLException {
+        try (Connection connection = source.getConnection();
+             Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("SELECT COUNT(*) FROM item")) {
+            assertThat(results.next()).isTrue();
+            return results.getInt(1);
+        }
+    }
+
+    private static CompletableFuture<Integer> insert(WriterLane lane, int id, String name) {
+        return lane.submit(connection -> {
+            try (Statement statement = connection.createStatement()) {
+                return statement.executeUpdate("INSERT INTO item VALUES (" + id + ", " + name + ")");
+            }
+        });
+    }
+
+    @Test
+    public void testQueuedWritesAreCommittedTogether() throws Exception {
+        WriterLane lane = start(ImmutableMap.<String, Object>of());
+        CompletableFuture<Integer> first;
+        CompletableFuture<Integer> failing;
+        CompletableFuture<Integer> last;
+        // Hold the writer connection while the writes are queued
+        try (Connection connection = lane.getConnection()) {
+            first = insert(lane, 1, "'a'");
+            failing = insert(lane, 2, "NULL");
+            last = insert(lane, 3, "'c'");
+            Thread.sleep(100);
+            // The writer thread may have taken some of them, but waits for the connection
+            assertThat(first.isDone()).isFalse();
+            assertThat(last.isDone()).isFalse();
+            assertThat(lane.getWrites()).isEqualTo(0);
+        }
+
+        assertThat(first.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+        assertThat(last.get(5, TimeUnit.SECONDS)).isEqualTo(1);
+        try {
+            failing.get(5, TimeUnit.SECONDS);
+            fail("The write violates the NOT NULL constraint");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(SQLException.class);
+        }
+        assertThat(count(sqlite())).isEqualTo(2);
+        assertThat(lane.getWrites()).isEqualTo(3);
+        assertThat(lane.getFailedWrites()).isEqualTo(1);
+        // The write queued before the connection was borrowed may run alone
+        assertThat(lane.getBatches()).isLessThanOrEqualTo(2);
+        assertThat(lane.getLeases()).isEqualTo(1);
+    }
+
+    @Test
+    public void testQueuedWritesCannotManageTheTransaction() throws Exception {
+        WriterLane lane = start(ImmutableMap.<String, Object>of());
+        CompletableFuture<Void> write = lane.submit(connection -> {
+            connection.commit();
+            return null;
+        });
+        try {
+            write.get(5, TimeUnit.SECONDS);
+            fail("The write cannot commit");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause()).isInstanceOf(SQLException.class);
+        }
+        // The lane still works
+        assertThat(insert(lane, 1, "'a'").get(5, TimeUnit.SECONDS)).isEqualTo(1);
+    }
+
+    @Test
+    public void testLeasedConnectionIsResetWhenReturned() throws Exception {
+        WriterLane lane = start(ImmutableMap.<String, Object>of());
+        try (Connection connection = lane.getConnection(); Statement statement = connection.createStatement()) {
+            connection.setAutoCommit(false);
+            statement.executeUpdate("INSERT INTO item VALUES (1, 'a')");
+            // Not committed
+        }
+        assertThat(count(sqlite())).isEqualTo(0);
+        try (Connection connection = lane.getConnection()) {
+            assertThat(connection.getAutoCommit()).isTrue();
+        }
+    }
+
+    @Test
+    public void testPragmas() throws Exception {
+        WriterLane lane = start(ImmutableMap.<String, Object>of());
+        try (Connection connection = lane.getConnection(); Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("PRAGMA journal_mode")) {
+            assertThat(results.next()).isTrue();
+            assertThat(results.getString(1)).isEqualToIgnoringCase("wal");
+        }
+    }
+
+    @Test
+    public void testDataSourceWithSingleWriter() throws Exception {
+        DataSourceFactory factory = sqliteFactory();
+        long begin = System.nanoTime();
+        HikariCPDataSources sources = fixture.start("org.sqlite.JDBC", factory, ImmutableMap.<String, Object>builder()
+                .put("sqlite.driver", "org.sqlite.JDBC")
+                .put("sqlite.url", "jdbc:sqlite:" + DB.getPath())
+                // SQLite supports only SERIALIZABLE and READ_UNCOMMITTED
+                .put("sqlite.isolation", "SERIALIZABLE")
+                .put("sqlite.writer.batchSize", 16)
+                .build());
+        // The pool is warmed up without waiting for the writer connection
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)).isLessThan(5000L);
+        assertThat(((WrappedDataSource) sources.getDataSource("sqlite")).isDegraded()).isFalse();
+
+        assertThat(sources.write("sqlite", connection -> {
+            try (Statement statement = connection.createStatement()) {
+                return statement.executeUpdate("INSERT INTO item VALUES (1, 'a')");
+            }
+        }).get(5, TimeUnit.SECONDS)).isEqualTo(1);
+
+        // Outside of the read-only blocks, the connections are the writer connection
+        try (Connection connection = sources.getConnection("sqlite");
+             Statement statement = connection.createStatement()) {
+            statement.executeUpdate("INSERT INTO item VALUES (2, 'b')");
+        }
+
+        // The connections of the pool are read only
+        DataSource source = sources.getDataSource("sqlite");
+        assertThat(ReadOnly.execute(() -> count(source))).isEqualTo(2);
+        try {
+            ReadOnly.execute(() -> {
+                try (Connection connection = source.getConnection();
+                     Statement statement = connection.createStatement()) {
+                    return statement.executeUpdate("INSERT INTO item VALUES (3, 'c')");
+                }
+            });
+            fail("The connections of the pool are read only");
+        } catch (SQLException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testWaitingForTheWriterDoesNotTripTheCircuitBreaker() throws Exception {
+        DataSourceFactory factory = sqliteFactory();
+        HikariCPDataSources sources = fixture.start("org.sqlite.JDBC", factory, ImmutableMap.<String, Object>builder()
+                .put("sqlite.driver", "org.sqlite.JDBC")
+                .put("sqlite.url", "jdbc:sqlite:" + DB.getPath())
+                .put("sqlite.isolation", "SERIALIZABLE")
+                .put("sqlite.connectionTimeout", 500)
+                .put("sqlite.writer.batchSize", 16)
+                .put("sqlite.circuitBreaker.failureThreshold", 1)
+                .build());
+        WrappedDataSource source = (WrappedDataSource) sources.getDataSource("sqlite");
+
+        try (Connection held = source.getConnection()) {
+            CompletableFuture<Connection> other = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return source.getConnection();
+                } catch (SQLException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+            try {
+                other.get(5, TimeUnit.SECONDS).close();
+                fail("The writer connection is held");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause().getCause()).isInstanceOf(SQLTransientConnectionException.class);
+            }
+        }
+
+        assertThat(source.isDegraded()).isFalse();
+        try (Connection connection = source.getConnection()) {
+            assertThat(connection.isValid(1)).isTrue();
+        }
+    }
+
+    @Test
+    public void testTheWriterConnectionCannotBeRequestedByAQueuedWrite() throws Exception {
+        WriterLane lane = start(ImmutableMap.<String, Object>of());
+        long begin = System.nanoTime();
+        try {
+            lane.submit(connection -> lane.getConnection()).get(5, TimeUnit.SECONDS);
+            fail("The lane thread already holds the writer connection");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause().getMessage()).contains("already held by the current write");
+        }
+        // It did not wait for the lease timeout
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin)).isLessThan(500L);
+
+        // The connection is still available
+        try (Connection connection = lane.getConnection()) {
+            assertThat(connection.isValid(1)).isTrue();
+        }
+    }
+
+    @Test
+    public void testTheWriterConnectionBelongsToItsLease() throws Exception {
+        WriterLane lane = start(ImmutableMap.<String, Object>of());
+        // Handed to another thread, which closes it later
+        Connection handed = lane.getConnection();
+        CompletableFuture<Void> closed = CompletableFuture.runAsync(() -> {
+            try {
+                Thread.sleep(200);
+                handed.close();
+            } catch (InterruptedException | SQLException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        // The thread that requested it can request it again, once closed
+        try (Connection connection = lane.getConnection()) {
+            assertThat(closed.isDone()).isTrue();
+            assertThat(connection.isValid(1)).isTrue();
+
+            // Still held, the next request waits for the lease timeout
+            try {
+                lane.getConnection();
+                fail("The writer connection is held");
+            } catch (SQLTransientConnectionException e) {
+                assertThat(e.getMessage()).contains("not available");
+            }
+        }
+    }
+
+    @Test
+    public void testAsyncConnectionsWaitForTheWriter() throws Exception {
+        HikariCPDataSources sources = fixture.start("org.sqlite.JDBC", sqliteFactory(),
+                ImmutableMap.<String, Object>builder()
+                        .put("sqlite.driver", "org.sqlite.JDBC")
+                        .put("sqlite.url", "jdbc:sqlite:" + DB.getPath())
+                        .put("sqlite.isolation", "SERIALIZABLE")
+                        .put("sqlite.writer.batchSize", 16)
+                        // A single platform thread, reused by the requests
+                        .put("sqlite.async.threads", 1)
+                        .put("sqlite.async.virtualThreads", false)
+                        .build());
+        Connection first = sources.getConnectionAsync("sqlite").get(5, TimeUnit.SECONDS);
+        CompletableFuture<Connection> second = sources.getConnectionAsync("sqlite");
+        Thread.sleep(100);
+        assertThat(second.isDone()).isFalse();
+        first.close();
+        try (Connection connection = second.get(5, TimeUnit.SECONDS)) {
+            assertThat(connection.isValid(1)).isTrue();
+        }
+    }
+
+    @Test
+    public void testBulkLoadWithSeveralWriters() throws Exception {
+        HikariCPDataSources sources = fixture.start("org.sqlite.JDBC", sqliteFactory(),
+                ImmutableMap.<String, Object>builder()
+                        .put("sqlite.driver", "org.sqlite.JDBC")
+                        .put("sqlite.url", "jdbc:sqlite:" + DB.getPath())
+                        .put("sqlite.isolation", "SERIALIZABLE")
+                        .put("sqlite.connectionTimeout", 500)
+                        .put("sqlite.writer.batchSize", 16)
+                        .build());
+        DataSource source = sources.getDataSource("sqlite");
+        // The writers beyond the first one do not get the writer connection, the load runs with a single writer
+        BulkLoader.Result result = BulkLoader.into(source, "item")
+                .columns("id", "name")
+                .writers(3)
+                .batchSize(10)
+                .load(IntStream.range(0, 100).mapToObj(i -> new Object[]{i, "item-" + i}));
+        assertThat(result.getRows()).isEqualTo(100L);
+        assertThat(ReadOnly.execute(() -> count(source))).isEqualTo(100);
+    }
+
+    private static DataSourceFactory sqliteFactory() throws SQLException {
+        DataSourceFactory factory = mock(DataSourceFactory.class);
+        when(factory.createDataSource(any(Properties.class))).thenAnswer(invocation -> {
+            Properties properties = (Properties) invocation.getArguments()[0];
+            SQLiteDataSource source = new SQLiteDataSource();
+            source.setUrl(properties.getProperty(DataSourceFactory.JDBC_URL));
+            return source;
+        });
+        return factory;
+    }
+
+    @Test
+    public void testTheWriterIsKeptAcrossUnrelatedReconfigurations() throws Exception {
+        DataSourceFactory factory = sqliteFactory();
+        ImmutableMap<String, Object> settings = ImmutableMap.<String, Object>builder()
+                .put("sqlite.driver", "org.sqlite.JDBC")
+                .put("sqlite.url", "jdbc:sqlite:" + DB.getPath())
+                .put("sqlite.isolation", "SERIALIZABLE")
+                .put("sqlite.writer.batchSize", 16)
+                .build();
+        HikariCPDataSources sources = fixture.start("org.sqlite.JDBC", factory, settings);
+        WrappedDataSource source = (WrappedDataSource) sources.getDataSource("sqlite");
+        WriterLane writer = source.getWriterLane();
+        assertThat(writer).isNotNull();
+
+        // Unrelated and runtime changes keep the writer, and the connection it lends
+        Connection held = source.getConnection();
+        fixture.reconfigure(ImmutableMap.<String, Object>builder().putAll(settings)
+                .put("sqlite.maximumPoolSize", 5)
+                .put("sqlite.connectionTimeout", 2000)
+                .build());
+        assertThat(source.getWriterLane()).isSameAs(writer);
+        try (Statement statement = held.createStatement()) {
+            statement.executeUpdate("INSERT INTO item VALUES (1, 'a')");
+        }
+        held.close();
+
+        // Changes of the writer section replace it
+        fixture.reconfigure(ImmutableMap.<String, Object>builder().putAll(settings)
+                .put("sqlite.writer.queueSize", 32)
+                .build());
+        assertThat(source.getWriterLane()).isNotNull().isNotSameAs(writer);
+        assertThat(ReadOnly.execute(() -> count(source))).isEqualTo(1);
+    }
+}
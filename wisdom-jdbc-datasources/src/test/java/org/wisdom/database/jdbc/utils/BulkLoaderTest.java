@@ -0,0 +1,241 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.sql.DataSource;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Checks the bulk loader on H2 and HSQLDB, and the batch rewriting of a (mocked) MySQL connection.
+ */
+public class BulkLoaderTest {
+
+    private HikariDataSource source;
+
+    @After
+    public void tearDown() {
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    private void open(String url) throws SQLException {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(url);
+        config.setMaximumPoolSize(4);
+        config.setConnectionTimeout(1000);
+        source = new HikariDataSource(config);
+        execute("CREATE TABLE items (id INT PRIMARY KEY, name VARCHAR(32))");
+    }
+
+    private void execute(String sql) throws SQLException {
+        try (Connection connection = source.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute(sql);
+        }
+    }
+
+    /**
+     * Checks that the writers returned their connections, by borrowing all the connections of the pool.
+     */
+    private void assertConnectionsReturned() throws SQLException {
+        try (Connection c1 = source.getConnection(); Connection c2 = source.getConnection();
+             Connection c3 = source.getConnection(); Connection c4 = source.getConnection()) {
+            assertThat(c4.isValid(1)).isTrue();
+        }
+    }
+
+    private String query(String sql) throws SQLException {
+        try (Connection connection = source.getConnection(); Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery(sql)) {
+            assertThat(results.next()).isTrue();
+            return results.getString(1);
+        }
+    }
+
+    private static Stream<Object[]> rows(int from, int to, String prefix) {
+        return IntStream.range(from, to).mapToObj(i -> new Object[]{i, prefix + i});
+    }
+
+    @Test
+    public void testInsertWithParallelWriters() throws SQLException {
+        open("jdbc:h2:mem:bulk-insert");
+        BulkLoader.Result result = BulkLoader.into(source, "items")
+                .columns("id", "name")
+                .writers(3)
+                .batchSize(100)
+                .commitSize(500)
+                .queueSize(2)
+                .load(rows(0, 10050, "item-"));
+        assertThat(result.getRows()).isEqualTo(10050);
+        assertThat(result.getBatches()).isEqualTo(101);
+        assertThat(query("SELECT COUNT(*) FROM items")).isEqualTo("10050");
+        assertThat(query("SELECT name FROM items WHERE id = 10049")).isEqualTo("item-10049");
+        assertConnectionsReturned();
+    }
+
+    @Test
+    public void testMergeOnH2() throws SQLException {
+        open("jdbc:h2:mem:bulk-merge");
+        BulkLoader loader = BulkLoader.into(source, "items").columns("id", "name").keys("id")
+                .mode(BulkLoader.Mode.MERGE).batchSize(50);
+        loader.load(rows(0, 200, "a-"));
+        loader.load(rows(100, 300, "b-"));
+        assertThat(query("SELECT COUNT(*) FROM items")).isEqualTo("300");
+        assertThat(query("SELECT name FROM items WHERE id = 50")).isEqualTo("a-50");
+        assertThat(query("SELECT name FROM items WHERE id = 150")).isEqualTo("b-150");
+    }
+
+    @Test
+    public void testMergeOnHsqldb() throws SQLException {
+        open("jdbc:hsqldb:mem:bulk-merge");
+        BulkLoader loader = BulkLoader.into(source, "items").columns("id", "name").keys("id")
+                .mode(BulkLoader.Mode.MERGE).batchSize(50);
+        loader.load(rows(0, 200, "a-"));
+        loader.load(rows(100, 300, "b-"));
+        assertThat(query("SELECT COUNT(*) FROM items")).isEqualTo("300");
+        assertThat(query("SELECT name FROM items WHERE id = 50")).isEqualTo("a-50");
+        assertThat(query("SELECT name FROM items WHERE id = 150")).isEqualTo("b-150");
+    }
+
+    @Test(timeout = 30000)
+    public void testFailureStopsTheLoad() throws SQLException {
+        open("jdbc:h2:mem:bulk-failure");
+        BulkLoader.into(source, "items").columns("id", "name").load(rows(0, 1000, "item-"));
+        // A row conflicting with a committed one fails one of the writers
+        Stream<Object[]> rows = Stream.concat(Stream.concat(rows(1000, 50000, "item-"), rows(5, 6, "duplicate-")),
+                rows(50000, 100000, "item-"));
+        try {
+            BulkLoader.into(source, "items").columns("id", "name").writers(2).batchSize(100).commitSize(100000)
+                    .load(rows);
+            fail("Duplicate key expected");
+        } catch (SQLException e) {
+            // Expected
+        }
+        assertThat(Integer.parseInt(query("SELECT COUNT(*) FROM items"))).isEqualTo(1000);
+        assertConnectionsReturned();
+    }
+
+    @Test(timeout = 30000)
+    public void testFailureOfWritersWaitingForEachOther() throws SQLException {
+        // The lock waits are only bounded by the timeout of the loader
+        open("jdbc:h2:mem:bulk-conflict;LOCK_TIMEOUT=600000");
+        // The duplicated keys conflict with rows not committed yet by the other writer
+        Stream<Object[]> rows = Stream.concat(rows(0, 1000, "item-"), rows(0, 100000, "duplicate-"));
+        try {
+            BulkLoader.into(source, "items").columns("id", "name").writers(2).batchSize(100).commitSize(100000)
+                    .queueSize(2).timeout(1).load(rows);
+            fail("Duplicate key expected");
+        } catch (SQLException e) {
+            // Expected
+        }
+        assertThat(Integer.parseInt(query("SELECT COUNT(*) FROM items"))).isLessThan(101000);
+        assertConnectionsReturned();
+    }
+
+    @Test
+    public void testRewriteBatchedStatementsIsEnabledOnTheMySQLConnection() throws Exception {
+        AtomicBoolean rewrite = new AtomicBoolean();
+        List<Boolean> batches = new CopyOnWriteArrayList<>();
+        PreparedStatement statement = mock(PreparedStatement.class);
+        when(statement.executeBatch()).thenAnswer(invocation -> {
+            batches.add(rewrite.get());
+            return new int[0];
+        });
+        DatabaseMetaData metadata = mock(DatabaseMetaData.class);
+        when(metadata.getDatabaseProductName()).thenReturn("MySQL");
+        com.mysql.jdbc.Connection physical = mock(com.mysql.jdbc.Connection.class);
+        when(physical.getMetaData()).thenReturn(metadata);
+        when(physical.prepareStatement(anyString())).thenReturn(statement);
+        when(physical.isValid(anyInt())).thenReturn(true);
+        when(physical.isWrapperFor(any(Class.class)))
+                .thenAnswer(invocation -> ((Class<?>) invocation.getArguments()[0]).isInstance(physical));
+        when(physical.unwrap(any(Class.class))).thenReturn(physical);
+        when(physical.getRewriteBatchedStatements()).thenAnswer(invocation -> rewrite.get());
+        doAnswer(invocation -> {
+            rewrite.set((Boolean) invocation.getArguments()[0]);
+            return null;
+        }).when(physical).setRewriteBatchedStatements(anyBoolean());
+        // Forwards all the calls, as the wrappers installed by the data sources between the pool and the driver
+        Connection wrapper = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[]{Connection.class}, (proxy, method, args) -> {
+                    try {
+                        return method.invoke(physical, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        DataSource driver = mock(DataSource.class);
+        when(driver.getConnection()).thenReturn(wrapper);
+        HikariConfig config = new HikariConfig();
+        config.setDataSource(driver);
+        config.setMaximumPoolSize(1);
+        config.setConnectionTimeout(1000);
+        source = new HikariDataSource(config);
+
+        BulkLoader.into(source, "items").columns("id", "name").writers(1).batchSize(10).load(rows(0, 100, "item-"));
+        assertThat(batches).hasSize(10).containsOnly(true);
+        // Restored when the connection is returned to the pool
+        assertThat(rewrite.get()).isFalse();
+    }
+
+    @Test
+    public void testMergeStatements() throws SQLException {
+        BulkLoader loader = BulkLoader.into(new HikariDataSource(), "t").columns("k", "v").keys("k")
+                .mode(BulkLoader.Mode.MERGE);
+        assertThat(loader.statement(Dialect.MYSQL))
+                .isEqualTo("INSERT INTO t (k, v) VALUES (?, ?) ON DUPLICATE KEY UPDATE v = VALUES(v)");
+        assertThat(loader.statement(Dialect.POSTGRESQL))
+                .isEqualTo("INSERT INTO t (k, v) VALUES (?, ?) ON CONFLICT (k) DO UPDATE SET v = EXCLUDED.v");
+        try {
+            loader.statement(Dialect.GENERIC);
+            fail("Unsupported merge expected");
+        } catch (SQLFeatureNotSupportedException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Checks the snapshots of H2 and HSQLDB databases, and the snapshot rule.
+ */
+public class DatabaseSnapshotTest {
+
+    private HikariDataSource source;
+
+    private DatabaseSnapshot snapshot;
+
+    @After
+    public void tearDown() {
+        if (snapshot != null) {
+            snapshot.close();
+        }
+        if (source != null) {
+            source.close();
+        }
+    }
+
+    private static HikariDataSource open(String url) {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(url);
+        config.setMaximumPoolSize(2);
+        config.setConnectionTimeout(1000);
+        return new HikariDataSource(config);
+    }
+
+    private static void execute(DataSource source, String... statements) throws SQLException {
+        try (Connection connection = source.getConnection(); Statement statement = connection.createStatement()) {
+            for (String sql : statements) {
+                statement.execute(sql);
+            }
+        }
+    }
+
+    private static int count(DataSource source, String table) throws SQLException {
+        try (Connection connection = source.getConnection(); Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            assertThat(results.next()).isTrue();
+            return results.getInt(1);
+        }
+    }
+
+    private void checkRestore(String url) throws SQLException {
+        source = open(url);
+        execute(source,
+                "CREATE TABLE owner (id INT PRIMARY KEY, name VARCHAR(32))",
+                "CREATE TABLE item (id INT GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY, owner INT, "
+                        + "data BLOB, FOREIGN KEY (owner) REFERENCES owner(id))",
+                "CREATE SCHEMA archive",
+                "CREATE TABLE archive.item (id INT PRIMARY KEY)",
+                "INSERT INTO owner VALUES (1, 'alice'), (2, 'bob')",
+                "INSERT INTO item (owner, data) VALUES (1, X'0102'), (2, NULL)",
+                "INSERT INTO archive.item VALUES (1)");
+        snapshot = DatabaseSnapshot.capture(source);
+
+        execute(source,
+                "DELETE FROM item",
+                "DELETE FROM owner WHERE id = 2",
+                "DROP TABLE archive.item",
+                "CREATE TABLE extra (id INT)");
+        snapshot.restore(source);
+
+        assertThat(count(source, "owner")).isEqualTo(2);
+        assertThat(count(source, "item")).isEqualTo(2);
+        assertThat(count(source, "archive.item")).isEqualTo(1);
+        try {
+            count(source, "extra");
+            fail("The table created after the capture must be dropped");
+        } catch (SQLException e) {
+            // Expected
+        }
+        try (Connection connection = source.getConnection(); Statement statement = connection.createStatement();
+             ResultSet results = statement.executeQuery("SELECT data FROM item WHERE owner = 1")) {
+            assertThat(results.next()).isTrue();
+            assertThat(results.getBytes(1)).containsExactly(1, 2);
+        }
+        // The identity and the foreign keys are restored
+        execute(source, "INSERT INTO item (owner) VALUES (1)");
+        try {
+            execute(source, "INSERT INTO item (owner) VALUES (3)");
+            fail("The foreign key must be restored");
+        } catch (SQLException e) {
+            // Expected
+        }
+
+        // A snapshot can be restored several times
+        snapshot.restore(source);
+        assertThat(count(source, "item")).isEqualTo(2);
+    }
+
+    @Test
+    public void testH2() throws SQLException {
+        checkRestore("jdbc:h2:mem:snapshot;DB_CLOSE_DELAY=-1");
+    }
+
+    @Test
+    public void testHsqldb() throws SQLException {
+        checkRestore("jdbc:hsqldb:mem:snapshot");
+    }
+
+    @Test
+    public void testUnsupportedDatabase() {
+        source = open("jdbc:sqlite::memory:");
+        try {
+            DatabaseSnapshot.capture(source);
+            fail("SQLite is not supported");
+        } catch (SQLException e) {
+            assertThat(e.getMessage()).contains("SQLite");
+        }
+    }
+
+    @Test
+    public void testRule() {
+        Result result = JUnitCore.runClasses(SeededTests.class);
+        assertThat(result.getFailures()).isEmpty();
+        assertThat(result.getRunCount()).isEqualTo(3);
+        assertThat(SeededTests.seeds).isEqualTo(1);
+        SeededTests.SNAPSHOT.release();
+        SeededTests.DATABASE.close();
+    }
+
+    /**
+     * Tests modifying a seeded database, run by {@link #testRule()}.
+     */
+    public static class SeededTests {
+
+        static final HikariDataSource DATABASE = open("jdbc:h2:mem:snapshot-rule;DB_CLOSE_DELAY=-1");
+
+        static int seeds;
+
+        static final SnapshotRule SNAPSHOT = new SnapshotRule(() -> DATABASE, connection -> {
+            seeds++;
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE item (id INT PRIMARY KEY)");
+                return statement.executeUpdate("INSERT INTO item VALUES (1), (2), (3)");
+            }
+        });
+
+        @Rule
+        public SnapshotRule snapshot = SNAPSHOT;
+
+        @Test
+        public void delete() throws SQLException {
+            assertThat(count(DATABASE, "item")).isEqualTo(3);
+            execute(DATABASE, "DELETE FROM item");
+        }
+
+        @Test
+        public void insert() throws SQLException {
+            assertThat(count(DATABASE, "item")).isEqualTo(3);
+            execute(DATABASE, "INSERT INTO item VALUES (4)");
+        }
+
+        @Test
+        public void drop() throws SQLException {
+            assertThat(count(DATABASE, "item")).isEqualTo(3);
+            execute(DATABASE, "DROP TABLE item");
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import org.junit.rules.TestRule;
+import org.junit.runner.Description;
+import org.junit.runners.model.Statement;
+import org.wisdom.database.jdbc.service.ConnectionFunction;
+import org.wisdom.database.jdbc.service.DataSources;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.function.Supplier;
+
+/**
+ * A JUnit rule seeding an embedded database (H2 or HSQLDB) once, and restoring it before each test with a
+ * {@link DatabaseSnapshot}. The first test runs the seed function and captures the database, the next ones restore
+ * the capture. The rule is shared by the tests of a class through a static field:
+ * <pre>
+ * private static final SnapshotRule SNAPSHOT = SnapshotRule.of(() -&gt; sources, "h2", connection -&gt; {
+ *     // Create the schema and insert the data
+ * });
+ *
+ * &#64;Rule
+ * public SnapshotRule snapshot = SNAPSHOT;
+ * </pre>
+ * When also used as a {@code ClassRule}, the database is seeded before the tests of the class, and the snapshot is
+ * released after them. The rule is shipped in the test jar of this module (not in the bundle), with JUnit 4 as test
+ * dependency.
+ */
+public class SnapshotRule implements TestRule {
+
+    private final Supplier<DataSource> source;
+
+    private final ConnectionFunction<?> seed;
+
+    private DatabaseSnapshot snapshot;
+
+    /**
+     * Creates a rule.
+     *
+     * @param source supplies the data source, called before each test
+     * @param seed   creates the schema and inserts the data, the connection is committed once the function returns
+     */
+    public SnapshotRule(Supplier<DataSource> source, ConnectionFunction<?> seed) {
+        this.source = source;
+        this.seed = seed;
+    }
+
+    /**
+     * Creates a rule on a data source of the {@link DataSources} service.
+     *
+     * @param sources  supplies the {@link DataSources} service, called before each test
+     * @param database the data source name
+     * @param seed     creates the schema and inserts the data, the connection is committed once the function returns
+     * @return the rule
+     */
+    public static SnapshotRule of(final Supplier<DataSources> sources, final String database,
+                                  ConnectionFunction<?> seed) {
+        return new SnapshotRule(() -> {
+            DataSources service = sources.get();
+            DataSource found = service == null ? null : service.getDataSource(database);
+            if (found == null) {
+                throw new IllegalStateException("The data source '" + database + "' is not available");
+            }
+            return found;
+        }, seed);
+    }
+
+    @Override
+    public Statement apply(final Statement base, final Description description) {
+        return new Statement() {
+            @Override
+            public void evaluate() throws Throwable {
+                prepare();
+                if (description.isSuite()) {
+                    try {
+                        base.evaluate();
+                    } finally {
+                        release();
+                    }
+                } else {
+                    base.evaluate();
+                }
+            }
+        };
+    }
+
+    /**
+     * Seeds and captures the database on the first call, restores the snapshot on the next ones.
+     *
+     * @throws SQLException if the database cannot be seeded, captured or restored
+     */
+    public synchronized void prepare() throws SQLException {
+        DataSource current = source.get();
+        if (snapshot != null) {
+            snapshot.restore(current);
+            return;
+        }
+        try (Connection connection = current.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+            try {
+                seed.apply(connection);
+                connection.commit();
+            } catch (SQLException | RuntimeException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+            snapshot = DatabaseSnapshot.capture(connection);
+        }
+    }
+
+    /**
+     * Releases the snapshot, the next test seeds the database again.
+     */
+    public synchronized void release() {
+        if (snapshot != null) {
+            snapshot.close();
+            snapshot = null;
+        }
+    }
+
+    /**
+     * @return the snapshot, {@literal null} before the first test
+     */
+    public synchronized DatabaseSnapshot getSnapshot() {
+        return snapshot;
+    }
+}
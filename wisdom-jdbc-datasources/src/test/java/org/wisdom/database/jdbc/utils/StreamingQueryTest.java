@@ -0,0 +1,276 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.database.jdbc.utils;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import javax.sql.DataSource;
+import java.lang.reflect.Proxy;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Checks the streaming queries on H2.
+ */
+public class StreamingQueryTest {
+
+    private static final int ROWS = 1000;
+
+    private HikariDataSource source;
+
+    @Before
+    public void setUp() throws SQLException {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl("jdbc:h2:mem:streaming;DB_CLOSE_DELAY=-1");
+        config.setMaximumPoolSize(2);
+        config.setConnectionTimeout(1000);
+        source = new HikariDataSource(config);
+        try (Connection connection = source.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE items (id INT PRIMARY KEY, name VARCHAR(32))");
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO items VALUES (?, ?)")) {
+                for (int i = 0; i < ROWS; i++) {
+                    insert.setInt(1, i);
+                    insert.setString(2, "item-" + i);
+                    insert.addBatch();
+                }
+                insert.executeBatch();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        try (Connection connection = source.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("DROP TABLE items");
+        }
+        source.close();
+    }
+
+    /**
+     * Checks that the consumers released their connections, by borrowing all the connections of the pool.
+     */
+    private void assertConnectionsReturned() throws SQLException {
+        try (Connection c1 = source.getConnection(); Connection c2 = source.getConnection()) {
+            assertThat(c2.isValid(1)).isTrue();
+        }
+    }
+
+    @Test
+    public void testStream() throws SQLException {
+        try (Stream<Integer> ids = StreamingQuery.of(source, "SELECT id FROM items WHERE id >= ? ORDER BY id", 10)
+                .fetchSize(100)
+                .stream(row -> row.getInt(1))) {
+            List<Integer> list = ids.collect(Collectors.toList());
+            assertThat(list).hasSize(ROWS - 10).startsWith(10, 11, 12).endsWith(ROWS - 1);
+        }
+        assertConnectionsReturned();
+    }
+
+    @Test
+    public void testStreamClosedBeforeTheEnd() throws SQLException {
+        try (Stream<String> names = StreamingQuery.of(source, "SELECT name FROM items ORDER BY id")
+                .stream(row -> row.getString(1))) {
+            assertThat(names.limit(5).collect(Collectors.toList())).containsExactly("item-0", "item-1", "item-2",
+                    "item-3", "item-4");
+        }
+        assertConnectionsReturned();
+    }
+
+    @Test
+    public void testStreamReleasesTheConnectionOnceConsumed() throws SQLException {
+        // Not closed explicitly
+        long count = StreamingQuery.of(source, "SELECT id FROM items").stream(row -> row.getInt(1)).count();
+        assertThat(count).isEqualTo(ROWS);
+        assertConnectionsReturned();
+    }
+
+    @Test
+    public void testInvalidQuery() throws SQLException {
+        try {
+            StreamingQuery.of(source, "SELECT missing FROM items").stream(row -> row.getInt(1));
+            fail("Invalid query expected");
+        } catch (SQLException e) {
+            // Expected
+        }
+        assertConnectionsReturned();
+    }
+
+    @Test
+    public void testPublisherFollowsTheDemand() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        QueryPublisher.<Integer>of(StreamingQuery.of(source, "SELECT id FROM items ORDER BY id"), row -> row.getInt(1))
+                .subscribe(subscriber);
+        assertThat(subscriber.subscription).isNotNull();
+
+        subscriber.request(3);
+        assertThat(subscriber.awaitElements(3)).containsExactly(0, 1, 2);
+        // Nothing is emitted without demand
+        Thread.sleep(50);
+        assertThat(subscriber.elements).hasSize(3);
+
+        subscriber.request(Long.MAX_VALUE);
+        assertThat(subscriber.completed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.elements).hasSize(ROWS);
+        assertThat(subscriber.error.get()).isNull();
+        assertConnectionsReturned();
+    }
+
+    @Test
+    public void testPublisherCancellation() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        QueryPublisher.<Integer>of(StreamingQuery.of(source, "SELECT id FROM items ORDER BY id"), row -> row.getInt(1))
+                .subscribe(subscriber);
+        subscriber.request(10);
+        assertThat(subscriber.awaitElements(10)).hasSize(10);
+        subscriber.subscription.cancel();
+        // The cursor is closed asynchronously
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                assertConnectionsReturned();
+                break;
+            } catch (SQLException e) {
+                // Still held
+            }
+        }
+        assertConnectionsReturned();
+        assertThat(subscriber.completed.getCount()).isEqualTo(1);
+    }
+
+    @Test
+    public void testPublisherRejectsInvalidRequests() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        QueryPublisher.<Integer>of(StreamingQuery.of(source, "SELECT id FROM items"), row -> row.getInt(1))
+                .subscribe(subscriber);
+        subscriber.request(0);
+        assertThat(subscriber.failed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.error.get()).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void testPublisherReportsQueryErrors() throws Exception {
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        QueryPublisher.<Integer>of(StreamingQuery.of(source, "SELECT missing FROM items"), row -> row.getInt(1))
+                .subscribe(subscriber);
+        subscriber.request(1);
+        assertThat(subscriber.failed.await(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(subscriber.error.get()).isInstanceOf(SQLException.class);
+        assertConnectionsReturned();
+    }
+
+    @Test
+    public void testStreamingDoesNotRequireReactiveStreams() throws Exception {
+        // Loads the utils package again, in a class loader not seeing the Reactive Streams API
+        ClassLoader parent = new ClassLoader(StreamingQueryTest.class.getClassLoader()) {
+            @Override
+            protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (name.startsWith("org.reactivestreams.")
+                        || name.startsWith(StreamingQuery.class.getPackage().getName())) {
+                    throw new ClassNotFoundException(name);
+                }
+                return super.loadClass(name, resolve);
+            }
+        };
+        URL classes = StreamingQuery.class.getProtectionDomain().getCodeSource().getLocation();
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{classes}, parent)) {
+            Class<?> query = loader.loadClass(StreamingQuery.class.getName());
+            Class<?> mapper = loader.loadClass(StreamingQuery.RowMapper.class.getName());
+            // Resolves the signatures of all the methods
+            assertThat(query.getMethods()).isNotEmpty();
+
+            Object rows = Proxy.newProxyInstance(loader, new Class[]{mapper},
+                    (proxy, method, args) -> ((ResultSet) args[0]).getInt(1));
+            Object streaming = query.getMethod("of", DataSource.class, String.class, Object[].class)
+                    .invoke(null, source, "SELECT id FROM items", new Object[0]);
+            try (Stream<?> stream = (Stream<?>) query.getMethod("stream", mapper).invoke(streaming, rows)) {
+                assertThat(stream.count()).isEqualTo(ROWS);
+            }
+        }
+        assertConnectionsReturned();
+    }
+
+    private static class RecordingSubscriber implements Subscriber<Integer> {
+
+        private volatile Subscription subscription;
+
+        private final List<Integer> elements = Collections.synchronizedList(new ArrayList<>());
+
+        private final CountDownLatch completed = new CountDownLatch(1);
+
+        private final CountDownLatch failed = new CountDownLatch(1);
+
+        private final AtomicReference<Throwable> error = new AtomicReference<>();
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Integer element) {
+            elements.add(element);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error.set(throwable);
+            failed.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        void request(long n) {
+            subscription.request(n);
+        }
+
+        List<Integer> awaitElements(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (elements.size() < count && System.currentTimeMillis() < deadline) {
+                Thread.sleep(5);
+            }
+            return new ArrayList<>(elements);
+        }
+    }
+}
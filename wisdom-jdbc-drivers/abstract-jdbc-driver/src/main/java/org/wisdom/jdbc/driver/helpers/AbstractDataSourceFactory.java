@@ -26,11 +26,8 @@ import javax.sql.DataSource;
 import javax.sql.XADataSource;
 import java.sql.Driver;
 import java.sql.SQLException;
-import java.util.Enumeration;
 import java.util.Properties;
 
-import static org.wisdom.jdbc.driver.helpers.BeanUtils.setProperty;
-
 /**
  * (Code imported from the Eclipse Gemini project)
  * Abstract factory for creating JDBC data sources and drivers. The properties
@@ -46,8 +43,8 @@ import static org.wisdom.jdbc.driver.helpers.BeanUtils.setProperty;
  * props.put(DataSourceFactory.JDBC_PASSWORD, "secret");
  * DataSource ds = dsf.createDataSource(props);
  * </code>
- * Properties are set using reflection on <em>setter</em> methods. Instantiation failed if a property without an
- * associated setter is passed to the method.
+ * Properties are set using the <em>setter</em> methods (see {@link BeanBinder}). Instantiation failed if a property
+ * without an associated setter is passed to the method.
  */
 public abstract class AbstractDataSourceFactory implements DataSourceFactory {
 
@@ -122,14 +119,7 @@ public abstract class AbstractDataSourceFactory implements DataSourceFactory {
      */
     static void setBeanProperties(Object object, Properties props)
             throws SQLException {
-
-        if (props != null) {
-            Enumeration<?> enumeration = props.keys();
-            while (enumeration.hasMoreElements()) {
-                String name = (String) enumeration.nextElement();
-                setProperty(object, name, props.getProperty(name));
-            }
-        }
+        BeanBinder.of(object.getClass()).bind(object, props);
     }
 
     /**
@@ -0,0 +1,344 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.jdbc.driver.helpers;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+/**
+ * Sets the properties of a bean from string values, using its <em>setter</em> methods.
+ * <p>
+ * The setters of a class are discovered once (using the JavaBeans introspection), and kept in a table mapping each
+ * property to a {@link MethodHandle} and to the conversion of the string value to the type of the property. The table
+ * is cached per class in a {@link ClassValue}, so it does not prevent the class (and its bundle) from being unloaded.
+ * <p>
+ * Besides {@link String}, the supported property types are the primitive types and their wrappers (converted as
+ * {@link BeanUtils#toBasicType(String, String)} does), the enumerations (by constant name, ignoring the case),
+ * {@link Duration} (ISO-8601 such as {@code PT30S}, or a number followed by an optional {@code ms}, {@code s},
+ * {@code m}, {@code h} or {@code d} unit, milliseconds by default), {@link File}, {@link Path}, {@link URI},
+ * {@link URL}, {@link Charset}, {@link Locale} (language tag), {@link BigDecimal} and {@link BigInteger}.
+ */
+public final class BeanBinder {
+
+    private static final ClassValue<BeanBinder> BINDERS = new ClassValue<BeanBinder>() {
+        @Override
+        protected BeanBinder computeValue(Class<?> type) {
+            return new BeanBinder(type);
+        }
+    };
+
+    private static final MethodType SETTER = MethodType.methodType(void.class, Object.class, Object.class);
+
+    private final Class<?> type;
+
+    private final Map<String, Setter> setters;
+
+    /**
+     * The error raised by the introspection of the class, {@literal null} if the class has been introspected.
+     */
+    private final SQLException failure;
+
+    private BeanBinder(Class<?> type) {
+        this.type = type;
+        Map<String, Setter> map = new HashMap<>();
+        SQLException error = null;
+        try {
+            for (PropertyDescriptor descriptor : Introspector.getBeanInfo(type).getPropertyDescriptors()) {
+                Method method = descriptor.getWriteMethod();
+                if (method != null) {
+                    map.put(descriptor.getName(), new Setter(descriptor.getName(), method));
+                }
+            }
+        } catch (IntrospectionException | RuntimeException e) {
+            error = new SQLException("Cannot introspect " + type.getName(), e);
+        }
+        this.setters = Collections.unmodifiableMap(map);
+        this.failure = error;
+    }
+
+    /**
+     * Gets the binder of the given class, created on the first call.
+     *
+     * @param type the class
+     * @return the binder
+     */
+    public static BeanBinder of(Class<?> type) {
+        return BINDERS.get(type);
+    }
+
+    /**
+     * @return the names of the writable properties
+     */
+    public Set<String> getPropertyNames() {
+        return Collections.unmodifiableSet(new TreeSet<>(setters.keySet()));
+    }
+
+    /**
+     * Sets the property 'name' to `value` in the given object.
+     *
+     * @param object the object, an instance of the class of this binder
+     * @param name   the property name
+     * @param value  the value
+     * @throws SQLException if the property cannot be set. This happens if there are no setter for the given property
+     *                      in the object or if the value cannot be converted to the type of the setter parameter.
+     */
+    public void set(Object object, String name, String value) throws SQLException {
+        if (failure != null) {
+            throw failure;
+        }
+        Setter setter = setters.get(name);
+        if (setter == null) {
+            throw new SQLException("No such property: " + name + ". Writable properties of " + type.getName()
+                    + " are: " + getPropertyNames());
+        }
+        setter.set(object, value);
+    }
+
+    /**
+     * Sets all the given properties in the given object. Values that are not strings are converted with their
+     * {@code toString} method.
+     *
+     * @param object     the object, an instance of the class of this binder
+     * @param properties the properties, may be {@literal null}
+     * @throws SQLException if a property cannot be set
+     */
+    public void bind(Object object, Properties properties) throws SQLException {
+        if (properties == null) {
+            return;
+        }
+        for (Map.Entry<Object, Object> entry : properties.entrySet()) {
+            Object value = entry.getValue();
+            set(object, (String) entry.getKey(), value == null ? null : value.toString());
+        }
+    }
+
+    /**
+     * A setter, and the conversion of the values to its parameter type.
+     */
+    private final class Setter {
+
+        private final String name;
+
+        private final Class<?> parameter;
+
+        /**
+         * The setter, adapted to the {@code (Object, Object)void} type, {@literal null} if it is not accessible.
+         */
+        private final MethodHandle handle;
+
+        /**
+         * The converter, {@literal null} if the parameter type is not supported.
+         */
+        private final Converter converter;
+
+        private final SQLException failure;
+
+        private Setter(String name, Method method) {
+            this.name = name;
+            this.parameter = method.getParameterTypes()[0];
+            this.converter = converter(parameter);
+            MethodHandle found = null;
+            SQLException error = null;
+            try {
+                found = unreflect(method).asType(SETTER);
+            } catch (IllegalAccessException | RuntimeException e) {
+                error = new SQLException("Cannot access the setter of the property " + name + " of "
+                        + type.getName(), e);
+            }
+            this.handle = found;
+            this.failure = error;
+        }
+
+        private void set(Object object, String value) throws SQLException {
+            if (failure != null) {
+                throw failure;
+            }
+            Object param = null;
+            if (value != null) {
+                if (converter == null) {
+                    throw new SQLException("Unrecognized property type: " + parameter.getName());
+                }
+                param = converter.convert(value);
+            }
+            try {
+                handle.invokeExact(object, param);
+            } catch (Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new SQLException("Cannot set the property " + name + " of " + type.getName(), e);
+            }
+        }
+    }
+
+    private static MethodHandle unreflect(Method method) throws IllegalAccessException {
+        try {
+            return MethodHandles.publicLookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            // Public setter declared in a class that is not public
+            method.setAccessible(true);
+            return MethodHandles.lookup().unreflect(method);
+        }
+    }
+
+    /**
+     * Converts a string value to a property type.
+     */
+    @FunctionalInterface
+    private interface Converter {
+        Object convert(String value) throws SQLException;
+    }
+
+    private static final Map<Class<?>, Converter> CONVERTERS = new HashMap<>();
+
+    static {
+        CONVERTERS.put(String.class, value -> value);
+        CONVERTERS.put(CharSequence.class, value -> value);
+        number("Integer", Integer::valueOf, int.class, Integer.class);
+        number("Long", Long::valueOf, long.class, Long.class);
+        number("Short", Short::valueOf, short.class, Short.class);
+        number("Byte", Byte::valueOf, byte.class, Byte.class);
+        number("Float", Float::valueOf, float.class, Float.class);
+        number("Double", Double::valueOf, double.class, Double.class);
+        number("BigInteger", BigInteger::new, BigInteger.class);
+        number("BigDecimal", BigDecimal::new, BigDecimal.class);
+        // Will be "false" if not in correct format...
+        CONVERTERS.put(boolean.class, Boolean::valueOf);
+        CONVERTERS.put(Boolean.class, Boolean::valueOf);
+        Converter character = value -> {
+            if (value.length() != 1) {
+                throw new SQLException("Invalid Character value: " + value);
+            }
+            return value.charAt(0);
+        };
+        CONVERTERS.put(char.class, character);
+        CONVERTERS.put(Character.class, character);
+        CONVERTERS.put(Duration.class, BeanBinder::toDuration);
+        CONVERTERS.put(File.class, File::new);
+        CONVERTERS.put(Path.class, value -> parse("Path", value, Paths::get));
+        CONVERTERS.put(URI.class, value -> parse("URI", value, URI::create));
+        CONVERTERS.put(URL.class, value -> {
+            try {
+                return new URL(value);
+            } catch (MalformedURLException e) {
+                throw new SQLException("Invalid URL value: " + value, e);
+            }
+        });
+        CONVERTERS.put(Charset.class, value -> parse("Charset", value, Charset::forName));
+        CONVERTERS.put(Locale.class, Locale::forLanguageTag);
+    }
+
+    private static void number(String name, Function<String, Object> parser, Class<?>... types) {
+        for (Class<?> type : types) {
+            CONVERTERS.put(type, value -> parse(name, value, parser));
+        }
+    }
+
+    private static Object parse(String name, String value, Function<String, Object> parser) throws SQLException {
+        try {
+            return parser.apply(value);
+        } catch (RuntimeException e) {
+            BeanUtils.throwSQLException(e, name, value);
+            return null;
+        }
+    }
+
+    private static Converter converter(Class<?> type) {
+        Converter converter = CONVERTERS.get(type);
+        if (converter == null && type.isEnum()) {
+            return value -> toEnum(type, value);
+        }
+        return converter;
+    }
+
+    private static Object toEnum(Class<?> type, String value) throws SQLException {
+        String name = value.trim();
+        for (Object constant : type.getEnumConstants()) {
+            if (((Enum<?>) constant).name().equalsIgnoreCase(name)) {
+                return constant;
+            }
+        }
+        throw new SQLException("Invalid " + type.getSimpleName() + " value: " + value);
+    }
+
+    /**
+     * Parses a duration, either in the ISO-8601 format or as a number followed by an optional unit ({@code ms},
+     * {@code s}, {@code m}, {@code h} or {@code d}, milliseconds by default).
+     *
+     * @param value the value
+     * @return the duration
+     * @throws SQLException if the value is not a valid duration
+     */
+    static Duration toDuration(String value) throws SQLException {
+        String text = value.trim().toLowerCase(Locale.ENGLISH);
+        try {
+            if (text.startsWith("p") || text.startsWith("-p")) {
+                return Duration.parse(text);
+            }
+            int split = text.length();
+            while (split > 0 && Character.isLetter(text.charAt(split - 1))) {
+                split--;
+            }
+            long amount = Long.parseLong(text.substring(0, split).trim());
+            switch (text.substring(split)) {
+                case "":
+                case "ms":
+                    return Duration.ofMillis(amount);
+                case "s":
+                    return Duration.ofSeconds(amount);
+                case "m":
+                    return Duration.ofMinutes(amount);
+                case "h":
+                    return Duration.ofHours(amount);
+                case "d":
+                    return Duration.ofDays(amount);
+                default:
+                    throw new SQLException("Invalid Duration value: " + value + " (unknown unit)");
+            }
+        } catch (DateTimeParseException | NumberFormatException e) {
+            BeanUtils.throwSQLException(e, "Duration", value);
+            return null;
+        }
+    }
+}
@@ -19,12 +19,7 @@
  */
 package org.wisdom.jdbc.driver.helpers;
 
-import java.beans.Introspector;
-import java.beans.PropertyDescriptor;
-import java.lang.reflect.Method;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
 
 /**
  * Configures an object based on the given properties.
@@ -37,7 +32,7 @@ public class BeanUtils {
 
     /**
      * Tries to set the property 'name' to `value` in the given object. This assignation is made using a
-     * <em>setter</em> method discovered and invoked using reflection.
+     * <em>setter</em> method, discovered once per class and invoked through the {@link BeanBinder} of the class.
      * @param object the object
      * @param name the property name
      * @param value the value
@@ -46,39 +41,7 @@ public class BeanUtils {
      */
     public static void setProperty(Object object, String name, String value)
             throws SQLException {
-        Class<?> type = object.getClass();
-
-        PropertyDescriptor[] descriptors;
-        try {
-            descriptors = Introspector.getBeanInfo(type)
-                    .getPropertyDescriptors();
-        } catch (Exception ex) {
-            throw new SQLException(ex);
-        }
-        List<String> names = new ArrayList<>();
-
-        for (PropertyDescriptor descriptor : descriptors) {
-            if (descriptor.getWriteMethod() == null) {
-                continue;
-            }
-
-            if (descriptor.getName().equals(name)) {
-                Method method = descriptor.getWriteMethod();
-                Class<?> paramType = method.getParameterTypes()[0];
-                Object param = toBasicType(value, paramType.getName());
-
-                try {
-                    method.invoke(object, param);
-                } catch (Exception ex) {
-                    throw new SQLException(ex);
-                }
-                return;
-            }
-
-            names.add(descriptor.getName());
-        }
-        throw new SQLException("No such property: " + name +
-                ", exists.  Writable properties are: " + names);
+        BeanBinder.of(object.getClass()).set(object, name, value);
     }
 
     /**
@@ -0,0 +1,185 @@
+/*
+ * #%L
+ * Wisdom-Framework
+ * %%
+ * Copyright (C) 2013 - 2015 Wisdom Framework
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+package org.wisdom.jdbc.driver.helpers;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.math.BigDecimal;
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.fail;
+
+/**
+ * Checks the bean binder.
+ */
+public class BeanBinderTest {
+
+    @Test
+    public void testBinderIsCachedPerClass() {
+        assertThat(BeanBinder.of(MyDataSourceBean.class)).isSameAs(BeanBinder.of(MyDataSourceBean.class));
+        assertThat(BeanBinder.of(MyDataSourceBean.class)).isNotSameAs(BeanBinder.of(TypedBean.class));
+        assertThat(BeanBinder.of(MyDataSourceBean.class).getPropertyNames())
+                .containsExactly("b", "c", "count", "d", "date", "f", "flag", "s", "url");
+    }
+
+    @Test
+    public void testBindProperties() throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty("url", "http://perdu.com");
+        properties.setProperty("count", "25");
+        properties.setProperty("flag", "true");
+        // Values that are not strings are converted
+        properties.put("date", 2014L);
+        MyDataSourceBean bean = new MyDataSourceBean();
+        BeanBinder.of(MyDataSourceBean.class).bind(bean, properties);
+        assertThat(bean.url).isEqualTo("http://perdu.com");
+        assertThat(bean.count).isEqualTo(25);
+        assertThat(bean.flag).isTrue();
+        assertThat(bean.date).isEqualTo(2014L);
+
+        BeanBinder.of(MyDataSourceBean.class).bind(bean, null);
+        assertThat(bean.count).isEqualTo(25);
+    }
+
+    @Test
+    public void testCommonTypes() throws SQLException {
+        TypedBean bean = new TypedBean();
+        BeanBinder binder = BeanBinder.of(TypedBean.class);
+        binder.set(bean, "unit", "seconds");
+        binder.set(bean, "timeout", "PT30S");
+        binder.set(bean, "directory", "target/data");
+        binder.set(bean, "path", "target/path");
+        binder.set(bean, "location", "http://localhost:8080/");
+        binder.set(bean, "amount", "12.50");
+        binder.set(bean, "count", "3");
+
+        assertThat(bean.unit).isEqualTo(TimeUnit.SECONDS);
+        assertThat(bean.timeout).isEqualTo(Duration.ofSeconds(30));
+        assertThat(bean.directory).isEqualTo(new File("target/data"));
+        assertThat(bean.path).isEqualTo(Paths.get("target/path"));
+        assertThat(bean.location).isEqualTo(URI.create("http://localhost:8080/"));
+        assertThat(bean.amount).isEqualTo(new BigDecimal("12.50"));
+        assertThat(bean.count).isEqualTo(3);
+
+        binder.set(bean, "count", null);
+        assertThat(bean.count).isNull();
+    }
+
+    @Test
+    public void testDurations() throws SQLException {
+        assertThat(BeanBinder.toDuration("1500")).isEqualTo(Duration.ofMillis(1500));
+        assertThat(BeanBinder.toDuration("250ms")).isEqualTo(Duration.ofMillis(250));
+        assertThat(BeanBinder.toDuration("30 s")).isEqualTo(Duration.ofSeconds(30));
+        assertThat(BeanBinder.toDuration("5m")).isEqualTo(Duration.ofMinutes(5));
+        assertThat(BeanBinder.toDuration("2h")).isEqualTo(Duration.ofHours(2));
+        assertThat(BeanBinder.toDuration("1d")).isEqualTo(Duration.ofDays(1));
+        assertThat(BeanBinder.toDuration("pt1m")).isEqualTo(Duration.ofMinutes(1));
+        for (String invalid : new String[]{"", "ten seconds", "10w", "PT"}) {
+            try {
+                BeanBinder.toDuration(invalid);
+                fail("SQL Exception expected for '" + invalid + "'");
+            } catch (SQLException e) {
+                // OK
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidValues() throws SQLException {
+        TypedBean bean = new TypedBean();
+        BeanBinder binder = BeanBinder.of(TypedBean.class);
+        for (String[] invalid : new String[][]{{"unit", "fortnights"}, {"amount", "a lot"}, {"location", "not a uri"},
+                {"unsupported", "value"}, {"missing", "value"}}) {
+            try {
+                binder.set(bean, invalid[0], invalid[1]);
+                fail("SQL Exception expected for " + invalid[0]);
+            } catch (SQLException e) {
+                // OK
+            }
+        }
+    }
+
+    @Test
+    public void testSetterExceptionsAreWrapped() {
+        try {
+            BeanBinder.of(TypedBean.class).set(new TypedBean(), "rejected", "value");
+            fail("SQL Exception expected");
+        } catch (SQLException e) {
+            assertThat(e.getCause()).isInstanceOf(IllegalArgumentException.class);
+        }
+    }
+
+    /**
+     * A bean with properties of various types.
+     */
+    public static class TypedBean {
+        TimeUnit unit;
+        Duration timeout;
+        File directory;
+        Path path;
+        URI location;
+        BigDecimal amount;
+        Integer count;
+
+        public void setUnit(TimeUnit unit) {
+            this.unit = unit;
+        }
+
+        public void setTimeout(Duration timeout) {
+            this.timeout = timeout;
+        }
+
+        public void setDirectory(File directory) {
+            this.directory = directory;
+        }
+
+        public void setPath(Path path) {
+            this.path = path;
+        }
+
+        public void setLocation(URI location) {
+            this.location = location;
+        }
+
+        public void setAmount(BigDecimal amount) {
+            this.amount = amount;
+        }
+
+        public void setCount(Integer count) {
+            this.count = count;
+        }
+
+        public void setUnsupported(Object value) {
+            // Not supported
+        }
+
+        public void setRejected(String value) {
+            throw new IllegalArgumentException("Rejected " + value);
+        }
+    }
+}
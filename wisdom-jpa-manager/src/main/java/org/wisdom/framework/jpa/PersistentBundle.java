@@ -115,6 +115,14 @@ public class PersistentBundle {
         return factory.createComponentInstance(configuration);
     }
 
+    /**
+     * Creates the filter selecting the data source service of a persistence unit. A data source configured with read
+     * replicas is published as a single service routing the connections, so the filter selects it as any other data
+     * source, and read-only transactions are served by the replicas.
+     *
+     * @param name the data source name, or filter, from the persistence unit
+     * @return the filter, {@literal null} if the name is {@literal null}
+     */
     static String createDataSourceFilter(String name) {
         if (name == null) {
 //            return "(" + DataSources.DATASOURCE_NAME_PROPERTY + "= not-set)";
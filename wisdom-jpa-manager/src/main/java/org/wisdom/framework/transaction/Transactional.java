@@ -42,5 +42,11 @@ public @interface Transactional {
 
     Class<? extends Exception>[] rollbackOnlyFor() default {};
 
+    /**
+     * Whether or not the transaction only reads data. The connections obtained during a read-only transaction from a
+     * data source configured with replicas are served by the replicas.
+     */
+    boolean readOnly() default false;
+
 
 }
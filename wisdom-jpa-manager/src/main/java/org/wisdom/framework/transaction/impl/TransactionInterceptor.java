@@ -26,6 +26,7 @@ import org.apache.felix.ipojo.annotations.Requires;
 import org.wisdom.api.http.Result;
 import org.wisdom.api.interception.Interceptor;
 import org.wisdom.api.interception.RequestContext;
+import org.wisdom.database.jdbc.utils.ReadOnly;
 import org.wisdom.framework.transaction.Transactional;
 
 import javax.transaction.TransactionManager;
@@ -58,17 +59,26 @@ public class TransactionInterceptor extends Interceptor<Transactional> {
      */
     @Override
     public Result call(Transactional configuration, RequestContext context) throws Exception {
-        propagation.onEntry(configuration.propagation(),
-                configuration.timeout(),
-                context.route().getControllerMethod().getName());
+        if (configuration.readOnly()) {
+            ReadOnly.enter();
+        }
         try {
-            Result result = context.proceed();
-            propagation.onExit(configuration.propagation(), context.route().getControllerMethod().getName(), null);
-            return result;
-        } catch (Exception e) {
-            propagation.onError(e, configuration.propagation(), configuration.noRollbackFor(),
-                    configuration.rollbackOnlyFor(), context.route().getControllerMethod().getName(), null);
-            throw e;
+            propagation.onEntry(configuration.propagation(),
+                    configuration.timeout(),
+                    context.route().getControllerMethod().getName());
+            try {
+                Result result = context.proceed();
+                propagation.onExit(configuration.propagation(), context.route().getControllerMethod().getName(), null);
+                return result;
+            } catch (Exception e) {
+                propagation.onError(e, configuration.propagation(), configuration.noRollbackFor(),
+                        configuration.rollbackOnlyFor(), context.route().getControllerMethod().getName(), null);
+                throw e;
+            }
+        } finally {
+            if (configuration.readOnly()) {
+                ReadOnly.exit();
+            }
         }
     }
 